@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.resourceTableWithTestLabel;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.io.RecursiveDeleteOption.ALLOW_INSECURE;
+
+import com.android.tools.build.bundletool.io.ZipBuilder;
+import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.Aapt2DaemonPool;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.ConcurrencyUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.MoreFiles;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the conversion of split APKs from proto to binary format with aapt2, either starting
+ * a process for each APK or reusing a pool of aapt2 daemons.
+ *
+ * <p>The aapt2 executable is given by the {@value #AAPT2_PATH_PROPERTY} system property.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class Aapt2Benchmark {
+
+  static final String AAPT2_PATH_PROPERTY = "bundletool.benchmarks.aapt2";
+
+  /** How aapt2 is executed. */
+  public enum Aapt2Mode {
+    ONE_SHOT,
+    DAEMON_POOL
+  }
+
+  @Param({"ONE_SHOT", "DAEMON_POOL"})
+  public Aapt2Mode mode;
+
+  @Param({"500"})
+  public int splitCount;
+
+  private final int threadCount = Runtime.getRuntime().availableProcessors();
+
+  private Path aapt2Path;
+  private Path tempDir;
+  private ImmutableList<Path> protoApks;
+  private ListeningExecutorService executorService;
+
+  @Setup
+  public void createProtoApks() throws Exception {
+    String aapt2 = System.getProperty(AAPT2_PATH_PROPERTY);
+    checkState(
+        aapt2 != null, "The path to aapt2 must be set with -D%s=<path>.", AAPT2_PATH_PROPERTY);
+    aapt2Path = Paths.get(aapt2);
+
+    tempDir = Files.createTempDirectory("bundletool-benchmark");
+    ImmutableList.Builder<Path> protoApks = ImmutableList.builder();
+    for (int i = 0; i < splitCount; i++) {
+      protoApks.add(
+          new ZipBuilder()
+              .addFileWithProtoContent(
+                  ZipPath.create("AndroidManifest.xml"),
+                  androidManifest(SyntheticBundles.PACKAGE_NAME))
+              .addFileWithProtoContent(
+                  ZipPath.create("resources.pb"), resourceTableWithTestLabel("Split " + i))
+              .writeTo(tempDir.resolve("split" + i + ".proto.apk")));
+    }
+    this.protoApks = protoApks.build();
+    executorService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
+  }
+
+  @TearDown
+  public void deleteProtoApks() throws Exception {
+    executorService.shutdownNow();
+    MoreFiles.deleteRecursively(tempDir, ALLOW_INSECURE);
+  }
+
+  /**
+   * Converts all splits, as the serialization of APKs does. The daemon pool is created and closed
+   * within the benchmark, so that the startup of the daemons is accounted for.
+   */
+  @Benchmark
+  public void convertAllSplits() {
+    switch (mode) {
+      case ONE_SHOT:
+        convertAllSplits(Aapt2Command.createFromExecutablePath(aapt2Path));
+        break;
+      case DAEMON_POOL:
+        try (Aapt2DaemonPool daemonPool =
+            Aapt2Command.createDaemonPoolFromExecutablePath(aapt2Path, threadCount)) {
+          convertAllSplits(daemonPool);
+        }
+        break;
+    }
+  }
+
+  private void convertAllSplits(Aapt2Command aapt2Command) {
+    List<ListenableFuture<Path>> conversions = new ArrayList<>();
+    for (Path protoApk : protoApks) {
+      Path binaryApk = protoApk.resolveSibling(protoApk.getFileName() + ".binary.apk");
+      conversions.add(
+          executorService.submit(
+              () -> {
+                aapt2Command.convertApkProtoToBinary(protoApk, binaryApk);
+                return binaryApk;
+              }));
+    }
+    ConcurrencyUtils.waitForAll(conversions);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import static com.android.tools.build.bundletool.testing.ApksArchiveHelpers.createApkDescription;
+import static com.android.tools.build.bundletool.testing.ApksArchiveHelpers.createMasterApkDescription;
+import static com.android.tools.build.bundletool.testing.ApksArchiveHelpers.createSplitApkSet;
+import static com.android.tools.build.bundletool.testing.ApksArchiveHelpers.createVariant;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.abis;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.density;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.locales;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.mergeSpecs;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.sdkVersion;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.apkAbiTargeting;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.apkDensityTargeting;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.apkLanguageTargeting;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.variantSdkTargeting;
+
+import com.android.bundle.Commands.ApkDescription;
+import com.android.bundle.Commands.ApkSet;
+import com.android.bundle.Commands.BuildApksResult;
+import com.android.bundle.Devices.DeviceSpec;
+import com.android.bundle.Targeting.Abi.AbiAlias;
+import com.android.bundle.Targeting.ApkTargeting;
+import com.android.bundle.Targeting.ScreenDensity.DensityAlias;
+import com.android.tools.build.bundletool.device.ApkMatcher;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the selection of the APKs to install on a device, among the split APKs generated for
+ * all modules.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ApkMatcherBenchmark {
+
+  private static final ImmutableSet<DensityAlias> DENSITIES =
+      ImmutableSet.of(
+          DensityAlias.LDPI,
+          DensityAlias.MDPI,
+          DensityAlias.HDPI,
+          DensityAlias.XHDPI,
+          DensityAlias.XXHDPI,
+          DensityAlias.XXXHDPI,
+          DensityAlias.TVDPI);
+  private static final ImmutableSet<AbiAlias> ABIS =
+      ImmutableSet.of(AbiAlias.ARMEABI_V7A, AbiAlias.ARM64_V8A, AbiAlias.X86, AbiAlias.X86_64);
+  private static final ImmutableList<String> LANGUAGES =
+      ImmutableList.of("de", "en", "es", "fr", "ja", "pt");
+
+  @Param({"2", "10", "50"})
+  public int moduleCount;
+
+  private BuildApksResult buildApksResult;
+  private ApkMatcher apkMatcher;
+
+  @Setup
+  public void createBuildApksResult() {
+    BuildApksResult.Builder result = BuildApksResult.newBuilder();
+    for (int minSdkVersion : ImmutableList.of(21, 26)) {
+      ImmutableList.Builder<ApkSet> apkSets = ImmutableList.builder();
+      for (int i = 0; i < moduleCount; i++) {
+        String moduleName = i == 0 ? "base" : "feature" + i;
+        apkSets.add(
+            createSplitApkSet(
+                moduleName,
+                createModuleApks(minSdkVersion, moduleName).toArray(new ApkDescription[0])));
+      }
+      result.addVariant(
+          createVariant(
+              variantSdkTargeting(minSdkVersion, ImmutableSet.of(21, 26)),
+              apkSets.build().toArray(new ApkSet[0])));
+    }
+    buildApksResult = result.build();
+
+    DeviceSpec device =
+        mergeSpecs(sdkVersion(28), abis("arm64-v8a"), density(DensityAlias.XHDPI), locales("fr"));
+    apkMatcher = new ApkMatcher(device);
+  }
+
+  @Benchmark
+  public ImmutableList<ZipPath> getMatchingApks() {
+    return apkMatcher.getMatchingApks(buildApksResult);
+  }
+
+  private static List<ApkDescription> createModuleApks(int minSdkVersion, String moduleName) {
+    Path variantDir = Paths.get("splits", Integer.toString(minSdkVersion), moduleName);
+    List<ApkDescription> apks = new ArrayList<>();
+    apks.add(
+        createMasterApkDescription(
+            ApkTargeting.getDefaultInstance(), variantDir.resolve("master.apk")));
+    for (DensityAlias density : DENSITIES) {
+      apks.add(
+          createConfigApkDescription(
+              apkDensityTargeting(density, Sets.difference(DENSITIES, ImmutableSet.of(density))),
+              variantDir.resolve(density.name() + ".apk")));
+    }
+    for (AbiAlias abi : ABIS) {
+      apks.add(
+          createConfigApkDescription(
+              apkAbiTargeting(abi, Sets.difference(ABIS, ImmutableSet.of(abi)).immutableCopy()),
+              variantDir.resolve(abi.name() + ".apk")));
+    }
+    for (String language : LANGUAGES) {
+      apks.add(
+          createConfigApkDescription(
+              apkLanguageTargeting(language), variantDir.resolve(language + ".apk")));
+    }
+    return apks;
+  }
+
+  private static ApkDescription createConfigApkDescription(ApkTargeting targeting, Path apkPath) {
+    return createApkDescription(targeting, apkPath, /* isMasterSplit= */ false);
+  }
+}
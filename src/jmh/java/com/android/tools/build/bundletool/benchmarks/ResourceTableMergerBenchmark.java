@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import com.android.aapt.Resources.ResourceTable;
+import com.android.tools.build.bundletool.mergers.ResourceTableMerger;
+import com.google.common.collect.ImmutableList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks the merging of the resource tables of all modules, as done for standalone APKs. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ResourceTableMergerBenchmark {
+
+  @Param({"2", "10", "50"})
+  public int moduleCount;
+
+  @Param({"10", "100", "1000"})
+  public int resourceCount;
+
+  private ImmutableList<ResourceTable> tables;
+
+  @Setup
+  public void createTables() {
+    ImmutableList.Builder<ResourceTable> tables = ImmutableList.builder();
+    for (int i = 0; i < moduleCount; i++) {
+      tables.add(SyntheticBundles.createResourceTable(i, resourceCount));
+    }
+    this.tables = tables.build();
+  }
+
+  @Benchmark
+  public ResourceTable mergeAllTables() {
+    return new ResourceTableMerger().merge(tables);
+  }
+
+  /** Merges the tables two by two, which is how all tables used to be merged. */
+  @Benchmark
+  public ResourceTable mergePairwise() {
+    ResourceTableMerger merger = new ResourceTableMerger();
+    ResourceTable mergedTable = tables.get(0);
+    for (ResourceTable table : tables.subList(1, tables.size())) {
+      mergedTable = merger.merge(mergedTable, table);
+    }
+    return mergedTable;
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.model.OptimizationDimension;
+import com.android.tools.build.bundletool.splitters.ModuleSplitter;
+import com.android.tools.build.bundletool.splitters.ScreenDensityResourcesSplitter;
+import com.android.tools.build.bundletool.version.BundleToolVersion;
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks the splitting of a feature module into configuration splits. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SplittersBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int resourceCount;
+
+  @Param({"1024", "65536"})
+  public int entrySize;
+
+  private BundleModule module;
+
+  @Setup
+  public void createModule() throws Exception {
+    module = SyntheticBundles.createModule(/* moduleIndex= */ 1, resourceCount, entrySize);
+  }
+
+  @Benchmark
+  public ImmutableList<ModuleSplit> splitModule() {
+    return new ModuleSplitter(
+            module,
+            ImmutableSet.of(
+                OptimizationDimension.ABI,
+                OptimizationDimension.SCREEN_DENSITY,
+                OptimizationDimension.LANGUAGE),
+            BundleToolVersion.getCurrentVersion())
+        .splitModule();
+  }
+
+  @Benchmark
+  public ImmutableCollection<ModuleSplit> splitByScreenDensity() {
+    return new ScreenDensityResourcesSplitter(BundleToolVersion.getCurrentVersion())
+        .split(ModuleSplit.forResources(module));
+  }
+}
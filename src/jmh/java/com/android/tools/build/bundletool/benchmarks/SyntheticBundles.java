@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifestForFeature;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withSplitId;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.HDPI;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.MDPI;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.USER_PACKAGE_OFFSET;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.XHDPI;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.XXHDPI;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.XXXHDPI;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.entry;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.fileReference;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.locale;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.pkg;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.resourceTable;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.type;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.value;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.nativeDirectoryTargeting;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.nativeLibraries;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.targetedNativeDirectory;
+
+import com.android.aapt.ConfigurationOuterClass.Configuration;
+import com.android.aapt.Resources.ConfigValue;
+import com.android.aapt.Resources.Entry;
+import com.android.aapt.Resources.ResourceTable;
+import com.android.bundle.Files.TargetedNativeDirectory;
+import com.android.bundle.Targeting.Abi.AbiAlias;
+import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.testing.AppBundleBuilder;
+import com.android.tools.build.bundletool.testing.BundleModuleBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic App Bundles used by the benchmarks, built with the test fixtures.
+ *
+ * <p>Each module contains {@code resourceCount} drawables available in several densities and
+ * {@code resourceCount} strings translated in several languages, a dex file and native libraries
+ * for two ABIs. All files are {@code entrySize} bytes long.
+ *
+ * <p>All modules share the same resource package with disjoint resource IDs, so that merging their
+ * resource tables merges them down to the entries.
+ */
+final class SyntheticBundles {
+
+  static final String PACKAGE_NAME = "com.test.app";
+
+  private static final ImmutableMap<String, Configuration> DRAWABLE_DENSITIES =
+      ImmutableMap.of(
+          "mdpi", MDPI, "hdpi", HDPI, "xhdpi", XHDPI, "xxhdpi", XXHDPI, "xxxhdpi", XXXHDPI);
+
+  private static final ImmutableList<String> STRING_LANGUAGES =
+      ImmutableList.of("de", "es", "fr", "ja", "pt");
+
+  private static final ImmutableMap<String, AbiAlias> NATIVE_DIRECTORIES =
+      ImmutableMap.of("lib/arm64-v8a", AbiAlias.ARM64_V8A, "lib/x86", AbiAlias.X86);
+
+  /** Creates a bundle made of a base module and {@code moduleCount - 1} feature modules. */
+  static AppBundle createBundle(int moduleCount, int resourceCount, int entrySize)
+      throws IOException {
+    AppBundleBuilder bundle = new AppBundleBuilder();
+    for (int i = 0; i < moduleCount; i++) {
+      int moduleIndex = i;
+      bundle.addModule(
+          getModuleName(moduleIndex),
+          module -> addModuleContent(module, moduleIndex, resourceCount, entrySize));
+    }
+    return bundle.build();
+  }
+
+  /** Creates the module with the given index: the base module for 0, a feature module otherwise. */
+  static BundleModule createModule(int moduleIndex, int resourceCount, int entrySize)
+      throws IOException {
+    BundleModuleBuilder module = new BundleModuleBuilder(getModuleName(moduleIndex));
+    addModuleContent(module, moduleIndex, resourceCount, entrySize);
+    return module.build();
+  }
+
+  /** Creates the resource table of the module with the given index. */
+  static ResourceTable createResourceTable(int moduleIndex, int resourceCount) {
+    List<Entry> drawables = new ArrayList<>();
+    List<Entry> strings = new ArrayList<>();
+    for (int i = 0; i < resourceCount; i++) {
+      int entryId = moduleIndex * resourceCount + i;
+
+      List<ConfigValue> drawableValues = new ArrayList<>();
+      DRAWABLE_DENSITIES.forEach(
+          (qualifier, density) ->
+              drawableValues.add(fileReference(getDrawablePath(qualifier, entryId), density)));
+      drawables.add(
+          entry(entryId, "drawable_" + entryId, drawableValues.toArray(new ConfigValue[0])));
+
+      List<ConfigValue> stringValues = new ArrayList<>();
+      stringValues.add(value("string_" + entryId, Configuration.getDefaultInstance()));
+      for (String language : STRING_LANGUAGES) {
+        stringValues.add(value(language + "_string_" + entryId, locale(language)));
+      }
+      strings.add(entry(entryId, "string_" + entryId, stringValues.toArray(new ConfigValue[0])));
+    }
+
+    return resourceTable(
+        pkg(
+            USER_PACKAGE_OFFSET,
+            PACKAGE_NAME,
+            type(0x01, "drawable", drawables.toArray(new Entry[0])),
+            type(0x02, "string", strings.toArray(new Entry[0]))));
+  }
+
+  /** Returns {@code size} pseudo-random bytes, always the same for a given seed. */
+  static byte[] createContent(int size, long seed) {
+    byte[] content = new byte[size];
+    new Random(seed).nextBytes(content);
+    return content;
+  }
+
+  private static void addModuleContent(
+      BundleModuleBuilder module, int moduleIndex, int resourceCount, int entrySize) {
+    module
+        .setManifest(
+            moduleIndex == 0
+                ? androidManifest(PACKAGE_NAME)
+                : androidManifestForFeature(
+                    PACKAGE_NAME, withSplitId(getModuleName(moduleIndex))))
+        .setResourceTable(createResourceTable(moduleIndex, resourceCount))
+        .addFile("dex/classes.dex", createContent(entrySize, moduleIndex));
+
+    NATIVE_DIRECTORIES.forEach(
+        (directory, abi) ->
+            module.addFile(
+                directory + "/libnative.so", createContent(entrySize, directory.hashCode())));
+    module.setNativeConfig(
+        nativeLibraries(
+            NATIVE_DIRECTORIES
+                .entrySet()
+                .stream()
+                .map(
+                    directory ->
+                        targetedNativeDirectory(
+                            directory.getKey(), nativeDirectoryTargeting(directory.getValue())))
+                .toArray(TargetedNativeDirectory[]::new)));
+
+    for (int i = 0; i < resourceCount; i++) {
+      int entryId = moduleIndex * resourceCount + i;
+      for (String qualifier : DRAWABLE_DENSITIES.keySet()) {
+        module.addFile(getDrawablePath(qualifier, entryId), createContent(entrySize, entryId));
+      }
+    }
+  }
+
+  private static String getModuleName(int moduleIndex) {
+    return moduleIndex == 0 ? "base" : "feature" + moduleIndex;
+  }
+
+  private static String getDrawablePath(String densityQualifier, int entryId) {
+    return String.format("res/drawable-%s/drawable_%d.png", densityQualifier, entryId);
+  }
+
+  private SyntheticBundles() {}
+}
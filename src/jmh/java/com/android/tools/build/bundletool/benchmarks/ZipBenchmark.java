@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import static com.google.common.io.RecursiveDeleteOption.ALLOW_INSECURE;
+
+import com.android.tools.build.bundletool.io.AppBundleSerializer;
+import com.android.tools.build.bundletool.io.ZipBuilder;
+import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks the writing of zip files and the parsing of a bundle from its zip file. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ZipBenchmark {
+
+  @Param({"2", "10"})
+  public int moduleCount;
+
+  @Param({"10", "100"})
+  public int resourceCount;
+
+  @Param({"1024", "65536"})
+  public int entrySize;
+
+  private Path tempDir;
+  private Path bundlePath;
+  private Path outputPath;
+  private ZipBuilder zipBuilder;
+
+  @Setup
+  public void createBundle() throws Exception {
+    AppBundle bundle = SyntheticBundles.createBundle(moduleCount, resourceCount, entrySize);
+    tempDir = Files.createTempDirectory("bundletool-benchmark");
+    bundlePath = tempDir.resolve("bundle.aab");
+    outputPath = tempDir.resolve("output.zip");
+    new AppBundleSerializer().writeToDisk(bundle, bundlePath);
+
+    // The content of the entries is read in memory, so that only the writing is measured.
+    zipBuilder = new ZipBuilder();
+    for (BundleModule module : bundle.getModules().values()) {
+      ZipPath moduleDir = ZipPath.create(module.getName().getName());
+      for (ModuleEntry entry : module.getEntries()) {
+        try (InputStream content = entry.getContent()) {
+          zipBuilder.addFileWithContent(
+              moduleDir.resolve(entry.getPath()), ByteStreams.toByteArray(content));
+        }
+      }
+    }
+  }
+
+  @TearDown
+  public void deleteTempDir() throws Exception {
+    MoreFiles.deleteRecursively(tempDir, ALLOW_INSECURE);
+  }
+
+  /** The output file of {@link ZipBuilder#writeTo} must not exist. */
+  @TearDown(Level.Invocation)
+  public void deleteOutput() throws Exception {
+    Files.deleteIfExists(outputPath);
+  }
+
+  @Benchmark
+  public Path writeZip() throws Exception {
+    return zipBuilder.writeTo(outputPath);
+  }
+
+  @Benchmark
+  public AppBundle buildBundleFromZip() throws Exception {
+    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+      return AppBundle.buildFromZip(bundleZip);
+    }
+  }
+}
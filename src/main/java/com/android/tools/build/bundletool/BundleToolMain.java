@@ -21,6 +21,7 @@ import com.android.tools.build.bundletool.commands.CommandHelp;
 import com.android.tools.build.bundletool.commands.ExtractApksCommand;
 import com.android.tools.build.bundletool.commands.GetDeviceSpecCommand;
 import com.android.tools.build.bundletool.commands.InstallApksCommand;
+import com.android.tools.build.bundletool.commands.ServeCommand;
 import com.android.tools.build.bundletool.commands.ValidateBundleCommand;
 import com.android.tools.build.bundletool.commands.VersionCommand;
 import com.android.tools.build.bundletool.device.AdbServer;
@@ -90,6 +91,11 @@ public class BundleToolMain {
         case ValidateBundleCommand.COMMAND_NAME:
           ValidateBundleCommand.fromFlags(flags).execute();
           break;
+        case ServeCommand.COMMAND_NAME:
+          try (AdbServer adbServer = DdmlibAdbServer.getInstance()) {
+            ServeCommand.fromFlags(flags, adbServer).execute();
+          }
+          break;
         case VersionCommand.COMMAND_NAME:
           VersionCommand.fromFlags(flags, System.out).execute();
           break;
@@ -128,6 +134,7 @@ public class BundleToolMain {
             GetDeviceSpecCommand.help(),
             InstallApksCommand.help(),
             ValidateBundleCommand.help(),
+            ServeCommand.help(),
             VersionCommand.help());
 
     System.out.println("Synopsis: bundletool <command> ...");
@@ -159,6 +166,9 @@ public class BundleToolMain {
       case ValidateBundleCommand.COMMAND_NAME:
         commandHelp = ValidateBundleCommand.help();
         break;
+      case ServeCommand.COMMAND_NAME:
+        commandHelp = ServeCommand.help();
+        break;
       default:
         System.out.printf("Error: Unrecognized command '%s'.%n%n%n", commandName);
         help();
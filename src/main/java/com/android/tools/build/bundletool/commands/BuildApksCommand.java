@@ -23,8 +23,11 @@ import com.android.tools.build.bundletool.commands.CommandHelp.FlagDescription;
 import com.android.tools.build.bundletool.device.AdbServer;
 import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.exceptions.ValidationException;
+import com.android.tools.build.bundletool.io.ApkCache;
 import com.android.tools.build.bundletool.io.TempFiles;
+import com.android.tools.build.bundletool.metrics.MetricsFormat;
 import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.Aapt2DaemonPool;
 import com.android.tools.build.bundletool.model.ApkListener;
 import com.android.tools.build.bundletool.model.ApkModifier;
 import com.android.tools.build.bundletool.model.OptimizationDimension;
@@ -64,8 +67,20 @@ public abstract class BuildApksCommand {
   private static final Flag<ImmutableSet<OptimizationDimension>> OPTIMIZE_FOR_FLAG =
       Flag.enumSet("optimize-for", OptimizationDimension.class);
   private static final Flag<Path> AAPT2_PATH_FLAG = Flag.path("aapt2");
+  private static final Flag<Boolean> AAPT2_DAEMONS_FLAG = Flag.booleanFlag("aapt2-daemons");
+  private static final Flag<Boolean> IN_PROCESS_MANIFEST_CONVERSION_FLAG =
+      Flag.booleanFlag("in-process-manifest-conversion");
   private static final Flag<Boolean> GENERATE_UNIVERSAL_APK_FLAG = Flag.booleanFlag("universal");
   private static final Flag<Integer> MAX_THREADS_FLAG = Flag.positiveInteger("max-threads");
+  private static final Flag<Boolean> PIPELINED_SERIALIZATION_FLAG =
+      Flag.booleanFlag("pipelined-serialization");
+  private static final Flag<Path> APK_CACHE_DIR_FLAG = Flag.path("apk-cache-dir");
+  private static final Flag<Integer> APK_CACHE_MAX_SIZE_FLAG =
+      Flag.positiveInteger("apk-cache-max-size-mb");
+  private static final Flag<Path> DEX_MERGE_CACHE_DIR_FLAG = Flag.path("dex-merge-cache-dir");
+  private static final Flag<Path> METRICS_OUTPUT_FLAG = Flag.path("metrics-output");
+  private static final Flag<MetricsFormat> METRICS_FORMAT_FLAG =
+      Flag.enumFlag("metrics-format", MetricsFormat.class);
 
   private static final Flag<Path> ADB_PATH_FLAG = Flag.path("adb");
   private static final Flag<Boolean> CONNECTED_DEVICE_FLAG = Flag.booleanFlag("connected-device");
@@ -109,6 +124,11 @@ public abstract class BuildApksCommand {
 
   public abstract Optional<Aapt2Command> getAapt2Command();
 
+  /** Pool of aapt2 daemons created by bundletool, which is closed at the end of the execution. */
+  abstract Optional<Aapt2DaemonPool> getAapt2DaemonPool();
+
+  public abstract boolean getInProcessManifestConversion();
+
   public abstract Optional<SigningConfiguration> getSigningConfiguration();
 
   ListeningExecutorService getExecutorService() {
@@ -126,12 +146,27 @@ public abstract class BuildApksCommand {
 
   public abstract Optional<Integer> getFirstVariantNumber();
 
+  public abstract boolean getPipelinedSerialization();
+
+  public abstract Optional<ApkCache> getApkCache();
+
+  public abstract Optional<Path> getDexMergeCacheDir();
+
+  public abstract Optional<Path> getMetricsOutputPath();
+
+  public abstract MetricsFormat getMetricsFormat();
+
+  public abstract Builder toBuilder();
+
   public static Builder builder() {
     return new AutoValue_BuildApksCommand.Builder()
         .setOverwriteOutput(false)
         .setGenerateOnlyUniversalApk(false)
         .setGenerateOnlyForConnectedDevice(false)
-        .setOptimizationDimensions(ImmutableSet.of());
+        .setOptimizationDimensions(ImmutableSet.of())
+        .setPipelinedSerialization(false)
+        .setInProcessManifestConversion(false)
+        .setMetricsFormat(MetricsFormat.JSON);
   }
 
   /** Builder for the {@link BuildApksCommand}. */
@@ -186,6 +221,23 @@ public abstract class BuildApksCommand {
     /** Provides a wrapper around the execution of the aapt2 command. */
     public abstract Builder setAapt2Command(Aapt2Command aapt2Command);
 
+    /**
+     * Sets the pool of aapt2 daemons that bundletool created as the aapt2 command.
+     *
+     * <p>The pool is closed at the end of execution of this command.
+     */
+    abstract Builder setAapt2DaemonPool(Aapt2DaemonPool aapt2DaemonPool);
+
+    /**
+     * Sets whether the APKs containing only a manifest, e.g. the splits of native libraries, assets
+     * or dex files, are converted to binary in-process instead of by aapt2.
+     *
+     * <p>The default is {@code false}. The generated APKs are identical in both modes, but the
+     * in-process conversion avoids running aapt2 for each of these APKs. The other APKs are still
+     * converted by aapt2.
+     */
+    public abstract Builder setInProcessManifestConversion(boolean inProcessManifestConversion);
+
     /**
      * Sets the signing configuration for the generated APKs.
      *
@@ -242,6 +294,49 @@ public abstract class BuildApksCommand {
      */
     public abstract Builder setFirstVariantNumber(int firstVariantNumber);
 
+    /**
+     * Sets whether each APK should be serialized as soon as it is generated, instead of generating
+     * all the APKs before serializing them.
+     *
+     * <p>The default is {@code false}. When set to {@code true}, fewer APKs are kept in memory at
+     * once and the generation of APKs overlaps with their serialization. The generated APK Set is
+     * identical in both modes. This cannot be combined with an {@link ApkModifier} or with
+     * generating APKs for a specific device.
+     */
+    public abstract Builder setPipelinedSerialization(boolean pipelinedSerialization);
+
+    /**
+     * Provides an {@link ApkCache} where the serialized APKs are stored, and from which they are
+     * copied instead of being serialized again when their content is unchanged.
+     *
+     * <p>Optional. The same cache can be shared across invocations of the command.
+     */
+    public abstract Builder setApkCache(ApkCache apkCache);
+
+    /**
+     * Sets a directory where the results of dex merging for standalone APKs are cached, and from
+     * which they are reused when the same dex files are merged again.
+     *
+     * <p>Optional. The same directory can be shared across invocations of the command.
+     */
+    public abstract Builder setDexMergeCacheDir(Path dexMergeCacheDir);
+
+    /**
+     * Sets the file where the metrics of the command are written: the time spent in each phase,
+     * the bytes read and written, the number of aapt2 invocations and dex merges, and the depth of
+     * the queue of the executor service.
+     *
+     * <p>Optional. If not set, no metrics are recorded.
+     */
+    public abstract Builder setMetricsOutputPath(Path metricsOutputPath);
+
+    /**
+     * Sets the format of the metrics file.
+     *
+     * <p>The default is {@link MetricsFormat#JSON}.
+     */
+    public abstract Builder setMetricsFormat(MetricsFormat metricsFormat);
+
     abstract BuildApksCommand autoBuild();
 
     public BuildApksCommand build() {
@@ -277,6 +372,19 @@ public abstract class BuildApksCommand {
             "Setting --device-id requires using the --connected-device flag.");
       }
 
+      if (command.getPipelinedSerialization()
+          && (command.getGenerateOnlyForConnectedDevice()
+              || command.getDeviceSpecPath().isPresent())) {
+        throw new ValidationException(
+            "Pipelined serialization is not supported when generating APKs for a specific "
+                + "device.");
+      }
+
+      if (command.getPipelinedSerialization() && command.getApkModifier().isPresent()) {
+        throw new ValidationException(
+            "Pipelined serialization is not supported when an ApkModifier is set.");
+      }
+
       if (!APK_SET_ARCHIVE_EXTENSION.equals(MoreFiles.getFileExtension(command.getOutputFile()))) {
         throw ValidationException.builder()
             .withMessage(
@@ -305,11 +413,27 @@ public abstract class BuildApksCommand {
 
     // Optional arguments.
     OVERWRITE_OUTPUT_FLAG.getValue(flags).ifPresent(buildApksCommand::setOverwriteOutput);
-    AAPT2_PATH_FLAG
+    Optional<Path> aapt2Path = AAPT2_PATH_FLAG.getValue(flags);
+    if (AAPT2_DAEMONS_FLAG.getValue(flags).orElse(false)) {
+      if (!aapt2Path.isPresent()) {
+        throw CommandExecutionException.builder()
+            .withMessage(
+                "Flag --%s is required when --%s is set.",
+                AAPT2_PATH_FLAG.getName(), AAPT2_DAEMONS_FLAG.getName())
+            .build();
+      }
+      // One daemon per thread, as each thread serializes one APK at a time.
+      Aapt2DaemonPool aapt2DaemonPool =
+          Aapt2Command.createDaemonPoolFromExecutablePath(
+              aapt2Path.get(), MAX_THREADS_FLAG.getValue(flags).orElse(DEFAULT_THREAD_POOL_SIZE));
+      buildApksCommand.setAapt2Command(aapt2DaemonPool).setAapt2DaemonPool(aapt2DaemonPool);
+    } else {
+      aapt2Path.ifPresent(
+          path -> buildApksCommand.setAapt2Command(Aapt2Command.createFromExecutablePath(path)));
+    }
+    IN_PROCESS_MANIFEST_CONVERSION_FLAG
         .getValue(flags)
-        .ifPresent(
-            aapt2Path ->
-                buildApksCommand.setAapt2Command(Aapt2Command.createFromExecutablePath(aapt2Path)));
+        .ifPresent(buildApksCommand::setInProcessManifestConversion);
     GENERATE_UNIVERSAL_APK_FLAG
         .getValue(flags)
         .ifPresent(buildApksCommand::setGenerateOnlyUniversalApk);
@@ -321,6 +445,30 @@ public abstract class BuildApksCommand {
                     .setExecutorService(createInternalExecutorService(maxThreads))
                     .setExecutorServiceCreatedByBundleTool(true));
     OPTIMIZE_FOR_FLAG.getValue(flags).ifPresent(buildApksCommand::setOptimizationDimensions);
+    PIPELINED_SERIALIZATION_FLAG
+        .getValue(flags)
+        .ifPresent(buildApksCommand::setPipelinedSerialization);
+    Optional<Integer> apkCacheMaxSizeMb = APK_CACHE_MAX_SIZE_FLAG.getValue(flags);
+    if (apkCacheMaxSizeMb.isPresent() && !APK_CACHE_DIR_FLAG.getValue(flags).isPresent()) {
+      throw CommandExecutionException.builder()
+          .withMessage(
+              "Flag --%s is required when --%s is set.",
+              APK_CACHE_DIR_FLAG.getName(), APK_CACHE_MAX_SIZE_FLAG.getName())
+          .build();
+    }
+    APK_CACHE_DIR_FLAG
+        .getValue(flags)
+        .ifPresent(
+            apkCacheDir ->
+                buildApksCommand.setApkCache(
+                    ApkCache.create(
+                        apkCacheDir,
+                        apkCacheMaxSizeMb
+                            .map(maxSizeMb -> maxSizeMb * 1024L * 1024L)
+                            .orElse(ApkCache.DEFAULT_MAX_SIZE_BYTES))));
+    DEX_MERGE_CACHE_DIR_FLAG.getValue(flags).ifPresent(buildApksCommand::setDexMergeCacheDir);
+    METRICS_OUTPUT_FLAG.getValue(flags).ifPresent(buildApksCommand::setMetricsOutputPath);
+    METRICS_FORMAT_FLAG.getValue(flags).ifPresent(buildApksCommand::setMetricsFormat);
 
     // Signing-related arguments.
     Optional<Path> keystorePath = KEYSTORE_FLAG.getValue(flags);
@@ -425,6 +573,25 @@ public abstract class BuildApksCommand {
                 .setOptional(true)
                 .setDescription("Path to the aapt2 binary to use.")
                 .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(AAPT2_DAEMONS_FLAG.getName())
+                .setOptional(true)
+                .setDescription(
+                    "If set, the aapt2 commands are executed by long-lived aapt2 daemons, one per "
+                        + "thread, instead of starting a new aapt2 process for each APK. Requires "
+                        + "the flag --%s.",
+                    AAPT2_PATH_FLAG.getName())
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(IN_PROCESS_MANIFEST_CONVERSION_FLAG.getName())
+                .setOptional(true)
+                .setDescription(
+                    "If set, the APKs containing only a manifest (e.g. the splits of native "
+                        + "libraries, assets or dex files) are converted to binary by bundletool "
+                        + "itself instead of by aapt2, which produces the same APKs faster.")
+                .build())
         .addFlag(
             FlagDescription.builder()
                 .setFlagName(GENERATE_UNIVERSAL_APK_FLAG.getName())
@@ -443,6 +610,75 @@ public abstract class BuildApksCommand {
                     "Sets the maximum number of threads to use (default: %d).",
                     DEFAULT_THREAD_POOL_SIZE)
                 .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(PIPELINED_SERIALIZATION_FLAG.getName())
+                .setOptional(true)
+                .setDescription(
+                    "If set, each APK is written as soon as it is generated, instead of generating "
+                        + "all the APKs before writing them. This uses less memory and overlaps "
+                        + "the generation of the APKs with their serialization. The generated APK "
+                        + "Set is the same. Cannot be combined with the flags --%s and --%s.",
+                    CONNECTED_DEVICE_FLAG.getName(),
+                    DEVICE_SPEC_FLAG.getName())
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(APK_CACHE_DIR_FLAG.getName())
+                .setExampleValue("path/to/cache/dir")
+                .setOptional(true)
+                .setDescription(
+                    "Path to a directory where the serialized APKs are cached across invocations. "
+                        + "APKs whose content is unchanged are copied from the cache instead of "
+                        + "being generated again. The least recently used APKs are evicted first "
+                        + "when the cache exceeds the size set with --%s.",
+                    APK_CACHE_MAX_SIZE_FLAG.getName())
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(APK_CACHE_MAX_SIZE_FLAG.getName())
+                .setExampleValue("size-in-mb")
+                .setOptional(true)
+                .setDescription(
+                    "Maximum size of the APK cache in megabytes (default: %d). Requires the flag "
+                        + "--%s.",
+                    ApkCache.DEFAULT_MAX_SIZE_BYTES / (1024 * 1024),
+                    APK_CACHE_DIR_FLAG.getName())
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(DEX_MERGE_CACHE_DIR_FLAG.getName())
+                .setExampleValue("path/to/cache/dir")
+                .setOptional(true)
+                .setDescription(
+                    "Path to a directory where the dex files merged for standalone APKs are "
+                        + "cached across invocations. Dex files already merged with the same main "
+                        + "dex list and parameters are copied from the cache instead of being "
+                        + "merged again.")
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(METRICS_OUTPUT_FLAG.getName())
+                .setExampleValue("path/to/metrics.json")
+                .setOptional(true)
+                .setDescription(
+                    "Path to a file where the metrics of the command are written: time spent in "
+                        + "each phase and for each APK, bytes read and written, number of aapt2 "
+                        + "invocations and dex merges, and depth of the queue of tasks. The "
+                        + "format is set by the flag --%s.",
+                    METRICS_FORMAT_FLAG.getName())
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(METRICS_FORMAT_FLAG.getName())
+                .setExampleValue(joinFlagOptions(MetricsFormat.values()))
+                .setOptional(true)
+                .setDescription(
+                    "Format of the metrics file (default: json). The 'chrome_trace' format can be "
+                        + "loaded in chrome://tracing to visualize the phases of each thread. Used "
+                        + "only if the flag --%s is set.",
+                    METRICS_OUTPUT_FLAG.getName())
+                .build())
         .addFlag(
             FlagDescription.builder()
                 .setFlagName(OPTIMIZE_FOR_FLAG.getName())
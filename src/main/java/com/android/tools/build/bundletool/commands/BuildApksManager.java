@@ -41,7 +41,14 @@ import com.android.tools.build.bundletool.io.ApkSetBuilderFactory;
 import com.android.tools.build.bundletool.io.ApkSetBuilderFactory.ApkSetBuilder;
 import com.android.tools.build.bundletool.io.SplitApkSerializer;
 import com.android.tools.build.bundletool.io.StandaloneApkSerializer;
+import com.android.tools.build.bundletool.mergers.CachingDexMerger;
+import com.android.tools.build.bundletool.mergers.D8DexMerger;
+import com.android.tools.build.bundletool.mergers.DexMerger;
+import com.android.tools.build.bundletool.metrics.BuildMetrics;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Counter;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Span;
 import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.Aapt2DaemonPool;
 import com.android.tools.build.bundletool.model.ApkListener;
 import com.android.tools.build.bundletool.model.ApkModifier;
 import com.android.tools.build.bundletool.model.AppBundle;
@@ -56,34 +63,77 @@ import com.android.tools.build.bundletool.optimizations.OptimizationsMerger;
 import com.android.tools.build.bundletool.splitters.BundleSharder;
 import com.android.tools.build.bundletool.splitters.ModuleSplitter;
 import com.android.tools.build.bundletool.targeting.AlternativeVariantTargetingPopulator;
+import com.android.tools.build.bundletool.utils.ConcurrencyUtils;
 import com.android.tools.build.bundletool.utils.SdkToolsLocator;
 import com.android.tools.build.bundletool.utils.Versions;
 import com.android.tools.build.bundletool.validation.AppBundleValidator;
 import com.android.tools.build.bundletool.version.BundleToolVersion;
 import com.android.tools.build.bundletool.version.Version;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.function.Function;
 import java.util.zip.ZipFile;
 
 /** Executes the "build-apks" command. */
 final class BuildApksManager {
 
+  /** Maximum number of modules split ahead of the serialization in pipelined mode. */
+  private static final int PIPELINED_MODULES_IN_FLIGHT = 4;
+
+  /** Maximum number of APKs waiting to be serialized in pipelined mode. */
+  private static final int PIPELINED_APKS_IN_FLIGHT = 64;
+
   private final BuildApksCommand command;
+  private final BuildMetrics metrics;
+  /** Executor service of the command, instrumented to report its queue depth in the metrics. */
+  private final ListeningExecutorService executorService;
 
   BuildApksManager(BuildApksCommand command) {
     this.command = command;
+    this.metrics =
+        command.getMetricsOutputPath().isPresent() ? BuildMetrics.create() : BuildMetrics.NO_OP;
+    this.executorService = metrics.instrument(command.getExecutorService());
   }
 
   public Path execute(Path tempDir) {
+    Throwable buildFailure = null;
+    try (Span span = metrics.startSpan("build-apks")) {
+      buildApks(tempDir);
+    } catch (RuntimeException | Error e) {
+      buildFailure = e;
+      throw e;
+    } finally {
+      // The metrics of a failed build are written too, as they show how far it went. Failing to
+      // write them must not hide why the build failed.
+      if (command.getMetricsOutputPath().isPresent()) {
+        try {
+          writeMetrics(command.getMetricsOutputPath().get());
+        } catch (RuntimeException e) {
+          if (buildFailure == null) {
+            throw e;
+          }
+          buildFailure.addSuppressed(e);
+        }
+      }
+    }
+    return command.getOutputFile();
+  }
+
+  private void buildApks(Path tempDir) {
     validateInput();
 
     Aapt2Command aapt2Command =
         command.getAapt2Command().orElseGet(() -> extractAapt2FromJar(tempDir));
+    if (command.getInProcessManifestConversion()) {
+      aapt2Command = Aapt2Command.createInProcessWithFallback(aapt2Command);
+    }
 
     // Fail fast with ADB before generating any APKs.
     Optional<DeviceSpec> deviceSpec = Optional.empty();
@@ -93,12 +143,21 @@ final class BuildApksManager {
       deviceSpec = Optional.of(DeviceSpecParser.parseDeviceSpec(command.getDeviceSpecPath().get()));
     }
 
+    ApkSetBuilder apkSetBuilder = null;
     try (ZipFile bundleZip = new ZipFile(command.getBundlePath().toFile())) {
-      AppBundleValidator bundleValidator = new AppBundleValidator();
+      metrics.addToCounter(Counter.BYTES_READ, Files.size(command.getBundlePath()));
+      AppBundleValidator bundleValidator = new AppBundleValidator(executorService);
 
-      bundleValidator.validateFile(bundleZip);
-      AppBundle appBundle = AppBundle.buildFromZip(bundleZip);
-      bundleValidator.validate(appBundle);
+      AppBundle appBundle;
+      try (Span span = metrics.startSpan("validate-bundle-file")) {
+        bundleValidator.validateFile(bundleZip);
+      }
+      try (Span span = metrics.startSpan("read-bundle")) {
+        appBundle = AppBundle.buildFromZip(bundleZip);
+      }
+      try (Span span = metrics.startSpan("validate-bundle")) {
+        bundleValidator.validate(appBundle);
+      }
 
       BundleConfig bundleConfig = appBundle.getBundleConfig();
       Version bundleVersion = BundleToolVersion.getVersionFromBundleConfig(bundleConfig);
@@ -106,7 +165,7 @@ final class BuildApksManager {
       ImmutableList<BundleModule> allModules =
           ImmutableList.copyOf(appBundle.getModules().values());
 
-      ApkSetBuilder apkSetBuilder =
+      apkSetBuilder =
           createApkSetBuilder(
               aapt2Command,
               command.getSigningConfiguration(),
@@ -143,56 +202,96 @@ final class BuildApksManager {
         }
       }
 
-      GeneratedApks.Builder generatedApksBuilder = GeneratedApks.builder();
-      if (generateSplitApks) {
-        generatedApksBuilder.setSplitApks(
-            generateSplitApks(
-                allModules, apkOptimizations, bundleVersion, ModuleSplitter::splitModule));
-      }
-      if (generateInstantApks) {
-        ImmutableList<BundleModule> instantModules =
-            allModules.stream().filter(BundleModule::isInstantModule).collect(toImmutableList());
-        generatedApksBuilder.setInstantApks(
-            generateSplitApks(
-                instantModules,
-                apkOptimizations,
-                bundleVersion,
-                ModuleSplitter::splitInstantModule));
-      }
+      ImmutableList<BundleModule> instantModules =
+          allModules.stream().filter(BundleModule::isInstantModule).collect(toImmutableList());
+      ImmutableList<ModuleSplit> standaloneApks = ImmutableList.of();
       if (generateStandaloneApks) {
         // Note: Universal APK is a special type of standalone, with no optimization dimensions.
         ImmutableList<BundleModule> modulesForFusing =
             allModules.stream().filter(BundleModule::isIncludedInFusing).collect(toImmutableList());
-        generatedApksBuilder.setStandaloneApks(
-            generateStandaloneApks(
-                modulesForFusing,
-                appBundle.getBundleMetadata(),
-                tempDir,
-                apkOptimizations,
-                bundleVersion));
+        try (Span span = metrics.startSpan("generate-standalone-apks")) {
+          standaloneApks =
+              generateStandaloneApks(
+                  modulesForFusing,
+                  appBundle.getBundleMetadata(),
+                  tempDir,
+                  apkOptimizations,
+                  bundleVersion);
+        }
       }
-      // Populate alternative targeting based on variant targeting of all APKs.
-      GeneratedApks generatedApks =
-          AlternativeVariantTargetingPopulator.populateAlternativeVariantTargeting(
-              generatedApksBuilder.build());
 
       // Create variants and serialize APKs.
       ApkSerializerManager apkSerializerManager =
           new ApkSerializerManager(
               appBundle,
               apkSetBuilder,
-              command.getExecutorService(),
+              executorService,
               command.getApkListener().orElse(ApkListener.NO_OP),
               command.getApkModifier().orElse(ApkModifier.NO_OP),
               command.getFirstVariantNumber().orElse(0));
       ImmutableList<Variant> allVariantsWithTargeting;
-      if (deviceSpec.isPresent()) {
-        allVariantsWithTargeting =
-            apkSerializerManager.serializeApksForDevice(generatedApks, deviceSpec.get());
-      } else if (command.getGenerateOnlyUniversalApk()) {
-        allVariantsWithTargeting = apkSerializerManager.serializeUniversalApk(generatedApks);
+      if (command.getPipelinedSerialization() && !command.getGenerateOnlyUniversalApk()) {
+        // The splits of each module are serialized as soon as the module has been split.
+        ImmutableList.Builder<Callable<ImmutableList<ModuleSplit>>> splitApksGenerators =
+            ImmutableList.builder();
+        if (generateSplitApks) {
+          for (BundleModule module : allModules) {
+            splitApksGenerators.add(
+                () ->
+                    splitModule(
+                        module, apkOptimizations, bundleVersion, ModuleSplitter::splitModule));
+          }
+        }
+        if (generateInstantApks) {
+          for (BundleModule module : instantModules) {
+            splitApksGenerators.add(
+                () ->
+                    splitModule(
+                        module,
+                        apkOptimizations,
+                        bundleVersion,
+                        ModuleSplitter::splitInstantModule));
+          }
+        }
+        try (Span span = metrics.startSpan("serialize-apks")) {
+          allVariantsWithTargeting =
+              apkSerializerManager.serializeApksPipelined(
+                  standaloneApks,
+                  splitApksGenerators.build(),
+                  PIPELINED_MODULES_IN_FLIGHT,
+                  PIPELINED_APKS_IN_FLIGHT);
+        }
       } else {
-        allVariantsWithTargeting = apkSerializerManager.serializeApks(generatedApks);
+        GeneratedApks.Builder generatedApksBuilder =
+            GeneratedApks.builder().setStandaloneApks(standaloneApks);
+        if (generateSplitApks) {
+          generatedApksBuilder.setSplitApks(
+              generateSplitApks(
+                  allModules, apkOptimizations, bundleVersion, ModuleSplitter::splitModule));
+        }
+        if (generateInstantApks) {
+          generatedApksBuilder.setInstantApks(
+              generateSplitApks(
+                  instantModules,
+                  apkOptimizations,
+                  bundleVersion,
+                  ModuleSplitter::splitInstantModule));
+        }
+        // Populate alternative targeting based on variant targeting of all APKs.
+        GeneratedApks generatedApks =
+            AlternativeVariantTargetingPopulator.populateAlternativeVariantTargeting(
+                generatedApksBuilder.build());
+
+        try (Span span = metrics.startSpan("serialize-apks")) {
+          if (deviceSpec.isPresent()) {
+            allVariantsWithTargeting =
+                apkSerializerManager.serializeApksForDevice(generatedApks, deviceSpec.get());
+          } else if (command.getGenerateOnlyUniversalApk()) {
+            allVariantsWithTargeting = apkSerializerManager.serializeUniversalApk(generatedApks);
+          } else {
+            allVariantsWithTargeting = apkSerializerManager.serializeApks(generatedApks);
+          }
+        }
       }
       // Finalize the output archive.
       apkSetBuilder.setTableOfContentsFile(
@@ -215,10 +314,22 @@ final class BuildApksManager {
       if (command.isExecutorServiceCreatedByBundleTool()) {
         command.getExecutorService().shutdown();
       }
+      // Deletes the incomplete archive if the APKs could not be built. No serialization is running
+      // anymore, as the ApkSerializerManager waits for them when it fails.
+      if (apkSetBuilder != null) {
+        apkSetBuilder.close();
+      }
+      command.getAapt2DaemonPool().ifPresent(Aapt2DaemonPool::close);
     }
+  }
 
-
-    return command.getOutputFile();
+  private void writeMetrics(Path metricsOutputPath) {
+    try {
+      metrics.writeTo(metricsOutputPath, command.getMetricsFormat());
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while writing the metrics to '%s'.", metricsOutputPath), e);
+    }
   }
 
   private DeviceSpec getDeviceSpec() {
@@ -235,16 +346,31 @@ final class BuildApksManager {
       Path tempDir) {
     ApkPathManager apkPathmanager = new ApkPathManager();
     SplitApkSerializer splitApkSerializer =
-        new SplitApkSerializer(apkPathmanager, aapt2Command, signingConfiguration, compression);
+        new SplitApkSerializer(
+            apkPathmanager,
+            aapt2Command,
+            signingConfiguration,
+            compression,
+            command.getApkCache(),
+            metrics);
     StandaloneApkSerializer standaloneApkSerializer =
         new StandaloneApkSerializer(
-            apkPathmanager, aapt2Command, signingConfiguration, compression);
+            apkPathmanager,
+            aapt2Command,
+            signingConfiguration,
+            compression,
+            command.getApkCache(),
+            metrics);
 
     return ApkSetBuilderFactory.createApkSetBuilder(
-        splitApkSerializer, standaloneApkSerializer, tempDir);
+        splitApkSerializer,
+        standaloneApkSerializer,
+        tempDir,
+        command.getOutputFile(),
+        metrics);
   }
 
-  private static Aapt2Command extractAapt2FromJar(Path tempDir) {
+  static Aapt2Command extractAapt2FromJar(Path tempDir) {
     return new SdkToolsLocator()
         .extractAapt2(tempDir)
         .map(Aapt2Command::createFromExecutablePath)
@@ -259,6 +385,9 @@ final class BuildApksManager {
     checkFileExistsAndReadable(command.getBundlePath());
     if (!command.getOverwriteOutput()) {
       checkFileDoesNotExist(command.getOutputFile());
+      if (command.getMetricsOutputPath().isPresent()) {
+        checkFileDoesNotExist(command.getMetricsOutputPath().get());
+      }
     }
 
     if (command.getGenerateOnlyForConnectedDevice()) {
@@ -272,23 +401,48 @@ final class BuildApksManager {
     }
   }
 
+  /**
+   * Splits each of the given modules.
+   *
+   * <p>The modules are split in parallel on the executor service of the command, but the splits
+   * are returned in the order of the given modules so that the output remains deterministic.
+   */
   private ImmutableList<ModuleSplit> generateSplitApks(
       ImmutableList<BundleModule> modules,
       ApkOptimizations apkOptimizations,
       Version bundleVersion,
       Function<ModuleSplitter, ImmutableList<ModuleSplit>> splitter) {
-    ImmutableList.Builder<ModuleSplit> builder = ImmutableList.builder();
-    for (BundleModule module : modules) {
+    try (Span span = metrics.startSpan("split-modules")) {
+      ImmutableList<ListenableFuture<ImmutableList<ModuleSplit>>> splitsByModule =
+          modules
+              .stream()
+              .map(
+                  module ->
+                      executorService.submit(
+                          () -> splitModule(module, apkOptimizations, bundleVersion, splitter)))
+              .collect(toImmutableList());
+
+      return ConcurrencyUtils.waitForAll(splitsByModule)
+          .stream()
+          .flatMap(ImmutableList::stream)
+          .collect(toImmutableList());
+    }
+  }
+
+  private ImmutableList<ModuleSplit> splitModule(
+      BundleModule module,
+      ApkOptimizations apkOptimizations,
+      Version bundleVersion,
+      Function<ModuleSplitter, ImmutableList<ModuleSplit>> splitter) {
+    try (Span span = metrics.startSpan("split-module", module.getName().getName())) {
       ModuleSplitter moduleSplitter =
           new ModuleSplitter(module, apkOptimizations.getSplitDimensions(), bundleVersion);
       boolean enableNativeLibraryCompressionSplitter =
           apkOptimizations.getUncompressNativeLibraries();
       moduleSplitter.setEnableNativeLibraryCompressionSplitter(
           enableNativeLibraryCompressionSplitter);
-      ImmutableList<ModuleSplit> splitApks = splitter.apply(moduleSplitter);
-      builder.addAll(splitApks);
+      return splitter.apply(moduleSplitter);
     }
-    return builder.build();
   }
 
   private ImmutableList<ModuleSplit> generateStandaloneApks(
@@ -299,7 +453,7 @@ final class BuildApksManager {
       Version bundleVersion) {
 
     ImmutableList<ModuleSplit> standaloneApks =
-        new BundleSharder(tempDir, bundleVersion)
+        new BundleSharder(tempDir, bundleVersion, executorService, createDexMerger(), metrics)
             .shardBundle(modules, apkOptimizations.getSplitDimensions(), bundleMetadata);
 
     return standaloneApks.stream()
@@ -313,6 +467,14 @@ final class BuildApksManager {
         .collect(toImmutableList());
   }
 
+  private DexMerger createDexMerger() {
+    DexMerger d8DexMerger = new D8DexMerger();
+    return command
+        .getDexMergeCacheDir()
+        .<DexMerger>map(cacheDir -> new CachingDexMerger(d8DexMerger, cacheDir, metrics))
+        .orElse(d8DexMerger);
+  }
+
   private static boolean targetsOnlyPreL(AppBundle bundle) {
     Optional<Integer> maxSdkVersion =
         bundle.getBaseModule().getAndroidManifest().getMaxSdkVersion();
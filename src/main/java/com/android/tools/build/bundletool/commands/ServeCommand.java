@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.commands;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.commands.CommandHelp.CommandDescription;
+import com.android.tools.build.bundletool.commands.CommandHelp.FlagDescription;
+import com.android.tools.build.bundletool.device.AdbServer;
+import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
+import com.android.tools.build.bundletool.io.ApkCache;
+import com.android.tools.build.bundletool.io.TempFiles;
+import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.Aapt2DaemonPool;
+import com.android.tools.build.bundletool.utils.flags.Flag;
+import com.android.tools.build.bundletool.utils.flags.FlagParser;
+import com.android.tools.build.bundletool.utils.flags.ParsedFlags;
+import com.google.auto.value.AutoValue;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps running and executes the commands received on the standard input, one per line.
+ *
+ * <p>Compared to an invocation of bundletool per command, this saves the startup of the JVM, the
+ * extraction of aapt2 and the warm-up of the JIT compiler for each command. The thread pool and
+ * the APK cache are also shared by all the commands.
+ */
+@AutoValue
+public abstract class ServeCommand {
+
+  public static final String COMMAND_NAME = "serve";
+
+  /** Request which stops the server. */
+  @VisibleForTesting static final String EXIT_REQUEST = "exit";
+
+  /** Prefix of the line printed once a request has been executed. */
+  @VisibleForTesting static final String RESPONSE_PREFIX = "[BT:serve] ";
+
+  @VisibleForTesting static final String OK_RESPONSE = RESPONSE_PREFIX + "OK";
+
+  @VisibleForTesting static final String ERROR_RESPONSE = RESPONSE_PREFIX + "ERROR: ";
+
+  private static final int DEFAULT_THREAD_POOL_SIZE = 4;
+
+  private static final Pattern LINE_BREAKS = Pattern.compile("\\R+");
+
+  private static final Flag<Path> AAPT2_PATH_FLAG = Flag.path("aapt2");
+  private static final Flag<Boolean> AAPT2_DAEMONS_FLAG = Flag.booleanFlag("aapt2-daemons");
+  private static final Flag<Integer> MAX_THREADS_FLAG = Flag.positiveInteger("max-threads");
+  private static final Flag<Path> APK_CACHE_DIR_FLAG = Flag.path("apk-cache-dir");
+  private static final Flag<Integer> APK_CACHE_MAX_SIZE_FLAG =
+      Flag.positiveInteger("apk-cache-max-size-mb");
+
+  public abstract Optional<Aapt2Command> getAapt2Command();
+
+  /** Pool of aapt2 daemons created by bundletool, which is closed when the server stops. */
+  abstract Optional<Aapt2DaemonPool> getAapt2DaemonPool();
+
+  public abstract int getMaxThreads();
+
+  public abstract Optional<ApkCache> getApkCache();
+
+  abstract AdbServer getAdbServer();
+
+  public static Builder builder() {
+    return new AutoValue_ServeCommand.Builder().setMaxThreads(DEFAULT_THREAD_POOL_SIZE);
+  }
+
+  /** Builder for the {@link ServeCommand}. */
+  @AutoValue.Builder
+  public abstract static class Builder {
+    /**
+     * Sets the aapt2 binary used by the '{@value BuildApksCommand#COMMAND_NAME}' requests which
+     * don't specify one.
+     *
+     * <p>Optional. If not set, aapt2 is extracted from the bundletool jar the first time it is
+     * needed, and reused for all the following requests.
+     */
+    public abstract Builder setAapt2Command(Aapt2Command aapt2Command);
+
+    /**
+     * Sets the pool of aapt2 daemons that bundletool created as the aapt2 command.
+     *
+     * <p>The pool is closed when the server stops.
+     */
+    abstract Builder setAapt2DaemonPool(Aapt2DaemonPool aapt2DaemonPool);
+
+    /**
+     * Sets the number of threads of the thread pool shared by all the requests.
+     *
+     * <p>The default is 4.
+     */
+    public abstract Builder setMaxThreads(int maxThreads);
+
+    /**
+     * Sets the cache of APKs used by the '{@value BuildApksCommand#COMMAND_NAME}' requests which
+     * don't specify one.
+     */
+    public abstract Builder setApkCache(ApkCache apkCache);
+
+    /** Sets the ADB server used by the requests which target a connected device. */
+    public abstract Builder setAdbServer(AdbServer adbServer);
+
+    abstract ServeCommand autoBuild();
+
+    public ServeCommand build() {
+      ServeCommand command = autoBuild();
+      checkArgument(
+          command.getMaxThreads() > 0,
+          "The maxThreads must be positive, got %s.",
+          command.getMaxThreads());
+      return command;
+    }
+  }
+
+  public static ServeCommand fromFlags(ParsedFlags flags, AdbServer adbServer) {
+    ServeCommand.Builder serveCommand = ServeCommand.builder().setAdbServer(adbServer);
+
+    Optional<Path> aapt2Path = AAPT2_PATH_FLAG.getValue(flags);
+    Optional<Integer> maxThreads = MAX_THREADS_FLAG.getValue(flags);
+    maxThreads.ifPresent(serveCommand::setMaxThreads);
+    if (AAPT2_DAEMONS_FLAG.getValue(flags).orElse(false)) {
+      if (!aapt2Path.isPresent()) {
+        throw CommandExecutionException.builder()
+            .withMessage(
+                "Flag --%s is required when --%s is set.",
+                AAPT2_PATH_FLAG.getName(), AAPT2_DAEMONS_FLAG.getName())
+            .build();
+      }
+      // One daemon per thread of the shared thread pool, which serializes the APKs.
+      Aapt2DaemonPool aapt2DaemonPool =
+          Aapt2Command.createDaemonPoolFromExecutablePath(
+              aapt2Path.get(), maxThreads.orElse(DEFAULT_THREAD_POOL_SIZE));
+      serveCommand.setAapt2Command(aapt2DaemonPool).setAapt2DaemonPool(aapt2DaemonPool);
+    } else {
+      aapt2Path.ifPresent(
+          path -> serveCommand.setAapt2Command(Aapt2Command.createFromExecutablePath(path)));
+    }
+    Optional<Integer> apkCacheMaxSizeMb = APK_CACHE_MAX_SIZE_FLAG.getValue(flags);
+    if (apkCacheMaxSizeMb.isPresent() && !APK_CACHE_DIR_FLAG.getValue(flags).isPresent()) {
+      throw CommandExecutionException.builder()
+          .withMessage(
+              "Flag --%s is required when --%s is set.",
+              APK_CACHE_DIR_FLAG.getName(), APK_CACHE_MAX_SIZE_FLAG.getName())
+          .build();
+    }
+    APK_CACHE_DIR_FLAG
+        .getValue(flags)
+        .ifPresent(
+            apkCacheDir ->
+                serveCommand.setApkCache(
+                    ApkCache.create(
+                        apkCacheDir,
+                        apkCacheMaxSizeMb
+                            .map(maxSizeMb -> maxSizeMb * 1024L * 1024L)
+                            .orElse(ApkCache.DEFAULT_MAX_SIZE_BYTES))));
+
+    flags.checkNoUnknownFlags();
+
+    return serveCommand.build();
+  }
+
+  /** Executes the requests received on the standard input until it is closed. */
+  public void execute() {
+    execute(System.in, System.out);
+  }
+
+  /**
+   * Executes the requests read from the given input until it is closed or the {@value
+   * #EXIT_REQUEST} request is received.
+   *
+   * <p>After each request, a line reporting its success or failure is printed to the given output.
+   */
+  @VisibleForTesting
+  void execute(InputStream input, PrintStream output) {
+    execute(input, output, BuildApksManager::extractAapt2FromJar);
+  }
+
+  /**
+   * Same as {@link #execute(InputStream, PrintStream)}, with the given function extracting aapt2
+   * to a directory when no aapt2 binary was set.
+   */
+  @VisibleForTesting
+  void execute(InputStream input, PrintStream output, Function<Path, Aapt2Command> aapt2Extractor) {
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(getMaxThreads()));
+    try {
+      // The temporary directory of each request is created and deleted by the command itself, this
+      // one only holds the aapt2 binary shared by all requests.
+      TempFiles.withTempDirectory(
+          tempDir -> {
+            Supplier<Aapt2Command> aapt2Command =
+                Suppliers.memoize(
+                    () -> getAapt2Command().orElseGet(() -> aapt2Extractor.apply(tempDir)));
+            serve(input, output, new RequestExecutor(aapt2Command, executorService, output));
+          });
+    } finally {
+      executorService.shutdown();
+      getAapt2DaemonPool().ifPresent(Aapt2DaemonPool::close);
+    }
+  }
+
+  private static void serve(InputStream input, PrintStream output, RequestExecutor executor) {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(input, UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String request = line.trim();
+        if (request.isEmpty()) {
+          continue;
+        }
+        if (request.equals(EXIT_REQUEST)) {
+          break;
+        }
+        try {
+          executor.execute(parseArguments(request));
+          output.println(OK_RESPONSE);
+        } catch (RuntimeException e) {
+          // A failing request must not stop the server.
+          output.println(ERROR_RESPONSE + errorMessage(e));
+        }
+        output.flush();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error while reading the requests.", e);
+    }
+  }
+
+  /** Returns the message of the exception on a single line, as each response is one line. */
+  @VisibleForTesting
+  static String errorMessage(Throwable e) {
+    String message = e.getMessage();
+    if (message == null || message.trim().isEmpty()) {
+      return e.getClass().getName();
+    }
+    return LINE_BREAKS.matcher(message.trim()).replaceAll(" ");
+  }
+
+  /**
+   * Splits the request into command-line arguments.
+   *
+   * <p>Arguments are separated by whitespaces, except within double quotes. Within double quotes,
+   * a backslash escapes the following character.
+   */
+  @VisibleForTesting
+  static ImmutableList<String> parseArguments(String request) {
+    ImmutableList.Builder<String> arguments = ImmutableList.builder();
+    StringBuilder argument = new StringBuilder();
+    boolean inArgument = false;
+    boolean inQuotes = false;
+    for (int i = 0; i < request.length(); i++) {
+      char c = request.charAt(i);
+      if (inQuotes) {
+        if (c == '"') {
+          inQuotes = false;
+        } else if (c == '\\' && i + 1 < request.length()) {
+          argument.append(request.charAt(++i));
+        } else {
+          argument.append(c);
+        }
+      } else if (Character.isWhitespace(c)) {
+        if (inArgument) {
+          arguments.add(argument.toString());
+          argument.setLength(0);
+          inArgument = false;
+        }
+      } else {
+        inArgument = true;
+        if (c == '"') {
+          inQuotes = true;
+        } else {
+          argument.append(c);
+        }
+      }
+    }
+    if (inQuotes) {
+      throw new CommandExecutionException("Unterminated quotes in request: " + request);
+    }
+    if (inArgument) {
+      arguments.add(argument.toString());
+    }
+    return arguments.build();
+  }
+
+  /** Executes a request with the resources shared by all requests. */
+  private final class RequestExecutor {
+    private final Supplier<Aapt2Command> aapt2Command;
+    private final ListeningExecutorService executorService;
+    private final PrintStream output;
+
+    RequestExecutor(
+        Supplier<Aapt2Command> aapt2Command,
+        ListeningExecutorService executorService,
+        PrintStream output) {
+      this.aapt2Command = aapt2Command;
+      this.executorService = executorService;
+      this.output = output;
+    }
+
+    void execute(List<String> arguments) {
+      ParsedFlags flags = new FlagParser().parse(arguments.toArray(new String[0]));
+      List<String> commands = flags.getCommands();
+      if (commands.isEmpty()) {
+        throw new CommandExecutionException("The request doesn't specify any command.");
+      }
+
+      switch (commands.get(0)) {
+        case BuildBundleCommand.COMMAND_NAME:
+          BuildBundleCommand.fromFlags(flags).execute();
+          break;
+        case BuildApksCommand.COMMAND_NAME:
+          withSharedResources(BuildApksCommand.fromFlags(flags, getAdbServer())).execute();
+          break;
+        case ExtractApksCommand.COMMAND_NAME:
+          ExtractApksCommand.fromFlags(flags).execute();
+          break;
+        case GetDeviceSpecCommand.COMMAND_NAME:
+          GetDeviceSpecCommand.fromFlags(flags, getAdbServer()).execute();
+          break;
+        case InstallApksCommand.COMMAND_NAME:
+          InstallApksCommand.fromFlags(flags, getAdbServer()).execute();
+          break;
+        case ValidateBundleCommand.COMMAND_NAME:
+          ValidateBundleCommand.fromFlags(flags).execute();
+          break;
+        case VersionCommand.COMMAND_NAME:
+          VersionCommand.fromFlags(flags, output).execute();
+          break;
+        default:
+          throw CommandExecutionException.builder()
+              .withMessage(
+                  "Command '%s' is not supported by the '%s' command.",
+                  commands.get(0), COMMAND_NAME)
+              .build();
+      }
+    }
+
+    /**
+     * Makes the command use the shared thread pool, as well as the shared aapt2 binary and APK
+     * cache unless the request specifies its own.
+     */
+    private BuildApksCommand withSharedResources(BuildApksCommand command) {
+      // The thread pool created for the command, if any, hasn't been used yet.
+      if (command.isExecutorServiceCreatedByBundleTool()) {
+        command.getExecutorService().shutdown();
+      }
+      BuildApksCommand.Builder builder = command.toBuilder().setExecutorService(executorService);
+      if (!command.getAapt2Command().isPresent()) {
+        builder.setAapt2Command(aapt2Command.get());
+      }
+      if (!command.getApkCache().isPresent()) {
+        getApkCache().ifPresent(builder::setApkCache);
+      }
+      return builder.build();
+    }
+  }
+
+  public static CommandHelp help() {
+    return CommandHelp.builder()
+        .setCommandName(COMMAND_NAME)
+        .setCommandDescription(
+            CommandDescription.builder()
+                .setShortDescription(
+                    "Keeps running and executes the commands received on the standard input, one "
+                        + "per line, e.g. '%s --bundle=app.aab --output=app.apks'.",
+                    BuildApksCommand.COMMAND_NAME)
+                .addAdditionalParagraph(
+                    "The arguments of a command are separated by whitespaces, and can be enclosed "
+                        + "in double quotes to contain whitespaces. Once a command has been "
+                        + "executed, a line '"
+                        + OK_RESPONSE
+                        + "' or '"
+                        + ERROR_RESPONSE
+                        + "<message>' is printed. The server stops when the standard input is "
+                        + "closed or when the line '"
+                        + EXIT_REQUEST
+                        + "' is received.")
+                .addAdditionalParagraph(
+                    "The commands share the JVM, the thread pool, the aapt2 binary and the APK "
+                        + "cache of the server, which saves their startup time. Each command "
+                        + "still uses its own temporary directory.")
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(AAPT2_PATH_FLAG.getName())
+                .setExampleValue("path/to/aapt2")
+                .setOptional(true)
+                .setDescription(
+                    "Path to the aapt2 binary used by the '%s' commands which don't specify one. "
+                        + "If not set, aapt2 is extracted once from bundletool.",
+                    BuildApksCommand.COMMAND_NAME)
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(AAPT2_DAEMONS_FLAG.getName())
+                .setOptional(true)
+                .setDescription(
+                    "If set, the aapt2 binary is run as long-lived daemons, one per thread, shared "
+                        + "by the '%s' commands which don't specify their own aapt2 binary. "
+                        + "Requires the flag --%s.",
+                    BuildApksCommand.COMMAND_NAME,
+                    AAPT2_PATH_FLAG.getName())
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(MAX_THREADS_FLAG.getName())
+                .setExampleValue("num-threads")
+                .setOptional(true)
+                .setDescription(
+                    "Sets the number of threads shared by all commands (default: %d). The flag "
+                        + "--%s of the commands is ignored.",
+                    DEFAULT_THREAD_POOL_SIZE, MAX_THREADS_FLAG.getName())
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(APK_CACHE_DIR_FLAG.getName())
+                .setExampleValue("path/to/cache/dir")
+                .setOptional(true)
+                .setDescription(
+                    "Path to the directory of the APK cache used by the '%s' commands which don't "
+                        + "specify one.",
+                    BuildApksCommand.COMMAND_NAME)
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(APK_CACHE_MAX_SIZE_FLAG.getName())
+                .setExampleValue("size-in-mb")
+                .setOptional(true)
+                .setDescription(
+                    "Maximum size of the APK cache in megabytes (default: %d). Requires the flag "
+                        + "--%s.",
+                    ApkCache.DEFAULT_MAX_SIZE_BYTES / (1024 * 1024),
+                    APK_CACHE_DIR_FLAG.getName())
+                .build())
+        .build();
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of serialized APKs, which can be shared across invocations of bundletool.
+ *
+ * <p>APKs are stored under a key which is a digest of everything that determines their content
+ * (see {@link ApkSerializerHelper}), so a cached APK can be copied instead of being serialized
+ * again.
+ *
+ * <p>The total size of the cached APKs is bounded: when it is exceeded, the least recently used
+ * APKs are evicted. The recency of the APKs is persisted as the last modified time of the files.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class ApkCache {
+
+  /** Default maximum size of the cache: 1 GiB. */
+  public static final long DEFAULT_MAX_SIZE_BYTES = 1L << 30;
+
+  private static final String APK_EXTENSION = ".apk";
+  private static final String TEMP_FILE_EXTENSION = ".tmp";
+
+  private final Path directory;
+  private final long maxSizeBytes;
+
+  /** Size of the cached APKs by key, in least recently used order. */
+  private final LinkedHashMap<String, Long> apkSizes =
+      new LinkedHashMap<>(
+          /* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true);
+
+  private long totalSizeBytes = 0;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  private ApkCache(Path directory, long maxSizeBytes) {
+    this.directory = directory;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /**
+   * Creates a cache stored in the given directory, which is created if it doesn't exist.
+   *
+   * <p>APKs already present in the directory, e.g. from a previous invocation, are reused.
+   */
+  public static ApkCache create(Path directory, long maxSizeBytes) {
+    checkArgument(maxSizeBytes > 0, "The maximum size of the cache must be positive.");
+    ApkCache apkCache = new ApkCache(directory, maxSizeBytes);
+    apkCache.loadExistingApks();
+    return apkCache;
+  }
+
+  /** Returns the size above which the least recently used APKs are evicted. */
+  public long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  /** Returns the number of APKs which were copied from the cache. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of APKs which were not found in the cache and had to be serialized. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Copies the APK cached under the given key to {@code outputPath}, or if there is none, writes it
+   * with {@code apkWriter} and adds it to the cache.
+   *
+   * @return whether the APK was copied from the cache
+   */
+  boolean getOrWrite(String key, Path outputPath, Consumer<Path> apkWriter) {
+    if (copyFromCache(key, outputPath)) {
+      hitCount.incrementAndGet();
+      return true;
+    }
+    missCount.incrementAndGet();
+    apkWriter.accept(outputPath);
+    addToCache(key, outputPath);
+    return false;
+  }
+
+  private boolean copyFromCache(String key, Path outputPath) {
+    synchronized (this) {
+      // Accessing the APK marks it as the most recently used.
+      if (apkSizes.get(key) == null) {
+        return false;
+      }
+    }
+    Path cachedApk = getCachedApkPath(key);
+    try {
+      // Persists the recency of the APK for the next invocations.
+      Files.setLastModifiedTime(cachedApk, FileTime.fromMillis(System.currentTimeMillis()));
+      Files.copy(cachedApk, outputPath);
+      return true;
+    } catch (NoSuchFileException e) {
+      // Evicted in the meantime, possibly by another process sharing the directory.
+      removeFromIndex(key);
+      return false;
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while copying the cached APK '%s'.", cachedApk), e);
+    }
+  }
+
+  private void addToCache(String key, Path apk) {
+    try {
+      // Copy then move, so that an incomplete APK is never visible in the cache.
+      Path tempFile = directory.resolve(UUID.randomUUID() + TEMP_FILE_EXTENSION);
+      Files.copy(apk, tempFile);
+      Files.move(tempFile, getCachedApkPath(key), ATOMIC_MOVE, REPLACE_EXISTING);
+      long size = Files.size(apk);
+      synchronized (this) {
+        removeFromIndex(key);
+        apkSizes.put(key, size);
+        totalSizeBytes += size;
+        evictLeastRecentlyUsed();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while adding the APK '%s' to the cache.", apk), e);
+    }
+  }
+
+  /** Evicts the least recently used APKs until the size of the cache is within bounds. */
+  private synchronized void evictLeastRecentlyUsed() throws IOException {
+    Iterator<Map.Entry<String, Long>> apksIterator = apkSizes.entrySet().iterator();
+    while (totalSizeBytes > maxSizeBytes && apksIterator.hasNext()) {
+      Map.Entry<String, Long> apk = apksIterator.next();
+      Files.deleteIfExists(getCachedApkPath(apk.getKey()));
+      totalSizeBytes -= apk.getValue();
+      apksIterator.remove();
+    }
+  }
+
+  private synchronized void removeFromIndex(String key) {
+    Long size = apkSizes.remove(key);
+    if (size != null) {
+      totalSizeBytes -= size;
+    }
+  }
+
+  private synchronized void loadExistingApks() {
+    try {
+      Files.createDirectories(directory);
+      ImmutableList<Path> cachedApks;
+      try (Stream<Path> files = Files.list(directory)) {
+        cachedApks =
+            files
+                .filter(file -> file.getFileName().toString().endsWith(APK_EXTENSION))
+                .sorted(Comparator.comparing(ApkCache::getLastModifiedTime))
+                .collect(toImmutableList());
+      }
+      for (Path cachedApk : cachedApks) {
+        String fileName = cachedApk.getFileName().toString();
+        long size = Files.size(cachedApk);
+        apkSizes.put(fileName.substring(0, fileName.length() - APK_EXTENSION.length()), size);
+        totalSizeBytes += size;
+      }
+      evictLeastRecentlyUsed();
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while loading the APK cache from '%s'.", directory), e);
+    }
+  }
+
+  private Path getCachedApkPath(String key) {
+    return directory.resolve(key + APK_EXTENSION);
+  }
+
+  private static FileTime getLastModifiedTime(Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -25,6 +25,7 @@ import static com.android.tools.build.bundletool.utils.files.FileUtils.createPar
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.android.apksig.ApkSigner;
 import com.android.apksig.ApkSigner.SignerConfig;
@@ -33,22 +34,36 @@ import com.android.bundle.Config.Compression;
 import com.android.tools.build.apkzlib.zfile.ZFiles;
 import com.android.tools.build.apkzlib.zip.AlignmentRule;
 import com.android.tools.build.apkzlib.zip.AlignmentRules;
+import com.android.tools.build.apkzlib.zip.CentralDirectoryHeader;
+import com.android.tools.build.apkzlib.zip.StoredEntry;
 import com.android.tools.build.apkzlib.zip.ZFile;
 import com.android.tools.build.apkzlib.zip.ZFileOptions;
 import com.android.tools.build.bundletool.exceptions.ValidationException;
 import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
+import com.android.tools.build.bundletool.metrics.BuildMetrics;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Counter;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Span;
 import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.ApkSerializationMetrics;
 import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.ModuleEntry.ContentFingerprint;
 import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.model.ModuleZipEntry;
 import com.android.tools.build.bundletool.model.SigningConfiguration;
 import com.android.tools.build.bundletool.model.WearApkLocator;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.utils.files.FileUtils;
+import com.android.tools.build.bundletool.version.BundleToolVersion;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
@@ -60,8 +75,12 @@ import java.nio.file.PathMatcher;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
 import java.util.Optional;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /** Serializes APKs to Proto or Binary format. */
 final class ApkSerializerHelper {
@@ -108,14 +127,37 @@ final class ApkSerializerHelper {
 
   private final Aapt2Command aapt2Command;
   private final Optional<SigningConfiguration> signingConfig;
+  private final Compression compression;
   private final ImmutableList<PathMatcher> uncompressedPathMatchers;
+  private final Optional<ApkCache> apkCache;
+  private final BuildMetrics metrics;
 
   ApkSerializerHelper(
       Aapt2Command aapt2Command,
       Optional<SigningConfiguration> signingConfig,
       Compression compression) {
+    this(aapt2Command, signingConfig, compression, /* apkCache= */ Optional.empty());
+  }
+
+  ApkSerializerHelper(
+      Aapt2Command aapt2Command,
+      Optional<SigningConfiguration> signingConfig,
+      Compression compression,
+      Optional<ApkCache> apkCache) {
+    this(aapt2Command, signingConfig, compression, apkCache, BuildMetrics.NO_OP);
+  }
+
+  ApkSerializerHelper(
+      Aapt2Command aapt2Command,
+      Optional<SigningConfiguration> signingConfig,
+      Compression compression,
+      Optional<ApkCache> apkCache,
+      BuildMetrics metrics) {
     this.aapt2Command = aapt2Command;
     this.signingConfig = signingConfig;
+    this.compression = compression;
+    this.apkCache = apkCache;
+    this.metrics = metrics;
 
     // Using the default filesystem will work on Windows because the "/" of the glob are swapped
     // with "\" when the PathMatcher is constructed and the Path on Windows use this file separator.
@@ -131,27 +173,87 @@ final class ApkSerializerHelper {
             .collect(toImmutableList());
   }
 
-  Path writeToZipFile(ModuleSplit split, Path outputPath) {
-    TempFiles.withTempDirectory(tempDir -> writeToZipFile(split, outputPath, tempDir));
-    return outputPath;
+  /**
+   * Writes the split as an APK to the given path.
+   *
+   * @return the resources spent serializing the APK, and its size
+   */
+  ApkSerializationMetrics writeToZipFile(ModuleSplit split, Path outputPath) {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    ApkSerializationMetrics.Builder apkMetrics = ApkSerializationMetrics.builder();
+    try (Span span = metrics.startSpan("serialize-apk", outputPath.getFileName().toString())) {
+      // APKs converted by an aapt2 command of unknown identity could differ from the cached ones.
+      if (apkCache.isPresent() && aapt2Command.getIdentity().isPresent()) {
+        checkFileDoesNotExist(outputPath);
+        createParentDirectories(outputPath);
+        boolean cacheHit =
+            apkCache
+                .get()
+                .getOrWrite(
+                    computeCacheKey(split),
+                    outputPath,
+                    path ->
+                        TempFiles.withTempDirectory(
+                            tempDir -> writeToZipFile(split, path, tempDir, apkMetrics)));
+        metrics.incrementCounter(cacheHit ? Counter.APK_CACHE_HITS : Counter.APK_CACHE_MISSES);
+        if (cacheHit) {
+          // No ZFile was opened for the copied APK, so its entries are read from its central
+          // directory, which is small compared to the copy itself.
+          readEntrySizes(outputPath, apkMetrics);
+        }
+      } else {
+        TempFiles.withTempDirectory(
+            tempDir -> writeToZipFile(split, outputPath, tempDir, apkMetrics));
+      }
+    }
+    apkMetrics.setSerializationTime(stopwatch.elapsed());
+    metrics.incrementCounter(Counter.APKS_SERIALIZED);
+    if (metrics.isEnabled()) {
+      try {
+        metrics.addToCounter(Counter.BYTES_WRITTEN, Files.size(outputPath));
+      } catch (IOException e) {
+        throw new UncheckedIOException(
+            String.format("Error while reading the size of the APK '%s'.", outputPath), e);
+      }
+    }
+    return apkMetrics.build();
   }
 
-  void writeToZipFile(ModuleSplit split, Path outputPath, Path tempDir) {
+  /**
+   * Writes the split as an APK to the given path, using the given directory for temporary files.
+   *
+   * <p>The time spent in aapt2 and signing the APK, and the sizes of its entries are reported to
+   * the given builder.
+   */
+  void writeToZipFile(
+      ModuleSplit split,
+      Path outputPath,
+      Path tempDir,
+      ApkSerializationMetrics.Builder apkMetrics) {
     checkFileDoesNotExist(outputPath);
     createParentDirectories(outputPath);
 
     // Write a Proto-APK with only files that aapt2 requires as part of the convert command.
     Path partialProtoApk = tempDir.resolve("proto.apk");
-    writeProtoApk(split, partialProtoApk, tempDir);
+    try (Span span = metrics.startSpan("write-proto-apk")) {
+      writeProtoApk(split, partialProtoApk, tempDir);
+    }
 
     // Have aapt2 convert the Proto-APK to a Binary-APK.
     Path binaryApk = tempDir.resolve("binary.apk");
-    aapt2Command.convertApkProtoToBinary(partialProtoApk, binaryApk);
+    Stopwatch aapt2Stopwatch = Stopwatch.createStarted();
+    try (Span span = metrics.startSpan("aapt2-convert")) {
+      metrics.incrementCounter(Counter.AAPT2_INVOCATIONS);
+      aapt2Command.convertApkProtoToBinary(partialProtoApk, binaryApk);
+    }
+    apkMetrics.setAapt2Time(aapt2Stopwatch.elapsed());
     checkState(Files.exists(binaryApk), "No APK created by aapt2 convert command.");
 
-    // Create a new APK that includes files processed by aapt2 and the other ones.
+    // Create a new APK that includes files processed by aapt2 and the other ones. The span also
+    // covers the signing of the APK, which happens when it is closed.
     int minSdkVersion = split.getAndroidManifest().getEffectiveMinSdkVersion();
-    try (ZFile zOutputApk =
+    try (Span span = metrics.startSpan("write-apk");
+        ZFile zOutputApk =
             ZFiles.apk(
                 outputPath.toFile(),
                 createZFileOptions(tempDir)
@@ -173,14 +275,56 @@ final class ApkSerializerHelper {
       zOutputApk.mergeFrom(zAapt2Files, /* ignoreFilter= */ Predicates.alwaysFalse());
 
       // Add the remaining files.
-      addNonAapt2Files(zOutputApk, split);
+      addNonAapt2Files(zOutputApk, split, tempDir);
       zOutputApk.sortZipContents();
+
+      // The entries are written, compressed and signed when the changes are flushed to disk, so
+      // that closing the file afterwards has nothing left to do. The signing can't be timed on its
+      // own, as it is interleaved with the writing of the entries.
+      Stopwatch finalizeStopwatch = Stopwatch.createStarted();
+      zOutputApk.update();
+      apkMetrics.setFinalizeTime(finalizeStopwatch.elapsed());
+      collectEntrySizes(zOutputApk, apkMetrics);
     } catch (IOException e) {
       throw new UncheckedIOException(
           String.format("Failed to write APK file '%s'.", outputPath), e);
     }
   }
 
+  /**
+   * Reports the number of entries of the APK being written and their sizes to the given builder.
+   *
+   * <p>Must be called after the changes are flushed to disk, so that the signature files are
+   * counted and all the entries are compressed.
+   */
+  private static void collectEntrySizes(ZFile apk, ApkSerializationMetrics.Builder apkMetrics)
+      throws IOException {
+    long compressedSize = 0;
+    long uncompressedSize = 0;
+    for (StoredEntry entry : apk.entries()) {
+      CentralDirectoryHeader header = entry.getCentralDirectoryHeader();
+      compressedSize += header.getCompressionInfoWithWait().getCompressedSize();
+      uncompressedSize += header.getUncompressedSize();
+    }
+    apkMetrics
+        .setEntryCount(apk.entries().size())
+        .setCompressedSize(compressedSize)
+        .setUncompressedSize(uncompressedSize);
+  }
+
+  /** Reports the number of entries of an APK on disk and their sizes to the given builder. */
+  private static void readEntrySizes(Path apkPath, ApkSerializationMetrics.Builder apkMetrics) {
+    try (ZipFile apk = new ZipFile(apkPath.toFile())) {
+      apkMetrics
+          .setEntryCount(apk.size())
+          .setCompressedSize(apk.stream().mapToLong(ZipEntry::getCompressedSize).sum())
+          .setUncompressedSize(apk.stream().mapToLong(ZipEntry::getSize).sum());
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while reading the entries of the APK '%s'.", apkPath), e);
+    }
+  }
+
   /**
    * Creates a proto-APK from the {@link ModuleSplit} and stores it on disk.
    *
@@ -270,24 +414,58 @@ final class ApkSerializerHelper {
     return true;
   }
 
-  /** Takes the given APK and adds the files that weren't processed by AAPT2. */
-  private void addNonAapt2Files(ZFile zFile, ModuleSplit split) throws IOException {
+  /**
+   * Takes the given APK and adds the files that weren't processed by AAPT2.
+   *
+   * <p>Entries which are already deflated in the bundle and must be compressed in the APK are
+   * copied verbatim, without being inflated and deflated again: they are first written to a
+   * temporary zip file, which is then merged into the APK.
+   */
+  private void addNonAapt2Files(ZFile zFile, ModuleSplit split, Path tempDir) throws IOException {
     boolean extractNativeLibs = split.getAndroidManifest().getExtractNativeLibsValue().orElse(true);
 
     // Add the non-Aapt2 files.
-    for (ModuleEntry entry : split.getEntries()) {
-      ZipPath pathInApk = toApkEntryPath(entry.getPath());
-      if (!FILES_FOR_AAPT2.apply(pathInApk)) {
-        try (InputStream entryInputStream = entry.getContent()) {
-          zFile.add(
-              pathInApk.toString(),
-              entryInputStream,
-              shouldCompress(pathInApk, !extractNativeLibs, entry.shouldCompress()));
+    Path rawEntriesZip = tempDir.resolve("raw-entries.zip");
+    boolean hasRawEntries;
+    try (RawZipWriter rawZipWriter = new RawZipWriter(rawEntriesZip)) {
+      for (ModuleEntry entry : split.getEntries()) {
+        ZipPath pathInApk = toApkEntryPath(entry.getPath());
+        if (FILES_FOR_AAPT2.apply(pathInApk)) {
+          continue;
         }
+        boolean compress = shouldCompress(pathInApk, !extractNativeLibs, entry.shouldCompress());
+        if (compress && canCopyDeflatedEntry(entry, rawZipWriter)) {
+          rawZipWriter.addRawEntry(pathInApk.toString(), (ModuleZipEntry) entry);
+        } else {
+          try (InputStream entryInputStream = entry.getContent()) {
+            zFile.add(pathInApk.toString(), entryInputStream, compress);
+          }
+        }
+      }
+      hasRawEntries = !rawZipWriter.isEmpty();
+    }
+
+    if (hasRawEntries) {
+      try (ZFile zRawEntries =
+          new ZFile(rawEntriesZip.toFile(), createZFileOptions(tempDir), /* readOnly= */ true)) {
+        zFile.mergeFrom(zRawEntries, /* ignoreFilter= */ Predicates.alwaysFalse());
       }
     }
   }
 
+  /**
+   * Whether the entry is deflated in the bundle and can be copied verbatim.
+   *
+   * <p>Uncompressed entries are always added through apkzlib, which takes care of their alignment.
+   */
+  private static boolean canCopyDeflatedEntry(ModuleEntry entry, RawZipWriter rawZipWriter) {
+    if (!(entry instanceof ModuleZipEntry)) {
+      return false;
+    }
+    ModuleZipEntry zipEntry = (ModuleZipEntry) entry;
+    return zipEntry.isDeflatedInZip() && rawZipWriter.canAddRawEntry(zipEntry);
+  }
+
   /**
    * Transforms the entry path in the module to the final path in the module split.
    *
@@ -353,6 +531,76 @@ final class ApkSerializerHelper {
     }
   }
 
+  /**
+   * Computes the key of the APK in the {@link ApkCache}: a digest of the version of bundletool, the
+   * identity of the aapt2 command, the entries, manifest and resource table of the split, the
+   * signing configuration and the compression settings.
+   *
+   * <p>Only valid if the aapt2 command has an identity.
+   */
+  @VisibleForTesting
+  String computeCacheKey(ModuleSplit split) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    putString(hasher, BundleToolVersion.getCurrentVersion().toString());
+    putString(hasher, aapt2Command.getIdentity().get());
+    putBytes(hasher, split.getAndroidManifest().getManifestRoot().getProto().toByteArray());
+    hasher.putBoolean(split.getResourceTable().isPresent());
+    split.getResourceTable().ifPresent(table -> putBytes(hasher, table.toByteArray()));
+
+    hasher.putInt(split.getEntries().size());
+    for (ModuleEntry entry : split.getEntries()) {
+      putString(hasher, entry.getPath().toString());
+      hasher.putBoolean(entry.shouldCompress());
+      putEntryContent(hasher, entry);
+    }
+
+    hasher.putBoolean(signingConfig.isPresent());
+    if (signingConfig.isPresent()) {
+      putBytes(hasher, signingConfig.get().getPrivateKey().getEncoded());
+      for (X509Certificate certificate : signingConfig.get().getCertificates()) {
+        try {
+          putBytes(hasher, certificate.getEncoded());
+        } catch (CertificateEncodingException e) {
+          throw new ValidationException("Unable to encode the signing certificate.", e);
+        }
+      }
+    }
+    putBytes(hasher, compression.toByteArray());
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Adds the content of the entry to the cache key.
+   *
+   * <p>Entries read from the bundle are keyed on the size and CRC-32 recorded in its zip file, so
+   * that looking up the cache doesn't read all the entries of the split. Only the entries generated
+   * by bundletool are read and hashed.
+   */
+  private static void putEntryContent(Hasher hasher, ModuleEntry entry) {
+    Optional<ContentFingerprint> fingerprint = entry.getContentFingerprint();
+    hasher.putBoolean(fingerprint.isPresent());
+    if (fingerprint.isPresent()) {
+      hasher.putLong(fingerprint.get().getSize());
+      hasher.putLong(fingerprint.get().getCrc32());
+      return;
+    }
+    try (InputStream entryContent = entry.getContent()) {
+      hasher.putLong(ByteStreams.copy(entryContent, Funnels.asOutputStream(hasher)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while reading the entry '%s'.", entry.getPath()), e);
+    }
+  }
+
+  /** Adds the bytes prefixed with their length, so that consecutive values can't be confused. */
+  private static void putBytes(Hasher hasher, byte[] bytes) {
+    hasher.putInt(bytes.length).putBytes(bytes);
+  }
+
+  private static void putString(Hasher hasher, String value) {
+    putBytes(hasher, value.getBytes(UTF_8));
+  }
+
   private static ZFileOptions createZFileOptions(Path tempDir) {
     ZFileOptions options = new ZFileOptions();
     return options;
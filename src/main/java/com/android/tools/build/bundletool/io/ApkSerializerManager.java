@@ -20,10 +20,14 @@ import static com.android.tools.build.bundletool.model.ModuleSplit.SplitType.SPL
 import static com.android.tools.build.bundletool.model.ModuleSplit.SplitType.STANDALONE;
 import static com.android.tools.build.bundletool.targeting.TargetingComparators.VARIANT_TARGETING_COMPARATOR;
 import static com.android.tools.build.bundletool.utils.CollectorUtils.groupingBySortedKeys;
+import static com.android.tools.build.bundletool.utils.ConcurrencyUtils.waitFor;
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Predicates.alwaysTrue;
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableListMultimap.toImmutableListMultimap;
 import static com.google.common.collect.ImmutableMap.toImmutableMap;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static java.util.Comparator.comparing;
 import static java.util.function.Function.identity;
 
@@ -42,15 +46,27 @@ import com.android.tools.build.bundletool.model.BundleModuleName;
 import com.android.tools.build.bundletool.model.GeneratedApks;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
+import com.android.tools.build.bundletool.targeting.AlternativeVariantTargetingPopulator;
 import com.android.tools.build.bundletool.utils.ConcurrencyUtils;
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
 import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -65,6 +81,15 @@ public class ApkSerializerManager {
   private final AppBundle appBundle;
   private final ApkSetBuilder apkSetBuilder;
 
+  /** Serializations submitted to the executor service, cancelled if the serialization fails. */
+  private final Queue<ListenableFuture<?>> submittedSerializations = new ConcurrentLinkedQueue<>();
+
+  /** Whether the serialization failed, guarded by {@code this}. */
+  private boolean aborted = false;
+
+  /** Number of serializations being executed, guarded by {@code this}. */
+  private int runningSerializations = 0;
+
   public ApkSerializerManager(
       AppBundle appBundle,
       ApkSetBuilder apkSetBuilder,
@@ -98,6 +123,16 @@ public class ApkSerializerManager {
 
   private ImmutableList<Variant> serializeApks(
       GeneratedApks generatedApks, boolean isUniversalApk, Optional<DeviceSpec> deviceSpec) {
+    try {
+      return serializeApksInternal(generatedApks, isUniversalApk, deviceSpec);
+    } catch (RuntimeException | Error e) {
+      abortSerializations();
+      throw e;
+    }
+  }
+
+  private ImmutableList<Variant> serializeApksInternal(
+      GeneratedApks generatedApks, boolean isUniversalApk, Optional<DeviceSpec> deviceSpec) {
     Predicate<ModuleSplit> deviceFilter =
         deviceSpec.isPresent()
             ? new ApkMatcher(deviceSpec.get())::matchesModuleSplitByTargeting
@@ -144,32 +179,241 @@ public class ApkSerializerManager {
                 Collectors.collectingAndThen(
                     toImmutableMap(
                         identity(),
-                        split -> executorService.submit(() -> apkSerializer.serialize(split))),
+                        split -> submitSerialization(() -> apkSerializer.serialize(split))),
                     ConcurrencyUtils::waitForAll));
 
+    ImmutableListMultimap<VariantKey, SerializedApk> serializedApksByVariant =
+        ImmutableListMultimap.copyOf(
+            Multimaps.transformValues(
+                splitByVariant,
+                split ->
+                    SerializedApk.create(split.getModuleName(), apkDescriptionBySplit.get(split))));
+
     // Build the result proto.
+    return buildVariants(variantNumberByVariantKey, serializedApksByVariant);
+  }
+
+  /**
+   * Serializes the APKs as soon as they are generated, instead of waiting for all APKs to be
+   * generated first.
+   *
+   * <p>The standalone APKs are submitted for serialization first. Then each of the given generators
+   * is run on the executor service, and the split or instant APKs it returns (typically all the
+   * splits of one module) are submitted for serialization as soon as it completes. To bound the
+   * memory usage, at most {@code maxGeneratorsInFlight} generators are scheduled ahead of the
+   * serialization, and at most {@code maxApksInFlight} APKs are waiting to be serialized at any
+   * time.
+   *
+   * <p>The variant numbers and the returned variants are identical to the ones returned by {@link
+   * #serializeApks(GeneratedApks)} for the same APKs. Since the variant numbers are only known once
+   * all APKs have been generated, this mode cannot be used together with an {@link ApkModifier}.
+   */
+  public ImmutableList<Variant> serializeApksPipelined(
+      ImmutableList<ModuleSplit> standaloneApks,
+      ImmutableList<Callable<ImmutableList<ModuleSplit>>> generators,
+      int maxGeneratorsInFlight,
+      int maxApksInFlight) {
+    checkState(
+        apkModifier.equals(ApkModifier.NO_OP),
+        "Pipelined serialization of the APKs is not supported with an ApkModifier.");
+    try {
+      return serializeApksPipelinedInternal(
+          standaloneApks, generators, maxGeneratorsInFlight, maxApksInFlight);
+    } catch (RuntimeException | Error e) {
+      abortSerializations();
+      throw e;
+    }
+  }
+
+  private ImmutableList<Variant> serializeApksPipelinedInternal(
+      ImmutableList<ModuleSplit> standaloneApks,
+      ImmutableList<Callable<ImmutableList<ModuleSplit>>> generators,
+      int maxGeneratorsInFlight,
+      int maxApksInFlight) {
+    ApkSerializer apkSerializer = new ApkSerializer(apkListener, /* isUniversalApk= */ false);
+    Semaphore apksInFlight = new Semaphore(maxApksInFlight);
+
+    ImmutableList.Builder<PendingApk> pendingApks = ImmutableList.builder();
+    pendingApks.addAll(submitForSerialization(standaloneApks, apkSerializer, apksInFlight));
+
+    // Generators are consumed in order, so that the APKs end up in the same order as when they
+    // are all generated upfront.
+    Queue<ListenableFuture<ImmutableList<ModuleSplit>>> generatorsInFlight = new ArrayDeque<>();
+    for (Callable<ImmutableList<ModuleSplit>> generator : generators) {
+      if (generatorsInFlight.size() >= maxGeneratorsInFlight) {
+        pendingApks.addAll(
+            submitForSerialization(
+                waitFor(generatorsInFlight.remove()), apkSerializer, apksInFlight));
+      }
+      generatorsInFlight.add(executorService.submit(generator));
+    }
+    while (!generatorsInFlight.isEmpty()) {
+      pendingApks.addAll(
+          submitForSerialization(
+              waitFor(generatorsInFlight.remove()), apkSerializer, apksInFlight));
+    }
+
+    return buildVariants(pendingApks.build());
+  }
+
+  /**
+   * Submits the given APKs for serialization, blocking while too many APKs are already waiting to
+   * be serialized.
+   *
+   * <p>APKs which are identical once their variant targeting is cleared are serialized only once.
+   * Such APKs can only come from the same generator, since APKs of different modules or of
+   * different split types are never equal, hence de-duplicating per batch is sufficient.
+   */
+  private ImmutableList<PendingApk> submitForSerialization(
+      ImmutableList<ModuleSplit> splits, ApkSerializer apkSerializer, Semaphore apksInFlight) {
+    Map<ModuleSplit, ListenableFuture<ApkDescription>> apkDescriptionBySplit = new HashMap<>();
+    ImmutableList.Builder<PendingApk> pendingApks = ImmutableList.builder();
+    for (ModuleSplit split : splits) {
+      ListenableFuture<ApkDescription> apkDescription =
+          apkDescriptionBySplit.computeIfAbsent(
+              clearVariantTargeting(split),
+              splitToSerialize -> {
+                apksInFlight.acquireUninterruptibly();
+                ListenableFuture<ApkDescription> future =
+                    submitSerialization(() -> apkSerializer.serialize(splitToSerialize));
+                future.addListener(apksInFlight::release, directExecutor());
+                return future;
+              });
+      pendingApks.add(
+          PendingApk.create(
+              split.getSplitType(),
+              split.getVariantTargeting(),
+              split.getModuleName(),
+              apkDescription));
+    }
+    return pendingApks.build();
+  }
+
+  /**
+   * Submits the serialization of an APK to the executor service.
+   *
+   * <p>Once the serialization has been aborted, the serializations which haven't started yet do
+   * nothing.
+   */
+  private ListenableFuture<ApkDescription> submitSerialization(
+      Callable<ApkDescription> serialization) {
+    ListenableFuture<ApkDescription> future =
+        executorService.submit(
+            () -> {
+              synchronized (this) {
+                if (aborted) {
+                  throw new CancellationException("The serialization of the APKs was aborted.");
+                }
+                runningSerializations++;
+              }
+              try {
+                return serialization.call();
+              } finally {
+                synchronized (this) {
+                  runningSerializations--;
+                  notifyAll();
+                }
+              }
+            });
+    submittedSerializations.add(future);
+    return future;
+  }
+
+  /**
+   * Cancels the serializations which haven't started yet, and waits for the running ones to
+   * finish, so that nothing is added to the APK Set archive once the failure has been reported.
+   */
+  private synchronized void abortSerializations() {
+    aborted = true;
+    submittedSerializations.forEach(future -> future.cancel(/* mayInterruptIfRunning= */ false));
+    boolean interrupted = false;
+    while (runningSerializations > 0) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Builds the variants once all the given APKs have been serialized. */
+  private ImmutableList<Variant> buildVariants(ImmutableList<PendingApk> pendingApks) {
+    ImmutableListMultimap<SplitType, PendingApk> pendingApksBySplitType =
+        pendingApks.stream().collect(toImmutableListMultimap(PendingApk::getSplitType, identity()));
+    ImmutableListMultimap<SplitType, VariantTargeting> variantTargetingBySplitType =
+        AlternativeVariantTargetingPopulator.populateAlternativeVariantTargeting(
+            ImmutableListMultimap.copyOf(
+                Multimaps.transformValues(
+                    pendingApksBySplitType, PendingApk::getVariantTargeting)));
+
+    // Pairs each APK with the key of its variant, now that the alternatives are populated.
+    ImmutableList.Builder<Map.Entry<VariantKey, PendingApk>> apksWithVariantKeyBuilder =
+        ImmutableList.builder();
+    for (SplitType splitType : pendingApksBySplitType.keySet()) {
+      ImmutableList<PendingApk> apks = pendingApksBySplitType.get(splitType);
+      ImmutableList<VariantTargeting> variantTargeting =
+          variantTargetingBySplitType.get(splitType);
+      for (int i = 0; i < apks.size(); i++) {
+        apksWithVariantKeyBuilder.add(
+            Maps.immutableEntry(
+                VariantKey.create(splitType, variantTargeting.get(i)), apks.get(i)));
+      }
+    }
+
+    ImmutableList<Map.Entry<VariantKey, PendingApk>> apksWithVariantKey =
+        apksWithVariantKeyBuilder.build();
+
+    AtomicInteger variantNumberCounter = new AtomicInteger(firstVariantNumber);
+    ImmutableMap<VariantKey, Integer> variantNumberByVariantKey =
+        apksWithVariantKey
+            .stream()
+            .map(Map.Entry::getKey)
+            .sorted()
+            .distinct()
+            .collect(toImmutableMap(identity(), unused -> variantNumberCounter.getAndIncrement()));
+
+    ImmutableListMultimap<VariantKey, SerializedApk> serializedApksByVariant =
+        apksWithVariantKey
+            .stream()
+            .collect(
+                groupingBySortedKeys(
+                    Map.Entry::getKey,
+                    entry ->
+                        SerializedApk.create(
+                            entry.getValue().getModuleName(),
+                            waitFor(entry.getValue().getApkDescription()))));
+
+    return buildVariants(variantNumberByVariantKey, serializedApksByVariant);
+  }
+
+  private ImmutableList<Variant> buildVariants(
+      ImmutableMap<VariantKey, Integer> variantNumberByVariantKey,
+      ImmutableListMultimap<VariantKey, SerializedApk> serializedApksByVariant) {
     ImmutableList.Builder<Variant> variants = ImmutableList.builder();
-    for (VariantKey variantKey : splitByVariant.keySet()) {
+    for (VariantKey variantKey : serializedApksByVariant.keySet()) {
       Variant.Builder variant =
           Variant.newBuilder()
               .setVariantNumber(variantNumberByVariantKey.get(variantKey))
               .setTargeting(variantKey.getVariantTargeting());
 
-      Multimap<BundleModuleName, ModuleSplit> splitsByModuleName =
-          splitByVariant
+      Multimap<BundleModuleName, SerializedApk> apksByModuleName =
+          serializedApksByVariant
               .get(variantKey)
               .stream()
-              .collect(groupingBySortedKeys(ModuleSplit::getModuleName));
+              .collect(groupingBySortedKeys(SerializedApk::getModuleName));
 
-      for (BundleModuleName moduleName : splitsByModuleName.keySet()) {
+      for (BundleModuleName moduleName : apksByModuleName.keySet()) {
         variant.addApkSet(
             ApkSet.newBuilder()
                 .setModuleMetadata(appBundle.getModule(moduleName).getModuleMetadata())
                 .addAllApkDescription(
-                    splitsByModuleName
+                    apksByModuleName
                         .get(moduleName)
                         .stream()
-                        .map(apkDescriptionBySplit::get)
+                        .map(SerializedApk::getApkDescription)
                         .collect(toImmutableList())));
       }
       variants.add(variant.build());
@@ -214,8 +458,11 @@ public class ApkSerializerManager {
   @AutoValue
   abstract static class VariantKey implements Comparable<VariantKey> {
     static VariantKey create(ModuleSplit moduleSplit) {
-      return new AutoValue_ApkSerializerManager_VariantKey(
-          moduleSplit.getSplitType(), moduleSplit.getVariantTargeting());
+      return create(moduleSplit.getSplitType(), moduleSplit.getVariantTargeting());
+    }
+
+    static VariantKey create(SplitType splitType, VariantTargeting variantTargeting) {
+      return new AutoValue_ApkSerializerManager_VariantKey(splitType, variantTargeting);
     }
 
     abstract SplitType getSplitType();
@@ -231,6 +478,40 @@ public class ApkSerializerManager {
     }
   }
 
+  /** An APK submitted for serialization, along with what is needed to build its variant. */
+  @AutoValue
+  abstract static class PendingApk {
+    static PendingApk create(
+        SplitType splitType,
+        VariantTargeting variantTargeting,
+        BundleModuleName moduleName,
+        ListenableFuture<ApkDescription> apkDescription) {
+      return new AutoValue_ApkSerializerManager_PendingApk(
+          splitType, variantTargeting, moduleName, apkDescription);
+    }
+
+    abstract SplitType getSplitType();
+
+    /** Variant targeting of the APK, before alternative targeting is populated. */
+    abstract VariantTargeting getVariantTargeting();
+
+    abstract BundleModuleName getModuleName();
+
+    abstract ListenableFuture<ApkDescription> getApkDescription();
+  }
+
+  /** A serialized APK and the module it belongs to. */
+  @AutoValue
+  abstract static class SerializedApk {
+    static SerializedApk create(BundleModuleName moduleName, ApkDescription apkDescription) {
+      return new AutoValue_ApkSerializerManager_SerializedApk(moduleName, apkDescription);
+    }
+
+    abstract BundleModuleName getModuleName();
+
+    abstract ApkDescription getApkDescription();
+  }
+
   private final class ApkSerializer {
     private final ApkListener apkListener;
     private final boolean isUniversalApk;
@@ -241,16 +522,16 @@ public class ApkSerializerManager {
     }
 
     public ApkDescription serialize(ModuleSplit split) {
-      ApkDescription apkDescription;
+      FinalizedApk finalizedApk;
       switch (split.getSplitType()) {
         case INSTANT:
-          apkDescription = apkSetBuilder.addInstantApk(split);
+          finalizedApk = apkSetBuilder.addInstantApk(split);
           break;
         case SPLIT:
-          apkDescription = apkSetBuilder.addSplitApk(split);
+          finalizedApk = apkSetBuilder.addSplitApk(split);
           break;
         case STANDALONE:
-          apkDescription =
+          finalizedApk =
               isUniversalApk
                   ? apkSetBuilder.addStandaloneUniversalApk(split)
                   : apkSetBuilder.addStandaloneApk(split);
@@ -259,9 +540,9 @@ public class ApkSerializerManager {
           throw new IllegalStateException("Unexpected splitType: " + split.getSplitType());
       }
 
-      apkListener.onApkFinalized(apkDescription);
+      apkListener.onApkFinalized(finalizedApk.getApkDescription(), finalizedApk.getApkMetrics());
 
-      return apkDescription;
+      return finalizedApk.getApkDescription();
     }
   }
 }
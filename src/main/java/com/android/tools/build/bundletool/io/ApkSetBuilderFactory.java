@@ -21,118 +21,214 @@ import static com.android.tools.build.bundletool.utils.files.FilePreconditions.c
 
 import com.android.bundle.Commands.ApkDescription;
 import com.android.bundle.Commands.BuildApksResult;
-import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
+import com.android.tools.build.bundletool.metrics.BuildMetrics;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Counter;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Span;
 import com.android.tools.build.bundletool.model.ModuleSplit;
-import com.android.tools.build.bundletool.model.ZipPath;
-import com.android.tools.build.bundletool.utils.files.BufferedIo;
-import com.google.protobuf.Message;
-import java.io.FileNotFoundException;
+import com.google.common.annotations.VisibleForTesting;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 
 /** Factory for {@link ApkSetBuilder}. */
 public final class ApkSetBuilderFactory {
 
-  /** Handles adding of {@link ModuleSplit} to the APK Set archive. */
-  public interface ApkSetBuilder {
+  /**
+   * Handles adding of {@link ModuleSplit} to the APK Set archive.
+   *
+   * <p>The builder must be closed once done with, even if the archive could not be written.
+   */
+  public interface ApkSetBuilder extends Closeable {
     /** Adds a split APK to the APK Set archive. */
-    ApkDescription addSplitApk(ModuleSplit split);
+    FinalizedApk addSplitApk(ModuleSplit split);
 
     /** Adds a standalone APK to the APK Set archive. */
-    ApkDescription addStandaloneApk(ModuleSplit split);
+    FinalizedApk addStandaloneApk(ModuleSplit split);
 
     /** Adds a standalone universal APK to the APK Set archive. */
-    ApkDescription addStandaloneUniversalApk(ModuleSplit split);
+    FinalizedApk addStandaloneUniversalApk(ModuleSplit split);
 
     /** Adds an instant split APK to the APK Set archive. */
-    ApkDescription addInstantApk(ModuleSplit split);
+    FinalizedApk addInstantApk(ModuleSplit split);
 
     /** Sets the TOC file in the APK Set archive. */
     void setTableOfContentsFile(BuildApksResult tableOfContentsProto);
 
     /** Writes out the APK Set archive to the specified destination. */
     void writeTo(Path destinationPath);
+
+    /** Releases the resources held by the builder, and deletes the archive if not written out. */
+    @Override
+    void close();
   }
 
+  /**
+   * Creates a builder of an APK Set archive.
+   *
+   * <p>The archive is created next to {@code outputFile}, where it is written out, so that writing
+   * it out does not copy it across file stores.
+   */
   public static ApkSetBuilder createApkSetBuilder(
       SplitApkSerializer splitApkSerializer,
       StandaloneApkSerializer standaloneApkSerializer,
-      Path tempDir) {
-    return new ApkSetArchiveBuilder(splitApkSerializer, standaloneApkSerializer, tempDir);
+      Path tempDir,
+      Path outputFile) {
+    return createApkSetBuilder(
+        splitApkSerializer, standaloneApkSerializer, tempDir, outputFile, BuildMetrics.NO_OP);
   }
 
+  /**
+   * Creates a builder which reports the time spent adding each APK to the archive and writing the
+   * archive, as well as the size of the archive, to the given {@link BuildMetrics}.
+   */
+  public static ApkSetBuilder createApkSetBuilder(
+      SplitApkSerializer splitApkSerializer,
+      StandaloneApkSerializer standaloneApkSerializer,
+      Path tempDir,
+      Path outputFile,
+      BuildMetrics metrics) {
+    return new ApkSetArchiveBuilder(
+        splitApkSerializer, standaloneApkSerializer, tempDir, outputFile, metrics);
+  }
 
-  /** ApkSet builder that stores the generated APKs in the Apk Set archive. */
+  /**
+   * ApkSet builder that stores the generated APKs in the Apk Set archive.
+   *
+   * <p>Each APK is appended to the archive as soon as it has been serialized, from the thread which
+   * serialized it, so that the archive is written concurrently rather than copied at the end. The
+   * archive is a hidden temporary file next to the output file until it is moved to its
+   * destination, e.g. {@code .app.apks.tmp} for {@code app.apks}.
+   */
   public static class ApkSetArchiveBuilder implements ApkSetBuilder {
+    private static final String TEMP_FILE_PREFIX = ".";
+    private static final String TEMP_FILE_EXTENSION = ".tmp";
+
     private final SplitApkSerializer splitApkSerializer;
     private final StandaloneApkSerializer standaloneApkSerializer;
-    private final ZipBuilder apkSetZipBuilder;
     private final Path tempDirectory;
+    private final Path archivePath;
+    private final ConcurrentZipWriter apkSetZipWriter;
+    private final BuildMetrics metrics;
+    private boolean archiveWritten = false;
 
     public ApkSetArchiveBuilder(
         SplitApkSerializer splitApkSerializer,
         StandaloneApkSerializer standaloneApkSerializer,
-        Path tempDirectory) {
+        Path tempDirectory,
+        Path outputFile) {
+      this(
+          splitApkSerializer,
+          standaloneApkSerializer,
+          tempDirectory,
+          outputFile,
+          BuildMetrics.NO_OP);
+    }
+
+    public ApkSetArchiveBuilder(
+        SplitApkSerializer splitApkSerializer,
+        StandaloneApkSerializer standaloneApkSerializer,
+        Path tempDirectory,
+        Path outputFile,
+        BuildMetrics metrics) {
       this.splitApkSerializer = splitApkSerializer;
       this.standaloneApkSerializer = standaloneApkSerializer;
       this.tempDirectory = tempDirectory;
-      this.apkSetZipBuilder = new ZipBuilder();
+      this.archivePath = getArchivePath(outputFile);
+      this.metrics = metrics;
+      try {
+        // Left behind if a previous invocation was killed while writing the same output file.
+        Files.deleteIfExists(archivePath);
+        this.apkSetZipWriter = new ConcurrentZipWriter(archivePath);
+      } catch (IOException e) {
+        throw new UncheckedIOException(
+            String.format("Error while creating the APK Set archive '%s'.", archivePath), e);
+      }
+    }
+
+    /** Returns the path of the archive while it is written, a hidden file next to the output. */
+    @VisibleForTesting
+    static Path getArchivePath(Path outputFile) {
+      Path absoluteOutputFile = outputFile.toAbsolutePath();
+      return absoluteOutputFile.resolveSibling(
+          TEMP_FILE_PREFIX + absoluteOutputFile.getFileName() + TEMP_FILE_EXTENSION);
     }
 
     @Override
-    public ApkDescription addSplitApk(ModuleSplit split) {
-      ApkDescription apkDescription = splitApkSerializer.writeSplitToDisk(split, tempDirectory);
-      addToApkSetArchive(apkDescription);
-      return apkDescription;
+    public FinalizedApk addSplitApk(ModuleSplit split) {
+      return addToApkSetArchive(splitApkSerializer.writeSplitToDisk(split, tempDirectory));
     }
 
     @Override
-    public ApkDescription addInstantApk(ModuleSplit split) {
-      ApkDescription apkDescription =
-          splitApkSerializer.writeInstantSplitToDisk(split, tempDirectory);
-      addToApkSetArchive(apkDescription);
-      return apkDescription;
+    public FinalizedApk addInstantApk(ModuleSplit split) {
+      return addToApkSetArchive(splitApkSerializer.writeInstantSplitToDisk(split, tempDirectory));
     }
 
     @Override
-    public ApkDescription addStandaloneApk(ModuleSplit split) {
-      ApkDescription apkDescription = standaloneApkSerializer.writeToDisk(split, tempDirectory);
-      addToApkSetArchive(apkDescription);
-      return apkDescription;
+    public FinalizedApk addStandaloneApk(ModuleSplit split) {
+      return addToApkSetArchive(standaloneApkSerializer.writeToDisk(split, tempDirectory));
     }
 
     @Override
-    public ApkDescription addStandaloneUniversalApk(ModuleSplit split) {
-      ApkDescription apkDescription =
-          standaloneApkSerializer.writeToDiskAsUniversal(split, tempDirectory);
-      addToApkSetArchive(apkDescription);
-      return apkDescription;
+    public FinalizedApk addStandaloneUniversalApk(ModuleSplit split) {
+      return addToApkSetArchive(
+          standaloneApkSerializer.writeToDiskAsUniversal(split, tempDirectory));
     }
 
-    private void addToApkSetArchive(ApkDescription apkDescription) {
+    private FinalizedApk addToApkSetArchive(FinalizedApk finalizedApk) {
+      ApkDescription apkDescription = finalizedApk.getApkDescription();
       Path apkPath = tempDirectory.resolve(apkDescription.getPath());
       checkFileExistsAndReadable(apkPath);
-      apkSetZipBuilder.addFileFromDisk(
-          ZipPath.create(apkDescription.getPath()), apkPath.toFile(), EntryOption.UNCOMPRESSED);
+      try (Span span = metrics.startSpan("add-to-apk-set", apkDescription.getPath())) {
+        apkSetZipWriter.addStoredFile(apkDescription.getPath(), apkPath);
+        // The APK is now in the archive, no need to keep a second copy on disk.
+        Files.delete(apkPath);
+      } catch (IOException e) {
+        throw new UncheckedIOException(
+            String.format("Error while adding the APK '%s' to the APK Set archive.", apkPath), e);
+      }
+      return finalizedApk;
     }
 
     @Override
     public void setTableOfContentsFile(BuildApksResult tableOfContentsProto) {
-      apkSetZipBuilder.addFileWithProtoContent(
-          ZipPath.create(TABLE_OF_CONTENTS_FILE), tableOfContentsProto);
+      try {
+        apkSetZipWriter.addDeflatedEntry(
+            TABLE_OF_CONTENTS_FILE, tableOfContentsProto.toByteArray());
+      } catch (IOException e) {
+        throw new UncheckedIOException("Error while adding the table of contents.", e);
+      }
     }
 
     @Override
     public void writeTo(Path destinationPath) {
-      try {
-        apkSetZipBuilder.writeTo(destinationPath);
+      try (Span span = metrics.startSpan("write-apk-set")) {
+        apkSetZipWriter.close();
+        metrics.addToCounter(Counter.BYTES_WRITTEN, Files.size(archivePath));
+        // Fails if the destination file exists.
+        Files.move(archivePath, destinationPath);
+        archiveWritten = true;
       } catch (IOException e) {
         throw new UncheckedIOException(
             String.format("Error while writing the APK Set archive to '%s'.", destinationPath), e);
       }
     }
+
+    @Override
+    public void close() {
+      if (archiveWritten) {
+        return;
+      }
+      try {
+        apkSetZipWriter.close();
+        Files.deleteIfExists(archivePath);
+      } catch (IOException e) {
+        throw new UncheckedIOException(
+            String.format("Error while deleting the incomplete APK Set archive '%s'.", archivePath),
+            e);
+      }
+    }
   }
 
 }
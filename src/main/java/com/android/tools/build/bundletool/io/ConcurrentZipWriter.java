@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.utils.files.BufferedIo;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip file whose entries can be added concurrently from multiple threads.
+ *
+ * <p>Once the size of an entry is known, a slot for it is reserved at the end of the file, and the
+ * entry is then written into its slot without holding any lock, so that entries are written in
+ * parallel. The central directory is written when the writer is closed, listing the entries in the
+ * order in which they were completed.
+ *
+ * <p>ZIP64 extensions are used only when the sizes or offsets don't fit in the zip format.
+ */
+final class ConcurrentZipWriter implements AutoCloseable {
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+  private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int EOCD_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+  private static final int ZIP64_EOCD_SIZE = 56;
+  private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+  private static final int EOCD_SIZE = 22;
+  private static final short ZIP64_EXTRA_FIELD_ID = 0x0001;
+  private static final short VERSION_NEEDED = 20;
+  private static final short VERSION_NEEDED_ZIP64 = 45;
+  /** General purpose flag indicating that the entry names are encoded in UTF-8. */
+  private static final short UTF8_NAMES_FLAG = 0x0800;
+  /** 1980-01-01 00:00, the earliest date in the MS-DOS format, so that the output is stable. */
+  private static final short DOS_DATE = (1 << 5) | 1;
+  private static final short DOS_TIME = 0;
+  private static final long ZIP32_MARKER = 0xffffffffL;
+  private static final int ZIP32_ENTRY_COUNT_MARKER = 0xffff;
+
+  private final FileChannel channel;
+
+  /** Central directory headers of the entries written so far. */
+  private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+
+  private final Set<String> entryNames = new HashSet<>();
+  private long nextEntryOffset = 0;
+  private int entryCount = 0;
+  private boolean closed = false;
+
+  /**
+   * Creates a writer of a new zip file at the given path.
+   *
+   * <p>It is an error if the file already exists.
+   */
+  ConcurrentZipWriter(Path outputPath) throws IOException {
+    this.channel =
+        FileChannel.open(outputPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Adds an uncompressed entry with the content of the given file.
+   *
+   * <p>The file must not be modified until the method returns.
+   */
+  void addStoredFile(String name, Path file) throws IOException {
+    CRC32 crc32 = new CRC32();
+    long size;
+    try (InputStream content = new CheckedInputStream(BufferedIo.inputStream(file), crc32)) {
+      size = ByteStreams.exhaust(content);
+    }
+    EntryHeader header = new EntryHeader(name, ZipEntry.STORED, crc32.getValue(), size, size);
+
+    long dataOffset = reserveSlot(header);
+    try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long transferred = 0;
+      while (transferred < size) {
+        long count =
+            channel.transferFrom(fileChannel, dataOffset + transferred, size - transferred);
+        if (count <= 0) {
+          throw new IOException(String.format("File '%s' was truncated while written.", file));
+        }
+        transferred += count;
+      }
+    }
+    addCentralDirectoryHeader(header);
+  }
+
+  /** Adds a compressed entry with the given content. */
+  void addDeflatedEntry(String name, byte[] content) throws IOException {
+    CRC32 crc32 = new CRC32();
+    crc32.update(content);
+    ByteArrayOutputStream deflatedContent = new ByteArrayOutputStream();
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, /* nowrap= */ true);
+    try (DeflaterOutputStream deflaterStream =
+        new DeflaterOutputStream(deflatedContent, deflater)) {
+      deflaterStream.write(content);
+    } finally {
+      deflater.end();
+    }
+    EntryHeader header =
+        new EntryHeader(
+            name, ZipEntry.DEFLATED, crc32.getValue(), deflatedContent.size(), content.length);
+
+    long dataOffset = reserveSlot(header);
+    writeFully(ByteBuffer.wrap(deflatedContent.toByteArray()), dataOffset);
+    addCentralDirectoryHeader(header);
+  }
+
+  /**
+   * Reserves the space for the entry at the end of the file and writes its local header.
+   *
+   * @return the offset at which the data of the entry must be written
+   */
+  private long reserveSlot(EntryHeader header) throws IOException {
+    ByteBuffer localHeader = header.createLocalHeader();
+    synchronized (this) {
+      checkState(!closed, "The zip file has already been written.");
+      checkArgument(entryNames.add(header.name), "Path '%s' is already taken.", header.name);
+      header.localHeaderOffset = nextEntryOffset;
+      nextEntryOffset += localHeader.capacity() + header.compressedSize;
+    }
+    writeFully(localHeader, header.localHeaderOffset);
+    return header.localHeaderOffset + localHeader.capacity();
+  }
+
+  private synchronized void addCentralDirectoryHeader(EntryHeader header) {
+    byte[] centralDirectoryHeader = header.createCentralDirectoryHeader().array();
+    centralDirectory.write(centralDirectoryHeader, 0, centralDirectoryHeader.length);
+    entryCount++;
+  }
+
+  /**
+   * Writes the central directory and closes the file.
+   *
+   * <p>All the entries must have been added when this method is invoked.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try (FileChannel fileChannel = channel) {
+      long centralDirectoryOffset = nextEntryOffset;
+      long centralDirectorySize = centralDirectory.size();
+      writeFully(ByteBuffer.wrap(centralDirectory.toByteArray()), centralDirectoryOffset);
+      long endOffset = centralDirectoryOffset + centralDirectorySize;
+
+      boolean zip64 =
+          entryCount >= ZIP32_ENTRY_COUNT_MARKER
+              || centralDirectoryOffset >= ZIP32_MARKER
+              || centralDirectorySize >= ZIP32_MARKER;
+      if (zip64) {
+        ByteBuffer zip64Eocd = newBuffer(ZIP64_EOCD_SIZE + ZIP64_EOCD_LOCATOR_SIZE);
+        zip64Eocd.putInt(ZIP64_EOCD_SIGNATURE);
+        zip64Eocd.putLong(ZIP64_EOCD_SIZE - 12); // Size of the remaining of the record.
+        zip64Eocd.putShort(VERSION_NEEDED_ZIP64); // Version made by.
+        zip64Eocd.putShort(VERSION_NEEDED_ZIP64);
+        zip64Eocd.putInt(0); // Number of this disk.
+        zip64Eocd.putInt(0); // Disk where the central directory starts.
+        zip64Eocd.putLong(entryCount);
+        zip64Eocd.putLong(entryCount);
+        zip64Eocd.putLong(centralDirectorySize);
+        zip64Eocd.putLong(centralDirectoryOffset);
+        zip64Eocd.putInt(ZIP64_EOCD_LOCATOR_SIGNATURE);
+        zip64Eocd.putInt(0); // Disk where the ZIP64 End Of Central Directory record starts.
+        zip64Eocd.putLong(endOffset);
+        zip64Eocd.putInt(1); // Total number of disks.
+        zip64Eocd.flip();
+        writeFully(zip64Eocd, endOffset);
+        endOffset += ZIP64_EOCD_SIZE + ZIP64_EOCD_LOCATOR_SIZE;
+      }
+
+      ByteBuffer eocd = newBuffer(EOCD_SIZE);
+      eocd.putInt(EOCD_SIGNATURE);
+      eocd.putShort((short) 0); // Number of this disk.
+      eocd.putShort((short) 0); // Disk where the central directory starts.
+      eocd.putShort((short) Math.min(entryCount, ZIP32_ENTRY_COUNT_MARKER));
+      eocd.putShort((short) Math.min(entryCount, ZIP32_ENTRY_COUNT_MARKER));
+      eocd.putInt((int) Math.min(centralDirectorySize, ZIP32_MARKER));
+      eocd.putInt((int) Math.min(centralDirectoryOffset, ZIP32_MARKER));
+      eocd.putShort((short) 0); // Comment length.
+      eocd.flip();
+      writeFully(eocd, endOffset);
+    }
+  }
+
+  private void writeFully(ByteBuffer buffer, long position) throws IOException {
+    long offset = position;
+    while (buffer.hasRemaining()) {
+      offset += channel.write(buffer, offset);
+    }
+  }
+
+  private static ByteBuffer newBuffer(int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /** Metadata of an entry, from which the local and central directory headers are created. */
+  private static final class EntryHeader {
+    private final String name;
+    private final byte[] encodedName;
+    private final short method;
+    private final long crc32;
+    private final long compressedSize;
+    private final long uncompressedSize;
+    /** Set when a slot is reserved for the entry. */
+    private long localHeaderOffset;
+
+    EntryHeader(String name, int method, long crc32, long compressedSize, long uncompressedSize) {
+      this.name = name;
+      this.encodedName = name.getBytes(UTF_8);
+      this.method = (short) method;
+      this.crc32 = crc32;
+      this.compressedSize = compressedSize;
+      this.uncompressedSize = uncompressedSize;
+    }
+
+    private boolean hasZip64Sizes() {
+      return compressedSize >= ZIP32_MARKER || uncompressedSize >= ZIP32_MARKER;
+    }
+
+    ByteBuffer createLocalHeader() {
+      boolean zip64 = hasZip64Sizes();
+      int extraLength = zip64 ? 20 : 0;
+      ByteBuffer header = newBuffer(LOCAL_HEADER_SIZE + encodedName.length + extraLength);
+      header.putInt(LOCAL_HEADER_SIGNATURE);
+      header.putShort(zip64 ? VERSION_NEEDED_ZIP64 : VERSION_NEEDED);
+      header.putShort(UTF8_NAMES_FLAG);
+      header.putShort(method);
+      header.putShort(DOS_TIME);
+      header.putShort(DOS_DATE);
+      header.putInt((int) crc32);
+      header.putInt(zip64 ? (int) ZIP32_MARKER : (int) compressedSize);
+      header.putInt(zip64 ? (int) ZIP32_MARKER : (int) uncompressedSize);
+      header.putShort((short) encodedName.length);
+      header.putShort((short) extraLength);
+      header.put(encodedName);
+      if (zip64) {
+        header.putShort(ZIP64_EXTRA_FIELD_ID);
+        header.putShort((short) 16);
+        header.putLong(uncompressedSize);
+        header.putLong(compressedSize);
+      }
+      header.flip();
+      return header;
+    }
+
+    ByteBuffer createCentralDirectoryHeader() {
+      boolean zip64Sizes = hasZip64Sizes();
+      boolean zip64Offset = localHeaderOffset >= ZIP32_MARKER;
+      int zip64DataLength = (zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0);
+      int extraLength = zip64DataLength > 0 ? 4 + zip64DataLength : 0;
+      short versionNeeded = extraLength > 0 ? VERSION_NEEDED_ZIP64 : VERSION_NEEDED;
+
+      ByteBuffer header =
+          newBuffer(CENTRAL_DIRECTORY_HEADER_SIZE + encodedName.length + extraLength);
+      header.putInt(CENTRAL_DIRECTORY_SIGNATURE);
+      header.putShort(versionNeeded); // Version made by.
+      header.putShort(versionNeeded);
+      header.putShort(UTF8_NAMES_FLAG);
+      header.putShort(method);
+      header.putShort(DOS_TIME);
+      header.putShort(DOS_DATE);
+      header.putInt((int) crc32);
+      header.putInt(zip64Sizes ? (int) ZIP32_MARKER : (int) compressedSize);
+      header.putInt(zip64Sizes ? (int) ZIP32_MARKER : (int) uncompressedSize);
+      header.putShort((short) encodedName.length);
+      header.putShort((short) extraLength);
+      header.putShort((short) 0); // Comment length.
+      header.putShort((short) 0); // Disk number.
+      header.putShort((short) 0); // Internal attributes.
+      header.putInt(0); // External attributes.
+      header.putInt(zip64Offset ? (int) ZIP32_MARKER : (int) localHeaderOffset);
+      header.put(encodedName);
+      if (extraLength > 0) {
+        header.putShort(ZIP64_EXTRA_FIELD_ID);
+        header.putShort((short) zip64DataLength);
+        if (zip64Sizes) {
+          header.putLong(uncompressedSize);
+          header.putLong(compressedSize);
+        }
+        if (zip64Offset) {
+          header.putLong(localHeaderOffset);
+        }
+      }
+      header.flip();
+      return header;
+    }
+  }
+}
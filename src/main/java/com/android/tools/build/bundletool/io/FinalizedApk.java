@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import com.android.bundle.Commands.ApkDescription;
+import com.android.tools.build.bundletool.model.ApkSerializationMetrics;
+import com.google.auto.value.AutoValue;
+
+/** An APK written to disk, with the resources spent serializing it. */
+@AutoValue
+public abstract class FinalizedApk {
+
+  public static FinalizedApk create(
+      ApkDescription apkDescription, ApkSerializationMetrics apkMetrics) {
+    return new AutoValue_FinalizedApk(apkDescription, apkMetrics);
+  }
+
+  public abstract ApkDescription getApkDescription();
+
+  public abstract ApkSerializationMetrics getApkMetrics();
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.model.ModuleZipEntry;
+import com.android.tools.build.bundletool.utils.files.BufferedIo;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip file whose entries are copied verbatim from the raw data of {@link ModuleZipEntry},
+ * i.e. without inflating and deflating them again.
+ *
+ * <p>The resulting zip file is meant to be merged into an APK with apkzlib, which also copies the
+ * compressed data verbatim.
+ */
+final class RawZipWriter implements AutoCloseable {
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+  private static final int EOCD_SIGNATURE = 0x06054b50;
+  private static final short VERSION_NEEDED = 20;
+  /** General purpose flag indicating that the entry names are encoded in UTF-8. */
+  private static final short UTF8_NAMES_FLAG = 0x0800;
+  private static final long MAX_ZIP32_VALUE = 0xfffffffeL;
+  private static final int MAX_ZIP32_ENTRIES = 0xfffe;
+
+  private final CountingOutputStream outputStream;
+  private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+  private int entryCount = 0;
+
+  RawZipWriter(Path outputPath) throws IOException {
+    this.outputStream = new CountingOutputStream(BufferedIo.outputStream(outputPath));
+  }
+
+  /** Returns whether the given entry can be added with {@link #addRawEntry}. */
+  boolean canAddRawEntry(ModuleZipEntry entry) {
+    return entry.isRawContentAvailable()
+        && entry.getCompressedSize() <= MAX_ZIP32_VALUE
+        && entry.getUncompressedSize() <= MAX_ZIP32_VALUE
+        && outputStream.getCount() <= MAX_ZIP32_VALUE - entry.getCompressedSize()
+        && entryCount < MAX_ZIP32_ENTRIES;
+  }
+
+  /** Returns whether no entry has been added. */
+  boolean isEmpty() {
+    return entryCount == 0;
+  }
+
+  /** Adds an entry at the given path with the raw data of the given entry. */
+  void addRawEntry(String path, ModuleZipEntry entry) throws IOException {
+    checkArgument(canAddRawEntry(entry), "Entry '%s' cannot be copied verbatim.", entry.getPath());
+    byte[] name = path.getBytes(UTF_8);
+    short method = (short) (entry.isDeflatedInZip() ? ZipEntry.DEFLATED : ZipEntry.STORED);
+    int localHeaderOffset = (int) outputStream.getCount();
+
+    ByteBuffer localHeader = newBuffer(30 + name.length);
+    localHeader.putInt(LOCAL_HEADER_SIGNATURE);
+    localHeader.putShort(VERSION_NEEDED);
+    localHeader.putShort(UTF8_NAMES_FLAG);
+    localHeader.putShort(method);
+    localHeader.putShort((short) 0); // Last modification time.
+    localHeader.putShort((short) 0); // Last modification date.
+    localHeader.putInt((int) entry.getCrc32());
+    localHeader.putInt((int) entry.getCompressedSize());
+    localHeader.putInt((int) entry.getUncompressedSize());
+    localHeader.putShort((short) name.length);
+    localHeader.putShort((short) 0); // Extra field length.
+    localHeader.put(name);
+    outputStream.write(localHeader.array());
+
+    try (InputStream rawContent = entry.getRawContent()) {
+      long copied = ByteStreams.copy(rawContent, outputStream);
+      if (copied != entry.getCompressedSize()) {
+        throw new IOException("Unexpected end of the raw data of entry: " + entry.getPath());
+      }
+    }
+
+    ByteBuffer centralDirectoryHeader = newBuffer(46 + name.length);
+    centralDirectoryHeader.putInt(CENTRAL_DIRECTORY_SIGNATURE);
+    centralDirectoryHeader.putShort(VERSION_NEEDED); // Version made by.
+    centralDirectoryHeader.putShort(VERSION_NEEDED);
+    centralDirectoryHeader.putShort(UTF8_NAMES_FLAG);
+    centralDirectoryHeader.putShort(method);
+    centralDirectoryHeader.putShort((short) 0); // Last modification time.
+    centralDirectoryHeader.putShort((short) 0); // Last modification date.
+    centralDirectoryHeader.putInt((int) entry.getCrc32());
+    centralDirectoryHeader.putInt((int) entry.getCompressedSize());
+    centralDirectoryHeader.putInt((int) entry.getUncompressedSize());
+    centralDirectoryHeader.putShort((short) name.length);
+    centralDirectoryHeader.putShort((short) 0); // Extra field length.
+    centralDirectoryHeader.putShort((short) 0); // Comment length.
+    centralDirectoryHeader.putShort((short) 0); // Disk number.
+    centralDirectoryHeader.putShort((short) 0); // Internal attributes.
+    centralDirectoryHeader.putInt(0); // External attributes.
+    centralDirectoryHeader.putInt(localHeaderOffset);
+    centralDirectoryHeader.put(name);
+    centralDirectory.write(centralDirectoryHeader.array());
+    entryCount++;
+  }
+
+  /** Writes the central directory and closes the file. */
+  @Override
+  public void close() throws IOException {
+    try (OutputStream out = outputStream) {
+      int centralDirectoryOffset = (int) outputStream.getCount();
+      centralDirectory.writeTo(outputStream);
+
+      ByteBuffer eocd = newBuffer(22);
+      eocd.putInt(EOCD_SIGNATURE);
+      eocd.putShort((short) 0); // Number of this disk.
+      eocd.putShort((short) 0); // Disk where the central directory starts.
+      eocd.putShort((short) entryCount);
+      eocd.putShort((short) entryCount);
+      eocd.putInt(centralDirectory.size());
+      eocd.putInt(centralDirectoryOffset);
+      eocd.putShort((short) 0); // Comment length.
+      outputStream.write(eocd.array());
+    }
+  }
+
+  private static ByteBuffer newBuffer(int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
@@ -22,7 +22,9 @@ import static java.nio.file.Files.isDirectory;
 import com.android.bundle.Commands.ApkDescription;
 import com.android.bundle.Commands.SplitApkMetadata;
 import com.android.bundle.Config.Compression;
+import com.android.tools.build.bundletool.metrics.BuildMetrics;
 import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.ApkSerializationMetrics;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.SigningConfiguration;
 import com.android.tools.build.bundletool.model.ZipPath;
@@ -41,22 +43,53 @@ public class SplitApkSerializer {
       Aapt2Command aapt2Command,
       Optional<SigningConfiguration> signingConfig,
       Compression compression) {
+    this(
+        apkPathManager,
+        aapt2Command,
+        signingConfig,
+        compression,
+        /* apkCache= */ Optional.empty());
+  }
+
+  public SplitApkSerializer(
+      ApkPathManager apkPathManager,
+      Aapt2Command aapt2Command,
+      Optional<SigningConfiguration> signingConfig,
+      Compression compression,
+      Optional<ApkCache> apkCache) {
+    this(
+        apkPathManager,
+        aapt2Command,
+        signingConfig,
+        compression,
+        apkCache,
+        /* metrics= */ BuildMetrics.NO_OP);
+  }
+
+  public SplitApkSerializer(
+      ApkPathManager apkPathManager,
+      Aapt2Command aapt2Command,
+      Optional<SigningConfiguration> signingConfig,
+      Compression compression,
+      Optional<ApkCache> apkCache,
+      BuildMetrics metrics) {
     this.apkPathManager = apkPathManager;
-    this.apkSerializerHelper = new ApkSerializerHelper(aapt2Command, signingConfig, compression);
+    this.apkSerializerHelper =
+        new ApkSerializerHelper(aapt2Command, signingConfig, compression, apkCache, metrics);
   }
 
   /** Writes the installable split to disk. */
-  public ApkDescription writeSplitToDisk(ModuleSplit split, Path outputDirectory) {
+  public FinalizedApk writeSplitToDisk(ModuleSplit split, Path outputDirectory) {
     return writeToDisk(split, outputDirectory, ApkDescription.Builder::setSplitApkMetadata);
   }
 
   /** Writes the instant split to disk. */
-  public ApkDescription writeInstantSplitToDisk(ModuleSplit split, Path outputDirectory) {
+  public FinalizedApk writeInstantSplitToDisk(ModuleSplit split, Path outputDirectory) {
     return writeToDisk(split, outputDirectory, ApkDescription.Builder::setInstantApkMetadata);
   }
 
   /** Writes the given split to the path subdirectory in the APK Set. */
-  private ApkDescription writeToDisk(
+  private FinalizedApk writeToDisk(
       ModuleSplit split,
       Path outputDirectory,
       BiFunction<ApkDescription.Builder, SplitApkMetadata, ApkDescription.Builder> setApkMetadata) {
@@ -64,18 +97,21 @@ public class SplitApkSerializer {
 
     ZipPath apkPath = apkPathManager.getApkPath(split);
 
-    apkSerializerHelper.writeToZipFile(split, outputDirectory.resolve(apkPath.toString()));
+    ApkSerializationMetrics apkMetrics =
+        apkSerializerHelper.writeToZipFile(split, outputDirectory.resolve(apkPath.toString()));
     ApkDescription.Builder builder =
         ApkDescription.newBuilder()
             .setPath(apkPath.toString())
             .setTargeting(split.getApkTargeting());
-    return setApkMetadata
-        .apply(
-            builder,
-            SplitApkMetadata.newBuilder()
-                .setSplitId(split.getAndroidManifest().getSplitId().orElse(""))
-                .setIsMasterSplit(split.isMasterSplit())
-                .build())
-        .build();
+    ApkDescription apkDescription =
+        setApkMetadata
+            .apply(
+                builder,
+                SplitApkMetadata.newBuilder()
+                    .setSplitId(split.getAndroidManifest().getSplitId().orElse(""))
+                    .setIsMasterSplit(split.isMasterSplit())
+                    .build())
+            .build();
+    return FinalizedApk.create(apkDescription, apkMetrics);
   }
 }
@@ -19,7 +19,9 @@ package com.android.tools.build.bundletool.io;
 import com.android.bundle.Commands.ApkDescription;
 import com.android.bundle.Commands.StandaloneApkMetadata;
 import com.android.bundle.Config.Compression;
+import com.android.tools.build.bundletool.metrics.BuildMetrics;
 import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.ApkSerializationMetrics;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.SigningConfiguration;
 import com.android.tools.build.bundletool.model.ZipPath;
@@ -40,31 +42,66 @@ public class StandaloneApkSerializer {
       Aapt2Command aapt2Command,
       Optional<SigningConfiguration> signingConfig,
       Compression compression) {
+    this(
+        apkPathManager,
+        aapt2Command,
+        signingConfig,
+        compression,
+        /* apkCache= */ Optional.empty());
+  }
+
+  public StandaloneApkSerializer(
+      ApkPathManager apkPathManager,
+      Aapt2Command aapt2Command,
+      Optional<SigningConfiguration> signingConfig,
+      Compression compression,
+      Optional<ApkCache> apkCache) {
+    this(
+        apkPathManager,
+        aapt2Command,
+        signingConfig,
+        compression,
+        apkCache,
+        /* metrics= */ BuildMetrics.NO_OP);
+  }
+
+  public StandaloneApkSerializer(
+      ApkPathManager apkPathManager,
+      Aapt2Command aapt2Command,
+      Optional<SigningConfiguration> signingConfig,
+      Compression compression,
+      Optional<ApkCache> apkCache,
+      BuildMetrics metrics) {
     this.apkPathManager = apkPathManager;
-    this.apkSerializerHelper = new ApkSerializerHelper(aapt2Command, signingConfig, compression);
+    this.apkSerializerHelper =
+        new ApkSerializerHelper(aapt2Command, signingConfig, compression, apkCache, metrics);
   }
 
-  public ApkDescription writeToDisk(ModuleSplit standaloneSplit, Path outputDirectory) {
+  public FinalizedApk writeToDisk(ModuleSplit standaloneSplit, Path outputDirectory) {
     ZipPath apkPath = apkPathManager.getApkPath(standaloneSplit);
     return writeToDiskInternal(standaloneSplit, outputDirectory, apkPath);
   }
 
-  public ApkDescription writeToDiskAsUniversal(ModuleSplit standaloneSplit, Path outputDirectory) {
+  public FinalizedApk writeToDiskAsUniversal(ModuleSplit standaloneSplit, Path outputDirectory) {
     return writeToDiskInternal(standaloneSplit, outputDirectory, ZipPath.create("universal.apk"));
   }
 
   @VisibleForTesting
-  ApkDescription writeToDiskInternal(
+  FinalizedApk writeToDiskInternal(
       ModuleSplit standaloneSplit, Path outputDirectory, ZipPath apkPath) {
-    apkSerializerHelper.writeToZipFile(
-        standaloneSplit, outputDirectory.resolve(apkPath.toString()));
+    ApkSerializationMetrics apkMetrics =
+        apkSerializerHelper.writeToZipFile(
+            standaloneSplit, outputDirectory.resolve(apkPath.toString()));
 
-    return ApkDescription.newBuilder()
-        .setPath(apkPath.toString())
-        .setStandaloneApkMetadata(
-            StandaloneApkMetadata.newBuilder()
-                .addAllFusedModuleName(standaloneSplit.getAndroidManifest().getFusedModuleNames()))
-        .setTargeting(standaloneSplit.getApkTargeting())
-        .build();
+    ApkDescription apkDescription =
+        ApkDescription.newBuilder()
+            .setPath(apkPath.toString())
+            .setStandaloneApkMetadata(
+                StandaloneApkMetadata.newBuilder()
+                    .addAllFusedModuleName(
+                        standaloneSplit.getAndroidManifest().getFusedModuleNames()))
+            .setTargeting(standaloneSplit.getApkTargeting())
+            .build();
+    return FinalizedApk.create(apkDescription, apkMetrics);
   }
 }
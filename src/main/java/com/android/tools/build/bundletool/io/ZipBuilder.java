@@ -37,6 +37,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -82,13 +83,12 @@ public final class ZipBuilder {
               zipEntry.setMethod(ZipEntry.STORED);
               // ZipFile API requires us to set the following properties manually for uncompressed
               // ZipEntries, just setting the compression method is not enough.
-              try (InputStream is = entry.getInputStreamSupplier().get().get()) {
-                byte[] entryData = ByteStreams.toByteArray(is);
-                zipEntry.setSize(entryData.length);
-                zipEntry.setCompressedSize(entryData.length);
-                zipEntry.setCrc(computeCrc32(entryData));
-                outZip.putNextEntry(zipEntry);
-                outZip.write(entryData);
+              // They are computed with a first pass over the content, so that the content is never
+              // held in memory: the stored entries (e.g. APKs in an APK Set) can be very large.
+              setSizeAndCrc32(zipEntry, entry.getInputStreamSupplier().get());
+              outZip.putNextEntry(zipEntry);
+              try (InputStream content = entry.getInputStreamSupplier().get().get()) {
+                ByteStreams.copy(content, outZip);
               }
             } else {
               outZip.putNextEntry(zipEntry);
@@ -256,9 +256,16 @@ public final class ZipBuilder {
     UNCOMPRESSED
   }
 
-  private static long computeCrc32(byte[] data) {
+  /** Sets the size and CRC-32 of the entry by streaming through its content once. */
+  private static void setSizeAndCrc32(ZipEntry zipEntry, InputStreamSupplier inputStreamSupplier)
+      throws IOException {
     CRC32 crc32 = new CRC32();
-    crc32.update(data);
-    return crc32.getValue();
+    long size;
+    try (InputStream content = new CheckedInputStream(inputStreamSupplier.get(), crc32)) {
+      size = ByteStreams.exhaust(content);
+    }
+    zipEntry.setSize(size);
+    zipEntry.setCompressedSize(size);
+    zipEntry.setCrc(crc32.getValue());
   }
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.mergers;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+import com.android.tools.build.bundletool.metrics.BuildMetrics;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Counter;
+import com.android.tools.build.bundletool.utils.files.BufferedIo;
+import com.android.tools.build.bundletool.version.BundleToolVersion;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Dex merger which stores the merged dex files in a directory, so that they can be reused across
+ * invocations of bundletool instead of merging the same dex files again.
+ *
+ * <p>The merged dex files are stored under a key which is a digest of the content of the input dex
+ * files, of the main dex list, and of the parameters of the merge. The cache is not bounded in
+ * size: the directory can be deleted at any time when the command isn't running.
+ *
+ * <p>This class is thread-safe if the delegate merger is.
+ */
+public final class CachingDexMerger implements DexMerger {
+
+  private static final String TEMP_DIRECTORY_EXTENSION = ".tmp";
+
+  private final DexMerger delegate;
+  private final Path cacheDirectory;
+  private final BuildMetrics metrics;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Creates a merger delegating to the given merger when the result isn't cached in the given
+   * directory, which is created if it doesn't exist.
+   */
+  public CachingDexMerger(DexMerger delegate, Path cacheDirectory) {
+    this(delegate, cacheDirectory, BuildMetrics.NO_OP);
+  }
+
+  /** Same as {@link #CachingDexMerger(DexMerger, Path)}, reporting the hits and misses. */
+  public CachingDexMerger(DexMerger delegate, Path cacheDirectory, BuildMetrics metrics) {
+    this.delegate = delegate;
+    this.cacheDirectory = cacheDirectory;
+    this.metrics = metrics;
+  }
+
+  /** Returns the number of merges whose result was copied from the cache. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of merges whose result was not found in the cache. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  @Override
+  public ImmutableList<Path> merge(
+      ImmutableList<Path> dexFiles,
+      Path outputDir,
+      Optional<Path> mainDexListFile,
+      boolean isDebuggable,
+      int minSdkVersion) {
+    Path cachedDir =
+        cacheDirectory.resolve(
+            computeCacheKey(dexFiles, mainDexListFile, isDebuggable, minSdkVersion));
+    try {
+      // Cached directories are moved atomically into place, so an existing one is complete.
+      if (Files.isDirectory(cachedDir)) {
+        hitCount.incrementAndGet();
+        metrics.incrementCounter(Counter.DEX_MERGE_CACHE_HITS);
+        return copyDexFiles(listDexFiles(cachedDir), outputDir);
+      }
+      missCount.incrementAndGet();
+      metrics.incrementCounter(Counter.DEX_MERGE_CACHE_MISSES);
+      ImmutableList<Path> mergedDexFiles =
+          delegate.merge(dexFiles, outputDir, mainDexListFile, isDebuggable, minSdkVersion);
+      addToCache(mergedDexFiles, cachedDir);
+      return mergedDexFiles;
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while accessing the dex merge cache '%s'.", cacheDirectory), e);
+    }
+  }
+
+  private void addToCache(ImmutableList<Path> mergedDexFiles, Path cachedDir) throws IOException {
+    Files.createDirectories(cacheDirectory);
+    // Copy then move, so that an incomplete directory is never visible in the cache.
+    Path tempDir = cacheDirectory.resolve(UUID.randomUUID() + TEMP_DIRECTORY_EXTENSION);
+    Files.createDirectory(tempDir);
+    copyDexFiles(mergedDexFiles, tempDir);
+    try {
+      Files.move(tempDir, cachedDir, ATOMIC_MOVE);
+    } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+      // Cached in the meantime, possibly by another process sharing the directory.
+      MoreFiles.deleteRecursively(tempDir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+  }
+
+  private static ImmutableList<Path> copyDexFiles(ImmutableList<Path> dexFiles, Path toDirectory)
+      throws IOException {
+    ImmutableList.Builder<Path> copiedFiles = ImmutableList.builder();
+    for (Path dexFile : dexFiles) {
+      // Names of the merged dex files need to be preserved ("classes.dex", "classes2.dex" etc.).
+      Path copiedFile = toDirectory.resolve(dexFile.getFileName().toString());
+      Files.copy(dexFile, copiedFile);
+      copiedFiles.add(copiedFile);
+    }
+    return copiedFiles.build();
+  }
+
+  private static ImmutableList<Path> listDexFiles(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.sorted(Comparator.comparing(Path::toString)).collect(toImmutableList());
+    }
+  }
+
+  private static String computeCacheKey(
+      ImmutableList<Path> dexFiles,
+      Optional<Path> mainDexListFile,
+      boolean isDebuggable,
+      int minSdkVersion) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    putString(hasher, BundleToolVersion.getCurrentVersion().toString());
+    hasher.putInt(dexFiles.size());
+    for (Path dexFile : dexFiles) {
+      putFile(hasher, dexFile);
+    }
+    hasher.putBoolean(mainDexListFile.isPresent());
+    mainDexListFile.ifPresent(file -> putFile(hasher, file));
+    hasher.putBoolean(isDebuggable);
+    hasher.putInt(minSdkVersion);
+    return hasher.hash().toString();
+  }
+
+  /** Adds the content of the file followed by its length. */
+  private static void putFile(Hasher hasher, Path file) {
+    try (InputStream content = BufferedIo.inputStream(file)) {
+      hasher.putLong(ByteStreams.copy(content, Funnels.asOutputStream(hasher)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(String.format("Error while reading '%s'.", file), e);
+    }
+  }
+
+  /** Adds the string prefixed with its length, so that consecutive values can't be confused. */
+  private static void putString(Hasher hasher, String string) {
+    byte[] bytes = string.getBytes(UTF_8);
+    hasher.putInt(bytes.length).putBytes(bytes);
+  }
+}
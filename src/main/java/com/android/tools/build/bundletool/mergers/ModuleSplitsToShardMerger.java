@@ -35,6 +35,7 @@ import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.ConcurrencyUtils;
 import com.android.tools.build.bundletool.utils.files.BufferedIo;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ArrayListMultimap;
@@ -46,6 +47,10 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.SetMultimap;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -58,6 +63,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Merges given module splits into standalone APKs.
@@ -73,32 +79,53 @@ public class ModuleSplitsToShardMerger {
 
   private final DexMerger dexMerger;
   private final Path globalTempDir;
+  private final ListeningExecutorService executorService;
 
   public ModuleSplitsToShardMerger(DexMerger dexMerger, Path globalTempDir) {
+    this(dexMerger, globalTempDir, MoreExecutors.newDirectExecutorService());
+  }
+
+  /** Creates a merger which merges the shards in parallel on the given executor service. */
+  public ModuleSplitsToShardMerger(
+      DexMerger dexMerger, Path globalTempDir, ListeningExecutorService executorService) {
     this.dexMerger = dexMerger;
     this.globalTempDir = globalTempDir;
+    this.executorService = executorService;
   }
 
-  /** Merges each collection of splits into a single standalone APK (aka shard). */
+  /**
+   * Merges each collection of splits into a single standalone APK (aka shard).
+   *
+   * <p>The shards are merged concurrently, but are returned in the order of the given collections.
+   */
   public ImmutableList<ModuleSplit> merge(
       ImmutableList<ImmutableList<ModuleSplit>> unfusedShards, BundleMetadata bundleMetadata) {
     // Results of the dex merging are cached. Due to the nature of the cache keys and values, the
     // cache is deliberately not part of the object state, so that it is dropped after the method
     // call finishes.
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> mergedDexCache = new HashMap<>();
-
-    ImmutableList.Builder<ModuleSplit> shards = ImmutableList.builder();
-    for (ImmutableList<ModuleSplit> unfusedShard : unfusedShards) {
-      shards.add(mergeSingleShard(unfusedShard, bundleMetadata, mergedDexCache));
-    }
-    return shards.build();
+    // The cache is shared by the shards merged concurrently: it holds the future result of each
+    // merge, so that each set of dex files is merged only once by the first shard needing it, the
+    // other shards needing the same set wait for the future. The merge itself runs outside of the
+    // map, so that it does not block the shards accessing other keys.
+    Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> mergedDexCache =
+        new ConcurrentHashMap<>();
+
+    ImmutableList<ListenableFuture<ModuleSplit>> shards =
+        unfusedShards
+            .stream()
+            .map(
+                unfusedShard ->
+                    executorService.submit(
+                        () -> mergeSingleShard(unfusedShard, bundleMetadata, mergedDexCache)))
+            .collect(toImmutableList());
+    return ConcurrencyUtils.waitForAll(shards);
   }
 
   @VisibleForTesting
   ModuleSplit mergeSingleShard(
       ImmutableCollection<ModuleSplit> splitsOfShard,
       BundleMetadata bundleMetadata,
-      Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> mergedDexCache) {
+      Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> mergedDexCache) {
 
     ListMultimap<BundleModuleName, ModuleEntry> dexFilesToMergeByModule =
         ArrayListMultimap.create();
@@ -111,12 +138,10 @@ public class ModuleSplitsToShardMerger {
         HashMultimap.create();
 
     Map<ZipPath, ModuleEntry> mergedEntriesByPath = new HashMap<>();
-    Optional<ResourceTable> mergedResourceTable = Optional.empty();
     ApkTargeting mergedSplitTargeting = ApkTargeting.getDefaultInstance();
 
     for (ModuleSplit split : splitsOfShard) {
-      // Resource tables and Split targetings can be merged for each split individually as we go.
-      mergedResourceTable = mergeResourceTables(mergedResourceTable, split);
+      // Split targetings can be merged for each split individually as we go.
       mergedSplitTargeting = mergeSplitTargetings(mergedSplitTargeting, split);
 
       // Android manifests need to be merged later, globally for all splits.
@@ -132,6 +157,8 @@ public class ModuleSplitsToShardMerger {
       }
     }
 
+    // Resource tables are merged all at once, which is cheaper than merging them one by one.
+    Optional<ResourceTable> mergedResourceTable = mergeResourceTables(splitsOfShard);
     AndroidManifest mergedAndroidManifest = mergeAndroidManifests(androidManifestsToMergeByModule);
 
     Collection<ModuleEntry> mergedDexFiles =
@@ -175,7 +202,7 @@ public class ModuleSplitsToShardMerger {
       ListMultimap<BundleModuleName, ModuleEntry> dexFilesToMergeByModule,
       BundleMetadata bundleMetadata,
       AndroidManifest androidManifest,
-      Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> mergedDexCache) {
+      Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> mergedDexCache) {
 
     if (dexFilesToMergeByModule.keySet().size() <= 1) {
       // Don't merge if all dex files live inside a single module. If that module contains multiple
@@ -186,10 +213,22 @@ public class ModuleSplitsToShardMerger {
       ImmutableList<ModuleEntry> dexEntries =
           ImmutableList.copyOf(dexFilesToMergeByModule.values());
 
-      ImmutableList<Path> mergedDexFiles =
-          mergedDexCache.computeIfAbsent(
-              ImmutableSet.copyOf(dexEntries),
-              key -> mergeDexFiles(dexEntries, bundleMetadata, androidManifest));
+      ImmutableList<Path> mergedDexFiles;
+      SettableFuture<ImmutableList<Path>> newMergeResult = SettableFuture.create();
+      ListenableFuture<ImmutableList<Path>> mergeResult =
+          mergedDexCache.computeIfAbsent(ImmutableSet.copyOf(dexEntries), key -> newMergeResult);
+      if (mergeResult == newMergeResult) {
+        // This shard inserted the future, so it is responsible for completing it.
+        try {
+          mergedDexFiles = mergeDexFiles(dexEntries, bundleMetadata, androidManifest);
+        } catch (RuntimeException | Error e) {
+          newMergeResult.setException(e);
+          throw e;
+        }
+        newMergeResult.set(mergedDexFiles);
+      } else {
+        mergedDexFiles = ConcurrencyUtils.waitFor(mergeResult);
+      }
 
       // Names of the merged dex files need to be preserved ("classes.dex", "classes2.dex" etc.).
       return mergedDexFiles
@@ -250,24 +289,26 @@ public class ModuleSplitsToShardMerger {
         entry.getPath());
   }
 
-  private Optional<ResourceTable> mergeResourceTables(
-      Optional<ResourceTable> merged, ModuleSplit split) {
-    if (!merged.isPresent()) {
-      return split.getResourceTable();
+  private Optional<ResourceTable> mergeResourceTables(ImmutableCollection<ModuleSplit> splits) {
+    ImmutableList<ResourceTable> resourceTables =
+        splits
+            .stream()
+            .map(ModuleSplit::getResourceTable)
+            .filter(Optional::isPresent)
+            .map(Optional::get)
+            .collect(toImmutableList());
+    if (resourceTables.isEmpty()) {
+      return Optional.empty();
     }
-    if (split.getResourceTable().isPresent()) {
-      try {
-        return Optional.of(
-            new ResourceTableMerger().merge(merged.get(), split.getResourceTable().get()));
-      } catch (CommandExecutionException | IllegalStateException e) {
-        throw CommandExecutionException.builder()
-            .withCause(e)
-            .withMessage(
-                "Failed to merge with resource table of module '%s'.", split.getModuleName())
-            .build();
-      }
+    try {
+      return Optional.of(new ResourceTableMerger().merge(resourceTables));
+    } catch (CommandExecutionException | IllegalStateException e) {
+      throw CommandExecutionException.builder()
+          .withCause(e)
+          .withMessage(
+              "Failed to merge the resource tables of modules %s.", getUniqueModuleNames(splits))
+          .build();
     }
-    return merged;
   }
 
   private ApkTargeting mergeSplitTargetings(ApkTargeting merged, ModuleSplit split) {
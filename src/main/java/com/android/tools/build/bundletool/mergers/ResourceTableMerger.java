@@ -16,6 +16,7 @@
 
 package com.android.tools.build.bundletool.mergers;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Predicates.not;
 import static com.google.common.collect.ImmutableList.toImmutableList;
@@ -28,19 +29,20 @@ import com.android.aapt.Resources.Source;
 import com.android.aapt.Resources.Type;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
 import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.function.BiFunction;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 /**
- * Recursively merges two resource tables.
+ * Recursively merges two or more resource tables.
  *
  * <p>Many fields are just asserted to be equal, actual merging affects only the following repeated
  * fields:
@@ -60,8 +62,8 @@ import java.util.function.Function;
  * merged resource table contains the config value only once (no duplicates).
  *
  * <p>Because {@code source_pool} messages cannot be easily merged yet, the implementation chooses
- * to preserve source pool of the first input table, and strip all source references in the second
- * input table unless the tables have identical source pools.
+ * to preserve source pool of the first input table, and strip all source references in the other
+ * input tables unless their source pool is identical to the one of the first table.
  *
  * <p>Implementation note: All of the "merge*" methods use pattern {@code .toBuilder() -> <modify>
  * -> .build()}. This way we preserve the property of whether a field is set or not set for the
@@ -70,122 +72,232 @@ import java.util.function.Function;
 public class ResourceTableMerger {
 
   public ResourceTable merge(ResourceTable table1, ResourceTable table2) {
-    if (!table1.getSourcePool().equals(table2.getSourcePool())) {
-      // The source_pool in ResourceTable is opaque and cannot be easily manipulated. Therefore
-      // if the source pools aren't exactly the same, we choose to adopt source pool of table1 and
-      // to invalidate source references in table2.
-      ResourceTable.Builder table2Builder = table2.toBuilder();
-      stripSourceReferences(table2Builder);
-      table2 = table2Builder.build();
+    return merge(ImmutableList.of(table1, table2));
+  }
+
+  /**
+   * Merges all the given resource tables at once.
+   *
+   * <p>The result is the same as merging the tables pairwise in the given order, but each merged
+   * message is built only once, instead of rebuilding the growing table for each merged table.
+   */
+  public ResourceTable merge(List<ResourceTable> tables) {
+    checkArgument(!tables.isEmpty(), "Expected at least one resource table to merge.");
+    ResourceTable firstTable = tables.get(0);
+    if (tables.size() == 1) {
+      return firstTable;
+    }
+
+    ImmutableList.Builder<List<Package>> packageLists = ImmutableList.builder();
+    for (ResourceTable table : tables) {
+      if (!table.getSourcePool().equals(firstTable.getSourcePool())) {
+        // The source_pool in ResourceTable is opaque and cannot be easily manipulated. Therefore
+        // if the source pools aren't exactly the same, we choose to adopt source pool of the first
+        // table and to invalidate source references in the other tables.
+        ResourceTable.Builder tableBuilder = table.toBuilder();
+        stripSourceReferences(tableBuilder);
+        table = tableBuilder.build();
+      }
+      packageLists.add(table.getPackageList());
     }
 
-    return table1
+    return firstTable
         .toBuilder()
         .clearPackage()
         .addAllPackage(
             mergeRepeatedValues(
-                table1.getPackageList(),
-                table2.getPackageList(),
-                pkg -> pkg.getPackageId().getId(),
-                this::mergePackages))
+                packageLists.build(), pkg -> pkg.getPackageId().getId(), this::mergePackages))
         .build();
   }
 
-  private Package mergePackages(Package pkg1, Package pkg2) {
-    assertEqualFields(pkg1, pkg2, Package::getPackageId, /* fieldName= */ "package_id");
-    assertEqualFields(pkg1, pkg2, Package::getPackageName, /* fieldName= */ "package_name");
+  private Package mergePackages(ImmutableList<Package> packages) {
+    Package pkg1 = packages.get(0);
+    for (Package pkg2 : packages.subList(1, packages.size())) {
+      assertEqualFields(pkg1, pkg2, Package::getPackageId, /* fieldName= */ "package_id");
+      assertEqualFields(pkg1, pkg2, Package::getPackageName, /* fieldName= */ "package_name");
+    }
 
     return pkg1.toBuilder()
         .clearType()
         .addAllType(
             mergeRepeatedValues(
-                pkg1.getTypeList(),
-                pkg2.getTypeList(),
+                packages.stream().map(Package::getTypeList).collect(toImmutableList()),
                 type -> type.getTypeId().getId(),
                 this::mergeTypes))
         .build();
   }
 
-  private Type mergeTypes(Type type1, Type type2) {
-    assertEqualFields(type1, type2, Type::getTypeId, /* fieldName= */ "type_id");
-    assertEqualFields(type1, type2, Type::getName, /* fieldName= */ "name");
+  private Type mergeTypes(ImmutableList<Type> types) {
+    Type type1 = types.get(0);
+    for (Type type2 : types.subList(1, types.size())) {
+      assertEqualFields(type1, type2, Type::getTypeId, /* fieldName= */ "type_id");
+      assertEqualFields(type1, type2, Type::getName, /* fieldName= */ "name");
+    }
 
     return type1
         .toBuilder()
         .clearEntry()
         .addAllEntry(
             mergeRepeatedValues(
-                type1.getEntryList(),
-                type2.getEntryList(),
+                types.stream().map(Type::getEntryList).collect(toImmutableList()),
                 entry -> entry.getEntryId().getId(),
                 this::mergeEntries))
         .build();
   }
 
-  private Entry mergeEntries(Entry entry1, Entry entry2) {
-    assertEqualFields(entry1, entry2, Entry::getEntryId, /* fieldName= */ "entry_id");
-    assertEqualFields(entry1, entry2, Entry::getName, /* fieldName= */ "name");
-    assertEqualFields(entry1, entry2, Entry::getVisibility, /* fieldName= */ "visibility");
-    assertEqualFields(entry1, entry2, Entry::getAllowNew, /* fieldName= */ "allow_new");
-    assertEqualFields(entry1, entry2, Entry::getOverlayable, /* fieldName= */ "overlayable");
+  private Entry mergeEntries(ImmutableList<Entry> entries) {
+    Entry entry1 = entries.get(0);
+    for (Entry entry2 : entries.subList(1, entries.size())) {
+      assertEqualFields(entry1, entry2, Entry::getEntryId, /* fieldName= */ "entry_id");
+      assertEqualFields(entry1, entry2, Entry::getName, /* fieldName= */ "name");
+      assertEqualFields(entry1, entry2, Entry::getVisibility, /* fieldName= */ "visibility");
+      assertEqualFields(entry1, entry2, Entry::getAllowNew, /* fieldName= */ "allow_new");
+      assertEqualFields(entry1, entry2, Entry::getOverlayable, /* fieldName= */ "overlayable");
+    }
 
     return entry1
         .toBuilder()
         .clearConfigValue()
         .addAllConfigValue(
-            mergeConfigValueLists(entry1.getConfigValueList(), entry2.getConfigValueList()))
+            mergeConfigValueLists(
+                entries.stream().map(Entry::getConfigValueList).collect(toImmutableList())))
         .build();
   }
 
-  private List<ConfigValue> mergeConfigValueLists(
-      List<ConfigValue> configValues1, List<ConfigValue> configValues2) {
-    HashSet<ConfigValue> configValues1Set = Sets.newHashSet(configValues1);
-    return ImmutableList.<ConfigValue>builder()
-        .addAll(configValues1)
-        .addAll(
-            configValues2
-                .stream()
-                .filter(not(configValues1Set::contains))
-                .collect(toImmutableList()))
-        .build();
+  /**
+   * Concatenates the lists of config values, skipping the values already present in any of the
+   * previous lists.
+   */
+  private static List<ConfigValue> mergeConfigValueLists(
+      ImmutableList<List<ConfigValue>> configValueLists) {
+    ImmutableList.Builder<ConfigValue> result = ImmutableList.builder();
+    Set<ConfigValue> previousConfigValues = new HashSet<>();
+    for (List<ConfigValue> configValues : configValueLists) {
+      ImmutableList<ConfigValue> newConfigValues =
+          configValues
+              .stream()
+              .filter(not(previousConfigValues::contains))
+              .collect(toImmutableList());
+      result.addAll(newConfigValues);
+      previousConfigValues.addAll(newConfigValues);
+    }
+    return result.build();
   }
 
   /**
-   * Merges values of two 'repeated' proto fields.
+   * Merges values of several 'repeated' proto fields.
    *
    * <p>Each value within a value list has an ID, computed by applying {@code getIdFn}. Values of
-   * both lists are paired by matching IDs. Paired values are merged by applying {@code
-   * mergeValuesFn}. Unpaired values are inserted to the result unmodified.
+   * all lists are grouped by matching IDs, in the order of the lists. Values of a group with more
+   * than one value are merged by applying {@code mergeValuesFn}. Unpaired values are inserted to
+   * the result unmodified.
+   *
+   * <p>The lists are sorted by ID and walked in parallel, always advancing the lists with the
+   * smallest current ID, which are kept in a heap. The result is ordered by ID (for better
+   * debugging of merged resource tables).
    */
-  private <V, I extends Comparable<?>> ImmutableList<V> mergeRepeatedValues(
-      List<V> values1, List<V> values2, Function<V, I> getIdFn, BiFunction<V, V, V> mergeValuesFn) {
+  private static <V> ImmutableList<V> mergeRepeatedValues(
+      ImmutableList<List<V>> valueLists,
+      ToIntFunction<V> getIdFn,
+      Function<ImmutableList<V>, V> mergeValuesFn) {
+    PriorityQueue<ValueListCursor<V>> cursors =
+        new PriorityQueue<>(
+            Math.max(1, valueLists.size()),
+            Comparator.<ValueListCursor<V>>comparingInt(cursor -> cursor.currentId)
+                .thenComparingInt(cursor -> cursor.listIndex));
+    for (int i = 0; i < valueLists.size(); i++) {
+      ValueListCursor<V> cursor =
+          new ValueListCursor<>(i, sortById(valueLists.get(i), getIdFn), getIdFn);
+      if (cursor.hasCurrent()) {
+        cursors.add(cursor);
+      }
+    }
 
     ImmutableList.Builder<V> result = ImmutableList.builder();
+    while (!cursors.isEmpty()) {
+      int id = cursors.peek().currentId;
+      // Cursors with the same ID are polled in the order of the lists.
+      List<ValueListCursor<V>> cursorsWithId = new ArrayList<>();
+      while (!cursors.isEmpty() && cursors.peek().currentId == id) {
+        cursorsWithId.add(cursors.poll());
+      }
 
-    Map<I, V> idToValue1 = Maps.uniqueIndex(values1, getIdFn::apply);
-    Map<I, V> idToValue2 = Maps.uniqueIndex(values2, getIdFn::apply);
-
-    // Order the IDs (for better debugging of merged resource tables).
-    ImmutableList<I> allIds =
-        Sets.union(idToValue1.keySet(), idToValue2.keySet())
-            .stream()
-            .sorted()
-            .collect(toImmutableList());
+      if (cursorsWithId.size() == 1) {
+        result.add(cursorsWithId.get(0).current());
+      } else {
+        result.add(
+            mergeValuesFn.apply(
+                cursorsWithId.stream().map(ValueListCursor::current).collect(toImmutableList())));
+      }
 
-    for (I id : allIds) {
-      V value1 = idToValue1.get(id);
-      V value2 = idToValue2.get(id);
+      for (ValueListCursor<V> cursor : cursorsWithId) {
+        cursor.advance();
+        if (cursor.hasCurrent()) {
+          cursors.add(cursor);
+        }
+      }
+    }
+    return result.build();
+  }
 
-      if (value1 != null && value2 != null) {
-        result.add(mergeValuesFn.apply(value1, value2));
-      } else if (value1 != null) {
-        result.add(value1);
-      } else {
-        result.add(value2);
+  /**
+   * Returns the values sorted by ID, checking that IDs are unique.
+   *
+   * <p>The values are returned as is when already sorted, which is the case of resource tables
+   * generated by aapt2.
+   */
+  private static <V> List<V> sortById(List<V> values, ToIntFunction<V> getIdFn) {
+    List<V> sortedValues = values;
+    for (int i = 1; i < values.size(); i++) {
+      if (getIdFn.applyAsInt(values.get(i - 1)) > getIdFn.applyAsInt(values.get(i))) {
+        sortedValues =
+            values.stream().sorted(Comparator.comparingInt(getIdFn)).collect(toImmutableList());
+        break;
       }
     }
+    for (int i = 1; i < sortedValues.size(); i++) {
+      int id = getIdFn.applyAsInt(sortedValues.get(i));
+      checkArgument(
+          getIdFn.applyAsInt(sortedValues.get(i - 1)) != id,
+          "Multiple values with the same ID %s.",
+          id);
+    }
+    return sortedValues;
+  }
 
-    return result.build();
+  /** Position in a list of values sorted by ID. */
+  private static final class ValueListCursor<V> {
+    private final int listIndex;
+    private final List<V> values;
+    private final ToIntFunction<V> getIdFn;
+    private int position = 0;
+    private int currentId;
+
+    ValueListCursor(int listIndex, List<V> values, ToIntFunction<V> getIdFn) {
+      this.listIndex = listIndex;
+      this.values = values;
+      this.getIdFn = getIdFn;
+      updateCurrentId();
+    }
+
+    boolean hasCurrent() {
+      return position < values.size();
+    }
+
+    V current() {
+      return values.get(position);
+    }
+
+    void advance() {
+      position++;
+      updateCurrentId();
+    }
+
+    private void updateCurrentId() {
+      if (hasCurrent()) {
+        currentId = getIdFn.applyAsInt(current());
+      }
+    }
   }
 
   private static <V, F> void assertEqualFields(
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.metrics;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.ImmutableMap.toImmutableMap;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.AbstractListeningExecutorService;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Records where the time of a command is spent: spans of time for each phase, counters of the work
+ * done and samples of gauges.
+ *
+ * <p>All methods are thread-safe. The {@link #NO_OP} instance records nothing, so that code can
+ * report metrics unconditionally.
+ */
+public final class BuildMetrics {
+
+  /** Metrics which record nothing. */
+  public static final BuildMetrics NO_OP = new BuildMetrics(Ticker.systemTicker(), false);
+
+  /** Quantities accumulated over the whole command. */
+  public enum Counter {
+    /** Bytes of the input files read, e.g. the App Bundle. */
+    BYTES_READ,
+    /** Bytes of the output files written: each APK, then the archive containing them. */
+    BYTES_WRITTEN,
+    /** Number of APKs serialized, including the ones copied from the APK cache. */
+    APKS_SERIALIZED,
+    /** Number of APKs copied from the APK cache. */
+    APK_CACHE_HITS,
+    /** Number of APKs looked up in the APK cache and not found, which were then serialized. */
+    APK_CACHE_MISSES,
+    /** Number of commands executed by aapt2. */
+    AAPT2_INVOCATIONS,
+    /** Number of dex merges, including the ones served from the dex merge cache. */
+    DEX_MERGES,
+    /** Number of dex merges whose result was copied from the dex merge cache. */
+    DEX_MERGE_CACHE_HITS,
+    /** Number of dex merges whose result was not found in the dex merge cache. */
+    DEX_MERGE_CACHE_MISSES
+  }
+
+  /** Quantities sampled each time they change. */
+  public enum Gauge {
+    /** Number of tasks submitted to the executor service which haven't started yet. */
+    EXECUTOR_QUEUE_DEPTH
+  }
+
+  private final Ticker ticker;
+  private final boolean enabled;
+  private final long startNanos;
+  private final ConcurrentLinkedQueue<RecordedSpan> spans = new ConcurrentLinkedQueue<>();
+  private final ImmutableMap<Counter, AtomicLong> counters;
+  private final ConcurrentLinkedQueue<GaugeSample> gaugeSamples = new ConcurrentLinkedQueue<>();
+  private final ImmutableMap<Gauge, AtomicLong> gauges;
+
+  private BuildMetrics(Ticker ticker, boolean enabled) {
+    this.ticker = ticker;
+    this.enabled = enabled;
+    this.startNanos = ticker.read();
+    this.counters = createValues(Counter.values());
+    this.gauges = createValues(Gauge.values());
+  }
+
+  /** Creates metrics which record everything reported from now on. */
+  public static BuildMetrics create() {
+    return create(Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  static BuildMetrics create(Ticker ticker) {
+    return new BuildMetrics(ticker, true);
+  }
+
+  /** Whether the metrics are recorded, i.e. whether this isn't the {@link #NO_OP} instance. */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts a span of time, which ends when the returned {@link Span} is closed.
+   *
+   * <p>Spans are typically opened in a try-with-resources statement around a phase of the command.
+   */
+  public Span startSpan(String name) {
+    return startSpan(name, Optional.empty());
+  }
+
+  /**
+   * Starts a span of time, with a detail distinguishing the spans of the same name, e.g. the path
+   * of the APK being serialized.
+   */
+  public Span startSpan(String name, String detail) {
+    return startSpan(name, Optional.of(detail));
+  }
+
+  private Span startSpan(String name, Optional<String> detail) {
+    return new Span(name, detail, Thread.currentThread(), enabled ? ticker.read() : 0);
+  }
+
+  /** Adds one to the given counter. */
+  public void incrementCounter(Counter counter) {
+    addToCounter(counter, 1);
+  }
+
+  /** Adds the given value to the given counter. */
+  public void addToCounter(Counter counter, long value) {
+    if (enabled) {
+      counters.get(counter).addAndGet(value);
+    }
+  }
+
+  /**
+   * Returns an executor service executing the tasks on the given one, which samples the {@link
+   * Gauge#EXECUTOR_QUEUE_DEPTH} each time a task is submitted or started.
+   *
+   * <p>Shutting down the returned executor service shuts down the given one.
+   */
+  public ListeningExecutorService instrument(ListeningExecutorService executorService) {
+    return enabled ? new InstrumentedExecutorService(executorService) : executorService;
+  }
+
+  /** Returns the spans which have ended, in the order they ended. */
+  public ImmutableList<RecordedSpan> getSpans() {
+    return ImmutableList.copyOf(spans);
+  }
+
+  /** Returns the current value of each counter. */
+  public ImmutableMap<Counter, Long> getCounters() {
+    return currentValues(counters);
+  }
+
+  /** Returns the last value of each gauge. */
+  public ImmutableMap<Gauge, Long> getGauges() {
+    return currentValues(gauges);
+  }
+
+  /** Returns all the samples of the gauges, in the order they were recorded. */
+  public ImmutableList<GaugeSample> getGaugeSamples() {
+    return ImmutableList.copyOf(gaugeSamples);
+  }
+
+  /** Returns the time elapsed since the metrics were created. */
+  public long getElapsedNanos() {
+    return ticker.read() - startNanos;
+  }
+
+  /**
+   * Writes the metrics recorded so far to the given file, in the given format.
+   *
+   * @throws IllegalStateException if the metrics aren't recorded
+   */
+  public void writeTo(Path outputPath, MetricsFormat format) throws IOException {
+    checkState(enabled, "Metrics are not recorded.");
+    switch (format) {
+      case JSON:
+        MetricsWriter.writeJson(this, outputPath);
+        return;
+      case CHROME_TRACE:
+        MetricsWriter.writeChromeTrace(this, outputPath);
+        return;
+    }
+    throw new IllegalArgumentException("Unknown metrics format: " + format);
+  }
+
+  private void addToGauge(Gauge gauge, long delta) {
+    long value = gauges.get(gauge).addAndGet(delta);
+    gaugeSamples.add(GaugeSample.create(gauge, ticker.read() - startNanos, value));
+  }
+
+  private static <K extends Enum<K>> ImmutableMap<K, AtomicLong> createValues(K[] keys) {
+    return Arrays.stream(keys)
+        .collect(toImmutableMap(Function.identity(), key -> new AtomicLong()));
+  }
+
+  private static <K extends Enum<K>> ImmutableMap<K, Long> currentValues(
+      ImmutableMap<K, AtomicLong> values) {
+    return values
+        .entrySet()
+        .stream()
+        .collect(toImmutableMap(Map.Entry::getKey, entry -> entry.getValue().get()));
+  }
+
+  /** A span of time being recorded, which ends when closed. */
+  public final class Span implements AutoCloseable {
+    private final String name;
+    private final Optional<String> detail;
+    private final Thread thread;
+    private final long spanStartNanos;
+    private boolean closed = false;
+
+    private Span(String name, Optional<String> detail, Thread thread, long spanStartNanos) {
+      this.name = name;
+      this.detail = detail;
+      this.thread = thread;
+      this.spanStartNanos = spanStartNanos;
+    }
+
+    /** Ends the span. Closing a span more than once has no effect. */
+    @Override
+    public void close() {
+      if (!enabled || closed) {
+        return;
+      }
+      closed = true;
+      spans.add(
+          RecordedSpan.create(
+              name,
+              detail,
+              thread.getName(),
+              thread.getId(),
+              spanStartNanos - startNanos,
+              ticker.read() - spanStartNanos));
+    }
+  }
+
+  /** A span of time which has ended. Times are relative to the creation of the metrics. */
+  @AutoValue
+  public abstract static class RecordedSpan {
+    public abstract String getName();
+
+    public abstract Optional<String> getDetail();
+
+    public abstract String getThreadName();
+
+    public abstract long getThreadId();
+
+    public abstract long getStartNanos();
+
+    public abstract long getDurationNanos();
+
+    static RecordedSpan create(
+        String name,
+        Optional<String> detail,
+        String threadName,
+        long threadId,
+        long startNanos,
+        long durationNanos) {
+      return new AutoValue_BuildMetrics_RecordedSpan(
+          name, detail, threadName, threadId, startNanos, durationNanos);
+    }
+  }
+
+  /** A value of a gauge. The time is relative to the creation of the metrics. */
+  @AutoValue
+  public abstract static class GaugeSample {
+    public abstract Gauge getGauge();
+
+    public abstract long getTimeNanos();
+
+    public abstract long getValue();
+
+    static GaugeSample create(Gauge gauge, long timeNanos, long value) {
+      return new AutoValue_BuildMetrics_GaugeSample(gauge, timeNanos, value);
+    }
+  }
+
+  /** Executor service keeping track of the tasks waiting to be executed by its delegate. */
+  private final class InstrumentedExecutorService extends AbstractListeningExecutorService {
+    private final ListeningExecutorService delegate;
+
+    InstrumentedExecutorService(ListeningExecutorService delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      addToGauge(Gauge.EXECUTOR_QUEUE_DEPTH, 1);
+      try {
+        delegate.execute(
+            () -> {
+              addToGauge(Gauge.EXECUTOR_QUEUE_DEPTH, -1);
+              command.run();
+            });
+      } catch (RuntimeException e) {
+        // The task was rejected.
+        addToGauge(Gauge.EXECUTOR_QUEUE_DEPTH, -1);
+        throw e;
+      }
+    }
+
+    @Override
+    public void shutdown() {
+      delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return delegate.awaitTermination(timeout, unit);
+    }
+  }
+}
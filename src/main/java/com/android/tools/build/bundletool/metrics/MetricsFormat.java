@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.metrics;
+
+/** Format of the file the {@link BuildMetrics} are written to. */
+public enum MetricsFormat {
+  /** Summary of the spans, counters and gauges, along with all recorded spans. */
+  JSON,
+  /**
+   * Chrome trace event format, which can be loaded in chrome://tracing or in Perfetto to visualize
+   * the spans of each thread on a timeline.
+   */
+  CHROME_TRACE
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.metrics;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Comparator.comparingLong;
+
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Gauge;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.GaugeSample;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.RecordedSpan;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Writes {@link BuildMetrics} to a file in one of the {@link MetricsFormat formats}. */
+final class MetricsWriter {
+
+  /** Process ID of all events in the Chrome trace, which only describes one process. */
+  private static final int TRACE_PID = 1;
+
+  /**
+   * Writes a JSON object with the total duration and number of occurrences of each span name, the
+   * counters, the maximum of each gauge and all the spans.
+   */
+  static void writeJson(BuildMetrics metrics, Path outputPath) throws IOException {
+    ImmutableList<RecordedSpan> spans = sortByStartTime(metrics.getSpans());
+
+    // Spans with the same name are aggregated, in the order of their first occurrence.
+    Map<String, List<RecordedSpan>> spansByName = new LinkedHashMap<>();
+    for (RecordedSpan span : spans) {
+      spansByName.computeIfAbsent(span.getName(), name -> new ArrayList<>()).add(span);
+    }
+    List<String> phases = new ArrayList<>();
+    spansByName.forEach((name, spansWithName) -> phases.add(phaseObject(name, spansWithName)));
+
+    Map<String, String> counters = new LinkedHashMap<>();
+    metrics
+        .getCounters()
+        .forEach((counter, value) -> counters.put(metricName(counter), Long.toString(value)));
+
+    Map<String, String> gauges = new LinkedHashMap<>();
+    for (Gauge gauge : Gauge.values()) {
+      long max =
+          metrics
+              .getGaugeSamples()
+              .stream()
+              .filter(sample -> sample.getGauge().equals(gauge))
+              .mapToLong(GaugeSample::getValue)
+              .max()
+              .orElse(0);
+      gauges.put(metricName(gauge), jsonObject(ImmutableMap.of("max", Long.toString(max))));
+    }
+
+    List<String> spanObjects = new ArrayList<>();
+    for (RecordedSpan span : spans) {
+      Map<String, String> spanObject = new LinkedHashMap<>();
+      spanObject.put("name", quote(span.getName()));
+      span.getDetail().ifPresent(detail -> spanObject.put("detail", quote(detail)));
+      spanObject.put("thread", quote(span.getThreadName()));
+      spanObject.put("startMillis", toMillis(span.getStartNanos()));
+      spanObject.put("durationMillis", toMillis(span.getDurationNanos()));
+      spanObjects.add(jsonObject(spanObject));
+    }
+
+    Map<String, String> root = new LinkedHashMap<>();
+    root.put("elapsedMillis", toMillis(metrics.getElapsedNanos()));
+    root.put("phases", jsonArray(phases));
+    root.put("counters", jsonObject(counters));
+    root.put("gauges", jsonObject(gauges));
+    root.put("spans", jsonArray(spanObjects));
+    write(outputPath, jsonObject(root));
+  }
+
+  /**
+   * Writes the spans and gauge samples as events of the Chrome trace event format, and the counters
+   * as metadata of the trace.
+   */
+  static void writeChromeTrace(BuildMetrics metrics, Path outputPath) throws IOException {
+    ImmutableList<RecordedSpan> spans = sortByStartTime(metrics.getSpans());
+    List<String> events = new ArrayList<>();
+
+    Map<Long, String> threadNames = new LinkedHashMap<>();
+    spans.forEach(span -> threadNames.putIfAbsent(span.getThreadId(), span.getThreadName()));
+    threadNames.forEach(
+        (threadId, threadName) ->
+            events.add(
+                jsonObject(
+                    ImmutableMap.of(
+                        "name",
+                        quote("thread_name"),
+                        "ph",
+                        quote("M"),
+                        "pid",
+                        Integer.toString(TRACE_PID),
+                        "tid",
+                        Long.toString(threadId),
+                        "args",
+                        jsonObject(ImmutableMap.of("name", quote(threadName)))))));
+
+    for (RecordedSpan span : spans) {
+      Map<String, String> event = new LinkedHashMap<>();
+      event.put("name", quote(span.getName()));
+      event.put("cat", quote("bundletool"));
+      event.put("ph", quote("X"));
+      event.put("ts", toMicros(span.getStartNanos()));
+      event.put("dur", toMicros(span.getDurationNanos()));
+      event.put("pid", Integer.toString(TRACE_PID));
+      event.put("tid", Long.toString(span.getThreadId()));
+      span.getDetail()
+          .ifPresent(
+              detail -> event.put("args", jsonObject(ImmutableMap.of("detail", quote(detail)))));
+      events.add(jsonObject(event));
+    }
+
+    for (GaugeSample sample : metrics.getGaugeSamples()) {
+      events.add(
+          jsonObject(
+              ImmutableMap.of(
+                  "name",
+                  quote(metricName(sample.getGauge())),
+                  "ph",
+                  quote("C"),
+                  "ts",
+                  toMicros(sample.getTimeNanos()),
+                  "pid",
+                  Integer.toString(TRACE_PID),
+                  "args",
+                  jsonObject(ImmutableMap.of("value", Long.toString(sample.getValue()))))));
+    }
+
+    Map<String, String> counters = new LinkedHashMap<>();
+    metrics
+        .getCounters()
+        .forEach((counter, value) -> counters.put(metricName(counter), Long.toString(value)));
+
+    Map<String, String> root = new LinkedHashMap<>();
+    root.put("traceEvents", jsonArray(events));
+    root.put("displayTimeUnit", quote("ms"));
+    root.put("otherData", jsonObject(counters));
+    write(outputPath, jsonObject(root));
+  }
+
+  private static String phaseObject(String name, List<RecordedSpan> spansWithName) {
+    Map<String, String> phase = new LinkedHashMap<>();
+    phase.put("name", quote(name));
+    phase.put("count", Integer.toString(spansWithName.size()));
+    phase.put(
+        "totalMillis",
+        toMillis(spansWithName.stream().mapToLong(RecordedSpan::getDurationNanos).sum()));
+    phase.put(
+        "maxMillis",
+        toMillis(spansWithName.stream().mapToLong(RecordedSpan::getDurationNanos).max().orElse(0)));
+    return jsonObject(phase);
+  }
+
+  private static ImmutableList<RecordedSpan> sortByStartTime(ImmutableList<RecordedSpan> spans) {
+    return ImmutableList.sortedCopyOf(comparingLong(RecordedSpan::getStartNanos), spans);
+  }
+
+  private static String metricName(Enum<?> metric) {
+    return metric.name().toLowerCase(Locale.ROOT);
+  }
+
+  private static String toMillis(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+  }
+
+  private static String toMicros(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / (double) TimeUnit.MICROSECONDS.toNanos(1));
+  }
+
+  /** Builds a JSON object from its keys and the JSON representation of its values. */
+  private static String jsonObject(Map<String, String> members) {
+    StringBuilder json = new StringBuilder("{");
+    members.forEach(
+        (key, value) -> {
+          if (json.length() > 1) {
+            json.append(", ");
+          }
+          json.append(quote(key)).append(": ").append(value);
+        });
+    return json.append('}').toString();
+  }
+
+  /** Builds a JSON array from the JSON representation of its elements, one element per line. */
+  private static String jsonArray(List<String> elements) {
+    return elements.isEmpty() ? "[]" : "[\n" + String.join(",\n", elements) + "\n]";
+  }
+
+  /** Returns the JSON string literal of the given value. */
+  private static String quote(String value) {
+    StringBuilder json = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            json.append(String.format("\\u%04x", (int) c));
+          } else {
+            json.append(c);
+          }
+      }
+    }
+    return json.append('"').toString();
+  }
+
+  private static void write(Path outputPath, String json) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(outputPath, UTF_8)) {
+      writer.write(json);
+      writer.write('\n');
+    }
+  }
+
+  private MetricsWriter() {}
+}
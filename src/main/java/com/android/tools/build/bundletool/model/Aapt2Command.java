@@ -17,10 +17,13 @@
 package com.android.tools.build.bundletool.model;
 
 import com.android.tools.build.bundletool.utils.files.BufferedIo;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
 /** Exposes aapt2 commands used by Bundle Tool. */
@@ -28,8 +31,27 @@ public interface Aapt2Command {
 
   void convertApkProtoToBinary(Path protoApk, Path binaryApk);
 
+  /**
+   * Returns a string identifying the conversion performed by this command: commands with the same
+   * identity must produce the same binary APK from the same proto APK.
+   *
+   * <p>The identity is part of the key of the cache of APKs. By default it is empty, in which case
+   * the APKs converted by this command are never cached.
+   */
+  default Optional<String> getIdentity() {
+    return Optional.empty();
+  }
+
   static Aapt2Command createFromExecutablePath(Path aapt2Path) {
+    // The executable is only hashed if the identity is requested, i.e. if APKs are cached.
+    Supplier<String> identity =
+        Suppliers.memoize(() -> Aapt2Executables.computeIdentity(aapt2Path));
     return new Aapt2Command() {
+      @Override
+      public Optional<String> getIdentity() {
+        return Optional.of(identity.get());
+      }
+
       @Override
       public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
         new CommandExecutor()
@@ -45,6 +67,28 @@ public interface Aapt2Command {
     };
   }
 
+  /**
+   * Creates a command which executes aapt2 in a pool of at most {@code maxDaemons} long-lived
+   * daemon processes, instead of starting a new process for each command.
+   *
+   * <p>The pool should be sized to the number of threads serializing APKs, and must be closed to
+   * stop the daemons.
+   */
+  static Aapt2DaemonPool createDaemonPoolFromExecutablePath(Path aapt2Path, int maxDaemons) {
+    return new Aapt2DaemonPool(aapt2Path, maxDaemons);
+  }
+
+  /**
+   * Creates a command which converts the APKs containing only a manifest in-process, and delegates
+   * the conversion of all other APKs to the given command.
+   *
+   * <p>The in-process conversion produces the same binary manifest as aapt2, but avoids spawning a
+   * process for each split without resources.
+   */
+  static Aapt2Command createInProcessWithFallback(Aapt2Command fallbackCommand) {
+    return new InProcessAapt2Command(fallbackCommand);
+  }
+
   /** Helper to execute aapt2 commands. */
   class CommandExecutor {
     private static final int TIMEOUT_AAPT2_COMMANDS_SECONDS = 5 * 60; // 5 minutes.
@@ -87,11 +131,11 @@ public interface Aapt2Command {
    * paths to files.
    */
   class Aapt2Exception extends RuntimeException {
-    private Aapt2Exception(String message) {
+    Aapt2Exception(String message) {
       super(message);
     }
 
-    private Aapt2Exception(String message, Throwable cause) {
+    Aapt2Exception(String message, Throwable cause) {
       super(message, cause);
     }
   }
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.model.Aapt2Command.Aapt2Exception;
+import com.android.tools.build.bundletool.utils.files.BufferedIo;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Aapt2Command} executing the commands in a pool of long-lived aapt2 daemon processes.
+ *
+ * <p>Daemons are started lazily, up to the maximum given at creation, which should typically be the
+ * number of threads serializing APKs. Each daemon executes one command at a time.
+ *
+ * <p>A daemon which has exited, or which fails to answer (I/O error, timeout), is destroyed and the
+ * command is retried once on a newly started daemon. Commands reported as failed by a healthy
+ * daemon are not retried.
+ *
+ * <p>The daemons are stopped when the pool is closed.
+ */
+public final class Aapt2DaemonPool implements Aapt2Command, AutoCloseable {
+
+  private static final int TIMEOUT_DAEMON_STARTUP_SECONDS = 30;
+  private static final int TIMEOUT_AAPT2_COMMANDS_SECONDS = 5 * 60; // 5 minutes.
+
+  private final Path aapt2Path;
+  private final Supplier<String> identity;
+  private final int maxDaemons;
+  /** Limits the number of commands executed concurrently, hence the number of daemons. */
+  private final Semaphore daemonPermits;
+
+  private final ConcurrentLinkedDeque<Aapt2Daemon> idleDaemons = new ConcurrentLinkedDeque<>();
+  private final Set<Aapt2Daemon> allDaemons = ConcurrentHashMap.newKeySet();
+  private volatile boolean closed = false;
+
+  Aapt2DaemonPool(Path aapt2Path, int maxDaemons) {
+    checkArgument(maxDaemons > 0, "The maximum number of daemons must be positive.");
+    this.aapt2Path = aapt2Path;
+    this.identity = Suppliers.memoize(() -> Aapt2Executables.computeIdentity(aapt2Path));
+    this.maxDaemons = maxDaemons;
+    this.daemonPermits = new Semaphore(maxDaemons);
+  }
+
+  @Override
+  public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+    execute(
+        "convert", "--output-format", "binary", "-o", binaryApk.toString(), protoApk.toString());
+  }
+
+  /** Returns the identity of the executable, as daemons produce the same APKs as one-shot runs. */
+  @Override
+  public Optional<String> getIdentity() {
+    return Optional.of(identity.get());
+  }
+
+  /** Returns the maximum number of daemons running at the same time. */
+  public int getMaxDaemonCount() {
+    return maxDaemons;
+  }
+
+  /** Returns the number of daemons currently running. */
+  public int getRunningDaemonCount() {
+    return allDaemons.size();
+  }
+
+  /** Stops all the daemons. */
+  @Override
+  public void close() {
+    closed = true;
+    for (Aapt2Daemon daemon : allDaemons) {
+      destroy(daemon);
+    }
+  }
+
+  private void execute(String... args) {
+    checkState(!closed, "The aapt2 daemon pool is closed.");
+    daemonPermits.acquireUninterruptibly();
+    try {
+      try {
+        executeOnHealthyDaemon(args);
+      } catch (DaemonFailureException e) {
+        // Restart-on-failure: the daemon has been destroyed, retry once on a fresh daemon.
+        executeOnHealthyDaemon(args);
+      }
+    } catch (DaemonFailureException e) {
+      throw new Aapt2Exception(
+          "Error when executing command in aapt2 daemon: " + Arrays.toString(args), e);
+    } finally {
+      daemonPermits.release();
+    }
+  }
+
+  private void executeOnHealthyDaemon(String[] args) throws DaemonFailureException {
+    Aapt2Daemon daemon = acquireDaemon();
+    try {
+      daemon.execute(args);
+    } catch (DaemonFailureException e) {
+      destroy(daemon);
+      throw e;
+    } catch (RuntimeException e) {
+      idleDaemons.push(daemon);
+      throw e;
+    }
+    idleDaemons.push(daemon);
+  }
+
+  /** Returns an idle daemon which is still alive, or starts a new one. */
+  private Aapt2Daemon acquireDaemon() throws DaemonFailureException {
+    Aapt2Daemon daemon;
+    while ((daemon = idleDaemons.poll()) != null) {
+      if (daemon.isAlive()) {
+        return daemon;
+      }
+      destroy(daemon);
+    }
+    daemon = Aapt2Daemon.start(aapt2Path);
+    allDaemons.add(daemon);
+    if (closed) {
+      // The pool was closed while starting the daemon.
+      destroy(daemon);
+      throw new IllegalStateException("The aapt2 daemon pool is closed.");
+    }
+    return daemon;
+  }
+
+  private void destroy(Aapt2Daemon daemon) {
+    allDaemons.remove(daemon);
+    daemon.destroy();
+  }
+
+  /** A single aapt2 process running in daemon mode. */
+  private static final class Aapt2Daemon {
+    private static final String READY_LINE = "Ready";
+    private static final String DONE_LINE = "Done";
+    private static final String ERROR_LINE = "Error";
+
+    private final Process process;
+    private final BufferedWriter commandWriter;
+    /** Lines printed by the daemon, consumed by the thread executing the current command. */
+    private final BlockingQueue<Optional<String>> outputLines = new LinkedBlockingQueue<>();
+
+    private Aapt2Daemon(Process process) {
+      this.process = process;
+      this.commandWriter =
+          new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), UTF_8));
+    }
+
+    static Aapt2Daemon start(Path aapt2Path) throws DaemonFailureException {
+      Process process;
+      try {
+        process =
+            new ProcessBuilder(aapt2Path.toString(), "daemon").redirectErrorStream(true).start();
+      } catch (IOException e) {
+        throw new DaemonFailureException("Unable to start the aapt2 daemon.", e);
+      }
+      Aapt2Daemon daemon = new Aapt2Daemon(process);
+      daemon.startOutputReader();
+      try {
+        daemon.readOutputUntil(READY_LINE, TIMEOUT_DAEMON_STARTUP_SECONDS);
+      } catch (DaemonFailureException e) {
+        daemon.destroy();
+        throw e;
+      }
+      return daemon;
+    }
+
+    boolean isAlive() {
+      return process.isAlive();
+    }
+
+    /**
+     * Executes the command in the daemon.
+     *
+     * @throws Aapt2Exception if the daemon reports that the command failed
+     * @throws DaemonFailureException if the daemon is not responding properly
+     */
+    void execute(String... args) throws DaemonFailureException {
+      outputLines.clear();
+      try {
+        // Each argument is given on its own line, the command is terminated by an empty line.
+        for (String arg : args) {
+          commandWriter.write(arg);
+          commandWriter.newLine();
+        }
+        commandWriter.newLine();
+        commandWriter.flush();
+      } catch (IOException e) {
+        throw new DaemonFailureException("Unable to send command to the aapt2 daemon.", e);
+      }
+
+      List<String> output = readOutputUntil(DONE_LINE, TIMEOUT_AAPT2_COMMANDS_SECONDS);
+      if (output.contains(ERROR_LINE)) {
+        output.stream().filter(line -> !line.equals(ERROR_LINE)).forEach(System.err::println);
+        throw new Aapt2Exception(
+            String.format(
+                "Command '%s' didn't terminate successfully. Check the logs.",
+                Arrays.toString(args)));
+      }
+    }
+
+    void destroy() {
+      try {
+        commandWriter.close();
+      } catch (IOException e) {
+        // The process is killed below anyway.
+      }
+      process.destroyForcibly();
+    }
+
+    private void startOutputReader() {
+      Thread readerThread =
+          new Thread(
+              () -> {
+                try (BufferedReader outputReader = BufferedIo.reader(process.getInputStream())) {
+                  String line;
+                  while ((line = outputReader.readLine()) != null) {
+                    outputLines.add(Optional.of(line));
+                  }
+                } catch (IOException e) {
+                  // Treated as the end of the output.
+                }
+                outputLines.add(Optional.empty());
+              },
+              "aapt2-daemon-output");
+      readerThread.setDaemon(true);
+      readerThread.start();
+    }
+
+    /** Returns the lines printed by the daemon before the given line. */
+    private List<String> readOutputUntil(String lastLine, int timeoutSeconds)
+        throws DaemonFailureException {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+      List<String> output = new ArrayList<>();
+      while (true) {
+        Optional<String> line;
+        try {
+          line = outputLines.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new DaemonFailureException("Interrupted while waiting for the aapt2 daemon.", e);
+        }
+        if (line == null) {
+          throw new DaemonFailureException("Timed out waiting for the aapt2 daemon.");
+        }
+        if (!line.isPresent()) {
+          output.forEach(System.err::println);
+          throw new DaemonFailureException("The aapt2 daemon exited unexpectedly.");
+        }
+        if (line.get().equals(lastLine)) {
+          return output;
+        }
+        output.add(line.get());
+      }
+    }
+  }
+
+  /** Signals that a daemon is unhealthy and must be discarded. */
+  private static final class DaemonFailureException extends Exception {
+    DaemonFailureException(String message) {
+      super(message);
+    }
+
+    DaemonFailureException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+}
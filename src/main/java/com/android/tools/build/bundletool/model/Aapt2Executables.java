@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+/** Helpers for the aapt2 executables. */
+final class Aapt2Executables {
+
+  /**
+   * Returns the identity of the aapt2 executable at the given path, see {@link
+   * Aapt2Command#getIdentity()}.
+   *
+   * <p>The identity is derived from the content of the executable only, so that an aapt2 extracted
+   * to a different temporary directory at each invocation keeps the same identity.
+   */
+  static String computeIdentity(Path aapt2Path) {
+    try {
+      return "aapt2:" + MoreFiles.asByteSource(aapt2Path).hash(Hashing.sha256());
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while reading the aapt2 executable '%s'.", aapt2Path), e);
+    }
+  }
+
+  private Aapt2Executables() {}
+}
@@ -27,4 +27,14 @@ public class ApkListener {
   public void onApkFinalized(ApkDescription apkDesc) {
     // no-op by default
   }
+
+  /**
+   * Invoked when APK has been finalized and signed (if signing config was provided), with the
+   * resources spent serializing it.
+   *
+   * <p>By default, delegates to {@link #onApkFinalized(ApkDescription)}.
+   */
+  public void onApkFinalized(ApkDescription apkDesc, ApkSerializationMetrics apkMetrics) {
+    onApkFinalized(apkDesc);
+  }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import com.google.auto.value.AutoValue;
+import java.time.Duration;
+
+/** Resources spent serializing an APK, and the size of the serialized APK. */
+@AutoValue
+public abstract class ApkSerializationMetrics {
+
+  /**
+   * Total time spent serializing the APK, including the conversion of its resources by aapt2 and
+   * the finalization of the APK file.
+   */
+  public abstract Duration getSerializationTime();
+
+  /**
+   * Time spent in aapt2 converting the resources and manifest of the APK.
+   *
+   * <p>This is zero when the APK was copied from the cache of APKs.
+   */
+  public abstract Duration getAapt2Time();
+
+  /**
+   * Time spent flushing and finalizing the APK file: writing its entries to disk, waiting for
+   * their compression, and computing and writing its signatures when a signing configuration was
+   * provided.
+   *
+   * <p>This is zero when the APK was copied from the cache of APKs.
+   */
+  public abstract Duration getFinalizeTime();
+
+  /** Number of entries in the APK. */
+  public abstract int getEntryCount();
+
+  /** Sum of the compressed sizes of the entries of the APK. */
+  public abstract long getCompressedSize();
+
+  /** Sum of the uncompressed sizes of the entries of the APK. */
+  public abstract long getUncompressedSize();
+
+  /**
+   * Returns a fresh new {@link Builder} to create an instance of {@link ApkSerializationMetrics}.
+   *
+   * <p>The aapt2 and finalize times default to zero.
+   */
+  public static Builder builder() {
+    return new AutoValue_ApkSerializationMetrics.Builder()
+        .setAapt2Time(Duration.ZERO)
+        .setFinalizeTime(Duration.ZERO);
+  }
+
+  /** Builder for the {@link ApkSerializationMetrics} class. */
+  @AutoValue.Builder
+  public abstract static class Builder {
+    public abstract Builder setSerializationTime(Duration serializationTime);
+
+    public abstract Builder setAapt2Time(Duration aapt2Time);
+
+    public abstract Builder setFinalizeTime(Duration finalizeTime);
+
+    public abstract Builder setEntryCount(int entryCount);
+
+    public abstract Builder setCompressedSize(long compressedSize);
+
+    public abstract Builder setUncompressedSize(long uncompressedSize);
+
+    public abstract ApkSerializationMetrics build();
+  }
+}
@@ -21,19 +21,24 @@ import static com.google.common.base.Preconditions.checkState;
 import com.android.bundle.Config.BundleConfig;
 import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.exceptions.ValidationException;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
 import com.android.tools.build.bundletool.utils.ZipUtils;
 import com.android.tools.build.bundletool.utils.files.BufferedIo;
 import com.android.tools.build.bundletool.version.BundleToolVersion;
 import com.android.tools.build.bundletool.version.Version;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Paths;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import javax.annotation.CheckReturnValue;
@@ -50,6 +55,8 @@ public class AppBundle {
 
   public static final String BUNDLE_CONFIG_FILE_NAME = "BundleConfig.pb";
 
+  private static final Logger logger = Logger.getLogger(AppBundle.class.getName());
+
   private final ImmutableMap<BundleModuleName, BundleModule> modules;
   private final BundleConfig bundleConfig;
   private final BundleMetadata bundleMetadata;
@@ -63,11 +70,17 @@ public class AppBundle {
     this.bundleMetadata = bundleMetadata;
   }
 
-  /** Builds an {@link AppBundle} from an App Bundle on disk. */
+  /**
+   * Builds an {@link AppBundle} from an App Bundle on disk.
+   *
+   * <p>When possible, the content of the module entries is read from a memory mapping of the file,
+   * so that entries can be read concurrently.
+   */
   public static AppBundle buildFromZip(ZipFile bundleFile) {
     BundleConfig bundleConfig = readBundleConfig(bundleFile);
+    Optional<MappedZipFile> mappedBundleFile = mapBundleFile(bundleFile);
     return new AppBundle(
-        sanitize(extractModules(bundleFile, bundleConfig), bundleConfig),
+        sanitize(extractModules(bundleFile, mappedBundleFile, bundleConfig), bundleConfig),
         bundleConfig,
         readBundleMetadata(bundleFile));
   }
@@ -107,44 +120,19 @@ public class AppBundle {
   }
 
   private static Map<BundleModuleName, BundleModule> extractModules(
-      ZipFile bundleFile, BundleConfig bundleConfig) {
+      ZipFile bundleFile, Optional<MappedZipFile> mappedBundleFile, BundleConfig bundleConfig) {
     Map<BundleModuleName, BundleModule.Builder> moduleBuilders = new HashMap<>();
-    Enumeration<? extends ZipEntry> entries = bundleFile.entries();
-    while (entries.hasMoreElements()) {
-      ZipEntry entry = entries.nextElement();
-      ZipPath path = ZipPath.create(entry.getName());
-
-      // Ignoring bundle metadata files.
-      if (path.startsWith(METADATA_DIRECTORY)) {
-        continue;
-      }
-
-      // Ignoring signature related files.
-      if (path.startsWith("META-INF")) {
-        continue;
-      }
-
-      // Ignoring top-level files.
-      if (path.getNameCount() <= 1) {
-        continue;
-      }
-
-      // Temporarily excluding .class files.
-      if (path.toString().endsWith(".class")) {
-        continue;
+    if (mappedBundleFile.isPresent()) {
+      // The entries are listed from the index of the mapped file, which has already parsed the
+      // central directory.
+      for (MappedZipFile.Entry mappedEntry : mappedBundleFile.get().getEntries()) {
+        addModuleEntry(
+            moduleBuilders, mappedEntry.toZipEntry(), bundleFile, Optional.of(mappedEntry));
       }
-
-      BundleModuleName moduleName = BundleModuleName.create(path.getName(0).toString());
-      BundleModule.Builder moduleBuilder =
-          moduleBuilders.computeIfAbsent(moduleName, name -> BundleModule.builder().setName(name));
-      try {
-        moduleBuilder.addEntry(ModuleZipEntry.fromBundleZipEntry(entry, bundleFile));
-      } catch (IOException e) {
-        throw ValidationException.builder()
-            .withCause(e)
-            .withMessage(
-                "Error processing zip entry '%s' of module '%s'.", entry.getName(), moduleName)
-            .build();
+    } else {
+      Enumeration<? extends ZipEntry> entries = bundleFile.entries();
+      while (entries.hasMoreElements()) {
+        addModuleEntry(moduleBuilders, entries.nextElement(), bundleFile, Optional.empty());
       }
     }
     for (BundleModule.Builder value : moduleBuilders.values()) {
@@ -153,6 +141,60 @@ public class AppBundle {
     return Maps.transformValues(moduleBuilders, BundleModule.Builder::build);
   }
 
+  private static void addModuleEntry(
+      Map<BundleModuleName, BundleModule.Builder> moduleBuilders,
+      ZipEntry entry,
+      ZipFile bundleFile,
+      Optional<MappedZipFile.Entry> mappedEntry) {
+    ZipPath path = ZipPath.create(entry.getName());
+
+    // Ignoring bundle metadata files.
+    if (path.startsWith(METADATA_DIRECTORY)) {
+      return;
+    }
+
+    // Ignoring signature related files.
+    if (path.startsWith("META-INF")) {
+      return;
+    }
+
+    // Ignoring top-level files.
+    if (path.getNameCount() <= 1) {
+      return;
+    }
+
+    // Temporarily excluding .class files.
+    if (path.toString().endsWith(".class")) {
+      return;
+    }
+
+    BundleModuleName moduleName = BundleModuleName.create(path.getName(0).toString());
+    BundleModule.Builder moduleBuilder =
+        moduleBuilders.computeIfAbsent(moduleName, name -> BundleModule.builder().setName(name));
+    try {
+      moduleBuilder.addEntry(ModuleZipEntry.fromBundleZipEntry(entry, bundleFile, mappedEntry));
+    } catch (IOException e) {
+      throw ValidationException.builder()
+          .withCause(e)
+          .withMessage(
+              "Error processing zip entry '%s' of module '%s'.", entry.getName(), moduleName)
+          .build();
+    }
+  }
+
+  private static Optional<MappedZipFile> mapBundleFile(ZipFile bundleFile) {
+    try {
+      return MappedZipFile.open(Paths.get(bundleFile.getName()));
+    } catch (IOException e) {
+      // The entries are then read from the ZipFile, which is slower but still correct.
+      logger.warning(
+          String.format(
+              "Error mapping the bundle '%s' in memory, reading it sequentially instead: %s",
+              bundleFile.getName(), Throwables.getStackTraceAsString(e)));
+      return Optional.empty();
+    }
+  }
+
   private static BundleConfig readBundleConfig(ZipFile bundleFile) {
     ZipEntry bundleConfigEntry = bundleFile.getEntry(BUNDLE_CONFIG_FILE_NAME);
     checkState(bundleConfigEntry != null, "File '%s' was not found.", BUNDLE_CONFIG_FILE_NAME);
@@ -16,6 +16,9 @@
 
 package com.android.tools.build.bundletool.model;
 
+import static com.google.common.collect.ImmutableListMultimap.toImmutableListMultimap;
+import static java.util.function.Function.identity;
+
 import com.android.aapt.Resources.ResourceTable;
 import com.android.aapt.Resources.XmlNode;
 import com.android.bundle.Commands.ModuleMetadata;
@@ -23,13 +26,21 @@ import com.android.bundle.Config.BundleConfig;
 import com.android.bundle.Files.Assets;
 import com.android.bundle.Files.NativeLibraries;
 import com.android.bundle.Targeting.ModuleTargeting;
+import com.android.tools.build.bundletool.exceptions.ValidationException;
 import com.android.tools.build.bundletool.version.BundleToolVersion;
 import com.google.auto.value.AutoValue;
+import com.google.auto.value.extension.memoized.Memoized;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.Collection;
 import java.util.Optional;
 import java.util.function.Predicate;
@@ -65,11 +76,38 @@ public abstract class BundleModule {
 
   public abstract AndroidManifest getAndroidManifest();
 
-  public abstract Optional<ResourceTable> getResourceTable();
+  /**
+   * Returns the resource table of the module.
+   *
+   * <p>The resource table is parsed the first time it is accessed.
+   */
+  public Optional<ResourceTable> getResourceTable() {
+    return getResourceTableSupplier().map(Supplier::get);
+  }
 
-  public abstract Optional<Assets> getAssetsConfig();
+  /**
+   * Returns the assets configuration of the module.
+   *
+   * <p>The configuration is parsed the first time it is accessed.
+   */
+  public Optional<Assets> getAssetsConfig() {
+    return getAssetsConfigSupplier().map(Supplier::get);
+  }
 
-  public abstract Optional<NativeLibraries> getNativeConfig();
+  /**
+   * Returns the native libraries configuration of the module.
+   *
+   * <p>The configuration is parsed the first time it is accessed.
+   */
+  public Optional<NativeLibraries> getNativeConfig() {
+    return getNativeConfigSupplier().map(Supplier::get);
+  }
+
+  abstract Optional<Supplier<ResourceTable>> getResourceTableSupplier();
+
+  abstract Optional<Supplier<Assets>> getAssetsConfigSupplier();
+
+  abstract Optional<Supplier<NativeLibraries>> getNativeConfigSupplier();
 
   /**
    * Returns entries of the module, indexed by their module path.
@@ -136,11 +174,33 @@ public abstract class BundleModule {
   /**
    * Returns all {@link ModuleEntry} whose relative module path is under the given path.
    *
+   * <p>Only the entries under the top-level directory of the given path are scanned, so that
+   * looking up entries of directories such as "res" or "lib" is linear in their number only.
+   *
    * <p>Note that special module files (eg. {@code AndroidManifest.xml} are NOT represented as
    * entries.
    */
   public Stream<ModuleEntry> findEntriesUnderPath(ZipPath path) {
-    return findEntries(p -> p.startsWith(path));
+    if (path.getNameCount() == 0) {
+      return getEntries().stream();
+    }
+    return getEntriesByTopLevelDirectory()
+        .get(path.getName(0))
+        .stream()
+        .filter(entry -> entry.getPath().startsWith(path));
+  }
+
+  /**
+   * Returns entries of the module indexed by the first name of their module path, ie. their
+   * top-level directory (eg. "res") or their file name for files at the root of the module.
+   *
+   * <p>The index is computed once, the first time it is needed.
+   */
+  @Memoized
+  ImmutableListMultimap<ZipPath, ModuleEntry> getEntriesByTopLevelDirectory() {
+    return getEntries()
+        .stream()
+        .collect(toImmutableListMultimap(entry -> entry.getPath().getName(0), identity()));
   }
 
   /** Returns entry with the given relative module path, if it exists. */
@@ -177,11 +237,23 @@ public abstract class BundleModule {
 
     abstract Builder setAndroidManifest(AndroidManifest manifest);
 
-    abstract Builder setResourceTable(ResourceTable resourceTable);
+    abstract Builder setResourceTableSupplier(Supplier<ResourceTable> resourceTable);
+
+    abstract Builder setAssetsConfigSupplier(Supplier<Assets> assetsConfig);
 
-    abstract Builder setAssetsConfig(Assets assetsConfig);
+    abstract Builder setNativeConfigSupplier(Supplier<NativeLibraries> nativeConfig);
+
+    Builder setResourceTable(ResourceTable resourceTable) {
+      return setResourceTableSupplier(Suppliers.ofInstance(resourceTable));
+    }
+
+    Builder setAssetsConfig(Assets assetsConfig) {
+      return setAssetsConfigSupplier(Suppliers.ofInstance(assetsConfig));
+    }
 
-    abstract Builder setNativeConfig(NativeLibraries nativeConfig);
+    Builder setNativeConfig(NativeLibraries nativeConfig) {
+      return setNativeConfigSupplier(Suppliers.ofInstance(nativeConfig));
+    }
 
     /** @see #addEntry(ModuleEntry) */
     public Builder addEntries(Collection<ModuleEntry> entries) throws IOException {
@@ -194,10 +266,12 @@ public abstract class BundleModule {
     /**
      * Adds the given entry to the module.
      *
-     * <p>Certain files (eg. AndroidManifest.xml and several module meta-data files) are immediately
-     * parsed and stored in dedicated class fields instead of as entries.
+     * <p>Certain files (eg. AndroidManifest.xml and several module meta-data files) are stored in
+     * dedicated class fields instead of as entries. The manifest is immediately parsed, while the
+     * other files are only parsed the first time they are accessed, so that operations which
+     * don't need them don't pay for parsing them.
      *
-     * @throws IOException when the entry cannot be read or has invalid contents
+     * @throws IOException when the manifest cannot be read or has invalid contents
      */
     public Builder addEntry(ModuleEntry moduleEntry) throws IOException {
       if (moduleEntry.getPath().equals(MANIFEST_PATH)) {
@@ -205,17 +279,11 @@ public abstract class BundleModule {
           setAndroidManifest(AndroidManifest.create(XmlNode.parseFrom(inputStream)));
         }
       } else if (moduleEntry.getPath().equals(RESOURCES_PROTO_PATH)) {
-        try (InputStream inputStream = moduleEntry.getContent()) {
-          setResourceTable(ResourceTable.parseFrom(inputStream));
-        }
+        setResourceTableSupplier(parseLazily(moduleEntry, ResourceTable.parser()));
       } else if (moduleEntry.getPath().equals(ASSETS_PROTO_PATH)) {
-        try (InputStream inputStream = moduleEntry.getContent()) {
-          setAssetsConfig(Assets.parseFrom(inputStream));
-        }
+        setAssetsConfigSupplier(parseLazily(moduleEntry, Assets.parser()));
       } else if (moduleEntry.getPath().equals(NATIVE_PROTO_PATH)) {
-        try (InputStream inputStream = moduleEntry.getContent()) {
-          setNativeConfig(NativeLibraries.parseFrom(inputStream));
-        }
+        setNativeConfigSupplier(parseLazily(moduleEntry, NativeLibraries.parser()));
       } else if (!moduleEntry.isDirectory()) {
         entryMapBuilder().put(moduleEntry.getPath(), moduleEntry);
       }
@@ -224,5 +292,24 @@ public abstract class BundleModule {
     }
 
     public abstract BundleModule build();
+
+    /** Returns a thread-safe supplier parsing the entry once, when first invoked. */
+    private static <T> Supplier<T> parseLazily(ModuleEntry moduleEntry, Parser<T> parser) {
+      return Suppliers.memoize(
+          () -> {
+            try (InputStream inputStream = moduleEntry.getContent()) {
+              return parser.parseFrom(inputStream);
+            } catch (InvalidProtocolBufferException e) {
+              throw ValidationException.builder()
+                  .withCause(e)
+                  .withMessage("Error parsing the module file '%s'.", moduleEntry.getPath())
+                  .build();
+            } catch (IOException e) {
+              throw new UncheckedIOException(
+                  String.format("Error while reading the module file '%s'.", moduleEntry.getPath()),
+                  e);
+            }
+          });
+    }
   }
 }
@@ -24,6 +24,7 @@ import static java.util.stream.Collectors.partitioningBy;
 import com.google.common.collect.ImmutableList;
 import java.io.InputStream;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
@@ -132,6 +133,11 @@ public class ClassesDexNameSanitizer {
       throw new UnsupportedOperationException();
     }
 
+    @Override
+    public Optional<ContentFingerprint> getContentFingerprint() {
+      return moduleEntry.getContentFingerprint();
+    }
+
     @Override
     public boolean equals(Object obj) {
       if (!(obj instanceof ModuleEntry)) {
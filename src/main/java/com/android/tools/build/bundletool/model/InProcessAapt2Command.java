@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import static com.android.tools.build.bundletool.model.BundleModule.MANIFEST_FILENAME;
+
+import com.android.aapt.Resources.XmlNode;
+import com.android.tools.build.bundletool.utils.files.BufferedIo;
+import com.android.tools.build.bundletool.utils.xmlproto.BinaryXmlEncoder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * {@link Aapt2Command} converting proto APKs to binary in-process when possible, without spawning
+ * an aapt2 process.
+ *
+ * <p>Only APKs whose sole entry is the AndroidManifest.xml are converted in-process (e.g. splits of
+ * native libraries, assets or dex files). The manifest is encoded with {@link BinaryXmlEncoder}, so
+ * the binary XML is identical to the one aapt2 would produce. All other APKs, as well as manifests
+ * that {@link BinaryXmlEncoder} cannot encode, are converted by the fallback command.
+ */
+final class InProcessAapt2Command implements Aapt2Command {
+
+  private final Aapt2Command fallbackCommand;
+
+  InProcessAapt2Command(Aapt2Command fallbackCommand) {
+    this.fallbackCommand = fallbackCommand;
+  }
+
+  /**
+   * Returns the identity of the fallback command with its own tag, as the manifests are encoded by
+   * bundletool rather than by aapt2.
+   */
+  @Override
+  public Optional<String> getIdentity() {
+    return fallbackCommand.getIdentity().map(identity -> "in-process+" + identity);
+  }
+
+  @Override
+  public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+    Optional<byte[]> binaryManifest = encodeManifestOnlyApk(protoApk);
+    if (!binaryManifest.isPresent()) {
+      fallbackCommand.convertApkProtoToBinary(protoApk, binaryApk);
+      return;
+    }
+
+    try (ZipOutputStream zipOutputStream =
+        new ZipOutputStream(BufferedIo.outputStream(binaryApk))) {
+      zipOutputStream.setLevel(Deflater.BEST_COMPRESSION);
+      zipOutputStream.putNextEntry(new ZipEntry(MANIFEST_FILENAME));
+      zipOutputStream.write(binaryManifest.get());
+      zipOutputStream.closeEntry();
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while writing the binary APK '%s'.", binaryApk), e);
+    }
+  }
+
+  /**
+   * Returns the binary manifest of the given proto APK, or empty if the APK contains other entries
+   * or if the manifest cannot be encoded in-process.
+   */
+  private static Optional<byte[]> encodeManifestOnlyApk(Path protoApk) {
+    try (ZipFile zipFile = new ZipFile(protoApk.toFile())) {
+      List<? extends ZipEntry> entries = Collections.list(zipFile.entries());
+      if (entries.size() != 1 || !entries.get(0).getName().equals(MANIFEST_FILENAME)) {
+        return Optional.empty();
+      }
+      XmlNode manifest;
+      try (InputStream inputStream = BufferedIo.inputStream(zipFile, entries.get(0))) {
+        manifest = XmlNode.parseFrom(inputStream);
+      }
+      return BinaryXmlEncoder.canEncode(manifest)
+          ? Optional.of(BinaryXmlEncoder.encode(manifest))
+          : Optional.empty();
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while reading the proto APK '%s'.", protoApk), e);
+    }
+  }
+}
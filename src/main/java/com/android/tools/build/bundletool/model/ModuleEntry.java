@@ -16,9 +16,11 @@
 package com.android.tools.build.bundletool.model;
 
 import com.android.tools.build.bundletool.utils.files.FileUtils;
+import com.google.auto.value.AutoValue;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.util.Optional;
 
 /** Represents an entry in a an App Bundle's module. */
 public interface ModuleEntry {
@@ -45,8 +47,26 @@ public interface ModuleEntry {
    */
   ModuleEntry setCompression(boolean shouldCompress);
 
-  /** Checks whether the given entries are identical. */
+  /**
+   * Returns a fingerprint of the content of the entry, if it is known without reading the content.
+   *
+   * <p>Entries whose fingerprints differ have different contents.
+   */
+  default Optional<ContentFingerprint> getContentFingerprint() {
+    return Optional.empty();
+  }
+
+  /**
+   * Checks whether the given entries are identical.
+   *
+   * <p>The contents are only compared byte by byte if the entries have the same {@link
+   * #getContentFingerprint() fingerprints}, or if the fingerprint of either entry isn't known.
+   */
   static boolean equal(ModuleEntry entry1, ModuleEntry entry2) {
+    if (entry1 == entry2) {
+      return true;
+    }
+
     if (!entry1.getPath().equals(entry2.getPath())) {
       return false;
     }
@@ -57,6 +77,14 @@ public interface ModuleEntry {
       return true;
     }
 
+    Optional<ContentFingerprint> fingerprint1 = entry1.getContentFingerprint();
+    Optional<ContentFingerprint> fingerprint2 = entry2.getContentFingerprint();
+    if (fingerprint1.isPresent()
+        && fingerprint2.isPresent()
+        && !fingerprint1.get().equals(fingerprint2.get())) {
+      return false;
+    }
+
     try (InputStream inputStream1 = entry1.getContent();
         InputStream inputStream2 = entry2.getContent()) {
       return FileUtils.equalContent(inputStream1, inputStream2);
@@ -68,4 +96,21 @@ public interface ModuleEntry {
           e);
     }
   }
+
+  /**
+   * Size and CRC-32 of the content of an entry, as recorded in a zip file.
+   *
+   * <p>Different fingerprints mean different contents, but equal fingerprints don't guarantee equal
+   * contents.
+   */
+  @AutoValue
+  abstract class ContentFingerprint {
+    public abstract long getSize();
+
+    public abstract long getCrc32();
+
+    public static ContentFingerprint create(long size, long crc32) {
+      return new AutoValue_ModuleEntry_ContentFingerprint(size, crc32);
+    }
+  }
 }
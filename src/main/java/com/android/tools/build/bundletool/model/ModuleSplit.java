@@ -43,8 +43,6 @@ import com.android.bundle.Targeting.VulkanVersion;
 import com.android.tools.build.bundletool.utils.ResourcesUtils;
 import com.android.tools.build.bundletool.utils.Versions;
 import com.google.auto.value.AutoValue;
-import com.google.common.base.Predicate;
-import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.protobuf.Int32Value;
@@ -260,14 +258,17 @@ public abstract class ModuleSplit {
    * Creates a {@link ModuleSplit} with all entries from the {@link BundleModule} valid directories.
    */
   public static ModuleSplit forModule(BundleModule bundleModule) {
-    return fromBundleModule(bundleModule, Predicates.alwaysTrue(), /* setResourceTable= */ true);
+    return fromBundleModule(
+        bundleModule,
+        ImmutableList.copyOf(bundleModule.getEntries()),
+        /* setResourceTable= */ true);
   }
 
   /** Creates a {@link ModuleSplit} only with the resources entries with empty targeting. */
   public static ModuleSplit forResources(BundleModule bundleModule) {
     return fromBundleModule(
         bundleModule,
-        entry -> entry.getPath().startsWith(RESOURCES_DIRECTORY),
+        bundleModule.findEntriesUnderPath(RESOURCES_DIRECTORY).collect(toImmutableList()),
         /* setResourceTable= */ true);
   }
 
@@ -275,7 +276,7 @@ public abstract class ModuleSplit {
   public static ModuleSplit forAssets(BundleModule bundleModule) {
     return fromBundleModule(
         bundleModule,
-        entry -> entry.getPath().startsWith(ASSETS_DIRECTORY),
+        bundleModule.findEntriesUnderPath(ASSETS_DIRECTORY).collect(toImmutableList()),
         /* setResourceTable= */ false);
   }
 
@@ -283,42 +284,35 @@ public abstract class ModuleSplit {
   public static ModuleSplit forNativeLibraries(BundleModule bundleModule) {
     return fromBundleModule(
         bundleModule,
-        entry -> entry.getPath().startsWith(LIB_DIRECTORY),
+        bundleModule.findEntriesUnderPath(LIB_DIRECTORY).collect(toImmutableList()),
         /* setResourceTable= */ false);
   }
 
   public static ModuleSplit forDex(BundleModule bundleModule) {
     return fromBundleModule(
         bundleModule,
-        entry -> entry.getPath().startsWith(DEX_DIRECTORY),
+        bundleModule.findEntriesUnderPath(DEX_DIRECTORY).collect(toImmutableList()),
         /* setResourceTable= */ false);
   }
 
   public static ModuleSplit forRoot(BundleModule bundleModule) {
     return fromBundleModule(
         bundleModule,
-        entry -> entry.getPath().startsWith(ROOT_DIRECTORY),
+        bundleModule.findEntriesUnderPath(ROOT_DIRECTORY).collect(toImmutableList()),
         /* setResourceTable= */ false);
   }
 
   /**
-   * Creates a {@link ModuleSplit} with entries from the Bundle Module satisfying the predicate.
+   * Creates a {@link ModuleSplit} with the given entries from the Bundle Module.
    *
    * <p>The created instance is not standalone thus its variant targets L+ devices initially.
    */
   private static ModuleSplit fromBundleModule(
-      BundleModule bundleModule,
-      Predicate<ModuleEntry> entriesPredicate,
-      boolean setResourceTable) {
+      BundleModule bundleModule, ImmutableList<ModuleEntry> entries, boolean setResourceTable) {
     ModuleSplit.Builder splitBuilder =
         builder()
             .setModuleName(bundleModule.getName())
-            .setEntries(
-                bundleModule
-                    .getEntries()
-                    .stream()
-                    .filter(entriesPredicate)
-                    .collect(toImmutableList()))
+            .setEntries(entries)
             .setAndroidManifest(bundleModule.getAndroidManifest())
             // Initially each split is master split.
             .setMasterSplit(true)
@@ -16,12 +16,16 @@
 package com.android.tools.build.bundletool.model;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 
+import com.android.tools.build.bundletool.utils.MappedZipFile;
 import com.android.tools.build.bundletool.utils.files.BufferedIo;
 import com.google.auto.value.AutoValue;
+import com.google.auto.value.extension.memoized.Memoized;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.util.Optional;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -30,6 +34,9 @@ import java.util.zip.ZipFile;
  *
  * <p>It is the responsibility of the caller to ensure that the referenced {@link ZipFile} stays
  * opened for the lifetime of the {@link ModuleZipEntry} instance.
+ *
+ * <p>When the zip file is also {@link MappedZipFile mapped in memory}, the content is read from the
+ * mapping, which unlike {@link ZipFile} can be read concurrently from multiple threads.
  */
 @AutoValue
 public abstract class ModuleZipEntry implements ModuleEntry {
@@ -38,6 +45,9 @@ public abstract class ModuleZipEntry implements ModuleEntry {
 
   abstract ZipFile getZipFile();
 
+  /** The same entry in the memory-mapped zip file, if the zip file is mapped. */
+  abstract Optional<MappedZipFile.Entry> getMappedEntry();
+
   /**
    * Expresses how many path names of {@link #getZipEntry()} need to be skipped in order to produce
    * a path that is relative to the module directory.
@@ -60,6 +70,9 @@ public abstract class ModuleZipEntry implements ModuleEntry {
 
   @Override
   public InputStream getContent() {
+    if (getMappedEntry().isPresent()) {
+      return getMappedEntry().get().getContent();
+    }
     try {
       return BufferedIo.inputStream(getZipFile(), getZipEntry());
     } catch (IOException e) {
@@ -68,7 +81,57 @@ public abstract class ModuleZipEntry implements ModuleEntry {
     }
   }
 
+  /**
+   * Returns whether the raw data of the entry, as stored in the zip file, can be read with {@link
+   * #getRawContent()}.
+   */
+  public boolean isRawContentAvailable() {
+    return getMappedEntry().isPresent();
+  }
+
+  /**
+   * Returns the raw data of the entry as stored in the zip file, i.e. the deflated bytes if the
+   * entry is {@link #isDeflatedInZip() deflated}, without inflating them.
+   */
+  public InputStream getRawContent() {
+    checkState(
+        isRawContentAvailable(),
+        "Raw content of the entry '%s' is not available.",
+        getZipEntry().getName());
+    return getMappedEntry().get().getRawContent();
+  }
+
+  /** Whether the entry is deflated in the zip file, as opposed to stored uncompressed. */
+  public boolean isDeflatedInZip() {
+    return getZipEntry().getMethod() == ZipEntry.DEFLATED;
+  }
+
+  /** CRC-32 of the uncompressed content of the entry. */
+  public long getCrc32() {
+    return getZipEntry().getCrc();
+  }
+
+  /** Size of the raw data of the entry in the zip file. */
+  public long getCompressedSize() {
+    return getZipEntry().getCompressedSize();
+  }
+
+  /** Size of the uncompressed content of the entry. */
+  public long getUncompressedSize() {
+    return getZipEntry().getSize();
+  }
+
+  /** Returns the size and CRC-32 of the content recorded in the zip file, if known. */
   @Override
+  public Optional<ContentFingerprint> getContentFingerprint() {
+    if (getZipEntry().getSize() == -1 || getZipEntry().getCrc() == -1) {
+      return Optional.empty();
+    }
+    return Optional.of(ContentFingerprint.create(getZipEntry().getSize(), getZipEntry().getCrc()));
+  }
+
+  @Override
+  @Memoized
   public ZipPath getPath() {
     ZipPath path = ZipPath.create(getZipEntry().getName());
     return path.subpath(getPathNamesToSkip(), path.getNameCount());
@@ -84,22 +147,39 @@ public abstract class ModuleZipEntry implements ModuleEntry {
     if (shouldCompress == shouldCompress()) {
       return this;
     }
-    return create(getZipEntry(), getZipFile(), getPathNamesToSkip(), shouldCompress);
+    return create(
+        getZipEntry(), getZipFile(), getMappedEntry(), getPathNamesToSkip(), shouldCompress);
   }
 
   /** Constructs a {@link ModuleEntry} for {@link ZipEntry} contained in a bundle zip file. */
   public static ModuleZipEntry fromBundleZipEntry(ZipEntry zipEntry, ZipFile zipFile) {
-    return create(zipEntry, zipFile, /* pathNamesToSkip= */ 1, /* shouldCompress= */ true);
+    return fromBundleZipEntry(zipEntry, zipFile, Optional.empty());
+  }
+
+  /**
+   * Constructs a {@link ModuleEntry} for {@link ZipEntry} contained in a bundle zip file, whose
+   * content is read from the given entry of the memory-mapped bundle if present.
+   */
+  public static ModuleZipEntry fromBundleZipEntry(
+      ZipEntry zipEntry, ZipFile zipFile, Optional<MappedZipFile.Entry> mappedEntry) {
+    return create(
+        zipEntry, zipFile, mappedEntry, /* pathNamesToSkip= */ 1, /* shouldCompress= */ true);
   }
 
   /** Constructs a {@link ModuleEntry} for {@link ZipEntry} contained in a module zip file. */
   public static ModuleZipEntry fromModuleZipEntry(ZipEntry zipEntry, ZipFile zipFile) {
-    return create(zipEntry, zipFile, /* pathNamesToSkip= */ 0, /* shouldCompress= */ true);
+    return create(
+        zipEntry, zipFile, Optional.empty(), /* pathNamesToSkip= */ 0, /* shouldCompress= */ true);
   }
 
   private static ModuleZipEntry create(
-      ZipEntry zipEntry, ZipFile zipFile, int pathNamesToSkip, boolean shouldCompress) {
+      ZipEntry zipEntry,
+      ZipFile zipFile,
+      Optional<MappedZipFile.Entry> mappedEntry,
+      int pathNamesToSkip,
+      boolean shouldCompress) {
     checkArgument(ZipPath.create(zipEntry.getName()).getNameCount() > pathNamesToSkip);
-    return new AutoValue_ModuleZipEntry(zipEntry, zipFile, pathNamesToSkip, shouldCompress);
+    return new AutoValue_ModuleZipEntry(
+        zipEntry, zipFile, mappedEntry, pathNamesToSkip, shouldCompress);
   }
 }
@@ -21,10 +21,9 @@ import static com.google.common.base.Preconditions.checkState;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
-import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ObjectArrays;
-import com.google.common.collect.Ordering;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
@@ -37,6 +36,7 @@ import java.nio.file.WatchService;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.stream.IntStream;
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nullable;
 
@@ -44,6 +44,10 @@ import javax.annotation.Nullable;
  * Path to an entry in a zip file.
  *
  * <p>The separator will always be a forward slash ("/") regardless of the platform being used.
+ *
+ * <p>The names of the path are interned, so that they can be compared by reference, and derived
+ * paths (eg. {@link #getParent()}, {@link #subpath(int, int)}, {@link #getName(int)}) share the
+ * names of the path they are derived from instead of copying and validating them again.
  */
 public final class ZipPath implements Path {
 
@@ -51,37 +55,45 @@ public final class ZipPath implements Path {
   private static final Splitter SPLITTER = Splitter.on(SEPARATOR).omitEmptyStrings();
   private static final Joiner JOINER = Joiner.on(SEPARATOR);
   private static final ImmutableSet<String> FORBIDDEN_NAMES = ImmutableSet.of(".", "..");
+  private static final Interner<String> NAME_INTERNER = Interners.newWeakInterner();
 
   public static final ZipPath ROOT = ZipPath.create("");
 
   /**
-   * List of parts of the path separated by the separator.
+   * Interned parts of the path separated by the separator, possibly shared with other paths.
    *
-   * <p>Note that this list can be empty when denoting the root of the zip.
+   * <p>Only the {@code nameCount} names starting at {@code offset} belong to this path. Note that
+   * there can be no names when denoting the root of the zip.
    */
-  protected final String[] names;
+  private final String[] names;
+
+  private final int offset;
+  private final int nameCount;
 
   // Cached hash code.
   private transient int hashCode;
 
-  private ZipPath(List<String> names) {
-    this(names.toArray(new String[0]));
-  }
+  // Cached string representation.
+  @Nullable private transient String pathString;
 
-  private ZipPath(String[] names) {
-    Arrays.stream(names)
-        .forEach(
-            name ->
-                checkArgument(
-                    !FORBIDDEN_NAMES.contains(name),
-                    "Name '%s' is not supported inside path.",
-                    name));
+  /** Creates a path from names which are already validated and interned. */
+  private ZipPath(String[] names, int offset, int nameCount) {
     this.names = names;
+    this.offset = offset;
+    this.nameCount = nameCount;
   }
 
   public static ZipPath create(String path) {
     checkNotNull(path, "Path cannot be null.");
-    return new ZipPath(SPLITTER.splitToList(path));
+    List<String> names = SPLITTER.splitToList(path);
+    String[] internedNames = new String[names.size()];
+    for (int i = 0; i < internedNames.length; i++) {
+      String name = names.get(i);
+      checkArgument(
+          !FORBIDDEN_NAMES.contains(name), "Name '%s' is not supported inside path.", name);
+      internedNames[i] = NAME_INTERNER.intern(name);
+    }
+    return new ZipPath(internedNames, 0, internedNames.length);
   }
 
   @Override
@@ -89,7 +101,16 @@ public final class ZipPath implements Path {
   public ZipPath resolve(Path p) {
     checkNotNull(p, "Path cannot be null.");
     ZipPath path = (ZipPath) p;
-    return new ZipPath(ObjectArrays.concat(names, path.names, String.class));
+    if (path.nameCount == 0) {
+      return this;
+    }
+    if (nameCount == 0) {
+      return path;
+    }
+    String[] resolvedNames = new String[nameCount + path.nameCount];
+    System.arraycopy(names, offset, resolvedNames, 0, nameCount);
+    System.arraycopy(path.names, path.offset, resolvedNames, nameCount, path.nameCount);
+    return new ZipPath(resolvedNames, 0, resolvedNames.length);
   }
 
   @Override
@@ -102,7 +123,7 @@ public final class ZipPath implements Path {
   @CheckReturnValue
   public ZipPath resolveSibling(Path path) {
     checkNotNull(path, "Path cannot be null.");
-    checkState(names.length > 0, "Root has not sibling.");
+    checkState(nameCount > 0, "Root has not sibling.");
     return getParent().resolve(path);
   }
 
@@ -115,25 +136,28 @@ public final class ZipPath implements Path {
   @Override
   @CheckReturnValue
   public ZipPath subpath(int from, int to) {
-    checkArgument(from >= 0 && from < names.length);
-    checkArgument(to >= 0 && to <= names.length);
+    checkArgument(from >= 0 && from < nameCount);
+    checkArgument(to >= 0 && to <= nameCount);
     checkArgument(from < to);
-    return new ZipPath(Arrays.copyOfRange(names, from, to));
+    if (from == 0 && to == nameCount) {
+      return this;
+    }
+    return new ZipPath(names, offset + from, to - from);
   }
 
   @Override
   @Nullable
   @CheckReturnValue
   public ZipPath getParent() {
-    if (names.length == 0) {
+    if (nameCount == 0) {
       return null;
     }
-    return new ZipPath(Arrays.copyOf(names, names.length - 1));
+    return new ZipPath(names, offset, nameCount - 1);
   }
 
   @Override
   public int getNameCount() {
-    return names.length;
+    return nameCount;
   }
 
   @Override
@@ -143,19 +167,28 @@ public final class ZipPath implements Path {
 
   @Override
   public ZipPath getName(int index) {
-    checkArgument(index >= 0 && index < names.length);
-    return ZipPath.create(names[index]);
+    checkArgument(index >= 0 && index < nameCount);
+    if (nameCount == 1) {
+      return this;
+    }
+    return new ZipPath(names, offset + index, 1);
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Since names are interned, the cost is proportional to the number of names of the given
+   * path, eg. constant for top-level directories such as "res" or "lib".
+   */
   @Override
   public boolean startsWith(Path p) {
     ZipPath path = (ZipPath) p;
-    if (path.getNameCount() > getNameCount()) {
+    if (path.nameCount > nameCount) {
       return false;
     }
 
-    for (int i = 0; i < path.getNameCount(); i++) {
-      if (!path.names[i].equals(names[i])) {
+    for (int i = 0; i < path.nameCount; i++) {
+      if (path.names[path.offset + i] != names[offset + i]) {
         return false;
       }
     }
@@ -165,18 +198,24 @@ public final class ZipPath implements Path {
 
   @Override
   public boolean startsWith(String p) {
+    if (!p.contains(SEPARATOR)) {
+      // Avoids creating a path for the common case of a top-level directory.
+      return p.isEmpty() || (nameCount > 0 && names[offset].equals(p));
+    }
     return startsWith(ZipPath.create(p));
   }
 
   @Override
   public boolean endsWith(Path p) {
     ZipPath path = (ZipPath) p;
-    if (path.getNameCount() > getNameCount()) {
+    if (path.nameCount > nameCount) {
       return false;
     }
 
-    for (int i = 0; i < path.getNameCount(); i++) {
-      if (!path.names[path.names.length - i - 1].equals(names[names.length - i - 1])) {
+    int lastIndex = offset + nameCount - 1;
+    int otherLastIndex = path.offset + path.nameCount - 1;
+    for (int i = 0; i < path.nameCount; i++) {
+      if (path.names[otherLastIndex - i] != names[lastIndex - i]) {
         return false;
       }
     }
@@ -192,36 +231,47 @@ public final class ZipPath implements Path {
   @Override
   public int hashCode() {
     if (hashCode == 0) {
-      hashCode = Arrays.hashCode(names);
+      int result = 1;
+      for (int i = offset; i < offset + nameCount; i++) {
+        result = 31 * result + names[i].hashCode();
+      }
+      hashCode = result;
     }
     return hashCode;
   }
 
   @Override
-  public boolean equals(Object path) {
-    if (!(path instanceof ZipPath)) {
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ZipPath)) {
       return false;
     }
-    return Arrays.equals(names, ((ZipPath) path).names);
+    ZipPath path = (ZipPath) o;
+    return nameCount == path.nameCount && startsWith(path);
   }
 
   @Override
   public int compareTo(Path other) {
     ZipPath path = (ZipPath) other;
-    ComparisonChain chain = ComparisonChain.start();
-    for (int i = 0; i < Math.max(getNameCount(), path.getNameCount()); i++) {
-      chain =
-          chain.compare(
-              i < names.length ? names[i] : null,
-              i < path.names.length ? path.names[i] : null,
-              Ordering.natural().nullsFirst());
+    for (int i = 0; i < Math.min(nameCount, path.nameCount); i++) {
+      String name = names[offset + i];
+      String otherName = path.names[path.offset + i];
+      if (name != otherName) {
+        return name.compareTo(otherName);
+      }
     }
-    return chain.result();
+    // A path is ordered before the paths it is a prefix of.
+    return Integer.compare(nameCount, path.nameCount);
   }
 
   @Override
   public String toString() {
-    return JOINER.join(names);
+    if (pathString == null) {
+      pathString = JOINER.join(Arrays.asList(names).subList(offset, offset + nameCount));
+    }
+    return pathString;
   }
 
   @Override
@@ -232,7 +282,7 @@ public final class ZipPath implements Path {
 
   @Override
   public Iterator<Path> iterator() {
-    return Arrays.stream(names).map(name -> (Path) ZipPath.create(name)).iterator();
+    return IntStream.range(0, nameCount).mapToObj(i -> (Path) getName(i)).iterator();
   }
 
   @Override
@@ -27,8 +27,12 @@ import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import com.android.bundle.Targeting.ApkTargeting;
 import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.mergers.D8DexMerger;
+import com.android.tools.build.bundletool.mergers.DexMerger;
 import com.android.tools.build.bundletool.mergers.ModuleSplitsToShardMerger;
 import com.android.tools.build.bundletool.mergers.SameTargetingMerger;
+import com.android.tools.build.bundletool.metrics.BuildMetrics;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Counter;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Span;
 import com.android.tools.build.bundletool.model.BundleMetadata;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ModuleSplit;
@@ -38,6 +42,8 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Set;
@@ -54,10 +60,41 @@ public class BundleSharder {
 
   private final Path globalTempDir;
   private final Version bundleVersion;
+  private final ListeningExecutorService executorService;
+  private final DexMerger dexMerger;
+  private final BuildMetrics metrics;
 
   public BundleSharder(Path globalTempDir, Version bundleVersion) {
+    this(globalTempDir, bundleVersion, MoreExecutors.newDirectExecutorService(), new D8DexMerger());
+  }
+
+  /**
+   * Creates a sharder which fuses the shards in parallel on the given executor service, merging
+   * dex files with the given merger.
+   */
+  public BundleSharder(
+      Path globalTempDir,
+      Version bundleVersion,
+      ListeningExecutorService executorService,
+      DexMerger dexMerger) {
+    this(globalTempDir, bundleVersion, executorService, dexMerger, BuildMetrics.NO_OP);
+  }
+
+  /**
+   * Creates a sharder which fuses the shards in parallel on the given executor service, and
+   * reports the time spent in each phase and the dex merges to the given {@link BuildMetrics}.
+   */
+  public BundleSharder(
+      Path globalTempDir,
+      Version bundleVersion,
+      ListeningExecutorService executorService,
+      DexMerger dexMerger,
+      BuildMetrics metrics) {
     this.globalTempDir = globalTempDir;
     this.bundleVersion = bundleVersion;
+    this.executorService = executorService;
+    this.dexMerger = instrument(dexMerger, metrics);
+    this.metrics = metrics;
   }
 
   /**
@@ -88,19 +125,37 @@ public class BundleSharder {
     checkArgument(!modules.isEmpty(), "At least one module is required.");
 
     // Generate a flat list of splits from all input modules.
-    ImmutableList<ModuleSplit> moduleSplits =
-        modules
-            .stream()
-            .flatMap(module -> generateSplits(module, shardingDimensions).stream())
-            .collect(toImmutableList());
+    ImmutableList<ModuleSplit> moduleSplits;
+    try (Span span = metrics.startSpan("generate-shard-splits")) {
+      moduleSplits =
+          modules
+              .stream()
+              .flatMap(module -> generateSplits(module, shardingDimensions).stream())
+              .collect(toImmutableList());
+    }
 
     // Each sublist below represents a collection of splits targeting a specific device
     // configuration.
     ImmutableList<ImmutableList<ModuleSplit>> unfusedShards = groupSplitsToShards(moduleSplits);
 
     // Fuse each group of splits into a sharded APK.
-    return new ModuleSplitsToShardMerger(new D8DexMerger(), globalTempDir)
-        .merge(unfusedShards, bundleMetadata);
+    try (Span span = metrics.startSpan("merge-shards")) {
+      return new ModuleSplitsToShardMerger(dexMerger, globalTempDir, executorService)
+          .merge(unfusedShards, bundleMetadata);
+    }
+  }
+
+  /** Wraps the dex merger to report each merge to the metrics. */
+  private static DexMerger instrument(DexMerger dexMerger, BuildMetrics metrics) {
+    if (!metrics.isEnabled()) {
+      return dexMerger;
+    }
+    return (dexFiles, outputDir, mainDexListFile, isDebuggable, minSdkVersion) -> {
+      try (Span span = metrics.startSpan("merge-dex")) {
+        metrics.incrementCounter(Counter.DEX_MERGES);
+        return dexMerger.merge(dexFiles, outputDir, mainDexListFile, isDebuggable, minSdkVersion);
+      }
+    };
   }
 
   private ImmutableList<ModuleSplit> generateSplits(
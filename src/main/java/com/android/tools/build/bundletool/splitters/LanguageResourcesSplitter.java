@@ -33,7 +33,6 @@ import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Iterables;
 import java.util.Set;
 
 /**
@@ -161,12 +160,19 @@ public class LanguageResourcesSplitter extends SplitterForOneTargetingDimension
    * @return the entry containing only config values specific to the given language
    */
   private static Entry filterEntryForLanguage(Entry initialEntry, String targetLanguage) {
-    Iterable<ConfigValue> filteredConfigValues =
-        Iterables.filter(
-            initialEntry.getConfigValueList(),
-            configValue ->
-                convertLocaleToLanguage(configValue.getConfig().getLocale())
-                    .equals(targetLanguage));
+    ImmutableList<ConfigValue> filteredConfigValues =
+        initialEntry
+            .getConfigValueList()
+            .stream()
+            .filter(
+                configValue ->
+                    convertLocaleToLanguage(configValue.getConfig().getLocale())
+                        .equals(targetLanguage))
+            .collect(toImmutableList());
+    if (filteredConfigValues.size() == initialEntry.getConfigValueCount()) {
+      // Return the same instance so that the unchanged entry is shared with the original table.
+      return initialEntry;
+    }
     return initialEntry
         .toBuilder()
         .clearConfigValue()
@@ -19,7 +19,6 @@ package com.android.tools.build.bundletool.splitters;
 import static com.android.tools.build.bundletool.utils.ResourcesUtils.DEFAULT_DENSITY_VALUE;
 import static com.android.tools.build.bundletool.utils.ResourcesUtils.MIPMAP_TYPE;
 import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static java.util.stream.Collectors.groupingBy;
 
@@ -33,17 +32,18 @@ import com.android.bundle.Targeting.ScreenDensity;
 import com.android.bundle.Targeting.ScreenDensity.DensityAlias;
 import com.android.bundle.Targeting.ScreenDensityTargeting;
 import com.android.tools.build.bundletool.model.ModuleSplit;
-import com.android.tools.build.bundletool.model.PackageTypeEntry;
 import com.android.tools.build.bundletool.targeting.ScreenDensitySelector;
 import com.android.tools.build.bundletool.utils.ResourcesUtils;
 import com.android.tools.build.bundletool.version.Version;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -85,9 +85,15 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
       return ImmutableList.of(split);
     }
 
+    // The config values of each entry are grouped and matched against all density buckets at once,
+    // so that building the table of each bucket only consists in looking up the filtered entries.
+    Map<Entry, ImmutableMap<DensityAlias, Entry>> filteredEntriesByDensity =
+        filterEntriesForAllDensities(resourceTable.get());
+
     ImmutableList.Builder<ModuleSplit> splitsBuilder = new ImmutableList.Builder<>();
     for (DensityAlias density : densityBuckets) {
-      ResourceTable optimizedTable = filterResourceTableForDensity(resourceTable.get(), density);
+      ResourceTable optimizedTable =
+          filterResourceTableForDensity(resourceTable.get(), density, filteredEntriesByDensity);
       // Don't generate empty splits.
       if (optimizedTable.equals(ResourceTable.getDefaultInstance())) {
         continue;
@@ -114,7 +120,7 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
       splitsBuilder.add(moduleSplitBuilder.build());
     }
 
-    ModuleSplit defaultResourcesSplit = getDefaultResourcesSplit(split, splitsBuilder.build());
+    ModuleSplit defaultResourcesSplit = getDefaultResourcesSplit(split, filteredEntriesByDensity);
     return splitsBuilder.add(defaultResourcesSplit).build();
   }
 
@@ -124,9 +130,10 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
 
   /** Creates resources split with no extra targeting with all other unclaimed resource entries. */
   private ModuleSplit getDefaultResourcesSplit(
-      ModuleSplit inputSplit, ImmutableCollection<ModuleSplit> densitySplits) {
+      ModuleSplit inputSplit,
+      Map<Entry, ImmutableMap<DensityAlias, Entry>> filteredEntriesByDensity) {
     ResourceTable defaultSplitTable =
-        getResourceTableForDefaultSplit(inputSplit, getClaimedConfigs(densitySplits));
+        getResourceTableForDefaultSplit(inputSplit, filteredEntriesByDensity);
     return inputSplit
         .toBuilder()
         .setEntries(ModuleSplit.filterResourceEntries(inputSplit.getEntries(), defaultSplitTable))
@@ -134,82 +141,98 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
         .build();
   }
 
-  private ImmutableMultimap<PackageTypeEntry, ConfigValue> getClaimedConfigs(
-      Iterable<ModuleSplit> moduleSplits) {
-    ImmutableMultimap.Builder<PackageTypeEntry, ConfigValue> result =
-        new ImmutableMultimap.Builder<>();
-    for (ModuleSplit moduleSplit : moduleSplits) {
-      checkState(
-          moduleSplit.getResourceTable().isPresent(),
-          "Resource table not found in the density split.");
-      for (Package pkg : moduleSplit.getResourceTable().get().getPackageList()) {
-        for (Type type : pkg.getTypeList()) {
-          for (Entry entry : type.getEntryList()) {
-            for (ConfigValue configValue : entry.getConfigValueList()) {
-              result.put(PackageTypeEntry.create(pkg, type, entry), configValue);
-            }
-          }
-        }
-      }
-    }
-    return result.build();
-  }
-
   /**
    * Returns a resource table for master split.
    *
    * <p>It will be stripped of any entries claimed by the config splits.
    */
-  private ResourceTable getResourceTableForDefaultSplit(
-      ModuleSplit split, ImmutableMultimap<PackageTypeEntry, ConfigValue> claimedConfigs) {
+  private static ResourceTable getResourceTableForDefaultSplit(
+      ModuleSplit split, Map<Entry, ImmutableMap<DensityAlias, Entry>> filteredEntriesByDensity) {
     checkArgument(
         split.getResourceTable().isPresent(), "Expected the split to contain Resource Table.");
-    ResourceTable.Builder prunedTable = split.getResourceTable().get().toBuilder();
-    for (Package.Builder packageBuilder : prunedTable.getPackageBuilderList()) {
-      for (Type.Builder typeBuilder : packageBuilder.getTypeBuilderList()) {
-        List<Entry> newEntries = new ArrayList<>();
-        for (Entry entry : typeBuilder.getEntryList()) {
-          ImmutableList<ConfigValue> allConfigsExceptClaimed =
-              entry
-                  .getConfigValueList()
-                  .stream()
-                  .filter(
-                      configValue ->
-                          !claimedConfigs.containsEntry(
-                              PackageTypeEntry.create(packageBuilder, typeBuilder, entry),
-                              configValue))
-                  .collect(toImmutableList());
-          Entry.Builder newEntry =
-              entry.toBuilder().clearConfigValue().addAllConfigValue(allConfigsExceptClaimed);
-          if (newEntry.getConfigValueCount() > 0) { // if everything was claimed we skip the entry.
-            newEntries.add(newEntry.build());
-          }
-        }
-        typeBuilder.clearEntry().addAllEntry(newEntries);
-      }
+    return ResourcesUtils.filterResourceTable(
+        split.getResourceTable().get(),
+        /* removeTypePredicate= */ type -> false,
+        /* configValuesFilterFn= */ entry ->
+            filteredEntriesByDensity.containsKey(entry)
+                ? removeClaimedConfigValues(entry, filteredEntriesByDensity.get(entry).values())
+                : entry);
+  }
+
+  /**
+   * Removes from the entry the config values claimed by any of the density splits.
+   *
+   * <p>The entries of the density splits share their {@link ConfigValue} instances with the
+   * original entry, so the claimed config values are looked up by identity rather than by hashing
+   * and comparing the protos.
+   */
+  private static Entry removeClaimedConfigValues(
+      Entry entry, Collection<Entry> filteredEntriesForDensities) {
+    Set<ConfigValue> claimedConfigValues = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (Entry filteredEntry : filteredEntriesForDensities) {
+      claimedConfigValues.addAll(filteredEntry.getConfigValueList());
+    }
+    if (claimedConfigValues.isEmpty()) {
+      return entry;
     }
-    return prunedTable.build();
+    // An entry whose config values were all claimed is then removed from the table.
+    return entry
+        .toBuilder()
+        .clearConfigValue()
+        .addAllConfigValue(
+            entry
+                .getConfigValueList()
+                .stream()
+                .filter(configValue -> !claimedConfigValues.contains(configValue))
+                .collect(toImmutableList()))
+        .build();
   }
 
-  private ResourceTable filterResourceTableForDensity(ResourceTable input, DensityAlias density) {
+  private static ResourceTable filterResourceTableForDensity(
+      ResourceTable input,
+      DensityAlias density,
+      Map<Entry, ImmutableMap<DensityAlias, Entry>> filteredEntriesByDensity) {
     return ResourcesUtils.filterResourceTable(
         input,
         // Put mipmaps into the master split.
-        /* removeTypePredicate= */ type -> type.getName().equals(MIPMAP_TYPE),
-        /* configValuesFilterFn= */ entry -> filterEntryForDensity(entry, density));
+        /* removeTypePredicate= */ ScreenDensityResourcesSplitter::isMipmapType,
+        /* configValuesFilterFn= */ entry -> filteredEntriesByDensity.get(entry).get(density));
   }
 
   /**
-   * Only leaves the density specific config values optimized for a given density.
+   * Filters each entry of the table for all density buckets in a single pass.
+   *
+   * @return for each entry instance of the table, except mipmaps, the entry filtered for each
+   *     density bucket
+   */
+  private Map<Entry, ImmutableMap<DensityAlias, Entry>> filterEntriesForAllDensities(
+      ResourceTable table) {
+    // Entries are compared by identity: hashing the protos would traverse all their content.
+    Map<Entry, ImmutableMap<DensityAlias, Entry>> filteredEntries = new IdentityHashMap<>();
+    for (Package pkg : table.getPackageList()) {
+      for (Type type : pkg.getTypeList()) {
+        if (isMipmapType(type)) {
+          continue;
+        }
+        for (Entry entry : type.getEntryList()) {
+          filteredEntries.put(entry, filterEntryForAllDensities(entry));
+        }
+      }
+    }
+    return filteredEntries;
+  }
+
+  /**
+   * For each density bucket, only leaves the density specific config values optimized for it.
    *
    * <p>As any other resource qualifiers can be requested when delivering resources, the algorithm
-   * chooses the best match only within group of resources differing by density only.
+   * chooses the best match only within group of resources differing by density only. The groups
+   * are computed once for all density buckets.
    *
    * @param initialEntry the entry to be updated
-   * @param targetDensity the desired density to match
-   * @return the entry with the best matching density config values.
+   * @return for each density bucket, the entry with the best matching density config values
    */
-  private Entry filterEntryForDensity(Entry initialEntry, DensityAlias targetDensity) {
+  private ImmutableMap<DensityAlias, Entry> filterEntryForAllDensities(Entry initialEntry) {
     // Groups together configs that only differ on density.
     Map<Configuration, List<ConfigValue>> configValuesByConfiguration =
         initialEntry
@@ -231,9 +254,20 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
 
     ImmutableList<List<ConfigValue>> densityGroups =
         ImmutableList.copyOf(configValuesByConfiguration.values());
-    ImmutableList<ConfigValue> valuesToKeep =
-        pickBestDensityForEachGroup(densityGroups, targetDensity);
-    return initialEntry.toBuilder().clearConfigValue().addAllConfigValue(valuesToKeep).build();
+    ImmutableMap.Builder<DensityAlias, Entry> entryByDensity = ImmutableMap.builder();
+    for (DensityAlias targetDensity : densityBuckets) {
+      ImmutableList<ConfigValue> valuesToKeep =
+          pickBestDensityForEachGroup(densityGroups, targetDensity);
+      if (valuesToKeep.isEmpty()) {
+        // An entry without config values is removed from the table of the density bucket.
+        entryByDensity.put(targetDensity, Entry.getDefaultInstance());
+      } else {
+        entryByDensity.put(
+            targetDensity,
+            initialEntry.toBuilder().clearConfigValue().addAllConfigValue(valuesToKeep).build());
+      }
+    }
+    return entryByDensity.build();
   }
 
   /** For each density group, it picks the best match for a given desired densityAlias. */
@@ -257,6 +291,10 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
     return Sets.difference(splitByDensities, ImmutableSet.of(densityAlias));
   }
 
+  private static boolean isMipmapType(Type type) {
+    return type.getName().equals(MIPMAP_TYPE);
+  }
+
   private static Configuration clearDensity(Configuration source) {
     return source.toBuilder().clearDensity().build();
   }
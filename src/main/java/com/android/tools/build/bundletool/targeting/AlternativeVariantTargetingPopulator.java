@@ -27,9 +27,11 @@ import com.android.bundle.Targeting.SdkVersion;
 import com.android.bundle.Targeting.VariantTargeting;
 import com.android.tools.build.bundletool.model.GeneratedApks;
 import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
@@ -58,6 +60,43 @@ public abstract class AlternativeVariantTargetingPopulator<T extends Message> {
     return GeneratedApks.fromModuleSplits(moduleSplits);
   }
 
+  /**
+   * Same as {@link #populateAlternativeVariantTargeting(GeneratedApks)}, but operates directly on
+   * the variant targeting of the APKs, grouped by split type.
+   *
+   * <p>The order of the variant targeting values within each split type is preserved.
+   */
+  public static ImmutableListMultimap<SplitType, VariantTargeting>
+      populateAlternativeVariantTargeting(
+          ImmutableListMultimap<SplitType, VariantTargeting> variantTargetingBySplitType) {
+    ImmutableList<VariantTargeting> standaloneTargeting =
+        new AbiAlternativesPopulator()
+            .addAlternativeVariantTargetingInternal(
+                variantTargetingBySplitType.get(SplitType.STANDALONE));
+    standaloneTargeting =
+        new ScreenDensityAlternativesPopulator()
+            .addAlternativeVariantTargetingInternal(standaloneTargeting);
+
+    ImmutableList<VariantTargeting> splitTargeting =
+        variantTargetingBySplitType.get(SplitType.SPLIT);
+    ImmutableList<VariantTargeting> splitAndStandaloneTargeting =
+        new SdkVersionAlternativesPopulator()
+            .addAlternativeVariantTargetingInternal(
+                ImmutableList.<VariantTargeting>builder()
+                    .addAll(splitTargeting)
+                    .addAll(standaloneTargeting)
+                    .build());
+
+    return ImmutableListMultimap.<SplitType, VariantTargeting>builder()
+        .putAll(
+            SplitType.STANDALONE,
+            splitAndStandaloneTargeting.subList(
+                splitTargeting.size(), splitAndStandaloneTargeting.size()))
+        .putAll(SplitType.SPLIT, splitAndStandaloneTargeting.subList(0, splitTargeting.size()))
+        .putAll(SplitType.INSTANT, variantTargetingBySplitType.get(SplitType.INSTANT))
+        .build();
+  }
+
   /**
    * See AlternativeVariantTargetingPopulator#addAlternativeVariantTargeting(ImmutableList...)
    *
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableMap;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Read-only zip file mapped in memory, whose entries can be read concurrently without locking.
+ *
+ * <p>Unlike {@link ZipFile}, which serializes all reads on the instance, the central directory is
+ * parsed once into an index and each read is served from an independent view of the mapped file.
+ *
+ * <p>ZIP64 archives and files larger than 2 GiB are not supported: {@link #open} returns an empty
+ * result for them and the caller is expected to fall back to {@link ZipFile}.
+ *
+ * <p>The mapping is released when the instance is garbage collected, which on some platforms
+ * prevents the file from being deleted in the meantime.
+ */
+public final class MappedZipFile {
+
+  private static final int EOCD_SIGNATURE = 0x06054b50;
+  private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int EOCD_SIZE = 22;
+  private static final int MAX_EOCD_COMMENT_SIZE = 0xffff;
+  private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final long ZIP64_MARKER = 0xffffffffL;
+
+  private final ImmutableMap<String, Entry> entriesByName;
+
+  private MappedZipFile(ImmutableMap<String, Entry> entriesByName) {
+    this.entriesByName = entriesByName;
+  }
+
+  /**
+   * Maps the given zip file in memory and indexes its entries.
+   *
+   * @return the mapped file, or empty if the zip file isn't supported
+   * @throws IOException if the file cannot be read
+   */
+  public static Optional<MappedZipFile> open(Path zipPath) throws IOException {
+    ByteBuffer mappedFile;
+    try (FileChannel channel = FileChannel.open(zipPath, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        return Optional.empty();
+      }
+      mappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      mappedFile.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    try {
+      return readEntries(mappedFile).map(MappedZipFile::new);
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      // Malformed zip file: let the caller report the error with ZipFile.
+      return Optional.empty();
+    }
+  }
+
+  /** Returns the entry with the given name, if present. */
+  public Optional<Entry> getEntry(String name) {
+    return Optional.ofNullable(entriesByName.get(name));
+  }
+
+  /** Returns all the entries, in the order of the central directory. */
+  public ImmutableCollection<Entry> getEntries() {
+    return entriesByName.values();
+  }
+
+  /** Returns the number of entries. */
+  public int size() {
+    return entriesByName.size();
+  }
+
+  private static Optional<ImmutableMap<String, Entry>> readEntries(ByteBuffer mappedFile) {
+    int eocdOffset = findEndOfCentralDirectory(mappedFile);
+    if (eocdOffset < 0) {
+      return Optional.empty();
+    }
+    int entryCount = Short.toUnsignedInt(mappedFile.getShort(eocdOffset + 10));
+    long centralDirectoryOffset = Integer.toUnsignedLong(mappedFile.getInt(eocdOffset + 16));
+    if (entryCount == 0xffff || centralDirectoryOffset == ZIP64_MARKER) {
+      return Optional.empty();
+    }
+
+    ImmutableMap.Builder<String, Entry> entries = ImmutableMap.builder();
+    int position = (int) centralDirectoryOffset;
+    for (int i = 0; i < entryCount; i++) {
+      if (mappedFile.getInt(position) != CENTRAL_DIRECTORY_SIGNATURE) {
+        return Optional.empty();
+      }
+      int method = Short.toUnsignedInt(mappedFile.getShort(position + 10));
+      long crc32 = Integer.toUnsignedLong(mappedFile.getInt(position + 16));
+      long compressedSize = Integer.toUnsignedLong(mappedFile.getInt(position + 20));
+      long uncompressedSize = Integer.toUnsignedLong(mappedFile.getInt(position + 24));
+      int nameLength = Short.toUnsignedInt(mappedFile.getShort(position + 28));
+      int extraLength = Short.toUnsignedInt(mappedFile.getShort(position + 30));
+      int commentLength = Short.toUnsignedInt(mappedFile.getShort(position + 32));
+      long localHeaderOffset = Integer.toUnsignedLong(mappedFile.getInt(position + 42));
+      if (compressedSize == ZIP64_MARKER
+          || uncompressedSize == ZIP64_MARKER
+          || localHeaderOffset == ZIP64_MARKER
+          || (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)) {
+        return Optional.empty();
+      }
+      String name = readName(mappedFile, position + CENTRAL_DIRECTORY_HEADER_SIZE, nameLength);
+
+      // The data starts after the local header, whose extra field may differ from the one in the
+      // central directory.
+      int localHeader = (int) localHeaderOffset;
+      if (mappedFile.getInt(localHeader) != LOCAL_HEADER_SIGNATURE) {
+        return Optional.empty();
+      }
+      long dataOffset =
+          localHeaderOffset
+              + LOCAL_HEADER_SIZE
+              + Short.toUnsignedInt(mappedFile.getShort(localHeader + 26))
+              + Short.toUnsignedInt(mappedFile.getShort(localHeader + 28));
+      if (dataOffset + compressedSize > mappedFile.capacity()) {
+        return Optional.empty();
+      }
+
+      entries.put(
+          name,
+          new Entry(
+              mappedFile,
+              name,
+              method == ZipEntry.DEFLATED,
+              crc32,
+              (int) dataOffset,
+              (int) compressedSize,
+              uncompressedSize));
+      position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return Optional.of(entries.build());
+  }
+
+  /** Returns the offset of the End Of Central Directory record, or -1 if not found. */
+  private static int findEndOfCentralDirectory(ByteBuffer mappedFile) {
+    int minOffset = Math.max(0, mappedFile.capacity() - EOCD_SIZE - MAX_EOCD_COMMENT_SIZE);
+    for (int offset = mappedFile.capacity() - EOCD_SIZE; offset >= minOffset; offset--) {
+      if (mappedFile.getInt(offset) == EOCD_SIGNATURE) {
+        return offset;
+      }
+    }
+    return -1;
+  }
+
+  private static String readName(ByteBuffer mappedFile, int offset, int length) {
+    byte[] name = new byte[length];
+    ByteBuffer view = mappedFile.duplicate();
+    view.position(offset);
+    view.get(name);
+    return new String(name, UTF_8);
+  }
+
+  /** An entry of a {@link MappedZipFile}. */
+  public static final class Entry {
+    private final ByteBuffer mappedFile;
+    private final String name;
+    private final boolean deflated;
+    private final long crc32;
+    private final int dataOffset;
+    private final int compressedSize;
+    private final long uncompressedSize;
+
+    private Entry(
+        ByteBuffer mappedFile,
+        String name,
+        boolean deflated,
+        long crc32,
+        int dataOffset,
+        int compressedSize,
+        long uncompressedSize) {
+      this.mappedFile = mappedFile;
+      this.name = name;
+      this.deflated = deflated;
+      this.crc32 = crc32;
+      this.dataOffset = dataOffset;
+      this.compressedSize = compressedSize;
+      this.uncompressedSize = uncompressedSize;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** Whether the entry is deflated, as opposed to stored uncompressed. */
+    public boolean isDeflated() {
+      return deflated;
+    }
+
+    /** CRC-32 of the uncompressed content of the entry. */
+    public long getCrc32() {
+      return crc32;
+    }
+
+    /** Size of the raw data of the entry. */
+    public long getCompressedSize() {
+      return compressedSize;
+    }
+
+    /** Size of the uncompressed content of the entry. */
+    public long getUncompressedSize() {
+      return uncompressedSize;
+    }
+
+    /**
+     * Returns a read-only view of the raw data of the entry, i.e. the deflated bytes if the entry
+     * is deflated.
+     *
+     * <p>Each invocation returns a new view, so views can be used concurrently from different
+     * threads.
+     */
+    public ByteBuffer getRawData() {
+      ByteBuffer view = mappedFile.duplicate();
+      view.position(dataOffset);
+      view.limit(dataOffset + compressedSize);
+      return view.slice().asReadOnlyBuffer();
+    }
+
+    /** Returns a {@link ZipEntry} with the name, method, CRC-32 and sizes of this entry. */
+    public ZipEntry toZipEntry() {
+      ZipEntry zipEntry = new ZipEntry(name);
+      zipEntry.setMethod(deflated ? ZipEntry.DEFLATED : ZipEntry.STORED);
+      zipEntry.setCrc(crc32);
+      zipEntry.setSize(uncompressedSize);
+      zipEntry.setCompressedSize(compressedSize);
+      return zipEntry;
+    }
+
+    /** Opens a stream on the raw data of the entry. */
+    public InputStream getRawContent() {
+      return new ByteBufferInputStream(getRawData());
+    }
+
+    /** Opens a stream on the uncompressed content of the entry. */
+    public InputStream getContent() {
+      return deflated ? new EntryInflaterInputStream(getRawContent()) : getRawContent();
+    }
+  }
+
+  /** Stream reading the remaining bytes of a {@link ByteBuffer}. */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? Byte.toUnsignedInt(buffer.get()) : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long count) {
+      int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+
+  /** Inflates raw deflated data, releasing the native resources of the inflater when closed. */
+  private static final class EntryInflaterInputStream extends InflaterInputStream {
+    private boolean eof = false;
+    private boolean closed = false;
+
+    EntryInflaterInputStream(InputStream rawContent) {
+      super(rawContent, new Inflater(/* nowrap= */ true));
+    }
+
+    @Override
+    protected void fill() throws IOException {
+      if (eof) {
+        throw new EOFException("Unexpected end of zip entry.");
+      }
+      len = in.read(buf, 0, buf.length);
+      if (len == -1) {
+        // The inflater needs an extra dummy byte when the "nowrap" option is used.
+        buf[0] = 0;
+        len = 1;
+        eof = true;
+      }
+      inf.setInput(buf, 0, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        inf.end();
+        super.close();
+      }
+    }
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.android.tools.build.bundletool.utils;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.common.collect.MoreCollectors.toOptional;
 
@@ -27,11 +28,16 @@ import com.android.aapt.Resources.Type;
 import com.android.bundle.Targeting.ScreenDensity;
 import com.android.bundle.Targeting.ScreenDensity.DensityAlias;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
 import java.util.Set;
@@ -83,12 +89,23 @@ public final class ResourcesUtils {
           .put(DensityAlias.XXXHDPI, XXXHDPI_VALUE)
           .build();
 
+  /** Cache of the file references of the resource tables, compared by identity. */
+  private static final LoadingCache<ResourceTable, ImmutableSet<ZipPath>> FILE_REFERENCES_CACHE =
+      CacheBuilder.newBuilder()
+          .weakKeys()
+          .build(CacheLoader.from(ResourcesUtils::computeAllFileReferences));
+
   /**
    * Filters the given resource table according to the specified criteria.
    *
    * <p>If any of {@link Package}, {@link Type} or {@link Entry} is empty after the filtering, it
    * gets removed from the table altogether.
    *
+   * <p>The filtered table shares the messages which are left unchanged by the filtering with the
+   * original table, and only the messages containing changes are rebuilt. An entry is considered
+   * unchanged if {@code configValuesFilterFn} returns the same instance, and the original table
+   * is returned if nothing was filtered out.
+   *
    * @param originalTable the original resource table
    * @param removeTypePredicate determines whether a type should be completely removed, regardless
    *     of its contents
@@ -100,40 +117,60 @@ public final class ResourcesUtils {
       ResourceTable originalTable,
       Predicate<Type> removeTypePredicate,
       Function<Entry, Entry> configValuesFilterFn) {
+    ImmutableList<Package> filteredPackages =
+        originalTable
+            .getPackageList()
+            .stream()
+            .map(pkg -> filterPackage(pkg, removeTypePredicate, configValuesFilterFn))
+            .filter(pkg -> pkg.getTypeCount() > 0)
+            .collect(toImmutableList());
+    if (isUnchanged(originalTable.getPackageList(), filteredPackages)) {
+      return originalTable;
+    }
+    return originalTable.toBuilder().clearPackage().addAllPackage(filteredPackages).build();
+  }
 
-    ResourceTable.Builder filteredTable = originalTable.toBuilder();
-
-    for (int pkgIdx = filteredTable.getPackageCount() - 1; pkgIdx >= 0; pkgIdx--) {
-      Package.Builder pkg = filteredTable.getPackageBuilder(pkgIdx);
-
-      for (int typeIdx = pkg.getTypeCount() - 1; typeIdx >= 0; typeIdx--) {
-        if (removeTypePredicate.test(pkg.getType(typeIdx))) {
-          pkg.removeType(typeIdx);
-          continue;
-        }
-        Type.Builder type = pkg.getTypeBuilder(typeIdx);
-
-        for (int entryIdx = type.getEntryCount() - 1; entryIdx >= 0; entryIdx--) {
-          Entry entry = type.getEntry(entryIdx);
-          Entry filteredEntry = configValuesFilterFn.apply(entry);
-          if (filteredEntry.getConfigValueCount() > 0) {
-            type.setEntry(entryIdx, filteredEntry);
-          } else {
-            type.removeEntry(entryIdx);
-          }
-        } // entries
+  private static Package filterPackage(
+      Package pkg,
+      Predicate<Type> removeTypePredicate,
+      Function<Entry, Entry> configValuesFilterFn) {
+    ImmutableList<Type> filteredTypes =
+        pkg.getTypeList()
+            .stream()
+            .filter(type -> !removeTypePredicate.test(type))
+            .map(type -> filterType(type, configValuesFilterFn))
+            .filter(type -> type.getEntryCount() > 0)
+            .collect(toImmutableList());
+    if (isUnchanged(pkg.getTypeList(), filteredTypes)) {
+      return pkg;
+    }
+    return pkg.toBuilder().clearType().addAllType(filteredTypes).build();
+  }
 
-        if (type.getEntryCount() == 0) {
-          pkg.removeType(typeIdx);
-        }
-      } // types
+  private static Type filterType(Type type, Function<Entry, Entry> configValuesFilterFn) {
+    ImmutableList<Entry> filteredEntries =
+        type.getEntryList()
+            .stream()
+            .map(configValuesFilterFn)
+            .filter(entry -> entry.getConfigValueCount() > 0)
+            .collect(toImmutableList());
+    if (isUnchanged(type.getEntryList(), filteredEntries)) {
+      return type;
+    }
+    return type.toBuilder().clearEntry().addAllEntry(filteredEntries).build();
+  }
 
-      if (pkg.getTypeCount() == 0) {
-        filteredTable.removePackage(pkgIdx);
+  /** Returns whether the filtered messages are the same instances as the original messages. */
+  private static <T> boolean isUnchanged(List<T> originalMessages, List<T> filteredMessages) {
+    if (originalMessages.size() != filteredMessages.size()) {
+      return false;
+    }
+    for (int i = 0; i < originalMessages.size(); i++) {
+      if (originalMessages.get(i) != filteredMessages.get(i)) {
+        return false;
       }
-    } // packages
-
-    return filteredTable.build();
+    }
+    return true;
   }
 
   public static Set<Integer> resourceIds(
@@ -174,7 +211,17 @@ public final class ResourcesUtils {
     return entries(resourceTable).map(Entry::getConfigValueList).flatMap(Collection::stream);
   }
 
+  /**
+   * Returns the paths of the files referenced by the resource table.
+   *
+   * <p>The result is computed once per resource table instance, since the same tables are looked
+   * up repeatedly when splitting modules.
+   */
   public static ImmutableSet<ZipPath> getAllFileReferences(ResourceTable resourceTable) {
+    return FILE_REFERENCES_CACHE.getUnchecked(resourceTable);
+  }
+
+  private static ImmutableSet<ZipPath> computeAllFileReferences(ResourceTable resourceTable) {
     return configValues(resourceTable)
         .filter(configValue -> configValue.getValue().getItem().hasFile())
         .map(configValue -> ZipPath.create(configValue.getValue().getItem().getFile().getPath()))
@@ -0,0 +1,628 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.utils.xmlproto;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.aapt.Resources.Item;
+import com.android.aapt.Resources.Primitive;
+import com.android.aapt.Resources.Reference;
+import com.android.aapt.Resources.XmlAttribute;
+import com.android.aapt.Resources.XmlElement;
+import com.android.aapt.Resources.XmlNamespace;
+import com.android.aapt.Resources.XmlNode;
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.UnsignedBytes;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Encodes an {@link XmlNode} into the Android binary XML format.
+ *
+ * <p>The output mirrors what aapt2 produces for the AndroidManifest.xml when converting a proto APK
+ * to binary: strings are encoded in UTF-16, raw attribute values are kept and the attribute names
+ * with a resource ID are placed first in the string pool, followed by the resource map.
+ *
+ * <p>Only a subset of the XML proto format is supported, see {@link #canEncode(XmlNode)}.
+ */
+public final class BinaryXmlEncoder {
+
+  private static final short RES_STRING_POOL_TYPE = 0x0001;
+  private static final short RES_XML_TYPE = 0x0003;
+  private static final short RES_XML_START_NAMESPACE_TYPE = 0x0100;
+  private static final short RES_XML_END_NAMESPACE_TYPE = 0x0101;
+  private static final short RES_XML_START_ELEMENT_TYPE = 0x0102;
+  private static final short RES_XML_END_ELEMENT_TYPE = 0x0103;
+  private static final short RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+
+  private static final int CHUNK_HEADER_SIZE = 8;
+  private static final int XML_NODE_HEADER_SIZE = 16;
+  private static final int STRING_POOL_HEADER_SIZE = 28;
+  private static final int XML_ATTR_EXT_SIZE = 20;
+  private static final int XML_ATTRIBUTE_SIZE = 20;
+  private static final int RES_VALUE_SIZE = 8;
+
+  private static final byte TYPE_NULL = 0x00;
+  private static final byte TYPE_REFERENCE = 0x01;
+  private static final byte TYPE_ATTRIBUTE = 0x02;
+  private static final byte TYPE_STRING = 0x03;
+  private static final byte TYPE_FLOAT = 0x04;
+  private static final byte TYPE_DYNAMIC_REFERENCE = 0x07;
+  private static final byte TYPE_DYNAMIC_ATTRIBUTE = 0x08;
+  private static final byte TYPE_INT_DEC = 0x10;
+  private static final byte TYPE_INT_HEX = 0x11;
+  private static final byte TYPE_INT_BOOLEAN = 0x12;
+  private static final byte TYPE_INT_COLOR_ARGB8 = 0x1c;
+  private static final byte TYPE_INT_COLOR_RGB8 = 0x1d;
+  private static final byte TYPE_INT_COLOR_ARGB4 = 0x1e;
+  private static final byte TYPE_INT_COLOR_RGB4 = 0x1f;
+
+  private static final int DATA_NULL_EMPTY = 1;
+  private static final int NO_ENTRY = -1;
+
+  private static final int ID_ATTRIBUTE_RESOURCE_ID = 0x010100d0;
+  private static final int FRAMEWORK_PACKAGE_ID = 0x01;
+  private static final int APP_PACKAGE_ID = 0x7f;
+
+  /** Priority of the strings which are not attribute names with a resource ID. */
+  private static final int LOWEST_PRIORITY = 0xffffffff;
+
+  private static final String TOOLS_NAMESPACE_URI = "http://schemas.android.com/tools";
+
+  /** Characters which aapt2 would interpret (escapes, quotes) when processing a raw value. */
+  private static final CharMatcher ESCAPE_CHARACTERS = CharMatcher.anyOf("\\\"'");
+
+  /** Whitespace characters as defined by {@code isspace} in the C locale. */
+  private static final CharMatcher WHITESPACE = CharMatcher.anyOf(" \t\n\u000b\f\r");
+
+  /** Whitespace characters other than spaces, which aapt2 collapses into a single space. */
+  private static final CharMatcher NON_SPACE_WHITESPACE = CharMatcher.anyOf("\t\n\u000b\f\r");
+
+  private static final Comparator<XmlAttribute> ATTRIBUTE_ORDER =
+      (a, b) -> {
+        boolean aHasId = isValidResourceId(a.getResourceId());
+        boolean bHasId = isValidResourceId(b.getResourceId());
+        if (aHasId && bHasId) {
+          return Integer.compareUnsigned(a.getResourceId(), b.getResourceId());
+        } else if (aHasId != bHasId) {
+          return aHasId ? -1 : 1;
+        }
+        int namespaceComparison = compareUtf8(a.getNamespaceUri(), b.getNamespaceUri());
+        return namespaceComparison != 0
+            ? namespaceComparison
+            : compareUtf8(a.getName(), b.getName());
+      };
+
+  private final Buffer buffer = new Buffer();
+  private final Map<StringKey, StringEntry> lowPriorityStrings = new HashMap<>();
+  /** Strings with a resource ID as priority, grouped by package ID. */
+  private final TreeMap<Integer, Map<StringKey, StringEntry>> stringsByPackageId = new TreeMap<>();
+  /** String references in the nodes, to be filled once the string pool is sorted. */
+  private final List<StringReference> stringReferences = new ArrayList<>();
+
+  private BinaryXmlEncoder() {}
+
+  /**
+   * Returns whether the given XML can be encoded by this class.
+   *
+   * <p>Documents are supported if their root is an element, they contain no text other than
+   * whitespace, and their attributes are either uncompiled plain strings or compiled strings,
+   * references or primitives (except dimensions and fractions).
+   */
+  public static boolean canEncode(XmlNode root) {
+    return root.getNodeCase().equals(XmlNode.NodeCase.ELEMENT) && isSupportedNode(root);
+  }
+
+  /**
+   * Encodes the given XML into the binary XML format.
+   *
+   * @throws IllegalArgumentException if the XML cannot be encoded, see {@link #canEncode(XmlNode)}
+   */
+  public static byte[] encode(XmlNode root) {
+    checkArgument(canEncode(root), "The XML contains constructs that cannot be encoded.");
+    return new BinaryXmlEncoder().encodeDocument(root);
+  }
+
+  private static boolean isSupportedNode(XmlNode node) {
+    switch (node.getNodeCase()) {
+      case ELEMENT:
+        XmlElement element = node.getElement();
+        return element.getAttributeList().stream().allMatch(BinaryXmlEncoder::isSupportedAttribute)
+            && element.getChildList().stream().allMatch(BinaryXmlEncoder::isSupportedNode);
+      case TEXT:
+        return WHITESPACE.matchesAllOf(node.getText());
+      default:
+        return false;
+    }
+  }
+
+  private static boolean isSupportedAttribute(XmlAttribute attribute) {
+    if (!attribute.hasCompiledItem()) {
+      // aapt2 re-processes uncompiled values, which only leaves simple values unchanged.
+      String value = attribute.getValue();
+      return ESCAPE_CHARACTERS.matchesNoneOf(value)
+          && NON_SPACE_WHITESPACE.matchesNoneOf(value)
+          && !value.contains("  ")
+          && value.equals(WHITESPACE.trimFrom(value));
+    }
+    Item item = attribute.getCompiledItem();
+    switch (item.getValueCase()) {
+      case STR:
+      case REF:
+        return true;
+      case PRIM:
+        switch (item.getPrim().getOneofValueCase()) {
+          case NULL_VALUE:
+          case EMPTY_VALUE:
+          case FLOAT_VALUE:
+          case INT_DECIMAL_VALUE:
+          case INT_HEXADECIMAL_VALUE:
+          case BOOLEAN_VALUE:
+          case COLOR_ARGB8_VALUE:
+          case COLOR_RGB8_VALUE:
+          case COLOR_ARGB4_VALUE:
+          case COLOR_RGB4_VALUE:
+            return true;
+          default:
+            return false;
+        }
+      default:
+        return false;
+    }
+  }
+
+  private byte[] encodeDocument(XmlNode root) {
+    // Header of the document, the size is set at the end.
+    buffer.putShort(RES_XML_TYPE);
+    buffer.putShort((short) CHUNK_HEADER_SIZE);
+    buffer.putInt(0);
+
+    Buffer nodes = new Buffer();
+    writeElement(root, nodes);
+
+    ImmutableList<StringEntry> strings = sortStrings();
+    for (StringReference reference : stringReferences) {
+      nodes.putIntAt(reference.position, reference.entry.index);
+    }
+    writeStringPool(strings);
+    writeResourceMap(strings);
+    buffer.putBuffer(nodes);
+    buffer.putIntAt(4, buffer.position());
+    return buffer.toByteArray();
+  }
+
+  private void writeElement(XmlNode node, Buffer out) {
+    XmlElement element = node.getElement();
+    int lineNumber = node.getSource().getLineNumber();
+
+    ImmutableList<XmlNamespace> namespaces =
+        element
+            .getNamespaceDeclarationList()
+            .stream()
+            .filter(namespace -> !namespace.getUri().equals(TOOLS_NAMESPACE_URI))
+            .collect(toImmutableList());
+    for (XmlNamespace namespace : namespaces) {
+      writeNamespace(namespace, RES_XML_START_NAMESPACE_TYPE, out);
+    }
+
+    ImmutableList<XmlAttribute> attributes =
+        element
+            .getAttributeList()
+            .stream()
+            .filter(attribute -> !attribute.getNamespaceUri().equals(TOOLS_NAMESPACE_URI))
+            .sorted(ATTRIBUTE_ORDER)
+            .collect(toImmutableList());
+
+    int startElement = startNode(RES_XML_START_ELEMENT_TYPE, lineNumber, out);
+    putOptionalString(element.getNamespaceUri(), out);
+    putOptionalString(element.getName(), out);
+    out.putShort((short) XML_ATTR_EXT_SIZE);
+    out.putShort((short) XML_ATTRIBUTE_SIZE);
+    out.putShort((short) attributes.size());
+    writeSpecialAttributeIndices(attributes, out);
+    for (XmlAttribute attribute : attributes) {
+      writeAttribute(attribute, out);
+    }
+    endChunk(startElement, out);
+
+    for (XmlNode child : element.getChildList()) {
+      // Only whitespace text is supported, which aapt2 drops.
+      if (child.getNodeCase().equals(XmlNode.NodeCase.ELEMENT)) {
+        writeElement(child, out);
+      }
+    }
+
+    int endElement = startNode(RES_XML_END_ELEMENT_TYPE, lineNumber, out);
+    putOptionalString(element.getNamespaceUri(), out);
+    putString(element.getName(), out);
+    endChunk(endElement, out);
+
+    for (XmlNamespace namespace : namespaces.reverse()) {
+      writeNamespace(namespace, RES_XML_END_NAMESPACE_TYPE, out);
+    }
+  }
+
+  private void writeNamespace(XmlNamespace namespace, short type, Buffer out) {
+    int start = startNode(type, namespace.getSource().getLineNumber(), out);
+    putString(namespace.getPrefix(), out);
+    putString(namespace.getUri(), out);
+    endChunk(start, out);
+  }
+
+  private void writeAttribute(XmlAttribute attribute, Buffer out) {
+    putOptionalString(attribute.getNamespaceUri(), out);
+    if (isValidResourceId(attribute.getResourceId())) {
+      putString(attribute.getName(), attribute.getResourceId(), out);
+    } else {
+      putString(attribute.getName(), out);
+    }
+
+    String rawValue = attribute.getValue();
+    byte dataType = TYPE_STRING;
+    int data = 0;
+    String stringData = null;
+    if (!attribute.hasCompiledItem()) {
+      stringData = rawValue;
+    } else {
+      Item item = attribute.getCompiledItem();
+      switch (item.getValueCase()) {
+        case STR:
+          stringData = item.getStr().getValue();
+          break;
+        case REF:
+          Reference reference = item.getRef();
+          dataType = referenceType(reference);
+          data = reference.getId();
+          break;
+        case PRIM:
+          Primitive primitive = item.getPrim();
+          dataType = primitiveType(primitive);
+          data = primitiveData(primitive);
+          break;
+        default:
+          throw new IllegalStateException("Unsupported value: " + item.getValueCase());
+      }
+    }
+
+    // Raw values are always kept for strings, and for other values only when set.
+    if (stringData != null || !rawValue.isEmpty()) {
+      putString(rawValue, out);
+    } else {
+      out.putInt(NO_ENTRY);
+    }
+    out.putShort((short) RES_VALUE_SIZE);
+    out.putByte((byte) 0);
+    out.putByte(dataType);
+    if (stringData != null) {
+      putString(stringData, out);
+    } else {
+      out.putInt(data);
+    }
+  }
+
+  private static byte referenceType(Reference reference) {
+    int id = reference.getId();
+    int packageId = id >>> 24;
+    boolean dynamic =
+        (id & 0x00ff0000) != 0 && packageId != FRAMEWORK_PACKAGE_ID && packageId != APP_PACKAGE_ID;
+    if (reference.getType().equals(Reference.Type.ATTRIBUTE)) {
+      return dynamic ? TYPE_DYNAMIC_ATTRIBUTE : TYPE_ATTRIBUTE;
+    }
+    return dynamic ? TYPE_DYNAMIC_REFERENCE : TYPE_REFERENCE;
+  }
+
+  private static byte primitiveType(Primitive primitive) {
+    switch (primitive.getOneofValueCase()) {
+      case NULL_VALUE:
+      case EMPTY_VALUE:
+        return TYPE_NULL;
+      case FLOAT_VALUE:
+        return TYPE_FLOAT;
+      case INT_DECIMAL_VALUE:
+        return TYPE_INT_DEC;
+      case INT_HEXADECIMAL_VALUE:
+        return TYPE_INT_HEX;
+      case BOOLEAN_VALUE:
+        return TYPE_INT_BOOLEAN;
+      case COLOR_ARGB8_VALUE:
+        return TYPE_INT_COLOR_ARGB8;
+      case COLOR_RGB8_VALUE:
+        return TYPE_INT_COLOR_RGB8;
+      case COLOR_ARGB4_VALUE:
+        return TYPE_INT_COLOR_ARGB4;
+      case COLOR_RGB4_VALUE:
+        return TYPE_INT_COLOR_RGB4;
+      default:
+        throw new IllegalStateException(
+            "Unsupported primitive: " + primitive.getOneofValueCase());
+    }
+  }
+
+  private static int primitiveData(Primitive primitive) {
+    switch (primitive.getOneofValueCase()) {
+      case NULL_VALUE:
+        return 0;
+      case EMPTY_VALUE:
+        return DATA_NULL_EMPTY;
+      case FLOAT_VALUE:
+        return Float.floatToRawIntBits(primitive.getFloatValue());
+      case INT_DECIMAL_VALUE:
+        return primitive.getIntDecimalValue();
+      case INT_HEXADECIMAL_VALUE:
+        return primitive.getIntHexadecimalValue();
+      case BOOLEAN_VALUE:
+        return primitive.getBooleanValue() ? 0xffffffff : 0;
+      case COLOR_ARGB8_VALUE:
+        return primitive.getColorArgb8Value();
+      case COLOR_RGB8_VALUE:
+        return primitive.getColorRgb8Value();
+      case COLOR_ARGB4_VALUE:
+        return primitive.getColorArgb4Value();
+      case COLOR_RGB4_VALUE:
+        return primitive.getColorRgb4Value();
+      default:
+        throw new IllegalStateException(
+            "Unsupported primitive: " + primitive.getOneofValueCase());
+    }
+  }
+
+  /** Writes the 1-based indices of the "id", "class" and "style" attributes, 0 if absent. */
+  private static void writeSpecialAttributeIndices(
+      ImmutableList<XmlAttribute> attributes, Buffer out) {
+    short idIndex = 0;
+    short classIndex = 0;
+    short styleIndex = 0;
+    for (int i = 0; i < attributes.size(); i++) {
+      XmlAttribute attribute = attributes.get(i);
+      if (attribute.getResourceId() == ID_ATTRIBUTE_RESOURCE_ID) {
+        idIndex = (short) (i + 1);
+      } else if (attribute.getNamespaceUri().isEmpty() && attribute.getName().equals("class")) {
+        classIndex = (short) (i + 1);
+      } else if (attribute.getNamespaceUri().isEmpty() && attribute.getName().equals("style")) {
+        styleIndex = (short) (i + 1);
+      }
+    }
+    out.putShort(idIndex);
+    out.putShort(classIndex);
+    out.putShort(styleIndex);
+  }
+
+  private static int startNode(short type, int lineNumber, Buffer out) {
+    int start = out.position();
+    out.putShort(type);
+    out.putShort((short) XML_NODE_HEADER_SIZE);
+    out.putInt(0);
+    out.putInt(lineNumber);
+    out.putInt(NO_ENTRY);
+    return start;
+  }
+
+  private static void endChunk(int start, Buffer out) {
+    out.align4();
+    out.putIntAt(start + 4, out.position() - start);
+  }
+
+  private void putOptionalString(String value, Buffer out) {
+    if (value.isEmpty()) {
+      out.putInt(NO_ENTRY);
+    } else {
+      putString(value, out);
+    }
+  }
+
+  private void putString(String value, Buffer out) {
+    StringEntry entry =
+        lowPriorityStrings.computeIfAbsent(
+            StringKey.of(value, LOWEST_PRIORITY), key -> new StringEntry(key));
+    stringReferences.add(new StringReference(out.position(), entry));
+    out.putInt(0);
+  }
+
+  private void putString(String value, int resourceId, Buffer out) {
+    StringEntry entry =
+        stringsByPackageId
+            .computeIfAbsent(resourceId >>> 24, packageId -> new HashMap<>())
+            .computeIfAbsent(StringKey.of(value, resourceId), key -> new StringEntry(key));
+    stringReferences.add(new StringReference(out.position(), entry));
+    out.putInt(0);
+  }
+
+  /** Sorts the strings by priority then value, and assigns their index. */
+  private ImmutableList<StringEntry> sortStrings() {
+    List<StringEntry> strings = new ArrayList<>(lowPriorityStrings.values());
+    stringsByPackageId.values().forEach(packageStrings -> strings.addAll(packageStrings.values()));
+    ImmutableList<StringEntry> sortedStrings =
+        strings
+            .stream()
+            .sorted(
+                Comparator.<StringEntry, Integer>comparing(
+                        entry -> entry.key.priority, Integer::compareUnsigned)
+                    .thenComparing(
+                        entry -> entry.key.utf8Value, UnsignedBytes.lexicographicalComparator()))
+            .collect(toImmutableList());
+    for (int i = 0; i < sortedStrings.size(); i++) {
+      sortedStrings.get(i).index = i;
+    }
+    return sortedStrings;
+  }
+
+  private void writeStringPool(ImmutableList<StringEntry> strings) {
+    int start = buffer.position();
+    int stringsStart = STRING_POOL_HEADER_SIZE + 4 * strings.size();
+    buffer.putShort(RES_STRING_POOL_TYPE);
+    buffer.putShort((short) STRING_POOL_HEADER_SIZE);
+    buffer.putInt(0);
+    buffer.putInt(strings.size());
+    buffer.putInt(0); // Style count.
+    buffer.putInt(0); // Flags: UTF-16, not sorted.
+    buffer.putInt(stringsStart);
+    buffer.putInt(0); // Styles start.
+
+    int offsetsStart = buffer.position();
+    for (int i = 0; i < strings.size(); i++) {
+      buffer.putInt(0);
+    }
+    for (int i = 0; i < strings.size(); i++) {
+      buffer.putIntAt(offsetsStart + 4 * i, buffer.position() - start - stringsStart);
+      String value = strings.get(i).key.value;
+      if (value.length() > 0x7fff) {
+        buffer.putShort((short) (0x8000 | (value.length() >>> 16)));
+      }
+      buffer.putShort((short) value.length());
+      for (int j = 0; j < value.length(); j++) {
+        buffer.putShort((short) value.charAt(j));
+      }
+      buffer.putShort((short) 0);
+    }
+    endChunk(start, buffer);
+  }
+
+  private void writeResourceMap(ImmutableList<StringEntry> strings) {
+    int start = buffer.position();
+    buffer.putShort(RES_XML_RESOURCE_MAP_TYPE);
+    buffer.putShort((short) CHUNK_HEADER_SIZE);
+    buffer.putInt(0);
+    for (StringEntry entry : strings) {
+      if (entry.key.priority == LOWEST_PRIORITY) {
+        break;
+      }
+      buffer.putInt(entry.key.priority);
+    }
+    endChunk(start, buffer);
+  }
+
+  private static boolean isValidResourceId(int id) {
+    return (id & 0xff000000) != 0 && (id & 0x00ff0000) != 0;
+  }
+
+  private static int compareUtf8(String a, String b) {
+    return UnsignedBytes.lexicographicalComparator().compare(a.getBytes(UTF_8), b.getBytes(UTF_8));
+  }
+
+  /** A string of the pool, identified by its value and its priority. */
+  private static final class StringKey {
+    private final String value;
+    private final byte[] utf8Value;
+    private final int priority;
+
+    private StringKey(String value, int priority) {
+      this.value = value;
+      this.utf8Value = value.getBytes(UTF_8);
+      this.priority = priority;
+    }
+
+    static StringKey of(String value, int priority) {
+      return new StringKey(value, priority);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof StringKey)) {
+        return false;
+      }
+      StringKey other = (StringKey) o;
+      return value.equals(other.value) && priority == other.priority;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * value.hashCode() + priority;
+    }
+  }
+
+  private static final class StringEntry {
+    private final StringKey key;
+    private int index;
+
+    private StringEntry(StringKey key) {
+      this.key = key;
+    }
+  }
+
+  private static final class StringReference {
+    private final int position;
+    private final StringEntry entry;
+
+    private StringReference(int position, StringEntry entry) {
+      this.position = position;
+      this.entry = entry;
+    }
+  }
+
+  /** Growable little-endian byte buffer. */
+  private static final class Buffer {
+    private ByteBuffer byteBuffer = newByteBuffer(4096);
+
+    int position() {
+      return byteBuffer.position();
+    }
+
+    void putByte(byte value) {
+      ensureCapacity(1).put(value);
+    }
+
+    void putShort(short value) {
+      ensureCapacity(2).putShort(value);
+    }
+
+    void putInt(int value) {
+      ensureCapacity(4).putInt(value);
+    }
+
+    void putIntAt(int position, int value) {
+      byteBuffer.putInt(position, value);
+    }
+
+    void putBuffer(Buffer other) {
+      ensureCapacity(other.position()).put(other.byteBuffer.array(), 0, other.position());
+    }
+
+    void align4() {
+      while (position() % 4 != 0) {
+        putByte((byte) 0);
+      }
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(byteBuffer.array(), position());
+    }
+
+    private ByteBuffer ensureCapacity(int size) {
+      if (byteBuffer.remaining() < size) {
+        ByteBuffer newByteBuffer =
+            newByteBuffer(Math.max(byteBuffer.capacity() * 2, position() + size));
+        newByteBuffer.put(byteBuffer.array(), 0, position());
+        byteBuffer = newByteBuffer;
+      }
+      return byteBuffer;
+    }
+
+    private static ByteBuffer newByteBuffer(int capacity) {
+      return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+}
@@ -20,6 +20,8 @@ import com.android.tools.build.bundletool.exceptions.ValidationException;
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.util.Optional;
 import java.util.zip.ZipFile;
 
 /** Validates the files and configuration for the bundle. */
@@ -52,6 +54,21 @@ public class AppBundleValidator {
           new ModuleTitleValidator(),
           new ResourceTableValidator());
 
+  private final Optional<ListeningExecutorService> executorService;
+
+  /** Creates a validator running the validations sequentially. */
+  public AppBundleValidator() {
+    this.executorService = Optional.empty();
+  }
+
+  /**
+   * Creates a validator running the validations of the bundle concurrently on the given executor
+   * service.
+   */
+  public AppBundleValidator(ListeningExecutorService executorService) {
+    this.executorService = Optional.of(executorService);
+  }
+
   /**
    * Validates the given App Bundle zip file.
    *
@@ -69,6 +86,10 @@ public class AppBundleValidator {
    * @throws ValidationException If the bundle is invalid.
    */
   public void validate(AppBundle bundle) {
-    new ValidatorRunner(BUNDLE_SUB_VALIDATORS).validateBundle(bundle);
+    ValidatorRunner validatorRunner =
+        executorService
+            .map(executor -> new ValidatorRunner(BUNDLE_SUB_VALIDATORS, executor))
+            .orElseGet(() -> new ValidatorRunner(BUNDLE_SUB_VALIDATORS));
+    validatorRunner.validateBundle(bundle);
   }
 }
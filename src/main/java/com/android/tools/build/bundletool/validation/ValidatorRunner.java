@@ -16,24 +16,49 @@
 
 package com.android.tools.build.bundletool.validation;
 
-import static com.google.common.collect.ImmutableList.toImmutableList;
-
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.ConcurrencyUtils;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
-/** Runs given set of validators. */
+/**
+ * Runs given set of validators.
+ *
+ * <p>Each module is validated in a single traversal of its entries, each entry being dispatched to
+ * all the validators. The error reported is nevertheless always the one that running each
+ * validator in turn on the whole bundle would report first: validators are ordered from the most
+ * fundamental checks to the most specific ones.
+ *
+ * <p>If an executor service is given, the validations of the whole bundle by each validator and the
+ * validations of each module are run concurrently. The validators must then be thread-safe, which
+ * is the case since they don't have any state.
+ */
 public class ValidatorRunner {
 
   private final ImmutableList<SubValidator> subValidators;
+  private final Optional<ListeningExecutorService> executorService;
 
   public ValidatorRunner(ImmutableList<SubValidator> subValidators) {
     this.subValidators = subValidators;
+    this.executorService = Optional.empty();
+  }
+
+  public ValidatorRunner(
+      ImmutableList<SubValidator> subValidators, ListeningExecutorService executorService) {
+    this.subValidators = subValidators;
+    this.executorService = Optional.of(executorService);
   }
 
   /** Validates the given App Bundle zip file. */
@@ -55,35 +80,149 @@ public class ValidatorRunner {
 
   /** Validates the given App Bundle. */
   public void validateBundle(AppBundle bundle) {
-    subValidators.forEach(subValidator -> validateBundleUsingSubValidator(bundle, subValidator));
+    ImmutableList<BundleModule> modules = ImmutableList.copyOf(bundle.getModules().values());
+    validate(
+        modules,
+        subValidator -> {
+          subValidator.validateBundle(bundle);
+          subValidator.validateAllModules(modules);
+        });
   }
 
   /** Interprets given modules as a bundle and validates it. */
   public void validateBundleModules(ImmutableList<BundleModule> modules) {
-    subValidators.forEach(
-        subValidator -> validateBundleModulesUsingSubValidator(modules, subValidator));
+    validate(modules, subValidator -> subValidator.validateAllModules(modules));
+  }
+
+  /**
+   * Runs the given validation of the whole bundle by each sub-validator, and validates each module
+   * and its files, then throws the first failure in the order of a sequential run.
+   */
+  private void validate(
+      ImmutableList<BundleModule> modules, Consumer<SubValidator> bundleValidation) {
+    Optional<ValidationFailure> failure =
+        executorService.isPresent()
+            ? validateConcurrently(modules, bundleValidation)
+            : validateSequentially(modules, bundleValidation);
+    if (failure.isPresent()) {
+      throw failure.get().exception;
+    }
+  }
+
+  private Optional<ValidationFailure> validateSequentially(
+      ImmutableList<BundleModule> modules, Consumer<SubValidator> bundleValidation) {
+    // Once a sub-validator failed, only the sub-validators preceding it are run, so each failure
+    // found precedes the previous one.
+    Optional<ValidationFailure> failure = Optional.empty();
+    int validatorCount = subValidators.size();
+    for (int i = 0; i < validatorCount; i++) {
+      failure = validateBundleUsingSubValidator(i, bundleValidation);
+      if (failure.isPresent()) {
+        validatorCount = i;
+      }
+    }
+    for (int moduleIndex = 0; moduleIndex < modules.size(); moduleIndex++) {
+      Optional<ValidationFailure> moduleFailure =
+          validateModule(modules.get(moduleIndex), moduleIndex, validatorCount);
+      if (moduleFailure.isPresent()) {
+        failure = moduleFailure;
+        validatorCount = moduleFailure.get().validatorIndex;
+      }
+    }
+    return failure;
   }
 
-  private static void validateBundleUsingSubValidator(AppBundle bundle, SubValidator subValidator) {
-    subValidator.validateBundle(bundle);
-    validateBundleModulesUsingSubValidator(
-        ImmutableList.copyOf(bundle.getModules().values()), subValidator);
+  private Optional<ValidationFailure> validateConcurrently(
+      ImmutableList<BundleModule> modules, Consumer<SubValidator> bundleValidation) {
+    List<ListenableFuture<Optional<ValidationFailure>>> failures = new ArrayList<>();
+    for (int i = 0; i < subValidators.size(); i++) {
+      int validatorIndex = i;
+      failures.add(
+          executorService
+              .get()
+              .submit(() -> validateBundleUsingSubValidator(validatorIndex, bundleValidation)));
+    }
+    for (int i = 0; i < modules.size(); i++) {
+      BundleModule module = modules.get(i);
+      int moduleIndex = i;
+      failures.add(
+          executorService
+              .get()
+              .submit(() -> validateModule(module, moduleIndex, subValidators.size())));
+    }
+    return ConcurrencyUtils.waitForAll(failures)
+        .stream()
+        .filter(Optional::isPresent)
+        .map(Optional::get)
+        .min(ValidationFailure.SEQUENTIAL_ORDER);
   }
 
-  private static void validateBundleModulesUsingSubValidator(
-      ImmutableList<BundleModule> modules, SubValidator subValidator) {
-    subValidator.validateAllModules(modules);
+  private Optional<ValidationFailure> validateBundleUsingSubValidator(
+      int validatorIndex, Consumer<SubValidator> bundleValidation) {
+    try {
+      bundleValidation.accept(subValidators.get(validatorIndex));
+      return Optional.empty();
+    } catch (RuntimeException e) {
+      return Optional.of(new ValidationFailure(validatorIndex, /* position= */ 0, e));
+    }
+  }
 
-    for (BundleModule module : modules) {
-      subValidator.validateModule(module);
+  /**
+   * Validates the module and its files by the first {@code validatorCount} sub-validators, in a
+   * single traversal of the module entries.
+   *
+   * @return the failure of the first failed sub-validator, if any
+   */
+  private Optional<ValidationFailure> validateModule(
+      BundleModule module, int moduleIndex, int validatorCount) {
+    // A sub-validator which failed and all the following ones are not run anymore, as the failures
+    // of the following sub-validators would come later in a sequential run.
+    int failedValidatorIndex = validatorCount;
+    RuntimeException exception = null;
+    for (int i = 0; i < failedValidatorIndex; i++) {
+      try {
+        subValidators.get(i).validateModule(module);
+      } catch (RuntimeException e) {
+        failedValidatorIndex = i;
+        exception = e;
+      }
+    }
 
-      for (ZipPath moduleFile : getModuleFiles(module)) {
-        subValidator.validateModuleFile(moduleFile);
+    for (ModuleEntry entry : module.getEntries()) {
+      ZipPath moduleFile = entry.getPath();
+      for (int i = 0; i < failedValidatorIndex; i++) {
+        try {
+          subValidators.get(i).validateModuleFile(moduleFile);
+        } catch (RuntimeException e) {
+          failedValidatorIndex = i;
+          exception = e;
+        }
       }
     }
+
+    if (exception == null) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        new ValidationFailure(failedValidatorIndex, /* position= */ moduleIndex + 1, exception));
   }
 
-  private static ImmutableList<ZipPath> getModuleFiles(BundleModule module) {
-    return module.getEntries().stream().map(ModuleEntry::getPath).collect(toImmutableList());
+  /** Exception thrown by a sub-validator, with its position in a sequential run. */
+  private static final class ValidationFailure {
+    static final Comparator<ValidationFailure> SEQUENTIAL_ORDER =
+        Comparator.<ValidationFailure>comparingInt(failure -> failure.validatorIndex)
+            .thenComparingInt(failure -> failure.position);
+
+    private final int validatorIndex;
+    /** 0 for the validation of the whole bundle, then the index of the module plus one. */
+    private final int position;
+
+    private final RuntimeException exception;
+
+    ValidationFailure(int validatorIndex, int position, RuntimeException exception) {
+      this.validatorIndex = validatorIndex;
+      this.position = position;
+      this.exception = exception;
+    }
   }
 }
@@ -22,6 +22,7 @@ import static com.android.tools.build.bundletool.testing.Aapt2Helper.AAPT2_PATH;
 import static com.android.tools.build.bundletool.testing.TestUtils.expectMissingRequiredBuilderPropertyException;
 import static com.android.tools.build.bundletool.testing.TestUtils.expectMissingRequiredFlagException;
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.mock;
@@ -29,7 +30,9 @@ import static org.mockito.Mockito.mock;
 import com.android.tools.build.bundletool.device.AdbServer;
 import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.exceptions.ValidationException;
+import com.android.tools.build.bundletool.metrics.MetricsFormat;
 import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.ApkModifier;
 import com.android.tools.build.bundletool.model.SigningConfiguration;
 import com.android.tools.build.bundletool.testing.Aapt2Helper;
 import com.android.tools.build.bundletool.testing.CertificateFactory;
@@ -222,6 +225,64 @@ public class BuildApksCommandTest {
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
   }
 
+  @Test
+  public void buildingViaFlagsAndBuilderHasSameResult_optionalInProcessManifestConversion()
+      throws Exception {
+    BuildApksCommand commandViaFlags =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--aapt2=" + AAPT2_PATH,
+                    // Optional values.
+                    "--in-process-manifest-conversion"),
+            fakeAdbServer);
+
+    BuildApksCommand commandViaBuilder =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(outputFilePath)
+            // Optional values.
+            .setInProcessManifestConversion(true)
+            // Must copy instance of the internal executor service.
+            .setAapt2Command(commandViaFlags.getAapt2Command().get())
+            .setExecutorServiceInternal(commandViaFlags.getExecutorService())
+            .setExecutorServiceCreatedByBundleTool(true)
+            .build();
+
+    assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
+  }
+
+  @Test
+  public void buildingViaFlagsAndBuilderHasSameResult_optionalPipelinedSerialization()
+      throws Exception {
+    BuildApksCommand commandViaFlags =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--aapt2=" + AAPT2_PATH,
+                    // Optional values.
+                    "--pipelined-serialization"),
+            fakeAdbServer);
+
+    BuildApksCommand commandViaBuilder =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(outputFilePath)
+            // Optional values.
+            .setPipelinedSerialization(true)
+            // Must copy instance of the internal executor service.
+            .setAapt2Command(commandViaFlags.getAapt2Command().get())
+            .setExecutorServiceInternal(commandViaFlags.getExecutorService())
+            .setExecutorServiceCreatedByBundleTool(true)
+            .build();
+
+    assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
+  }
+
   @Test
   public void buildingViaFlagsAndBuilderHasSameResult_optionalOverwrite() throws Exception {
     BuildApksCommand commandViaFlags =
@@ -249,6 +310,36 @@ public class BuildApksCommandTest {
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
   }
 
+  @Test
+  public void buildingViaFlagsAndBuilderHasSameResult_optionalMetrics() throws Exception {
+    Path metricsPath = tmpDir.resolve("metrics.json");
+    BuildApksCommand commandViaFlags =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--aapt2=" + AAPT2_PATH,
+                    // Optional values.
+                    "--metrics-output=" + metricsPath,
+                    "--metrics-format=chrome_trace"),
+            fakeAdbServer);
+    BuildApksCommand commandViaBuilder =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(outputFilePath)
+            // Optional values.
+            .setMetricsOutputPath(metricsPath)
+            .setMetricsFormat(MetricsFormat.CHROME_TRACE)
+            // Must copy instance of the internal executor service.
+            .setAapt2Command(commandViaFlags.getAapt2Command().get())
+            .setExecutorServiceInternal(commandViaFlags.getExecutorService())
+            .setExecutorServiceCreatedByBundleTool(true)
+            .build();
+
+    assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
+  }
+
   @Test
   public void outputNotSet_throws() throws Exception {
     expectMissingRequiredBuilderPropertyException(
@@ -317,6 +408,42 @@ public class BuildApksCommandTest {
         .contains("Cannot generate universal APK and specify optimization dimensions");
   }
 
+  @Test
+  public void pipelinedSerializationWithDeviceSpec_throws() throws Exception {
+    ValidationException exception =
+        assertThrows(
+            ValidationException.class,
+            () ->
+                BuildApksCommand.builder()
+                    .setBundlePath(bundlePath)
+                    .setOutputFile(outputFilePath)
+                    .setAapt2Command(aapt2Command)
+                    .setDeviceSpecPath(tmpDir.resolve("device.json"))
+                    .setPipelinedSerialization(true)
+                    .build());
+    assertThat(exception)
+        .hasMessageThat()
+        .contains("Pipelined serialization is not supported when generating APKs for a specific");
+  }
+
+  @Test
+  public void pipelinedSerializationWithApkModifier_throws() throws Exception {
+    ValidationException exception =
+        assertThrows(
+            ValidationException.class,
+            () ->
+                BuildApksCommand.builder()
+                    .setBundlePath(bundlePath)
+                    .setOutputFile(outputFilePath)
+                    .setAapt2Command(aapt2Command)
+                    .setApkModifier(new ApkModifier() {})
+                    .setPipelinedSerialization(true)
+                    .build());
+    assertThat(exception)
+        .hasMessageThat()
+        .contains("Pipelined serialization is not supported when an ApkModifier is set.");
+  }
+
   @Test
   public void nonPositiveMaxThreads_throws() throws Exception {
     FlagParseException zeroException =
@@ -354,6 +481,75 @@ public class BuildApksCommandTest {
         fakeAdbServer);
   }
 
+  @Test
+  public void aapt2Daemons_createsDaemonPoolSizedToThreads() throws Exception {
+    BuildApksCommand command =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--aapt2=" + AAPT2_PATH,
+                    "--aapt2-daemons",
+                    "--max-threads=3"),
+            fakeAdbServer);
+
+    assertThat(command.getAapt2DaemonPool()).isPresent();
+    assertThat(command.getAapt2Command()).hasValue(command.getAapt2DaemonPool().get());
+    assertThat(command.getAapt2DaemonPool().get().getMaxDaemonCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void aapt2DaemonsWithoutAapt2_throws() throws Exception {
+    CommandExecutionException e =
+        assertThrows(
+            CommandExecutionException.class,
+            () ->
+                BuildApksCommand.fromFlags(
+                    new FlagParser()
+                        .parse(
+                            "--bundle=" + bundlePath,
+                            "--output=" + outputFilePath,
+                            "--aapt2-daemons"),
+                    fakeAdbServer));
+    assertThat(e)
+        .hasMessageThat()
+        .isEqualTo("Flag --aapt2 is required when --aapt2-daemons is set.");
+  }
+
+  @Test
+  public void apkCacheMaxSize_setsMaxSizeOfApkCache() throws Exception {
+    BuildApksCommand command =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--apk-cache-dir=" + tmpDir.resolve("cache"),
+                    "--apk-cache-max-size-mb=10"),
+            fakeAdbServer);
+
+    assertThat(command.getApkCache().get().getMaxSizeBytes()).isEqualTo(10L * 1024 * 1024);
+  }
+
+  @Test
+  public void apkCacheMaxSizeWithoutApkCacheDir_throws() throws Exception {
+    CommandExecutionException e =
+        assertThrows(
+            CommandExecutionException.class,
+            () ->
+                BuildApksCommand.fromFlags(
+                    new FlagParser()
+                        .parse(
+                            "--bundle=" + bundlePath,
+                            "--output=" + outputFilePath,
+                            "--apk-cache-max-size-mb=10"),
+                    fakeAdbServer));
+    assertThat(e)
+        .hasMessageThat()
+        .isEqualTo("Flag --apk-cache-dir is required when --apk-cache-max-size-mb is set.");
+  }
+
   @Test
   public void keyStoreFlags_keyAliasNotSet() {
     CommandExecutionException e =
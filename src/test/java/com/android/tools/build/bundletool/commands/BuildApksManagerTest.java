@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.commands;
+
+import static com.android.tools.build.bundletool.testing.Aapt2Helper.AAPT2_PATH;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifestForFeature;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withFusingAttribute;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withInstant;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withMinSdkVersion;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withTitle;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.TEST_LABEL_RESOURCE_ID;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.resourceTableWithTestLabel;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.nativeDirectoryTargeting;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.nativeLibraries;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.targetedNativeDirectory;
+import static com.android.tools.build.bundletool.utils.FileNames.TABLE_OF_CONTENTS_FILE;
+import static com.google.common.collect.ImmutableMap.toImmutableMap;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.bundle.Commands.BuildApksResult;
+import com.android.tools.build.bundletool.TestData;
+import com.android.tools.build.bundletool.io.AppBundleSerializer;
+import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.Aapt2DaemonPool;
+import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.testing.Aapt2Helper;
+import com.android.tools.build.bundletool.testing.AppBundleBuilder;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BuildApksManagerTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tmpDir;
+
+  @Before
+  public void setUp() throws Exception {
+    tmpDir = tmp.getRoot().toPath();
+  }
+
+  @Test
+  public void pipelinedSerialization_multipleModules_sameApkSet() throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                builder ->
+                    builder
+                        .setManifest(androidManifest("com.test.app", withMinSdkVersion(21)))
+                        .setResourceTable(resourceTableWithTestLabel("Test feature"))
+                        .addFile("dex/classes.dex", TestData.readBytes("testdata/dex/classes.dex"))
+                        .addFile("assets/base.txt"))
+            .addModule(
+                "feature",
+                builder ->
+                    builder
+                        .setManifest(
+                            androidManifestForFeature(
+                                "com.test.app",
+                                withTitle("@string/test_label", TEST_LABEL_RESOURCE_ID)))
+                        .addFile(
+                            "dex/classes.dex", TestData.readBytes("testdata/dex/classes-other.dex"))
+                        .addFile("assets/feature.txt"))
+            .build();
+
+    assertPipelinedSerializationSameApkSet(appBundle);
+  }
+
+  @Test
+  public void pipelinedSerialization_instantModules_sameApkSet() throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                builder ->
+                    builder
+                        .setManifest(
+                            androidManifest(
+                                "com.test.app", withMinSdkVersion(21), withInstant(true)))
+                        .addFile("dex/classes.dex", TestData.readBytes("testdata/dex/classes.dex"))
+                        .addFile("assets/base.txt"))
+            .addModule(
+                "instant_feature",
+                builder ->
+                    builder
+                        .setManifest(
+                            androidManifest(
+                                "com.test.app", withInstant(true), withFusingAttribute(true)))
+                        .addFile(
+                            "dex/classes.dex", TestData.readBytes("testdata/dex/classes-other.dex"))
+                        .addFile("assets/instant.txt"))
+            .addModule(
+                "feature",
+                builder ->
+                    builder
+                        .setManifest(
+                            androidManifest(
+                                "com.test.app", withInstant(false), withFusingAttribute(true)))
+                        .addFile("assets/feature.txt"))
+            .build();
+
+    assertPipelinedSerializationSameApkSet(appBundle);
+  }
+
+  @Test
+  public void pipelinedSerialization_preL_sameApkSet() throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                builder ->
+                    builder
+                        .setManifest(
+                            androidManifest(
+                                "com.test.app", withMinSdkVersion(15), withInstant(true)))
+                        .addFile("dex/classes.dex", TestData.readBytes("testdata/dex/classes.dex"))
+                        .addFile("assets/base.txt"))
+            .addModule(
+                "instant_feature",
+                builder ->
+                    builder
+                        .setManifest(
+                            androidManifest(
+                                "com.test.app", withInstant(true), withFusingAttribute(true)))
+                        .addFile(
+                            "dex/classes.dex", TestData.readBytes("testdata/dex/classes-other.dex"))
+                        .addFile("assets/instant.txt"))
+            .build();
+
+    assertPipelinedSerializationSameApkSet(appBundle);
+  }
+
+  @Test
+  public void inProcessManifestConversion_sameApkSetWithFewerAapt2Conversions() throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                builder ->
+                    builder
+                        .setManifest(androidManifest("com.test.app", withMinSdkVersion(21)))
+                        .setResourceTable(resourceTableWithTestLabel("Test feature"))
+                        .addFile("dex/classes.dex", TestData.readBytes("testdata/dex/classes.dex")))
+            .addModule(
+                "feature",
+                builder ->
+                    builder
+                        .setManifest(
+                            androidManifestForFeature(
+                                "com.test.app",
+                                withTitle("@string/test_label", TEST_LABEL_RESOURCE_ID)))
+                        .addFile(
+                            "dex/classes.dex", TestData.readBytes("testdata/dex/classes-other.dex"))
+                        .addFile("assets/feature.txt"))
+            .build();
+    Path bundlePath = tmpDir.resolve("bundle.aab");
+    new AppBundleSerializer().writeToDisk(appBundle, bundlePath);
+    AtomicInteger aapt2Conversions = new AtomicInteger();
+    AtomicInteger inProcessAapt2Conversions = new AtomicInteger();
+
+    Path apkSet =
+        buildApks(
+            bundlePath,
+            "aapt2.apks",
+            builder -> builder.setAapt2Command(countingAapt2Command(aapt2Conversions)));
+    Path inProcessApkSet =
+        buildApks(
+            bundlePath,
+            "in-process.apks",
+            builder ->
+                builder
+                    .setAapt2Command(countingAapt2Command(inProcessAapt2Conversions))
+                    .setInProcessManifestConversion(true));
+
+    assertSameApkSet(apkSet, inProcessApkSet);
+    // The feature split has no resources, so its manifest is converted in-process.
+    assertThat(inProcessAapt2Conversions.get()).isLessThan(aapt2Conversions.get());
+  }
+
+  @Test
+  public void aapt2DaemonPool_closedAfterExecution() throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                builder ->
+                    builder
+                        .setManifest(androidManifest("com.test.app"))
+                        .setResourceTable(resourceTableWithTestLabel("Test feature")))
+            .build();
+    Path bundlePath = tmpDir.resolve("bundle.aab");
+    new AppBundleSerializer().writeToDisk(appBundle, bundlePath);
+    Aapt2DaemonPool aapt2DaemonPool =
+        Aapt2Command.createDaemonPoolFromExecutablePath(Paths.get(AAPT2_PATH), /* maxDaemons= */ 2);
+
+    BuildApksCommand.builder()
+        .setBundlePath(bundlePath)
+        .setOutputFile(tmpDir.resolve("app.apks"))
+        .setAapt2Command(aapt2DaemonPool)
+        .setAapt2DaemonPool(aapt2DaemonPool)
+        .build()
+        .execute();
+
+    assertThat(aapt2DaemonPool.getRunningDaemonCount()).isEqualTo(0);
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            aapt2DaemonPool.convertApkProtoToBinary(
+                tmpDir.resolve("proto.apk"), tmpDir.resolve("binary.apk")));
+  }
+
+  @Test
+  public void parallelSplitGeneration_sameApkSetAsSequential() throws Exception {
+    AppBundleBuilder appBundleBuilder =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                builder ->
+                    builder
+                        .setManifest(androidManifest("com.test.app", withMinSdkVersion(21)))
+                        .setResourceTable(resourceTableWithTestLabel("Test feature")));
+    for (int i = 0; i < 8; i++) {
+      appBundleBuilder.addModule(
+          "feature" + i,
+          builder ->
+              builder
+                  .setManifest(
+                      androidManifest(
+                          "com.test.app", withInstant(false), withFusingAttribute(true)))
+                  .setNativeConfig(
+                      nativeLibraries(
+                          targetedNativeDirectory("lib/x86", nativeDirectoryTargeting("x86")),
+                          targetedNativeDirectory(
+                              "lib/arm64-v8a", nativeDirectoryTargeting("arm64-v8a"))))
+                  .addFile("lib/x86/libfeature.so")
+                  .addFile("lib/arm64-v8a/libfeature.so")
+                  .addFile("assets/feature.txt"));
+    }
+    Path bundlePath = tmpDir.resolve("bundle.aab");
+    new AppBundleSerializer().writeToDisk(appBundleBuilder.build(), bundlePath);
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(8));
+
+    try {
+      Path sequentialApkSet =
+          buildApks(
+              bundlePath,
+              "sequential.apks",
+              builder -> builder.setExecutorService(MoreExecutors.newDirectExecutorService()));
+      // The modules are split concurrently, so they may finish in any order.
+      for (int i = 0; i < 3; i++) {
+        Path parallelApkSet =
+            buildApks(
+                bundlePath,
+                "parallel" + i + ".apks",
+                builder -> builder.setExecutorService(executorService));
+        assertSameApkSet(sequentialApkSet, parallelApkSet);
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  @Test
+  public void serializationFails_noArchiveLeftInOutputDirectory() throws Exception {
+    Path bundlePath = writeBundleWithBaseModule();
+    File outputDirectory = tmp.newFolder("output");
+
+    BuildApksCommand command =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(outputDirectory.toPath().resolve("app.apks"))
+            .setAapt2Command(
+                (protoApk, binaryApk) -> {
+                  throw new IllegalStateException("aapt2 failed.");
+                })
+            .build();
+
+    assertThrows(RuntimeException.class, command::execute);
+    assertThat(outputDirectory.list()).isEmpty();
+  }
+
+  @Test
+  public void archiveLeftByKilledInvocation_deleted() throws Exception {
+    Path bundlePath = writeBundleWithBaseModule();
+    File outputDirectory = tmp.newFolder("output");
+    Files.write(outputDirectory.toPath().resolve(".app.apks.tmp"), new byte[] {1, 2, 3});
+
+    BuildApksCommand command =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(outputDirectory.toPath().resolve("app.apks"))
+            .setAapt2Command(
+                (protoApk, binaryApk) -> {
+                  throw new IllegalStateException("aapt2 failed.");
+                })
+            .build();
+
+    assertThrows(RuntimeException.class, command::execute);
+    assertThat(outputDirectory.list()).isEmpty();
+  }
+
+  @Test
+  public void serializationFails_metricsWritten() throws Exception {
+    Path bundlePath = writeBundleWithBaseModule();
+    Path metricsPath = tmpDir.resolve("metrics.json");
+
+    BuildApksCommand command =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(tmpDir.resolve("app.apks"))
+            .setAapt2Command(
+                (protoApk, binaryApk) -> {
+                  throw new IllegalStateException("aapt2 failed.");
+                })
+            .setMetricsOutputPath(metricsPath)
+            .build();
+
+    assertThrows(RuntimeException.class, command::execute);
+    assertThat(new String(Files.readAllBytes(metricsPath), UTF_8)).contains("build-apks");
+  }
+
+  @Test
+  public void serializationAndMetricsWritingFail_serializationFailureThrown() throws Exception {
+    Path bundlePath = writeBundleWithBaseModule();
+    // The metrics can't be written to a directory.
+    Path metricsPath = tmp.newFolder("metrics.json").toPath();
+    IllegalStateException aapt2Failure = new IllegalStateException("aapt2 failed.");
+
+    BuildApksCommand command =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(tmpDir.resolve("app.apks"))
+            .setAapt2Command(
+                (protoApk, binaryApk) -> {
+                  throw aapt2Failure;
+                })
+            .setMetricsOutputPath(metricsPath)
+            .build();
+
+    RuntimeException exception = assertThrows(RuntimeException.class, command::execute);
+    assertThat(Throwables.getCausalChain(exception)).contains(aapt2Failure);
+    assertThat(exception.getSuppressed()).hasLength(1);
+    assertThat(exception.getSuppressed()[0]).hasMessageThat().contains(metricsPath.toString());
+  }
+
+  @Test
+  public void serializationFails_waitsForRunningSerializations() throws Exception {
+    AppBundleBuilder appBundleBuilder =
+        new AppBundleBuilder()
+            .addModule(
+                "base",
+                builder ->
+                    builder.setManifest(androidManifest("com.test.app", withMinSdkVersion(21))));
+    for (int i = 0; i < 8; i++) {
+      appBundleBuilder.addModule(
+          "feature" + i,
+          builder ->
+              builder.setManifest(
+                  androidManifest(
+                      "com.test.app", withInstant(false), withFusingAttribute(true))));
+    }
+    Path bundlePath = tmpDir.resolve("bundle.aab");
+    new AppBundleSerializer().writeToDisk(appBundleBuilder.build(), bundlePath);
+    File outputDirectory = tmp.newFolder("output");
+    AtomicInteger conversions = new AtomicInteger();
+    AtomicInteger runningConversions = new AtomicInteger();
+    Aapt2Command aapt2Command = Aapt2Helper.getAapt2Command();
+
+    BuildApksCommand command =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(outputDirectory.toPath().resolve("app.apks"))
+            .setAapt2Command(
+                (protoApk, binaryApk) -> {
+                  runningConversions.incrementAndGet();
+                  try {
+                    if (conversions.incrementAndGet() == 1) {
+                      throw new IllegalStateException("aapt2 failed.");
+                    }
+                    // The other APKs are still being serialized when the failure is reported.
+                    Thread.sleep(200);
+                    aapt2Command.convertApkProtoToBinary(protoApk, binaryApk);
+                  } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                  } finally {
+                    runningConversions.decrementAndGet();
+                  }
+                })
+            .build();
+
+    assertThrows(RuntimeException.class, command::execute);
+    assertThat(runningConversions.get()).isEqualTo(0);
+    assertThat(outputDirectory.list()).isEmpty();
+  }
+
+  /**
+   * Builds the APKs of the bundle with and without pipelined serialization, and checks that both
+   * APK Sets have the same table of contents and the same entries.
+   */
+  private void assertPipelinedSerializationSameApkSet(AppBundle appBundle) throws Exception {
+    Path bundlePath = tmpDir.resolve("bundle.aab");
+    new AppBundleSerializer().writeToDisk(appBundle, bundlePath);
+
+    Path apkSet = buildApks(bundlePath, "two-phase.apks", builder -> {});
+    Path pipelinedApkSet =
+        buildApks(bundlePath, "pipelined.apks", builder -> builder.setPipelinedSerialization(true));
+
+    assertSameApkSet(apkSet, pipelinedApkSet);
+  }
+
+  private static void assertSameApkSet(Path expectedApkSet, Path actualApkSet) throws Exception {
+    try (ZipFile expectedApkSetZip = new ZipFile(expectedApkSet.toFile());
+        ZipFile actualApkSetZip = new ZipFile(actualApkSet.toFile())) {
+      assertThat(readTableOfContents(actualApkSetZip))
+          .isEqualTo(readTableOfContents(expectedApkSetZip));
+      // The entries are compared by CRC, as the order of the entries in the archive may differ.
+      assertThat(readEntryCrcs(actualApkSetZip)).isEqualTo(readEntryCrcs(expectedApkSetZip));
+    }
+  }
+
+  /** Builds the APK Set of the bundle with aapt2 and the given options set on the command. */
+  private Path buildApks(
+      Path bundlePath, String outputFileName, Consumer<BuildApksCommand.Builder> options) {
+    BuildApksCommand.Builder command =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(tmpDir.resolve(outputFileName))
+            .setAapt2Command(Aapt2Helper.getAapt2Command());
+    options.accept(command);
+    return command.build().execute();
+  }
+
+  private static Aapt2Command countingAapt2Command(AtomicInteger conversions) {
+    Aapt2Command aapt2Command = Aapt2Helper.getAapt2Command();
+    return (protoApk, binaryApk) -> {
+      conversions.incrementAndGet();
+      aapt2Command.convertApkProtoToBinary(protoApk, binaryApk);
+    };
+  }
+
+  private static BuildApksResult readTableOfContents(ZipFile apkSet) throws Exception {
+    try (InputStream tableOfContents =
+        apkSet.getInputStream(apkSet.getEntry(TABLE_OF_CONTENTS_FILE))) {
+      return BuildApksResult.parseFrom(tableOfContents);
+    }
+  }
+
+  private static ImmutableMap<String, Long> readEntryCrcs(ZipFile apkSet) {
+    return apkSet.stream().collect(toImmutableMap(ZipEntry::getName, ZipEntry::getCrc));
+  }
+
+  private Path writeBundleWithBaseModule() throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule("base", builder -> builder.setManifest(androidManifest("com.test.app")))
+            .build();
+    Path bundlePath = tmpDir.resolve("bundle.aab");
+    new AppBundleSerializer().writeToDisk(appBundle, bundlePath);
+    return bundlePath;
+  }
+}
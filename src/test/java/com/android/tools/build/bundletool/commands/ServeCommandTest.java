@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.commands;
+
+import static com.android.tools.build.bundletool.testing.Aapt2Helper.AAPT2_PATH;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withMinSdkVersion;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+import com.android.tools.build.bundletool.device.AdbServer;
+import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
+import com.android.tools.build.bundletool.io.ApkCache;
+import com.android.tools.build.bundletool.io.AppBundleSerializer;
+import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.testing.Aapt2Helper;
+import com.android.tools.build.bundletool.testing.AppBundleBuilder;
+import com.android.tools.build.bundletool.utils.flags.FlagParser;
+import com.android.tools.build.bundletool.version.BundleToolVersion;
+import com.google.common.base.Splitter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ServeCommandTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private final AdbServer fakeAdbServer = mock(AdbServer.class);
+
+  @Test
+  public void fromFlags() throws Exception {
+    ServeCommand command =
+        ServeCommand.fromFlags(
+            new FlagParser().parse("--aapt2=path/to/aapt2", "--max-threads=2"), fakeAdbServer);
+
+    assertThat(command.getAapt2Command()).isPresent();
+    assertThat(command.getMaxThreads()).isEqualTo(2);
+    assertThat(command.getApkCache()).isEmpty();
+  }
+
+  @Test
+  public void fromFlags_defaults() throws Exception {
+    ServeCommand command = ServeCommand.fromFlags(new FlagParser().parse(), fakeAdbServer);
+
+    assertThat(command.getAapt2Command()).isEmpty();
+    assertThat(command.getMaxThreads()).isEqualTo(4);
+  }
+
+  @Test
+  public void fromFlags_aapt2Daemons() throws Exception {
+    ServeCommand command =
+        ServeCommand.fromFlags(
+            new FlagParser()
+                .parse("--aapt2=path/to/aapt2", "--aapt2-daemons", "--max-threads=2"),
+            fakeAdbServer);
+
+    assertThat(command.getAapt2DaemonPool()).isPresent();
+    assertThat(command.getAapt2Command()).hasValue(command.getAapt2DaemonPool().get());
+    assertThat(command.getAapt2DaemonPool().get().getMaxDaemonCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void execute_closesAapt2DaemonPool() throws Exception {
+    ServeCommand command =
+        ServeCommand.fromFlags(
+            new FlagParser().parse("--aapt2=path/to/aapt2", "--aapt2-daemons"), fakeAdbServer);
+
+    command.execute(
+        new ByteArrayInputStream(new byte[0]), new PrintStream(new ByteArrayOutputStream()));
+
+    Path protoApk = tmp.getRoot().toPath().resolve("proto.apk");
+    Path binaryApk = tmp.getRoot().toPath().resolve("binary.apk");
+    IllegalStateException exception =
+        assertThrows(
+            IllegalStateException.class,
+            () -> command.getAapt2DaemonPool().get().convertApkProtoToBinary(protoApk, binaryApk));
+    assertThat(exception).hasMessageThat().contains("closed");
+  }
+
+  @Test
+  public void fromFlags_apkCache() throws Exception {
+    ServeCommand command =
+        ServeCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--apk-cache-dir=" + tmp.getRoot().toPath().resolve("cache"),
+                    "--apk-cache-max-size-mb=10"),
+            fakeAdbServer);
+
+    assertThat(command.getApkCache().get().getMaxSizeBytes()).isEqualTo(10L * 1024 * 1024);
+  }
+
+  @Test
+  public void fromFlags_apkCacheMaxSizeWithoutApkCacheDir_throws() throws Exception {
+    CommandExecutionException exception =
+        assertThrows(
+            CommandExecutionException.class,
+            () ->
+                ServeCommand.fromFlags(
+                    new FlagParser().parse("--apk-cache-max-size-mb=10"), fakeAdbServer));
+
+    assertThat(exception)
+        .hasMessageThat()
+        .isEqualTo("Flag --apk-cache-dir is required when --apk-cache-max-size-mb is set.");
+  }
+
+  @Test
+  public void maxThreadsNotPositive_throws() throws Exception {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> ServeCommand.builder().setAdbServer(fakeAdbServer).setMaxThreads(0).build());
+  }
+
+  @Test
+  public void parseArguments() throws Exception {
+    assertThat(ServeCommand.parseArguments("  validate   --bundle=app.aab "))
+        .containsExactly("validate", "--bundle=app.aab")
+        .inOrder();
+    assertThat(ServeCommand.parseArguments("validate --bundle=\"my app.aab\""))
+        .containsExactly("validate", "--bundle=my app.aab")
+        .inOrder();
+    assertThat(ServeCommand.parseArguments("validate \"--bundle=my \\\"app\\\".aab\" \"\""))
+        .containsExactly("validate", "--bundle=my \"app\".aab", "")
+        .inOrder();
+  }
+
+  @Test
+  public void parseArguments_unterminatedQuotes_throws() throws Exception {
+    CommandExecutionException exception =
+        assertThrows(
+            CommandExecutionException.class,
+            () -> ServeCommand.parseArguments("validate --bundle=\"app.aab"));
+
+    assertThat(exception).hasMessageThat().contains("Unterminated quotes");
+  }
+
+  @Test
+  public void execute_respondsToEachRequest() throws Exception {
+    List<String> responses =
+        serve(
+            "version",
+            "",
+            "unknown-command",
+            "validate --bundle=\"path/with space/app.aab\"",
+            "version --unknown-flag");
+
+    assertThat(responses)
+        .containsExactly(
+            "BundleTool " + BundleToolVersion.getCurrentVersion(),
+            ServeCommand.OK_RESPONSE,
+            ServeCommand.ERROR_RESPONSE
+                + "Command 'unknown-command' is not supported by the 'serve' command.",
+            ServeCommand.ERROR_RESPONSE + "File 'path/with space/app.aab' was not found.",
+            ServeCommand.ERROR_RESPONSE + "Unrecognized flags: --unknown-flag")
+        .inOrder();
+  }
+
+  @Test
+  public void execute_stopsOnExitRequest() throws Exception {
+    List<String> responses = serve("version", ServeCommand.EXIT_REQUEST, "version");
+
+    assertThat(responses)
+        .containsExactly(
+            "BundleTool " + BundleToolVersion.getCurrentVersion(), ServeCommand.OK_RESPONSE)
+        .inOrder();
+  }
+
+  @Test
+  public void execute_buildApksRequests_shareResources() throws Exception {
+    Path tmpDir = tmp.getRoot().toPath();
+    // Targets only L+ devices, so that a single APK is built.
+    Path bundlePath = tmpDir.resolve("bundle.aab");
+    new AppBundleSerializer()
+        .writeToDisk(
+            new AppBundleBuilder()
+                .addModule(
+                    "base",
+                    builder ->
+                        builder.setManifest(
+                            androidManifest("com.test.app", withMinSdkVersion(21))))
+                .build(),
+            bundlePath);
+    ApkCache sharedApkCache =
+        ApkCache.create(tmpDir.resolve("shared-cache"), ApkCache.DEFAULT_MAX_SIZE_BYTES);
+    Path requestApkCacheDir = tmpDir.resolve("request-cache");
+    AtomicInteger aapt2Extractions = new AtomicInteger();
+    AtomicInteger sharedAapt2Conversions = new AtomicInteger();
+    Aapt2Command aapt2Command = Aapt2Helper.getAapt2Command();
+    Aapt2Command sharedAapt2Command =
+        new Aapt2Command() {
+          @Override
+          public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+            sharedAapt2Conversions.incrementAndGet();
+            aapt2Command.convertApkProtoToBinary(protoApk, binaryApk);
+          }
+
+          @Override
+          public Optional<String> getIdentity() {
+            return aapt2Command.getIdentity();
+          }
+        };
+
+    List<String> responses =
+        serve(
+            ServeCommand.builder().setAdbServer(fakeAdbServer).setApkCache(sharedApkCache).build(),
+            aapt2Dir -> {
+              aapt2Extractions.incrementAndGet();
+              return sharedAapt2Command;
+            },
+            String.format(
+                "build-apks --bundle=%s --output=%s --aapt2=%s --apk-cache-dir=%s",
+                bundlePath, tmpDir.resolve("own.apks"), AAPT2_PATH, requestApkCacheDir),
+            String.format(
+                "build-apks --bundle=%s --output=%s", bundlePath, tmpDir.resolve("first.apks")),
+            String.format(
+                "build-apks --bundle=%s --output=%s", bundlePath, tmpDir.resolve("second.apks")));
+
+    // All the requests succeed, so the shared thread pool was not shut down after the first one.
+    assertThat(responses)
+        .containsExactly(
+            ServeCommand.OK_RESPONSE, ServeCommand.OK_RESPONSE, ServeCommand.OK_RESPONSE)
+        .inOrder();
+    assertThat(aapt2Extractions.get()).isEqualTo(1);
+    // The first request used its own aapt2 and APK cache. The APK of the second request was added
+    // to the shared cache, from which the third request copied it.
+    assertThat(sharedAapt2Conversions.get()).isEqualTo(1);
+    assertThat(sharedApkCache.getMissCount()).isEqualTo(1);
+    assertThat(sharedApkCache.getHitCount()).isEqualTo(1);
+    try (Stream<Path> cachedApks = Files.list(requestApkCacheDir)) {
+      assertThat(cachedApks.count()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void errorMessage_multipleLines_joinedWithSpaces() throws Exception {
+    assertThat(
+            ServeCommand.errorMessage(
+                new CommandExecutionException("First line.\nSecond line.\r\nThird line.\n")))
+        .isEqualTo("First line. Second line. Third line.");
+  }
+
+  @Test
+  public void errorMessage_noMessage_exceptionClassName() throws Exception {
+    assertThat(ServeCommand.errorMessage(new NullPointerException()))
+        .isEqualTo("java.lang.NullPointerException");
+  }
+
+  private List<String> serve(String... requests) {
+    return serve(
+        ServeCommand.builder().setAdbServer(fakeAdbServer).build(),
+        aapt2Dir -> {
+          throw new IllegalStateException("No aapt2 in tests.");
+        },
+        requests);
+  }
+
+  private static List<String> serve(
+      ServeCommand command, Function<Path, Aapt2Command> aapt2Extractor, String... requests) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    command.execute(
+        new ByteArrayInputStream(String.join("\n", requests).getBytes(UTF_8)),
+        new PrintStream(output),
+        aapt2Extractor);
+    return Splitter.on(System.lineSeparator())
+        .omitEmptyStrings()
+        .splitToList(new String(output.toByteArray(), UTF_8));
+  }
+}
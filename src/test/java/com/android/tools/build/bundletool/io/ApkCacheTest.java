@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ApkCacheTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private final List<String> writtenApks = new ArrayList<>();
+
+  private Path cacheDir;
+  private Path outputDir;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheDir = tmp.getRoot().toPath().resolve("cache");
+    outputDir = tmp.newFolder("output").toPath();
+  }
+
+  @Test
+  public void miss_writesApk() throws Exception {
+    ApkCache apkCache = ApkCache.create(cacheDir, /* maxSizeBytes= */ 1000);
+
+    apkCache.getOrWrite("key", outputDir.resolve("a.apk"), apkWriter("content"));
+
+    assertThat(writtenApks).containsExactly("content");
+    assertThat(readFile(outputDir.resolve("a.apk"))).isEqualTo("content");
+    assertThat(apkCache.getHitCount()).isEqualTo(0);
+    assertThat(apkCache.getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void hit_copiesCachedApk() throws Exception {
+    ApkCache apkCache = ApkCache.create(cacheDir, /* maxSizeBytes= */ 1000);
+
+    boolean firstHit =
+        apkCache.getOrWrite("key", outputDir.resolve("a.apk"), apkWriter("content"));
+    boolean secondHit =
+        apkCache.getOrWrite("key", outputDir.resolve("b.apk"), apkWriter("other content"));
+
+    assertThat(firstHit).isFalse();
+    assertThat(secondHit).isTrue();
+    assertThat(writtenApks).containsExactly("content");
+    assertThat(readFile(outputDir.resolve("b.apk"))).isEqualTo("content");
+    assertThat(apkCache.getHitCount()).isEqualTo(1);
+    assertThat(apkCache.getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void hit_acrossInstancesSharingDirectory() throws Exception {
+    ApkCache.create(cacheDir, /* maxSizeBytes= */ 1000)
+        .getOrWrite("key", outputDir.resolve("a.apk"), apkWriter("content"));
+
+    ApkCache apkCache = ApkCache.create(cacheDir, /* maxSizeBytes= */ 1000);
+    apkCache.getOrWrite("key", outputDir.resolve("b.apk"), apkWriter("other content"));
+
+    assertThat(readFile(outputDir.resolve("b.apk"))).isEqualTo("content");
+    assertThat(apkCache.getHitCount()).isEqualTo(1);
+    assertThat(apkCache.getMissCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void maxSizeExceeded_evictsLeastRecentlyUsed() throws Exception {
+    ApkCache apkCache = ApkCache.create(cacheDir, /* maxSizeBytes= */ 20);
+
+    apkCache.getOrWrite("key1", outputDir.resolve("1.apk"), apkWriter("1234567890"));
+    apkCache.getOrWrite("key2", outputDir.resolve("2.apk"), apkWriter("1234567890"));
+    // Makes "key1" the most recently used.
+    apkCache.getOrWrite("key1", outputDir.resolve("1-bis.apk"), apkWriter("1234567890"));
+    apkCache.getOrWrite("key3", outputDir.resolve("3.apk"), apkWriter("1234567890"));
+
+    assertThat(Files.exists(cacheDir.resolve("key1.apk"))).isTrue();
+    assertThat(Files.exists(cacheDir.resolve("key2.apk"))).isFalse();
+    assertThat(Files.exists(cacheDir.resolve("key3.apk"))).isTrue();
+
+    apkCache.getOrWrite("key2", outputDir.resolve("2-bis.apk"), apkWriter("1234567890"));
+    assertThat(apkCache.getHitCount()).isEqualTo(1);
+    assertThat(apkCache.getMissCount()).isEqualTo(4);
+  }
+
+  @Test
+  public void existingApksExceedingMaxSize_evictedOnCreation() throws Exception {
+    ApkCache apkCache = ApkCache.create(cacheDir, /* maxSizeBytes= */ 100);
+    apkCache.getOrWrite("key1", outputDir.resolve("1.apk"), apkWriter("1234567890"));
+    apkCache.getOrWrite("key2", outputDir.resolve("2.apk"), apkWriter("1234567890"));
+
+    ApkCache.create(cacheDir, /* maxSizeBytes= */ 10);
+
+    assertThat(Files.list(cacheDir).count()).isEqualTo(1);
+  }
+
+  private Consumer<Path> apkWriter(String content) {
+    return path -> {
+      writtenApks.add(content);
+      try {
+        Files.write(path, content.getBytes(UTF_8));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    };
+  }
+
+  private static String readFile(Path path) throws Exception {
+    return new String(Files.readAllBytes(path), UTF_8);
+  }
+}
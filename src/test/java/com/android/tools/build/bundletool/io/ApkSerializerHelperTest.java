@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.testing.ModuleSplitUtils.createModuleSplitBuilder;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.bundle.Config.Compression;
+import com.android.tools.build.bundletool.metrics.BuildMetrics;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Counter;
+import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.ApkSerializationMetrics;
+import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.ModuleEntry.ContentFingerprint;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.testing.Aapt2Helper;
+import com.android.tools.build.bundletool.testing.InMemoryModuleEntry;
+import com.google.common.collect.ImmutableList;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ApkSerializerHelperTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private static final ModuleSplit SPLIT =
+      createModuleSplitBuilder()
+          .setEntries(
+              ImmutableList.of(InMemoryModuleEntry.ofFile("assets/file.txt", new byte[] {1, 2})))
+          .build();
+
+  private Path tmpDir;
+
+  @Before
+  public void setUp() throws Exception {
+    tmpDir = tmp.getRoot().toPath();
+  }
+
+  @Test
+  public void writeToZipFile_reportsMetrics() throws Exception {
+    Path apkPath = tmpDir.resolve("split.apk");
+
+    ApkSerializationMetrics apkMetrics =
+        createHelper(Aapt2Helper.getAapt2Command()).writeToZipFile(SPLIT, apkPath);
+
+    try (ZipFile apk = new ZipFile(apkPath.toFile())) {
+      assertThat(apkMetrics.getEntryCount()).isEqualTo(apk.size());
+      assertThat(apkMetrics.getCompressedSize())
+          .isEqualTo(apk.stream().mapToLong(ZipEntry::getCompressedSize).sum());
+      assertThat(apkMetrics.getUncompressedSize())
+          .isEqualTo(apk.stream().mapToLong(ZipEntry::getSize).sum());
+    }
+    assertThat(apkMetrics.getEntryCount()).isGreaterThan(0);
+    assertThat(apkMetrics.getAapt2Time()).isGreaterThan(Duration.ZERO);
+    assertThat(apkMetrics.getFinalizeTime()).isGreaterThan(Duration.ZERO);
+    assertThat(apkMetrics.getSerializationTime())
+        .isAtLeast(apkMetrics.getAapt2Time().plus(apkMetrics.getFinalizeTime()));
+  }
+
+  @Test
+  public void writeToZipFile_apkCacheHit_noAapt2NorFinalizeTime() throws Exception {
+    ApkCache apkCache = ApkCache.create(tmpDir.resolve("cache"), ApkCache.DEFAULT_MAX_SIZE_BYTES);
+    ApkSerializerHelper helper =
+        new ApkSerializerHelper(
+            Aapt2Helper.getAapt2Command(),
+            /* signingConfig= */ Optional.empty(),
+            Compression.getDefaultInstance(),
+            Optional.of(apkCache));
+
+    ApkSerializationMetrics missMetrics = helper.writeToZipFile(SPLIT, tmpDir.resolve("a.apk"));
+    ApkSerializationMetrics hitMetrics = helper.writeToZipFile(SPLIT, tmpDir.resolve("b.apk"));
+
+    assertThat(apkCache.getHitCount()).isEqualTo(1);
+    assertThat(missMetrics.getAapt2Time()).isGreaterThan(Duration.ZERO);
+    assertThat(hitMetrics.getAapt2Time()).isEqualTo(Duration.ZERO);
+    assertThat(hitMetrics.getFinalizeTime()).isEqualTo(Duration.ZERO);
+    assertThat(hitMetrics.getEntryCount()).isEqualTo(missMetrics.getEntryCount());
+    assertThat(hitMetrics.getCompressedSize()).isEqualTo(missMetrics.getCompressedSize());
+    assertThat(hitMetrics.getUncompressedSize()).isEqualTo(missMetrics.getUncompressedSize());
+  }
+
+  @Test
+  public void writeToZipFile_apkCache_reportsHitsAndMisses() throws Exception {
+    BuildMetrics metrics = BuildMetrics.create();
+    ApkSerializerHelper helper =
+        new ApkSerializerHelper(
+            Aapt2Helper.getAapt2Command(),
+            /* signingConfig= */ Optional.empty(),
+            Compression.getDefaultInstance(),
+            Optional.of(
+                ApkCache.create(tmpDir.resolve("cache"), ApkCache.DEFAULT_MAX_SIZE_BYTES)),
+            metrics);
+
+    helper.writeToZipFile(SPLIT, tmpDir.resolve("a.apk"));
+    helper.writeToZipFile(SPLIT, tmpDir.resolve("b.apk"));
+    helper.writeToZipFile(SPLIT, tmpDir.resolve("c.apk"));
+
+    assertThat(metrics.getCounters()).containsEntry(Counter.APK_CACHE_HITS, 2L);
+    assertThat(metrics.getCounters()).containsEntry(Counter.APK_CACHE_MISSES, 1L);
+  }
+
+  @Test
+  public void writeToZipFile_aapt2WithoutIdentity_bypassesApkCache() throws Exception {
+    ApkCache apkCache = ApkCache.create(tmpDir.resolve("cache"), ApkCache.DEFAULT_MAX_SIZE_BYTES);
+    Aapt2Command aapt2Command = Aapt2Helper.getAapt2Command();
+    ApkSerializerHelper helper =
+        new ApkSerializerHelper(
+            aapt2Command::convertApkProtoToBinary,
+            /* signingConfig= */ Optional.empty(),
+            Compression.getDefaultInstance(),
+            Optional.of(apkCache));
+
+    helper.writeToZipFile(SPLIT, tmpDir.resolve("a.apk"));
+    helper.writeToZipFile(SPLIT, tmpDir.resolve("b.apk"));
+
+    assertThat(apkCache.getHitCount()).isEqualTo(0);
+    assertThat(apkCache.getMissCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void computeCacheKey_sameAapt2Identity_sameKey() {
+    assertThat(createHelper(aapt2Command("aapt2:1")).computeCacheKey(SPLIT))
+        .isEqualTo(createHelper(aapt2Command("aapt2:1")).computeCacheKey(SPLIT));
+  }
+
+  @Test
+  public void computeCacheKey_differentAapt2Identity_differentKey() {
+    assertThat(createHelper(aapt2Command("aapt2:1")).computeCacheKey(SPLIT))
+        .isNotEqualTo(createHelper(aapt2Command("aapt2:2")).computeCacheKey(SPLIT));
+  }
+
+  @Test
+  public void computeCacheKey_inProcessAapt2_differentKey() {
+    Aapt2Command aapt2Command = aapt2Command("aapt2:1");
+
+    assertThat(createHelper(aapt2Command).computeCacheKey(SPLIT))
+        .isNotEqualTo(
+            createHelper(Aapt2Command.createInProcessWithFallback(aapt2Command))
+                .computeCacheKey(SPLIT));
+  }
+
+  @Test
+  public void computeCacheKey_entryWithFingerprint_contentNotRead() {
+    assertThat(createHelper(aapt2Command("aapt2:1")).computeCacheKey(splitWithEntryCrc32(1)))
+        .isNotEmpty();
+  }
+
+  @Test
+  public void computeCacheKey_differentFingerprints_differentKey() {
+    ApkSerializerHelper helper = createHelper(aapt2Command("aapt2:1"));
+
+    assertThat(helper.computeCacheKey(splitWithEntryCrc32(1)))
+        .isNotEqualTo(helper.computeCacheKey(splitWithEntryCrc32(2)));
+  }
+
+  private static ApkSerializerHelper createHelper(Aapt2Command aapt2Command) {
+    return new ApkSerializerHelper(
+        aapt2Command, /* signingConfig= */ Optional.empty(), Compression.getDefaultInstance());
+  }
+
+  private static Aapt2Command aapt2Command(String identity) {
+    return new Aapt2Command() {
+      @Override
+      public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Optional<String> getIdentity() {
+        return Optional.of(identity);
+      }
+    };
+  }
+
+  /** Split with a single entry whose fingerprint is known, and whose content must not be read. */
+  private static ModuleSplit splitWithEntryCrc32(long crc32) {
+    return createModuleSplitBuilder()
+        .setEntries(
+            ImmutableList.of(
+                entryWithFingerprint(
+                    "assets/file.txt", ContentFingerprint.create(/* size= */ 2, crc32))))
+        .build();
+  }
+
+  private static ModuleEntry entryWithFingerprint(String path, ContentFingerprint fingerprint) {
+    return new ModuleEntry() {
+      @Override
+      public InputStream getContent() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public ZipPath getPath() {
+        return ZipPath.create(path);
+      }
+
+      @Override
+      public boolean isDirectory() {
+        return false;
+      }
+
+      @Override
+      public boolean shouldCompress() {
+        return true;
+      }
+
+      @Override
+      public ModuleEntry setCompression(boolean shouldCompress) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Optional<ContentFingerprint> getContentFingerprint() {
+        return Optional.of(fingerprint);
+      }
+    };
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.testing.truth.zip.TruthZip.assertThat;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ConcurrentZipWriterTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tmpDir;
+
+  @Before
+  public void setUp() throws Exception {
+    tmpDir = tmp.getRoot().toPath();
+  }
+
+  @Test
+  public void storedAndDeflatedEntries() throws Exception {
+    Path file = Files.write(tmpDir.resolve("file"), "stored".getBytes(UTF_8));
+    Path zipPath = tmpDir.resolve("output.zip");
+
+    try (ConcurrentZipWriter zipWriter = new ConcurrentZipWriter(zipPath)) {
+      zipWriter.addStoredFile("dir/stored.apk", file);
+      zipWriter.addDeflatedEntry("deflated.pb", "deflated".getBytes(UTF_8));
+    }
+
+    ZipFile zipFile = new ZipFile(zipPath.toFile());
+    assertThat(zipFile)
+        .hasFile("dir/stored.apk")
+        .withContent("stored".getBytes(UTF_8))
+        .thatIsUncompressed();
+    assertThat(zipFile)
+        .hasFile("deflated.pb")
+        .withContent("deflated".getBytes(UTF_8))
+        .thatIsCompressed();
+    assertThat(zipFile.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void noEntries() throws Exception {
+    Path zipPath = tmpDir.resolve("output.zip");
+
+    new ConcurrentZipWriter(zipPath).close();
+
+    assertThat(new ZipFile(zipPath.toFile()).size()).isEqualTo(0);
+  }
+
+  @Test
+  public void entriesAddedConcurrently() throws Exception {
+    Path zipPath = tmpDir.resolve("output.zip");
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+
+    try (ConcurrentZipWriter zipWriter = new ConcurrentZipWriter(zipPath)) {
+      List<ListenableFuture<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        Path file = Files.write(tmpDir.resolve("file" + i), fileContent(i));
+        String name = "apk" + i + ".apk";
+        futures.add(
+            executorService.submit(
+                () -> {
+                  zipWriter.addStoredFile(name, file);
+                  return null;
+                }));
+      }
+      for (ListenableFuture<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executorService.shutdown();
+    }
+
+    ZipFile zipFile = new ZipFile(zipPath.toFile());
+    assertThat(zipFile.size()).isEqualTo(100);
+    for (int i = 0; i < 100; i++) {
+      assertThat(zipFile).hasFile("apk" + i + ".apk").withContent(fileContent(i));
+    }
+  }
+
+  @Test
+  public void duplicateEntry_throws() throws Exception {
+    Path file = Files.write(tmpDir.resolve("file"), "content".getBytes(UTF_8));
+
+    try (ConcurrentZipWriter zipWriter = new ConcurrentZipWriter(tmpDir.resolve("output.zip"))) {
+      zipWriter.addStoredFile("a.apk", file);
+
+      IllegalArgumentException exception =
+          assertThrows(
+              IllegalArgumentException.class, () -> zipWriter.addStoredFile("a.apk", file));
+      assertThat(exception).hasMessageThat().contains("Path 'a.apk' is already taken.");
+    }
+  }
+
+  @Test
+  public void outputAlreadyExists_throws() throws Exception {
+    Path existingFile = tmp.newFile("existing.zip").toPath();
+
+    assertThrows(FileAlreadyExistsException.class, () -> new ConcurrentZipWriter(existingFile));
+  }
+
+  private static byte[] fileContent(int index) {
+    byte[] content = new byte[1000 + index * 100];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) (index + i);
+    }
+    return content;
+  }
+}
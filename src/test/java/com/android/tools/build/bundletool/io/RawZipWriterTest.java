@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
+import com.android.tools.build.bundletool.model.ModuleZipEntry;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RawZipWriterTest {
+
+  private static final byte[] DEX_CONTENT = Strings.repeat("dex", 1000).getBytes(UTF_8);
+  private static final byte[] ASSET_CONTENT = "asset".getBytes(UTF_8);
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tmpDir;
+
+  @Before
+  public void setUp() throws Exception {
+    tmpDir = tmp.getRoot().toPath();
+  }
+
+  @Test
+  public void rawEntries_copiedVerbatim() throws Exception {
+    Path bundlePath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("base/dex/classes.dex"), DEX_CONTENT)
+            .addFileWithContent(
+                ZipPath.create("base/assets/file.txt"), ASSET_CONTENT, EntryOption.UNCOMPRESSED)
+            .writeTo(tmpDir.resolve("bundle.aab"));
+    Path outputPath = tmpDir.resolve("raw.zip");
+
+    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+      MappedZipFile mappedBundleZip = MappedZipFile.open(bundlePath).get();
+      ModuleZipEntry dexEntry = mappedEntry(bundleZip, mappedBundleZip, "base/dex/classes.dex");
+      ModuleZipEntry assetEntry = mappedEntry(bundleZip, mappedBundleZip, "base/assets/file.txt");
+      assertThat(dexEntry.isDeflatedInZip()).isTrue();
+      assertThat(assetEntry.isDeflatedInZip()).isFalse();
+
+      try (RawZipWriter rawZipWriter = new RawZipWriter(outputPath)) {
+        assertThat(rawZipWriter.isEmpty()).isTrue();
+        rawZipWriter.addRawEntry("classes.dex", dexEntry);
+        rawZipWriter.addRawEntry("assets/file.txt", assetEntry);
+        assertThat(rawZipWriter.isEmpty()).isFalse();
+      }
+
+      try (ZipFile outputZip = new ZipFile(outputPath.toFile())) {
+        ZipEntry outputDexEntry = outputZip.getEntry("classes.dex");
+        assertThat(outputDexEntry.getMethod()).isEqualTo(ZipEntry.DEFLATED);
+        assertThat(outputDexEntry.getCompressedSize()).isEqualTo(dexEntry.getCompressedSize());
+        assertThat(outputDexEntry.getCrc()).isEqualTo(dexEntry.getCrc32());
+        assertThat(readEntry(outputZip, outputDexEntry)).isEqualTo(DEX_CONTENT);
+
+        ZipEntry outputAssetEntry = outputZip.getEntry("assets/file.txt");
+        assertThat(outputAssetEntry.getMethod()).isEqualTo(ZipEntry.STORED);
+        assertThat(readEntry(outputZip, outputAssetEntry)).isEqualTo(ASSET_CONTENT);
+      }
+    }
+  }
+
+  @Test
+  public void rawContent_isDeflatedData() throws Exception {
+    Path bundlePath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("base/dex/classes.dex"), DEX_CONTENT)
+            .writeTo(tmpDir.resolve("bundle.aab"));
+
+    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+      ModuleZipEntry dexEntry =
+          mappedEntry(bundleZip, MappedZipFile.open(bundlePath).get(), "base/dex/classes.dex");
+
+      assertThat(dexEntry.isRawContentAvailable()).isTrue();
+      byte[] rawContent;
+      try (InputStream rawContentStream = dexEntry.getRawContent()) {
+        rawContent = ByteStreams.toByteArray(rawContentStream);
+      }
+      assertThat((long) rawContent.length).isEqualTo(dexEntry.getCompressedSize());
+      assertThat((long) rawContent.length).isLessThan(dexEntry.getUncompressedSize());
+    }
+  }
+
+  @Test
+  public void entryNotMapped_rawContentNotAvailable() throws Exception {
+    Path bundlePath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("base/dex/classes.dex"), DEX_CONTENT)
+            .writeTo(tmpDir.resolve("bundle.aab"));
+
+    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+      ModuleZipEntry dexEntry =
+          ModuleZipEntry.fromBundleZipEntry(bundleZip.getEntry("base/dex/classes.dex"), bundleZip);
+
+      assertThat(dexEntry.isRawContentAvailable()).isFalse();
+    }
+  }
+
+  private static ModuleZipEntry mappedEntry(
+      ZipFile bundleZip, MappedZipFile mappedBundleZip, String name) {
+    return ModuleZipEntry.fromBundleZipEntry(
+        bundleZip.getEntry(name), bundleZip, mappedBundleZip.getEntry(name));
+  }
+
+  private static byte[] readEntry(ZipFile zipFile, ZipEntry zipEntry) throws Exception {
+    try (InputStream inputStream = zipFile.getInputStream(zipEntry)) {
+      return ByteStreams.toByteArray(inputStream);
+    }
+  }
+}
@@ -29,6 +29,8 @@ import java.io.File;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -377,6 +379,27 @@ public class ZipBuilderTest {
         .thatIsCompressed();
   }
 
+  @Test
+  public void uncompressedFile_fromDisk_streamedWithCorrectCrc() throws Exception {
+    byte[] content = new byte[3 * 1024 * 1024];
+    new Random(42).nextBytes(content);
+    File fromFile = tmp.newFile("large-file");
+    Files.write(fromFile.toPath(), content);
+
+    Path path =
+        new ZipBuilder()
+            .addFileFromDisk(ZipPath.create("large"), fromFile, EntryOption.UNCOMPRESSED)
+            .writeTo(tmpDir.resolve("result.zip"));
+
+    ZipFile zipFile = new ZipFile(path.toFile());
+    ZipEntry zipEntry = zipFile.getEntry("large");
+    CRC32 crc32 = new CRC32();
+    crc32.update(content);
+    assertThat(zipEntry.getCrc()).isEqualTo(crc32.getValue());
+    assertThat(zipEntry.getSize()).isEqualTo(content.length);
+    assertThat(zipFile).hasFile("large").withContent(content).thatIsUncompressed();
+  }
+
   @Test
   public void writeTo_targetAlreadyExists_throws() throws Exception {
     Path existingFile = tmp.newFile("existing-file.zip").toPath();
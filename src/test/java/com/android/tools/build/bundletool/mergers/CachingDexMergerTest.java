@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.mergers;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.metrics.BuildMetrics;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Counter;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CachingDexMergerTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private int mergeCount = 0;
+
+  /** Fake merger concatenating the input files into "classes.dex" and "classes2.dex". */
+  private final DexMerger fakeDexMerger =
+      (dexFiles, outputDir, mainDexListFile, isDebuggable, minSdkVersion) -> {
+        mergeCount++;
+        try {
+          StringBuilder mergedContent = new StringBuilder();
+          for (Path dexFile : dexFiles) {
+            mergedContent.append(new String(Files.readAllBytes(dexFile), UTF_8));
+          }
+          byte[] mergedBytes = mergedContent.toString().getBytes(UTF_8);
+          return ImmutableList.of(
+              Files.write(outputDir.resolve("classes.dex"), mergedBytes),
+              Files.write(outputDir.resolve("classes2.dex"), "second".getBytes(UTF_8)));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      };
+
+  private Path cacheDir;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheDir = tmp.getRoot().toPath().resolve("cache");
+  }
+
+  @Test
+  public void miss_mergesWithDelegate() throws Exception {
+    CachingDexMerger dexMerger = new CachingDexMerger(fakeDexMerger, cacheDir);
+
+    ImmutableList<Path> mergedFiles = merge(dexMerger, dexFiles("a", "b"), /* minSdkVersion= */ 15);
+
+    assertThat(readFiles(mergedFiles)).containsExactly("ab", "second").inOrder();
+    assertThat(mergeCount).isEqualTo(1);
+    assertThat(dexMerger.getHitCount()).isEqualTo(0);
+    assertThat(dexMerger.getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void hitsAndMisses_reportedInMetrics() throws Exception {
+    BuildMetrics metrics = BuildMetrics.create();
+    CachingDexMerger dexMerger = new CachingDexMerger(fakeDexMerger, cacheDir, metrics);
+
+    merge(dexMerger, dexFiles("a", "b"), 15);
+    merge(dexMerger, dexFiles("a", "b"), 15);
+    merge(dexMerger, dexFiles("a", "b"), 15);
+
+    assertThat(metrics.getCounters()).containsEntry(Counter.DEX_MERGE_CACHE_HITS, 2L);
+    assertThat(metrics.getCounters()).containsEntry(Counter.DEX_MERGE_CACHE_MISSES, 1L);
+  }
+
+  @Test
+  public void sameContent_copiedFromCacheAcrossInstances() throws Exception {
+    merge(new CachingDexMerger(fakeDexMerger, cacheDir), dexFiles("a", "b"), 15);
+
+    CachingDexMerger dexMerger = new CachingDexMerger(fakeDexMerger, cacheDir);
+    Path outputDir = tmp.newFolder().toPath();
+    ImmutableList<Path> mergedFiles =
+        dexMerger.merge(
+            dexFiles("a", "b"),
+            outputDir,
+            /* mainDexListFile= */ Optional.empty(),
+            /* isDebuggable= */ false,
+            /* minSdkVersion= */ 15);
+
+    assertThat(mergeCount).isEqualTo(1);
+    assertThat(dexMerger.getHitCount()).isEqualTo(1);
+    assertThat(
+            mergedFiles
+                .stream()
+                .map(file -> file.getFileName().toString())
+                .collect(toImmutableList()))
+        .containsExactly("classes.dex", "classes2.dex")
+        .inOrder();
+    assertThat(mergedFiles.stream().allMatch(file -> file.startsWith(outputDir))).isTrue();
+    assertThat(readFiles(mergedFiles)).containsExactly("ab", "second").inOrder();
+  }
+
+  @Test
+  public void differentContent_merged() throws Exception {
+    CachingDexMerger dexMerger = new CachingDexMerger(fakeDexMerger, cacheDir);
+
+    merge(dexMerger, dexFiles("a", "b"), 15);
+    ImmutableList<Path> mergedFiles = merge(dexMerger, dexFiles("a", "c"), 15);
+
+    assertThat(readFiles(mergedFiles)).containsExactly("ac", "second").inOrder();
+    assertThat(mergeCount).isEqualTo(2);
+  }
+
+  @Test
+  public void differentMinSdkVersion_merged() throws Exception {
+    CachingDexMerger dexMerger = new CachingDexMerger(fakeDexMerger, cacheDir);
+
+    merge(dexMerger, dexFiles("a", "b"), 15);
+    merge(dexMerger, dexFiles("a", "b"), 16);
+
+    assertThat(mergeCount).isEqualTo(2);
+    assertThat(dexMerger.getHitCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void differentMainDexList_merged() throws Exception {
+    CachingDexMerger dexMerger = new CachingDexMerger(fakeDexMerger, cacheDir);
+    Path mainDexList = Files.write(tmp.newFile().toPath(), "com/Foo.class".getBytes(UTF_8));
+
+    merge(dexMerger, dexFiles("a", "b"), 15);
+    dexMerger.merge(
+        dexFiles("a", "b"),
+        tmp.newFolder().toPath(),
+        Optional.of(mainDexList),
+        /* isDebuggable= */ false,
+        /* minSdkVersion= */ 15);
+
+    assertThat(mergeCount).isEqualTo(2);
+  }
+
+  private ImmutableList<Path> merge(
+      DexMerger dexMerger, ImmutableList<Path> dexFiles, int minSdkVersion) throws Exception {
+    return dexMerger.merge(
+        dexFiles,
+        tmp.newFolder().toPath(),
+        /* mainDexListFile= */ Optional.empty(),
+        /* isDebuggable= */ false,
+        minSdkVersion);
+  }
+
+  private ImmutableList<Path> dexFiles(String... contents) throws Exception {
+    Path dir = tmp.newFolder().toPath();
+    ImmutableList.Builder<Path> dexFiles = ImmutableList.builder();
+    for (int i = 0; i < contents.length; i++) {
+      dexFiles.add(Files.write(dir.resolve(i + ".dex"), contents[i].getBytes(UTF_8)));
+    }
+    return dexFiles.build();
+  }
+
+  private static ImmutableList<String> readFiles(ImmutableList<Path> files) {
+    return files
+        .stream()
+        .map(
+            file -> {
+              try {
+                return new String(Files.readAllBytes(file), UTF_8);
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            })
+        .collect(toImmutableList());
+  }
+}
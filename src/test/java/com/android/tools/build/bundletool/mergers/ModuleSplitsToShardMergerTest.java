@@ -34,6 +34,7 @@ import static com.android.tools.build.bundletool.testing.TargetingUtils.nativeDi
 import static com.android.tools.build.bundletool.testing.TargetingUtils.nativeLibraries;
 import static com.android.tools.build.bundletool.testing.TargetingUtils.targetedNativeDirectory;
 import static com.android.tools.build.bundletool.testing.TestUtils.extractPaths;
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth8.assertThat;
 import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
@@ -66,9 +67,13 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -158,6 +163,59 @@ public class ModuleSplitsToShardMergerTest {
     assertThat(extractPaths(mipsShard.getEntries())).containsExactly("lib/mips/libtest.so");
   }
 
+  @Test
+  public void merge_inParallel_preservesOrderAndMergesSameDexFilesOnce() throws Exception {
+    ModuleSplit baseSplit =
+        createModuleSplitBuilder()
+            .setModuleName(BundleModuleName.create("base"))
+            .setEntries(
+                ImmutableList.of(
+                    InMemoryModuleEntry.ofFile(
+                        "dex/classes.dex", TestData.readBytes("testdata/dex/classes.dex"))))
+            .build();
+    ModuleSplit featureSplit =
+        createModuleSplitBuilder()
+            .setModuleName(BundleModuleName.create("feature"))
+            .setEntries(
+                ImmutableList.of(
+                    InMemoryModuleEntry.ofFile(
+                        "dex/classes.dex", TestData.readBytes("testdata/dex/classes-other.dex"))))
+            .build();
+    ImmutableList<AbiAlias> abis =
+        ImmutableList.of(AbiAlias.X86, AbiAlias.X86_64, AbiAlias.ARMEABI_V7A, AbiAlias.ARM64_V8A);
+    ImmutableList<ImmutableList<ModuleSplit>> unfusedShards =
+        abis.stream()
+            .map(
+                abi ->
+                    ImmutableList.of(
+                        baseSplit,
+                        featureSplit,
+                        createModuleSplitBuilder()
+                            .setMasterSplit(false)
+                            .setApkTargeting(apkAbiTargeting(abi))
+                            .build()))
+            .collect(toImmutableList());
+    DexMerger spyDexMerger = Mockito.spy(d8DexMerger);
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+
+    ImmutableList<ModuleSplit> shards;
+    try {
+      shards =
+          new ModuleSplitsToShardMerger(spyDexMerger, tmpDir, executorService)
+              .merge(unfusedShards, NO_MAIN_DEX_LIST);
+    } finally {
+      executorService.shutdown();
+    }
+
+    assertThat(shards.stream().map(ModuleSplit::getApkTargeting).collect(toImmutableList()))
+        .containsExactlyElementsIn(
+            abis.stream().map(abi -> apkAbiTargeting(abi)).collect(toImmutableList()))
+        .inOrder();
+    verify(spyDexMerger).merge(any(), any(), any(), anyBoolean(), anyInt());
+    verifyNoMoreInteractions(spyDexMerger);
+  }
+
   @Test
   public void mergeSingleShard_twoModulesTwoSplits() throws Exception {
     ModuleSplit baseModuleSplit =
@@ -193,7 +251,8 @@ public class ModuleSplitsToShardMergerTest {
   public void dexFiles_allInOneModule_areUnchanged() throws Exception {
     byte[] classesDexData = {'1'};
     byte[] classes2DexData = {'2'};
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> dexMergingCache =
+        createCache();
     ModuleSplit baseSplit =
         createModuleSplitBuilder()
             .setModuleName(BundleModuleName.create("base"))
@@ -223,7 +282,8 @@ public class ModuleSplitsToShardMergerTest {
 
   @Test
   public void dexFiles_inMultipleModules_areMerged() throws Exception {
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>> dexMergingCache =
+        createCache();
     InMemoryModuleEntry dexEntry1 =
         InMemoryModuleEntry.ofFile(
             "dex/classes.dex", TestData.readBytes("testdata/dex/classes.dex"));
@@ -256,7 +316,7 @@ public class ModuleSplitsToShardMergerTest {
     assertThat(dexMergingCache).hasSize(1);
     ImmutableSet<ModuleEntry> cacheKey = Iterables.getOnlyElement(dexMergingCache.keySet());
     assertThat(cacheKey).containsExactly(dexEntry1, dexEntry2);
-    ImmutableList<Path> cacheValue = Iterables.getOnlyElement(dexMergingCache.values());
+    ImmutableList<Path> cacheValue = Iterables.getOnlyElement(dexMergingCache.values()).get();
     assertThat(cacheValue.stream().allMatch(cachedFile -> cachedFile.startsWith(tmpDir))).isTrue();
   }
 
@@ -562,7 +622,8 @@ public class ModuleSplitsToShardMergerTest {
         .setVariantTargeting(lPlusVariantTargeting());
   }
 
-  private static Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> createCache() {
+  private static Map<ImmutableSet<ModuleEntry>, ListenableFuture<ImmutableList<Path>>>
+      createCache() {
     return new HashMap<>();
   }
 }
@@ -37,6 +37,7 @@ import com.android.aapt.Resources.Source;
 import com.android.aapt.Resources.StringPool;
 import com.android.aapt.Resources.Style;
 import com.android.aapt.Resources.Visibility;
+import com.google.common.collect.ImmutableList;
 import com.google.protobuf.ByteString;
 import java.nio.charset.StandardCharsets;
 import org.junit.Test;
@@ -172,6 +173,55 @@ public class ResourceTableMergerTest {
                     type(0x11, "type", entry(0x21, "entry", value("ldpi", LDPI))))));
   }
 
+  @Test
+  public void multipleTables_sameAsPairwiseMerge() throws Exception {
+    ResourceTable table1 =
+        resourceTable(
+            pkg(
+                0x01,
+                "package",
+                type(0x12, "type2", entry(0x21, "entry", value("ldpi", LDPI))),
+                type(0x11, "type1", entry(0x22, "entry2"), entry(0x21, "entry1"))));
+    ResourceTable table2 =
+        resourceTable(
+            pkg(0x01, "package", type(0x12, "type2", entry(0x21, "entry", value("mdpi", MDPI)))),
+            pkg(0x02, "package2"));
+    ResourceTable table3 =
+        resourceTable(
+            pkg(
+                0x01,
+                "package",
+                type(
+                    0x12,
+                    "type2",
+                    entry(0x21, "entry", value("mdpi", MDPI), value("ldpi", LDPI)))));
+    ResourceTableMerger merger = new ResourceTableMerger();
+
+    ResourceTable merged = merger.merge(ImmutableList.of(table1, table2, table3));
+
+    assertThat(merged).isEqualTo(merger.merge(merger.merge(table1, table2), table3));
+    assertThat(merged)
+        .isEqualTo(
+            resourceTable(
+                pkg(
+                    0x01,
+                    "package",
+                    type(0x11, "type1", entry(0x22, "entry2"), entry(0x21, "entry1")),
+                    type(
+                        0x12,
+                        "type2",
+                        entry(0x21, "entry", value("ldpi", LDPI), value("mdpi", MDPI)))),
+                pkg(0x02, "package2")));
+  }
+
+  @Test
+  public void singleTable_unchanged() throws Exception {
+    ResourceTable table =
+        resourceTable(pkg(0x01, "package", type(0x11, "type", entry(0x21, "entry"))));
+
+    assertThat(new ResourceTableMerger().merge(ImmutableList.of(table))).isSameAs(table);
+  }
+
   @Test
   public void sourcePools_absent_okAndPreserved() throws Exception {
     ResourceTable table = resourceTable();
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.metrics;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Counter;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Gauge;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.GaugeSample;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.RecordedSpan;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Span;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BuildMetricsTest {
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void spans_recordedRelativeToCreation() throws Exception {
+    ticker.advance(TimeUnit.SECONDS.toNanos(100));
+    BuildMetrics metrics = BuildMetrics.create(ticker);
+
+    ticker.advance(10);
+    try (Span outer = metrics.startSpan("outer")) {
+      ticker.advance(5);
+      try (Span inner = metrics.startSpan("inner", "detail")) {
+        ticker.advance(20);
+      }
+    }
+
+    assertThat(metrics.getSpans()).hasSize(2);
+    RecordedSpan inner = metrics.getSpans().get(0);
+    assertThat(inner.getName()).isEqualTo("inner");
+    assertThat(inner.getDetail()).hasValue("detail");
+    assertThat(inner.getThreadName()).isEqualTo(Thread.currentThread().getName());
+    assertThat(inner.getStartNanos()).isEqualTo(15);
+    assertThat(inner.getDurationNanos()).isEqualTo(20);
+    RecordedSpan outer = metrics.getSpans().get(1);
+    assertThat(outer.getName()).isEqualTo("outer");
+    assertThat(outer.getDetail()).isEmpty();
+    assertThat(outer.getStartNanos()).isEqualTo(10);
+    assertThat(outer.getDurationNanos()).isEqualTo(25);
+    assertThat(metrics.getElapsedNanos()).isEqualTo(35);
+  }
+
+  @Test
+  public void span_closedTwice_recordedOnce() throws Exception {
+    BuildMetrics metrics = BuildMetrics.create(ticker);
+
+    Span span = metrics.startSpan("span");
+    span.close();
+    span.close();
+
+    assertThat(metrics.getSpans()).hasSize(1);
+  }
+
+  @Test
+  public void counters() throws Exception {
+    BuildMetrics metrics = BuildMetrics.create(ticker);
+
+    metrics.incrementCounter(Counter.AAPT2_INVOCATIONS);
+    metrics.incrementCounter(Counter.AAPT2_INVOCATIONS);
+    metrics.addToCounter(Counter.BYTES_WRITTEN, 1000);
+
+    assertThat(metrics.getCounters()).containsEntry(Counter.AAPT2_INVOCATIONS, 2L);
+    assertThat(metrics.getCounters()).containsEntry(Counter.BYTES_WRITTEN, 1000L);
+    assertThat(metrics.getCounters()).containsEntry(Counter.DEX_MERGES, 0L);
+  }
+
+  @Test
+  public void noOp_recordsNothing() throws Exception {
+    BuildMetrics metrics = BuildMetrics.NO_OP;
+    ListeningExecutorService executorService = MoreExecutors.newDirectExecutorService();
+
+    try (Span span = metrics.startSpan("span")) {
+      metrics.incrementCounter(Counter.DEX_MERGES);
+    }
+
+    assertThat(metrics.isEnabled()).isFalse();
+    assertThat(metrics.getSpans()).isEmpty();
+    assertThat(metrics.getCounters()).containsEntry(Counter.DEX_MERGES, 0L);
+    assertThat(metrics.instrument(executorService)).isSameAs(executorService);
+  }
+
+  @Test
+  public void instrumentedExecutorService_samplesQueueDepth() throws Exception {
+    BuildMetrics metrics = BuildMetrics.create(ticker);
+    ListeningExecutorService executorService =
+        metrics.instrument(MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor()));
+    CountDownLatch firstTaskStarted = new CountDownLatch(1);
+    CountDownLatch firstTaskReleased = new CountDownLatch(1);
+
+    try {
+      ListenableFuture<?> firstTask =
+          executorService.submit(
+              () -> {
+                firstTaskStarted.countDown();
+                firstTaskReleased.await();
+                return null;
+              });
+      firstTaskStarted.await();
+      // The two following tasks wait for the first one.
+      ListenableFuture<?> secondTask = executorService.submit(() -> {});
+      ListenableFuture<?> thirdTask = executorService.submit(() -> {});
+      assertThat(metrics.getGauges()).containsEntry(Gauge.EXECUTOR_QUEUE_DEPTH, 2L);
+
+      firstTaskReleased.countDown();
+      firstTask.get();
+      secondTask.get();
+      thirdTask.get();
+    } finally {
+      executorService.shutdown();
+    }
+
+    assertThat(executorService.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(metrics.getGauges()).containsEntry(Gauge.EXECUTOR_QUEUE_DEPTH, 0L);
+    assertThat(metrics.getGaugeSamples().stream().mapToLong(GaugeSample::getValue).max())
+        .hasValue(2);
+  }
+
+  /** Ticker whose time only changes when advanced explicitly. */
+  static final class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    void advance(long deltaNanos) {
+      nanos += deltaNanos;
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
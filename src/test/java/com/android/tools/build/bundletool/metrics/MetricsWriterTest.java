@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.metrics;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Counter;
+import com.android.tools.build.bundletool.metrics.BuildMetrics.Span;
+import com.android.tools.build.bundletool.metrics.BuildMetricsTest.FakeTicker;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MetricsWriterTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private final FakeTicker ticker = new FakeTicker();
+  private BuildMetrics metrics;
+  private Path outputPath;
+
+  @Before
+  public void setUp() throws Exception {
+    metrics = BuildMetrics.create(ticker);
+    outputPath = tmp.getRoot().toPath().resolve("metrics.json");
+
+    try (Span buildSpan = metrics.startSpan("build-apks")) {
+      for (String apk : new String[] {"base-master.apk", "base-\"quoted\".apk"}) {
+        ticker.advance(TimeUnit.MILLISECONDS.toNanos(1));
+        try (Span serializeSpan = metrics.startSpan("serialize-apk", apk)) {
+          ticker.advance(TimeUnit.MILLISECONDS.toNanos(2));
+        }
+      }
+    }
+    metrics.addToCounter(Counter.BYTES_WRITTEN, 1234);
+  }
+
+  @Test
+  public void json() throws Exception {
+    metrics.writeTo(outputPath, MetricsFormat.JSON);
+
+    String json = new String(Files.readAllBytes(outputPath), UTF_8);
+    assertThat(json).startsWith("{\"elapsedMillis\": 6.000, \"phases\": [");
+    assertThat(json)
+        .contains("{\"name\": \"build-apks\", \"count\": 1, \"totalMillis\": 6.000, \"maxMillis\"");
+    assertThat(json)
+        .contains(
+            "{\"name\": \"serialize-apk\", \"count\": 2, \"totalMillis\": 4.000, "
+                + "\"maxMillis\": 2.000}");
+    assertThat(json).contains("\"bytes_written\": 1234");
+    assertThat(json).contains("\"executor_queue_depth\": {\"max\": 0}");
+    assertThat(json).contains("\"detail\": \"base-\\\"quoted\\\".apk\"");
+    assertThat(json).contains("\"startMillis\": 4.000, \"durationMillis\": 2.000");
+  }
+
+  @Test
+  public void chromeTrace() throws Exception {
+    metrics.writeTo(outputPath, MetricsFormat.CHROME_TRACE);
+
+    String json = new String(Files.readAllBytes(outputPath), UTF_8);
+    assertThat(json).startsWith("{\"traceEvents\": [");
+    assertThat(json).contains("\"name\": \"thread_name\", \"ph\": \"M\"");
+    assertThat(json)
+        .contains(
+            "{\"name\": \"serialize-apk\", \"cat\": \"bundletool\", \"ph\": \"X\", "
+                + "\"ts\": 4000.000, \"dur\": 2000.000");
+    assertThat(json).contains("\"args\": {\"detail\": \"base-master.apk\"}");
+    assertThat(json).contains("\"displayTimeUnit\": \"ms\"");
+    assertThat(json).contains("\"otherData\": {");
+    assertThat(json).contains("\"bytes_written\": 1234");
+  }
+
+  @Test
+  public void noOpMetrics_throws() throws Exception {
+    assertThrows(
+        IllegalStateException.class,
+        () -> BuildMetrics.NO_OP.writeTo(outputPath, MetricsFormat.JSON));
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class Aapt2CommandTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void executable_identityDependsOnContentOnly() throws Exception {
+    Path aapt2 = writeExecutable("first/aapt2", "aapt2 v1");
+    Path sameAapt2 = writeExecutable("second/aapt2", "aapt2 v1");
+    Path otherAapt2 = writeExecutable("third/aapt2", "aapt2 v2");
+
+    assertThat(Aapt2Command.createFromExecutablePath(aapt2).getIdentity()).isPresent();
+    assertThat(Aapt2Command.createFromExecutablePath(aapt2).getIdentity())
+        .isEqualTo(Aapt2Command.createFromExecutablePath(sameAapt2).getIdentity());
+    assertThat(Aapt2Command.createFromExecutablePath(aapt2).getIdentity())
+        .isNotEqualTo(Aapt2Command.createFromExecutablePath(otherAapt2).getIdentity());
+  }
+
+  @Test
+  public void daemonPool_sameIdentityAsExecutable() throws Exception {
+    Path aapt2 = writeExecutable("aapt2", "aapt2 v1");
+
+    try (Aapt2DaemonPool daemonPool =
+        Aapt2Command.createDaemonPoolFromExecutablePath(aapt2, /* maxDaemons= */ 1)) {
+      assertThat(daemonPool.getIdentity())
+          .isEqualTo(Aapt2Command.createFromExecutablePath(aapt2).getIdentity());
+    }
+  }
+
+  @Test
+  public void inProcess_ownIdentity() throws Exception {
+    Aapt2Command aapt2Command =
+        Aapt2Command.createFromExecutablePath(writeExecutable("aapt2", "aapt2 v1"));
+
+    Aapt2Command inProcessCommand = Aapt2Command.createInProcessWithFallback(aapt2Command);
+
+    assertThat(inProcessCommand.getIdentity()).isPresent();
+    assertThat(inProcessCommand.getIdentity()).isNotEqualTo(aapt2Command.getIdentity());
+  }
+
+  @Test
+  public void customCommand_noIdentity() throws Exception {
+    Aapt2Command aapt2Command = (protoApk, binaryApk) -> {};
+
+    assertThat(aapt2Command.getIdentity()).isEmpty();
+    assertThat(Aapt2Command.createInProcessWithFallback(aapt2Command).getIdentity()).isEmpty();
+  }
+
+  private Path writeExecutable(String path, String content) throws Exception {
+    Path executable = tmp.getRoot().toPath().resolve(path);
+    Files.createDirectories(executable.getParent());
+    return Files.write(executable, content.getBytes(UTF_8));
+  }
+}
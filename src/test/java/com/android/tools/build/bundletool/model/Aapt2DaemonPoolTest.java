@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.io.ZipBuilder;
+import com.android.tools.build.bundletool.model.Aapt2Command.Aapt2Exception;
+import com.android.tools.build.bundletool.testing.Aapt2Helper;
+import com.google.common.io.ByteStreams;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.ZipFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class Aapt2DaemonPoolTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tmpDir;
+
+  @Before
+  public void setUp() throws Exception {
+    tmpDir = tmp.getRoot().toPath();
+  }
+
+  @Test
+  public void convertApkProtoToBinary_sameAsOneShotCommand() throws Exception {
+    Path protoApk =
+        new ZipBuilder()
+            .addFileWithProtoContent(
+                ZipPath.create("AndroidManifest.xml"), androidManifest("com.test.app"))
+            .writeTo(tmpDir.resolve("proto.apk"));
+    Path expectedApk = tmpDir.resolve("expected.apk");
+    Path actualApk = tmpDir.resolve("actual.apk");
+
+    Aapt2Helper.getAapt2Command().convertApkProtoToBinary(protoApk, expectedApk);
+    try (Aapt2DaemonPool daemonPool =
+        Aapt2Command.createDaemonPoolFromExecutablePath(Paths.get(Aapt2Helper.AAPT2_PATH), 2)) {
+      daemonPool.convertApkProtoToBinary(protoApk, actualApk);
+      daemonPool.convertApkProtoToBinary(protoApk, tmpDir.resolve("actual2.apk"));
+
+      assertThat(daemonPool.getRunningDaemonCount()).isEqualTo(1);
+    }
+
+    assertThat(readManifest(actualApk)).isEqualTo(readManifest(expectedApk));
+  }
+
+  @Test
+  public void commandFails_throwsAndKeepsDaemon() throws Exception {
+    Path fakeAapt2 = createFakeAapt2("if [ \"$1\" = \"convert\" ]; then echo Error >&2; fi");
+
+    try (Aapt2DaemonPool daemonPool =
+        Aapt2Command.createDaemonPoolFromExecutablePath(fakeAapt2, 1)) {
+      assertThrows(
+          Aapt2Exception.class,
+          () -> daemonPool.convertApkProtoToBinary(Paths.get("in.apk"), Paths.get("out.apk")));
+      assertThrows(
+          Aapt2Exception.class,
+          () -> daemonPool.convertApkProtoToBinary(Paths.get("in.apk"), Paths.get("out.apk")));
+
+      assertThat(daemonPool.getRunningDaemonCount()).isEqualTo(1);
+    }
+    assertThat(countDaemonStarts()).isEqualTo(1);
+  }
+
+  @Test
+  public void daemonExits_restartedOnNextCommand() throws Exception {
+    Path fakeAapt2 = createFakeAapt2("echo Done >&2; exit 0");
+
+    try (Aapt2DaemonPool daemonPool =
+        Aapt2Command.createDaemonPoolFromExecutablePath(fakeAapt2, 1)) {
+      daemonPool.convertApkProtoToBinary(Paths.get("in.apk"), Paths.get("out.apk"));
+      daemonPool.convertApkProtoToBinary(Paths.get("in.apk"), Paths.get("out.apk"));
+    }
+
+    assertThat(countDaemonStarts()).isEqualTo(2);
+  }
+
+  @Test
+  public void daemonNeverReady_throws() throws Exception {
+    Path fakeAapt2 = tmpDir.resolve("aapt2");
+    Files.write(fakeAapt2, "#!/bin/sh\nexit 1\n".getBytes(UTF_8));
+    fakeAapt2.toFile().setExecutable(true);
+
+    try (Aapt2DaemonPool daemonPool =
+        Aapt2Command.createDaemonPoolFromExecutablePath(fakeAapt2, 1)) {
+      assertThrows(
+          Aapt2Exception.class,
+          () -> daemonPool.convertApkProtoToBinary(Paths.get("in.apk"), Paths.get("out.apk")));
+
+      assertThat(daemonPool.getRunningDaemonCount()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void closed_stopsDaemons() throws Exception {
+    Path fakeAapt2 = createFakeAapt2("");
+    Aapt2DaemonPool daemonPool = Aapt2Command.createDaemonPoolFromExecutablePath(fakeAapt2, 1);
+    daemonPool.convertApkProtoToBinary(Paths.get("in.apk"), Paths.get("out.apk"));
+
+    daemonPool.close();
+
+    assertThat(daemonPool.getRunningDaemonCount()).isEqualTo(0);
+    assertThrows(
+        IllegalStateException.class,
+        () -> daemonPool.convertApkProtoToBinary(Paths.get("in.apk"), Paths.get("out.apk")));
+  }
+
+  /**
+   * Creates a script emulating the aapt2 daemon protocol, which runs the given shell snippet after
+   * each command with the command arguments as positional parameters.
+   */
+  private Path createFakeAapt2(String afterCommand) throws Exception {
+    Path script = tmpDir.resolve("aapt2");
+    String content =
+        String.join(
+            "\n",
+            "#!/bin/sh",
+            "echo started >> " + tmpDir.resolve("starts"),
+            "echo Ready",
+            "set --",
+            "while read -r line; do",
+            "  if [ -n \"$line\" ]; then set -- \"$@\" \"$line\"; continue; fi",
+            "  " + afterCommand,
+            "  echo Done >&2",
+            "  set --",
+            "done",
+            "");
+    Files.write(script, content.getBytes(UTF_8));
+    script.toFile().setExecutable(true);
+    return script;
+  }
+
+  private long countDaemonStarts() throws Exception {
+    return Files.readAllLines(tmpDir.resolve("starts")).size();
+  }
+
+  private static byte[] readManifest(Path apk) throws Exception {
+    try (ZipFile zipFile = new ZipFile(apk.toFile());
+        InputStream inputStream =
+            zipFile.getInputStream(zipFile.getEntry("AndroidManifest.xml"))) {
+      return ByteStreams.toByteArray(inputStream);
+    }
+  }
+}
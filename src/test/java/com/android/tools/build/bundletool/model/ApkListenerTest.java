@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.bundle.Commands.ApkDescription;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ApkListenerTest {
+
+  private static final ApkDescription APK_DESCRIPTION =
+      ApkDescription.newBuilder().setPath("splits/base-master.apk").build();
+
+  @Test
+  public void onApkFinalizedWithMetrics_delegatesByDefault() throws Exception {
+    List<ApkDescription> finalizedApks = new ArrayList<>();
+    ApkListener apkListener =
+        new ApkListener() {
+          @Override
+          public void onApkFinalized(ApkDescription apkDesc) {
+            finalizedApks.add(apkDesc);
+          }
+        };
+
+    apkListener.onApkFinalized(APK_DESCRIPTION, apkMetrics());
+
+    assertThat(finalizedApks).containsExactly(APK_DESCRIPTION);
+  }
+
+  private static ApkSerializationMetrics apkMetrics() {
+    return ApkSerializationMetrics.builder()
+        .setSerializationTime(Duration.ofMillis(10))
+        .setEntryCount(3)
+        .setCompressedSize(100)
+        .setUncompressedSize(200)
+        .build();
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.resourceTableWithTestLabel;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.aapt.Resources.ResourceTable;
+import com.android.tools.build.bundletool.exceptions.ValidationException;
+import com.android.tools.build.bundletool.testing.BundleModuleBuilder;
+import com.google.common.collect.ImmutableList;
+import java.util.stream.Stream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BundleModuleTest {
+
+  @Test
+  public void resourceTable_parsedOnce() throws Exception {
+    ResourceTable resourceTable = resourceTableWithTestLabel("Test");
+
+    BundleModule bundleModule =
+        new BundleModuleBuilder("base")
+            .setManifest(androidManifest("com.test.app"))
+            .setResourceTable(resourceTable)
+            .build();
+
+    assertThat(bundleModule.getResourceTable()).hasValue(resourceTable);
+    assertThat(bundleModule.getResourceTable().get())
+        .isSameAs(bundleModule.getResourceTable().get());
+    assertThat(bundleModule.getEntries()).isEmpty();
+  }
+
+  @Test
+  public void invalidResourceTable_throwsOnlyWhenAccessed() throws Exception {
+    BundleModule bundleModule =
+        new BundleModuleBuilder("base")
+            .setManifest(androidManifest("com.test.app"))
+            .addFile("resources.pb", new byte[] {1, 2, 3})
+            .build();
+
+    ValidationException exception =
+        assertThrows(ValidationException.class, () -> bundleModule.getResourceTable());
+
+    assertThat(exception).hasMessageThat().contains("resources.pb");
+  }
+
+  @Test
+  public void findEntriesUnderPath() throws Exception {
+    BundleModule bundleModule =
+        new BundleModuleBuilder("base")
+            .addFile("assets/file.txt")
+            .addFile("res/drawable/icon.png")
+            .addFile("res/drawable-hdpi/icon.png")
+            .addFile("resources.txt")
+            .addFile("root/res/file.txt")
+            .setManifest(androidManifest("com.test.app"))
+            .build();
+
+    assertThat(entryPaths(bundleModule.findEntriesUnderPath(ZipPath.create("res"))))
+        .containsExactly("res/drawable/icon.png", "res/drawable-hdpi/icon.png")
+        .inOrder();
+    assertThat(entryPaths(bundleModule.findEntriesUnderPath(ZipPath.create("res/drawable"))))
+        .containsExactly("res/drawable/icon.png");
+    assertThat(entryPaths(bundleModule.findEntriesUnderPath(ZipPath.create("lib")))).isEmpty();
+    assertThat(entryPaths(bundleModule.findEntriesUnderPath(ZipPath.ROOT))).hasSize(5);
+  }
+
+  @Test
+  public void noModuleFiles_empty() throws Exception {
+    BundleModule bundleModule =
+        new BundleModuleBuilder("base").setManifest(androidManifest("com.test.app")).build();
+
+    assertThat(bundleModule.getResourceTable()).isEmpty();
+    assertThat(bundleModule.getAssetsConfig()).isEmpty();
+    assertThat(bundleModule.getNativeConfig()).isEmpty();
+  }
+
+  private static ImmutableList<String> entryPaths(Stream<ModuleEntry> entries) {
+    return entries.map(entry -> entry.getPath().toString()).collect(toImmutableList());
+  }
+}
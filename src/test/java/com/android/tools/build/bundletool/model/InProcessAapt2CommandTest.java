@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifestForFeature;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withDebuggableAttribute;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withInstant;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withMetadataResource;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withMetadataValue;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withMinSdkVersion;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withSplitId;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withSplitNameActivity;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.withTitle;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlAttribute;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlElement;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlNamespace;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlNode;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.aapt.Resources.ResourceTable;
+import com.android.aapt.Resources.XmlAttribute;
+import com.android.aapt.Resources.XmlNode;
+import com.android.tools.build.bundletool.io.ZipBuilder;
+import com.android.tools.build.bundletool.testing.Aapt2Helper;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
+import com.google.common.io.ByteStreams;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class InProcessAapt2CommandTest {
+
+  private static final String TOOLS_NAMESPACE_URI = "http://schemas.android.com/tools";
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private final Aapt2Command aapt2Command = Aapt2Helper.getAapt2Command();
+  private final RecordingAapt2Command fallbackCommand = new RecordingAapt2Command(aapt2Command);
+
+  private Path tmpDir;
+
+  @Before
+  public void setUp() throws Exception {
+    tmpDir = tmp.getRoot().toPath();
+  }
+
+  @Test
+  public void minimalManifest_sameAsAapt2() throws Exception {
+    assertSameAsAapt2(androidManifest("com.test.app"));
+    assertThat(fallbackCommand.convertedApks).isEmpty();
+  }
+
+  @Test
+  public void manifestWithCompiledAttributes_sameAsAapt2() throws Exception {
+    assertSameAsAapt2(
+        androidManifest(
+            "com.test.app",
+            withDebuggableAttribute(true),
+            withMinSdkVersion(21),
+            withSplitId("config.xxhdpi"),
+            withMetadataValue("key", "value"),
+            withMetadataResource("resource-key", 0x7f010001)));
+    assertThat(fallbackCommand.convertedApks).isEmpty();
+  }
+
+  @Test
+  public void featureManifest_sameAsAapt2() throws Exception {
+    assertSameAsAapt2(
+        androidManifestForFeature(
+            "com.test.app",
+            withTitle("@string/title", 0x7f0b0001),
+            withInstant(true),
+            withSplitNameActivity("FeatureActivity", "feature")));
+    assertThat(fallbackCommand.convertedApks).isEmpty();
+  }
+
+  @Test
+  public void manifestWithToolsNamespace_sameAsAapt2() throws Exception {
+    XmlNode manifest =
+        xmlNode(
+            xmlElement(
+                "",
+                "manifest",
+                xmlAttribute(TOOLS_NAMESPACE_URI, "ignore", 0, "AllowBackup"),
+                xmlNamespace("tools", TOOLS_NAMESPACE_URI),
+                xmlNode(xmlElement("application"))));
+
+    assertSameAsAapt2(manifest);
+    assertThat(fallbackCommand.convertedApks).isEmpty();
+  }
+
+  @Test
+  public void manifestWithNonAsciiValues_sameAsAapt2() throws Exception {
+    assertSameAsAapt2(androidManifest("com.test.app", withMetadataValue("clé", "日本語 😀")));
+    assertThat(fallbackCommand.convertedApks).isEmpty();
+  }
+
+  @Test
+  public void manifestWithUncompiledAttribute_sameAsAapt2() throws Exception {
+    XmlNode manifest =
+        xmlNode(
+            xmlElement(
+                "manifest",
+                XmlAttribute.newBuilder().setName("package").setValue("com.test.app").build(),
+                xmlNode(xmlElement("application"))));
+
+    assertSameAsAapt2(manifest);
+    assertThat(fallbackCommand.convertedApks).isEmpty();
+  }
+
+  @Test
+  public void manifestWithUncompiledEscapedAttribute_delegatesToFallback() throws Exception {
+    XmlNode manifest =
+        xmlNode(
+            xmlElement(
+                "manifest",
+                XmlAttribute.newBuilder().setName("package").setValue("it\\'s").build(),
+                xmlNode(xmlElement("application"))));
+
+    assertSameAsAapt2(manifest);
+    assertThat(fallbackCommand.convertedApks).hasSize(1);
+  }
+
+  @Test
+  public void apkWithResources_delegatesToFallback() throws Exception {
+    Path protoApk =
+        new ZipBuilder()
+            .addFileWithProtoContent(
+                ZipPath.create("AndroidManifest.xml"), androidManifest("com.test.app"))
+            .addFileWithProtoContent(
+                ZipPath.create("resources.pb"), ResourceTable.getDefaultInstance())
+            .writeTo(tmpDir.resolve("proto.apk"));
+    Path binaryApk = tmpDir.resolve("binary.apk");
+
+    Aapt2Command.createInProcessWithFallback(fallbackCommand)
+        .convertApkProtoToBinary(protoApk, binaryApk);
+
+    assertThat(fallbackCommand.convertedApks).containsExactly(protoApk);
+  }
+
+  private void assertSameAsAapt2(XmlNode manifest) throws Exception {
+    Path protoApk =
+        new ZipBuilder()
+            .addFileWithProtoContent(ZipPath.create("AndroidManifest.xml"), manifest)
+            .writeTo(tmpDir.resolve("proto.apk"));
+    Path expectedApk = tmpDir.resolve("expected.apk");
+    Path actualApk = tmpDir.resolve("actual.apk");
+
+    aapt2Command.convertApkProtoToBinary(protoApk, expectedApk);
+    Aapt2Command.createInProcessWithFallback(fallbackCommand)
+        .convertApkProtoToBinary(protoApk, actualApk);
+
+    List<String> entryNames;
+    try (ZipFile expectedZip = new ZipFile(expectedApk.toFile());
+        ZipFile actualZip = new ZipFile(actualApk.toFile())) {
+      entryNames = entryNames(expectedZip);
+      assertThat(entryNames(actualZip)).containsExactlyElementsIn(entryNames);
+    }
+    // The entries are merged into the final APK without being recompressed, so their compressed
+    // bytes must be identical too.
+    MappedZipFile expectedEntries = MappedZipFile.open(expectedApk).get();
+    MappedZipFile actualEntries = MappedZipFile.open(actualApk).get();
+    for (String entryName : entryNames) {
+      MappedZipFile.Entry expectedEntry = expectedEntries.getEntry(entryName).get();
+      MappedZipFile.Entry actualEntry = actualEntries.getEntry(entryName).get();
+      assertThat(actualEntry.isDeflated()).isEqualTo(expectedEntry.isDeflated());
+      assertThat(readRawData(actualEntry)).isEqualTo(readRawData(expectedEntry));
+    }
+  }
+
+  private static List<String> entryNames(ZipFile zipFile) {
+    List<String> names = new ArrayList<>();
+    for (ZipEntry entry : Collections.list(zipFile.entries())) {
+      names.add(entry.getName());
+    }
+    return names;
+  }
+
+  private static byte[] readRawData(MappedZipFile.Entry entry) throws Exception {
+    try (InputStream inputStream = entry.getRawContent()) {
+      return ByteStreams.toByteArray(inputStream);
+    }
+  }
+
+  /** Records the APKs converted by the wrapped command. */
+  private static final class RecordingAapt2Command implements Aapt2Command {
+    private final Aapt2Command delegate;
+    private final List<Path> convertedApks = new ArrayList<>();
+
+    RecordingAapt2Command(Aapt2Command delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+      convertedApks.add(protoApk);
+      delegate.convertApkProtoToBinary(protoApk, binaryApk);
+    }
+  }
+}
@@ -18,8 +18,10 @@ package com.android.tools.build.bundletool.model;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.android.tools.build.bundletool.model.ModuleEntry.ContentFingerprint;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.Optional;
 import java.util.function.Supplier;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -73,6 +75,47 @@ public class ModuleEntryTest {
         .isTrue();
   }
 
+  @Test
+  public void equal_differentFingerprints_contentsNotCompared() throws Exception {
+    Supplier<InputStream> unreadableContent =
+        () -> {
+          throw new RuntimeException("Content should not be read.");
+        };
+
+    assertThat(
+            ModuleEntry.equal(
+                createEntry(
+                    ZipPath.create("a"),
+                    /* isDirectory= */ false,
+                    unreadableContent,
+                    Optional.of(ContentFingerprint.create(/* size= */ 1, /* crc32= */ 1))),
+                createEntry(
+                    ZipPath.create("a"),
+                    /* isDirectory= */ false,
+                    unreadableContent,
+                    Optional.of(ContentFingerprint.create(/* size= */ 1, /* crc32= */ 2)))))
+        .isFalse();
+  }
+
+  @Test
+  public void equal_sameFingerprints_contentsCompared() throws Exception {
+    ContentFingerprint fingerprint = ContentFingerprint.create(/* size= */ 1, /* crc32= */ 1);
+
+    assertThat(
+            ModuleEntry.equal(
+                createEntry(
+                    ZipPath.create("a"),
+                    /* isDirectory= */ false,
+                    () -> new ByteArrayInputStream(new byte[] {'a'}),
+                    Optional.of(fingerprint)),
+                createEntry(
+                    ZipPath.create("a"),
+                    /* isDirectory= */ false,
+                    () -> new ByteArrayInputStream(new byte[] {'b'}),
+                    Optional.of(fingerprint))))
+        .isFalse();
+  }
+
   private static ModuleEntry createFileEntry(ZipPath path, byte[] content) throws Exception {
     return createEntry(path, /* isDirectory= */ false, () -> new ByteArrayInputStream(content));
   }
@@ -88,6 +131,14 @@ public class ModuleEntryTest {
 
   private static ModuleEntry createEntry(
       ZipPath path, boolean isDirectory, Supplier<InputStream> contentSupplier) {
+    return createEntry(path, isDirectory, contentSupplier, Optional.empty());
+  }
+
+  private static ModuleEntry createEntry(
+      ZipPath path,
+      boolean isDirectory,
+      Supplier<InputStream> contentSupplier,
+      Optional<ContentFingerprint> contentFingerprint) {
     return new ModuleEntry() {
       @Override
       public InputStream getContent() {
@@ -113,6 +164,11 @@ public class ModuleEntryTest {
       public ModuleEntry setCompression(boolean shouldCompress) {
         throw new UnsupportedOperationException();
       }
+
+      @Override
+      public Optional<ContentFingerprint> getContentFingerprint() {
+        return contentFingerprint;
+      }
     };
   }
 }
@@ -220,6 +220,46 @@ public final class ZipPathTest {
     assertThat(path.startsWith(ZipPath.create("foo/bar/hello"))).isFalse();
   }
 
+  @Test
+  public void testStartsWith_fromString() {
+    ZipPath path = ZipPath.create("res/drawable/icon.png");
+
+    // Positive results.
+    assertThat(path.startsWith("")).isTrue();
+    assertThat(path.startsWith("res")).isTrue();
+    assertThat(path.startsWith("res/drawable")).isTrue();
+
+    // Negative results.
+    assertThat(path.startsWith("re")).isFalse();
+    assertThat(path.startsWith("lib")).isFalse();
+    assertThat(path.startsWith("res/drawable-hdpi")).isFalse();
+    assertThat(ZipPath.ROOT.startsWith("res")).isFalse();
+  }
+
+  @Test
+  public void testDerivedPaths_equalToCreatedPaths() {
+    ZipPath path = ZipPath.create("foo/bar/test");
+    ImmutableList<ZipPath> derivedPaths =
+        ImmutableList.of(
+            path.getParent(),
+            path.subpath(1, 3),
+            path.getName(1),
+            path.getParent().resolve(path.getFileName()));
+    ImmutableList<ZipPath> createdPaths =
+        ImmutableList.of(
+            ZipPath.create("foo/bar"),
+            ZipPath.create("bar/test"),
+            ZipPath.create("bar"),
+            ZipPath.create("foo/bar/test"));
+
+    for (int i = 0; i < derivedPaths.size(); i++) {
+      assertThat((Object) derivedPaths.get(i)).isEqualTo(createdPaths.get(i));
+      assertThat(derivedPaths.get(i).hashCode()).isEqualTo(createdPaths.get(i).hashCode());
+      assertThat(derivedPaths.get(i).compareTo(createdPaths.get(i))).isEqualTo(0);
+      assertThat(derivedPaths.get(i).toString()).isEqualTo(createdPaths.get(i).toString());
+    }
+  }
+
   @Test
   public void testEndsWith_everythingEndsWithRoot() {
     ZipPath root = ZipPath.create("");
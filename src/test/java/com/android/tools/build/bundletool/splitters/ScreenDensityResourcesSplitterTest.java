@@ -40,6 +40,7 @@ import static com.android.tools.build.bundletool.testing.truth.resources.TruthRe
 import static com.android.tools.build.bundletool.utils.ResourcesUtils.DEFAULT_DENSITY_VALUE;
 import static com.android.tools.build.bundletool.utils.ResourcesUtils.HDPI_VALUE;
 import static com.android.tools.build.bundletool.utils.ResourcesUtils.MDPI_VALUE;
+import static com.android.tools.build.bundletool.utils.ResourcesUtils.XHDPI_VALUE;
 import static com.android.tools.build.bundletool.utils.ResourcesUtils.XXXHDPI_VALUE;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.common.truth.Truth.assertThat;
@@ -48,6 +49,7 @@ import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
 import static junit.framework.TestCase.fail;
 
 import com.android.aapt.ConfigurationOuterClass.Configuration;
+import com.android.aapt.Resources.ConfigValue;
 import com.android.aapt.Resources.ResourceTable;
 import com.android.aapt.Resources.StringPool;
 import com.android.bundle.Targeting.ApkTargeting;
@@ -629,6 +631,111 @@ public class ScreenDensityResourcesSplitterTest {
         .onlyWithConfigs(HDPI);
   }
 
+  /**
+   * The claimed config values are removed from the default split by identity, so a config value
+   * instance listed twice in the entry has both of its occurrences removed.
+   */
+  @Test
+  public void duplicatedConfigValue_claimedFromDefaultSplit() throws Exception {
+    ConfigValue hdpiValue = fileReference("res/drawable-hdpi/image.jpg", HDPI);
+    ResourceTable table =
+        resourceTable(
+            pkg(
+                USER_PACKAGE_OFFSET,
+                "com.test.app",
+                type(
+                    0x01,
+                    "drawable",
+                    entry(
+                        0x01,
+                        "image",
+                        hdpiValue,
+                        hdpiValue,
+                        fileReference("res/drawable-xhdpi/image.jpg", XHDPI)))));
+    BundleModule module =
+        new BundleModuleBuilder("base")
+            .addFile("res/drawable-hdpi/image.jpg")
+            .addFile("res/drawable-xhdpi/image.jpg")
+            .setResourceTable(table)
+            .setManifest(androidManifest("com.test.app"))
+            .build();
+
+    ImmutableCollection<ModuleSplit> splits = splitter.split(ModuleSplit.forResources(module));
+
+    ModuleSplit masterSplit = findModuleSplitWithDefaultTargeting(splits);
+    assertThat(masterSplit.getResourceTable().get())
+        .doesNotContainResource("com.test.app:drawable/image");
+
+    ModuleSplit hdpiSplit = findModuleSplitWithScreenDensityTargeting(splits, DensityAlias.HDPI);
+    assertThat(hdpiSplit.getResourceTable().get())
+        .containsResource("com.test.app:drawable/image")
+        .withDensity(HDPI_VALUE);
+
+    ModuleSplit xhdpiSplit = findModuleSplitWithScreenDensityTargeting(splits, DensityAlias.XHDPI);
+    assertThat(xhdpiSplit.getResourceTable().get())
+        .containsResource("com.test.app:drawable/image")
+        .withDensity(XHDPI_VALUE);
+  }
+
+  /**
+   * Equal but distinct config values and entries are each claimed from the default split, although
+   * they are looked up by identity.
+   */
+  @Test
+  public void equalButDistinctConfigValuesAndEntries_claimedFromDefaultSplit() throws Exception {
+    ConfigValue hdpiValue = fileReference("res/drawable-hdpi/image.jpg", HDPI);
+    ConfigValue xhdpiValue = fileReference("res/drawable-xhdpi/image.jpg", XHDPI);
+    ResourceTable table =
+        resourceTable(
+            pkg(
+                USER_PACKAGE_OFFSET,
+                "com.test.app",
+                type(
+                    0x01,
+                    "drawable",
+                    entry(0x01, "image", hdpiValue, hdpiValue.toBuilder().build(), xhdpiValue)),
+                type(
+                    0x02,
+                    "raw",
+                    entry(
+                        0x01,
+                        "image",
+                        hdpiValue.toBuilder().build(),
+                        hdpiValue.toBuilder().build(),
+                        xhdpiValue.toBuilder().build()))));
+    BundleModule module =
+        new BundleModuleBuilder("base")
+            .addFile("res/drawable-hdpi/image.jpg")
+            .addFile("res/drawable-xhdpi/image.jpg")
+            .setResourceTable(table)
+            .setManifest(androidManifest("com.test.app"))
+            .build();
+
+    ImmutableCollection<ModuleSplit> splits = splitter.split(ModuleSplit.forResources(module));
+
+    ModuleSplit masterSplit = findModuleSplitWithDefaultTargeting(splits);
+    assertThat(masterSplit.getResourceTable().get())
+        .doesNotContainResource("com.test.app:drawable/image");
+    assertThat(masterSplit.getResourceTable().get())
+        .doesNotContainResource("com.test.app:raw/image");
+
+    ModuleSplit hdpiSplit = findModuleSplitWithScreenDensityTargeting(splits, DensityAlias.HDPI);
+    assertThat(hdpiSplit.getResourceTable().get())
+        .containsResource("com.test.app:drawable/image")
+        .withDensity(HDPI_VALUE);
+    assertThat(hdpiSplit.getResourceTable().get())
+        .containsResource("com.test.app:raw/image")
+        .withDensity(HDPI_VALUE);
+
+    ModuleSplit xhdpiSplit = findModuleSplitWithScreenDensityTargeting(splits, DensityAlias.XHDPI);
+    assertThat(xhdpiSplit.getResourceTable().get())
+        .containsResource("com.test.app:drawable/image")
+        .withDensity(XHDPI_VALUE);
+    assertThat(xhdpiSplit.getResourceTable().get())
+        .containsResource("com.test.app:raw/image")
+        .withDensity(XHDPI_VALUE);
+  }
+
   /** Before 0.4.0, all default densities ended up in the base regardless of alternatives. */
   @Test
   public void defaultDensityWithAlternatives_before_0_4_0() throws Exception {
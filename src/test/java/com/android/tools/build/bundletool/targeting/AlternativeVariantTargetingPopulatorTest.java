@@ -23,6 +23,7 @@ import static com.android.tools.build.bundletool.testing.TargetingUtils.toScreen
 import static com.android.tools.build.bundletool.testing.TargetingUtils.variantAbiTargeting;
 import static com.android.tools.build.bundletool.testing.TargetingUtils.variantDensityTargeting;
 import static com.android.tools.build.bundletool.testing.TargetingUtils.variantSdkTargeting;
+import static com.google.common.collect.ImmutableListMultimap.toImmutableListMultimap;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
@@ -46,6 +47,7 @@ import com.android.tools.build.bundletool.targeting.AlternativeVariantTargetingP
 import com.android.tools.build.bundletool.utils.Versions;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSet;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -145,6 +147,45 @@ public class AlternativeVariantTargetingPopulatorTest {
     assertThat(processedInstantSplits).isEqualTo(instantSplits);
   }
 
+  @Test
+  public void variantTargetingOnly_sameAsWithModuleSplits() throws Exception {
+    SdkVersion lPlusVersion = sdkVersionFrom(Versions.ANDROID_L_API_VERSION);
+    VariantTargeting lPlusTargeting = variantSdkTargeting(lPlusVersion);
+    VariantTargeting emptySdkTargeting = variantSdkTargeting(SdkVersion.getDefaultInstance());
+
+    GeneratedApks generatedApks =
+        GeneratedApks.builder()
+            .setStandaloneApks(
+                ImmutableList.of(
+                    createStandaloneModuleSplit(
+                        mergeVariantTargeting(
+                            emptySdkTargeting, variantDensityTargeting(DensityAlias.MDPI))),
+                    createStandaloneModuleSplit(
+                        mergeVariantTargeting(
+                            emptySdkTargeting, variantDensityTargeting(DensityAlias.XHDPI)))))
+            .setInstantApks(ImmutableList.of(createModuleSplit(lPlusTargeting, SplitType.INSTANT)))
+            .setSplitApks(
+                ImmutableList.of(
+                    createModuleSplit(lPlusTargeting), createModuleSplit(lPlusTargeting)))
+            .build();
+
+    ImmutableListMultimap<SplitType, VariantTargeting> processedTargeting =
+        AlternativeVariantTargetingPopulator.populateAlternativeVariantTargeting(
+            generatedApks
+                .getAllApksStream()
+                .collect(
+                    toImmutableListMultimap(
+                        ModuleSplit::getSplitType, ModuleSplit::getVariantTargeting)));
+
+    assertThat(processedTargeting)
+        .isEqualTo(
+            AlternativeVariantTargetingPopulator.populateAlternativeVariantTargeting(generatedApks)
+                .getAllApksStream()
+                .collect(
+                    toImmutableListMultimap(
+                        ModuleSplit::getSplitType, ModuleSplit::getVariantTargeting)));
+  }
+
   @Test
   public void abi_allVariantsAbiAgnostic_passThrough() throws Exception {
     ModuleSplit densityVariant = createModuleSplit(variantDensityTargeting(DensityAlias.LDPI));
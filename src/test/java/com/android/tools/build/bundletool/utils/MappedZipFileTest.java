@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.io.ZipBuilder;
+import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MappedZipFileTest {
+
+  private static final byte[] DEFLATED_CONTENT = Strings.repeat("dex", 1000).getBytes(UTF_8);
+  private static final byte[] STORED_CONTENT = "stored".getBytes(UTF_8);
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path zipPath;
+
+  @Before
+  public void setUp() throws Exception {
+    zipPath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("dex/classes.dex"), DEFLATED_CONTENT)
+            .addFileWithContent(
+                ZipPath.create("assets/stored.txt"), STORED_CONTENT, EntryOption.UNCOMPRESSED)
+            .writeTo(tmp.getRoot().toPath().resolve("file.zip"));
+  }
+
+  @Test
+  public void deflatedEntry() throws Exception {
+    MappedZipFile.Entry entry = MappedZipFile.open(zipPath).get().getEntry("dex/classes.dex").get();
+
+    assertThat(entry.getName()).isEqualTo("dex/classes.dex");
+    assertThat(entry.isDeflated()).isTrue();
+    assertThat(entry.getUncompressedSize()).isEqualTo(DEFLATED_CONTENT.length);
+    assertThat(entry.getCompressedSize()).isLessThan(entry.getUncompressedSize());
+    assertThat(entry.getRawData().remaining()).isEqualTo(entry.getCompressedSize());
+    assertThat(entry.getCrc32()).isEqualTo(crc32(DEFLATED_CONTENT));
+    assertThat(readContent(entry)).isEqualTo(DEFLATED_CONTENT);
+  }
+
+  @Test
+  public void storedEntry() throws Exception {
+    MappedZipFile.Entry entry =
+        MappedZipFile.open(zipPath).get().getEntry("assets/stored.txt").get();
+
+    assertThat(entry.isDeflated()).isFalse();
+    assertThat(entry.getCompressedSize()).isEqualTo(STORED_CONTENT.length);
+    assertThat(entry.getCrc32()).isEqualTo(crc32(STORED_CONTENT));
+    assertThat(readContent(entry)).isEqualTo(STORED_CONTENT);
+  }
+
+  @Test
+  public void missingEntry() throws Exception {
+    MappedZipFile mappedZipFile = MappedZipFile.open(zipPath).get();
+
+    assertThat(mappedZipFile.size()).isEqualTo(2);
+    assertThat(mappedZipFile.getEntry("dex/classes2.dex")).isEmpty();
+  }
+
+  @Test
+  public void getEntries_inCentralDirectoryOrder() throws Exception {
+    MappedZipFile mappedZipFile = MappedZipFile.open(zipPath).get();
+
+    assertThat(mappedZipFile.getEntries().stream().map(MappedZipFile.Entry::getName))
+        .containsExactly("dex/classes.dex", "assets/stored.txt")
+        .inOrder();
+  }
+
+  @Test
+  public void toZipEntry_sameAsZipFileEntry() throws Exception {
+    MappedZipFile mappedZipFile = MappedZipFile.open(zipPath).get();
+
+    try (ZipFile zipFile = new ZipFile(zipPath.toFile())) {
+      for (MappedZipFile.Entry entry : mappedZipFile.getEntries()) {
+        ZipEntry expected = zipFile.getEntry(entry.getName());
+        ZipEntry actual = entry.toZipEntry();
+        assertThat(actual.getName()).isEqualTo(expected.getName());
+        assertThat(actual.getMethod()).isEqualTo(expected.getMethod());
+        assertThat(actual.getCrc()).isEqualTo(expected.getCrc());
+        assertThat(actual.getSize()).isEqualTo(expected.getSize());
+        assertThat(actual.getCompressedSize()).isEqualTo(expected.getCompressedSize());
+      }
+    }
+  }
+
+  @Test
+  public void notAZipFile_empty() throws Exception {
+    Path file = Files.write(tmp.newFile().toPath(), "not a zip".getBytes(UTF_8));
+
+    assertThat(MappedZipFile.open(file)).isEmpty();
+  }
+
+  @Test
+  public void entriesReadConcurrently() throws Exception {
+    MappedZipFile.Entry entry = MappedZipFile.open(zipPath).get().getEntry("dex/classes.dex").get();
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+
+    try {
+      List<ListenableFuture<byte[]>> futures = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        futures.add(executorService.submit(() -> readContent(entry)));
+      }
+      for (ListenableFuture<byte[]> future : futures) {
+        assertThat(future.get()).isEqualTo(DEFLATED_CONTENT);
+      }
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  private static byte[] readContent(MappedZipFile.Entry entry) throws Exception {
+    try (InputStream content = entry.getContent()) {
+      return ByteStreams.toByteArray(content);
+    }
+  }
+
+  private static long crc32(byte[] content) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(content);
+    return crc32.getValue();
+  }
+}
@@ -210,6 +210,43 @@ public class ResourcesUtilsTest {
                             0x01, "icon2", fileReference("res/drawable-mdpi/icon2.png", MDPI))))));
   }
 
+  @Test
+  public void filter_sharesUnchangedMessages() throws Exception {
+    ResourceTable table =
+        resourceTable(
+            pkg(
+                0x7f,
+                "package.with.density.resources",
+                type(
+                    0x01,
+                    "layout",
+                    entry(
+                        0x00,
+                        "layout_main",
+                        fileReference("res/layout/main.xml", Configuration.getDefaultInstance()))),
+                type(
+                    0x02,
+                    "image",
+                    entry(
+                        0x00,
+                        "icon",
+                        fileReference("res/drawable/icon.png", Configuration.getDefaultInstance()),
+                        fileReference("res/drawable-mdpi/icon.png", MDPI)))));
+
+    ResourceTable unfilteredTable =
+        ResourcesUtils.filterResourceTable(table, Predicates.alwaysFalse(), Function.identity());
+    ResourceTable filteredTable =
+        ResourcesUtils.filterResourceTable(
+            table,
+            Predicates.alwaysFalse(),
+            entry -> entry.getName().equals("icon") ? removeDefaultResources(entry) : entry);
+
+    assertThat(unfilteredTable).isSameAs(table);
+    assertThat(filteredTable.getPackage(0).getType(0)).isSameAs(table.getPackage(0).getType(0));
+    assertThat(filteredTable.getPackage(0).getType(1).getEntry(0).getConfigValueList())
+        .containsExactly(fileReference("res/drawable-mdpi/icon.png", MDPI));
+  }
+
   @Test
   public void resourcesLocaleConversions_oldLanguageCodes() {
     // This documents that our converter will use old ISO-639 language codes for backward
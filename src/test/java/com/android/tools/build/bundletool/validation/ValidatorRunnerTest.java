@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.validation;
+
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.exceptions.ValidationException;
+import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.testing.AppBundleBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ValidatorRunnerTest {
+
+  private final ListeningExecutorService executorService =
+      MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+
+  @After
+  public void tearDown() {
+    executorService.shutdownNow();
+  }
+
+  @Test
+  public void concurrent_validatesAllModulesAndFiles() throws Exception {
+    List<String> validatedFiles = new CopyOnWriteArrayList<>();
+    SubValidator subValidator =
+        new SubValidator() {
+          @Override
+          public void validateModuleFile(ZipPath file) {
+            validatedFiles.add(file.toString());
+          }
+        };
+
+    new ValidatorRunner(ImmutableList.of(subValidator), executorService)
+        .validateBundle(createBundle());
+
+    assertThat(validatedFiles).containsExactly("dex/classes.dex", "assets/file.txt");
+  }
+
+  @Test
+  public void concurrent_reportsFirstErrorInSequentialOrder() throws Exception {
+    CountDownLatch secondValidatorFailed = new CountDownLatch(1);
+    SubValidator firstValidator =
+        new SubValidator() {
+          @Override
+          public void validateBundle(AppBundle bundle) {
+            try {
+              secondValidatorFailed.await();
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            throw ValidationException.builder().withMessage("First error.").build();
+          }
+        };
+    SubValidator secondValidator =
+        new SubValidator() {
+          @Override
+          public void validateModule(BundleModule module) {
+            secondValidatorFailed.countDown();
+            throw ValidationException.builder().withMessage("Second error.").build();
+          }
+        };
+
+    ValidationException exception =
+        assertThrows(
+            ValidationException.class,
+            () ->
+                new ValidatorRunner(
+                        ImmutableList.of(firstValidator, secondValidator), executorService)
+                    .validateBundle(createBundle()));
+
+    assertThat(exception).hasMessageThat().isEqualTo("First error.");
+  }
+
+  @Test
+  public void sequential_reportsFirstErrorInSequentialOrder() throws Exception {
+    // A module is validated by all sub-validators before its files, but the first sub-validator
+    // would fail first if each sub-validator validated the bundle in turn.
+    SubValidator firstValidator =
+        new SubValidator() {
+          @Override
+          public void validateModuleFile(ZipPath file) {
+            throw ValidationException.builder().withMessage("File error.").build();
+          }
+        };
+    SubValidator secondValidator =
+        new SubValidator() {
+          @Override
+          public void validateModule(BundleModule module) {
+            throw ValidationException.builder().withMessage("Module error.").build();
+          }
+        };
+
+    ValidationException exception =
+        assertThrows(
+            ValidationException.class,
+            () ->
+                new ValidatorRunner(ImmutableList.of(firstValidator, secondValidator))
+                    .validateBundle(createBundle()));
+
+    assertThat(exception).hasMessageThat().isEqualTo("File error.");
+  }
+
+  private static AppBundle createBundle() throws Exception {
+    return new AppBundleBuilder()
+        .addModule(
+            "base",
+            module -> module.addFile("dex/classes.dex").setManifest(androidManifest("com.test")))
+        .addModule(
+            "feature",
+            module -> module.addFile("assets/file.txt").setManifest(androidManifest("com.test")))
+        .build();
+  }
+}